@@ -204,6 +204,10 @@ public class Analytics {
         public void setCallEvents(EventManager.EventRecord records) {
         }
 
+        public void archiveCallEvents(List<EventManager.Event> events,
+                List<EventManager.EventRecord.EventTiming> timings) {
+        }
+
         public void setCallIsVideo(boolean isVideo) {
         }
 
@@ -250,6 +254,9 @@ public class Analytics {
         public boolean isEmergency = false;
 
         public EventManager.EventRecord callEvents;
+        // The events and timings reported, which replace callEvents once the call is archived.
+        public TelecomLogClass.Event[] archivedCallEvents;
+        public TelecomLogClass.EventTimingEntry[] archivedCallTimings;
 
         public boolean isVideo = false;
         public List<TelecomLogClass.VideoEvent> videoEvents;
@@ -284,6 +291,8 @@ public class Analytics {
             this.connectionService = other.connectionService;
             this.isEmergency = other.isEmergency;
             this.callEvents = other.callEvents;
+            this.archivedCallEvents = other.archivedCallEvents;
+            this.archivedCallTimings = other.archivedCallTimings;
             this.isVideo = other.isVideo;
             this.videoEvents = other.videoEvents;
             this.callProperties = other.callProperties;
@@ -370,6 +379,20 @@ public class Analytics {
             this.callEvents = records;
         }
 
+        @Override
+        public void archiveCallEvents(List<EventManager.Event> events,
+                List<EventManager.EventRecord.EventTiming> timings) {
+            TelecomLogClass.Event[] protoEvents = convertLogEventsToProtoEvents(events);
+            TelecomLogClass.EventTimingEntry[] protoTimings = timings.stream()
+                    .map(Analytics::logEventTimingToProtoEventTiming)
+                    .toArray(TelecomLogClass.EventTimingEntry[]::new);
+            synchronized (sLock) {
+                archivedCallEvents = protoEvents;
+                archivedCallTimings = protoTimings;
+                callEvents = null;
+            }
+        }
+
         @Override
         public void setCallIsVideo(boolean isVideo) {
             this.isVideo = isVideo;
@@ -509,6 +532,9 @@ public class Analytics {
                 result.callTimings = callEvents.extractEventTimings().stream()
                         .map(Analytics::logEventTimingToProtoEventTiming)
                         .toArray(TelecomLogClass.EventTimingEntry[]::new);
+            } else if (archivedCallEvents != null) {
+                result.callEvents = archivedCallEvents;
+                result.callTimings = archivedCallTimings;
             }
             result.videoEvents =
                     videoEvents.toArray(new TelecomLogClass.VideoEvent[videoEvents.size()]);
@@ -435,12 +435,12 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     private @Connection.VerificationStatus int mCallerNumberVerificationStatus;
 
     /** The caller display name (CNAP) set by the connection service. */
-    private String mCallerDisplayName;
+    private volatile String mCallerDisplayName;
 
     /**
      * The presentation requirements for the handle. See {@link TelecomManager} for valid values.
      */
-    private int mCallerDisplayNamePresentation;
+    private volatile int mCallerDisplayNamePresentation;
 
     /**
      * The remote connection service which is attempted or already connecting this call. This is set
@@ -526,7 +526,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     private int mQueryToken = 0;
 
     /** Whether this call is requesting that Telecom play the ringback tone on its behalf. */
-    private boolean mRingbackRequested = false;
+    private volatile boolean mRingbackRequested = false;
 
     /** Whether this call is requesting to be silently ringing. */
     private boolean mSilentRingingRequested = false;
@@ -559,7 +559,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     private VideoProviderProxy mVideoProviderProxy;
 
     private boolean mIsVoipAudioMode;
-    private StatusHints mStatusHints;
+    private volatile StatusHints mStatusHints;
     private Bundle mExtras;
     private final ConnectionServiceRepository mRepository;
     private final Context mContext;
@@ -567,9 +567,14 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     private final ClockProxy mClockProxy;
     private final ToastFactory mToastFactory;
     private final TelecomSystem.SyncRoot mLock;
+    // Orders the ConnectionService callbacks which only update this call, and guards the state
+    // they change without the Telecom lock; see getAdapterCallbackLock().
+    private final Object mAdapterCallbackLock = new Object();
     private final String mId;
     private String mConnectionId;
     private Analytics.CallInfo mAnalytics = new Analytics.CallInfo();
+    // The event history of this call, handed to the archive once the call is destroyed.
+    private EventManager.EventRecord mEventRecord;
     private CallStateChangedAtomWriter mCallStateChangedAtomWriter =
             new CallStateChangedAtomWriter();
     private char mPlayingDtmfTone;
@@ -1077,6 +1082,14 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         Log.addEvent(this, LogUtils.Events.CREATED, callingPackage + ";" + extraCreationLogs);
     }
 
+    /**
+     * Sets the event history of this call, once its first event is logged.
+     * @param eventRecord The event record.
+     */
+    void setEventRecord(EventManager.EventRecord eventRecord) {
+        mEventRecord = eventRecord;
+    }
+
     public Analytics.CallInfo getAnalytics() {
         return mAnalytics;
     }
@@ -1096,6 +1109,8 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
 
         Log.addEvent(this, LogUtils.Events.DESTROYED);
         mDestroyed = true;
+        CallEventArchive.getInstance().archive(mEventRecord, mAnalytics);
+        mEventRecord = null;
     }
 
     private void closeRttStreams() {
@@ -1338,6 +1353,19 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         return mId;
     }
 
+    /**
+     * Returns the lock taken by {@link ConnectionServiceWrapper} callbacks which only update this
+     * call, so that they are applied one at a time and in order without waiting behind callbacks
+     * for other calls.  State which those callbacks replace outright, such as the status hints,
+     * ringback request and caller display name, is changed with just this lock held; the Telecom
+     * lock is only taken to notify the listeners.  The callback lock is always taken first, and
+     * must never be taken while holding the Telecom lock or another call's callback lock.
+     * @return The lock object.
+     */
+    public Object getAdapterCallbackLock() {
+        return mAdapterCallbackLock;
+    }
+
     /**
      * Returns the unique ID for this call (see {@link #getId}) along with an attempt indicator that
      * iterates based on attempts to establish a {@link Connection} using createConnectionProcessor.
@@ -1410,6 +1438,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             updateVideoHistoryViaState(mState, newState);
 
             mState = newState;
+            mCallsManager.updateCallStateIndex(this);
             maybeLoadCannedSmsResponses();
 
             if (mState == CallState.ACTIVE || mState == CallState.ON_HOLD) {
@@ -1505,7 +1534,21 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     }
 
     void setRingbackRequested(boolean ringbackRequested) {
+        updateRingbackRequested(ringbackRequested);
+        notifyRingbackRequested();
+    }
+
+    /**
+     * Records whether ringback is requested, without notifying the listeners.  May be called
+     * with only the adapter callback lock held.  {@link #notifyRingbackRequested} must be called
+     * even if the request is unchanged, since a repeated request starts ringback for a call which
+     * has since moved to the foreground.
+     */
+    public void updateRingbackRequested(boolean ringbackRequested) {
         mRingbackRequested = ringbackRequested;
+    }
+
+    public void notifyRingbackRequested() {
         for (Listener l : mListeners) {
             l.onRingbackRequested(this, mRingbackRequested);
         }
@@ -1695,13 +1738,30 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     }
 
     void setCallerDisplayName(String callerDisplayName, int presentation) {
-        if (!TextUtils.equals(callerDisplayName, mCallerDisplayName) ||
-                presentation != mCallerDisplayNamePresentation) {
-            mCallerDisplayName = callerDisplayName;
-            mCallerDisplayNamePresentation = presentation;
-            for (Listener l : mListeners) {
-                l.onCallerDisplayNameChanged(this);
-            }
+        if (updateCallerDisplayName(callerDisplayName, presentation)) {
+            notifyCallerDisplayNameChanged();
+        }
+    }
+
+    /**
+     * Records the caller display name, without notifying the listeners.  May be called with only
+     * the adapter callback lock held.
+     * @return {@code true} if it changed, and {@link #notifyCallerDisplayNameChanged} must be
+     * called.
+     */
+    public boolean updateCallerDisplayName(String callerDisplayName, int presentation) {
+        if (TextUtils.equals(callerDisplayName, mCallerDisplayName)
+                && presentation == mCallerDisplayNamePresentation) {
+            return false;
+        }
+        mCallerDisplayName = callerDisplayName;
+        mCallerDisplayNamePresentation = presentation;
+        return true;
+    }
+
+    public void notifyCallerDisplayNameChanged() {
+        for (Listener l : mListeners) {
+            l.onCallerDisplayNameChanged(this);
         }
     }
 
@@ -1900,6 +1960,8 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
                 l.onTargetPhoneAccountChanged(this);
             }
             configureCallAttributes();
+            // Whether the call is visible to every user depends on the phone account.
+            mCallsManager.updateCallStateIndex(this);
         }
         checkIfVideoCapable();
         checkIfRttCapable();
@@ -2057,6 +2119,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
 
     public void setIsSelfManaged(boolean isSelfManaged) {
         mIsSelfManaged = isSelfManaged;
+        mCallsManager.updateCallStateIndex(this);
 
         // Connection properties will add/remove the PROPERTY_SELF_MANAGED.
         setConnectionProperties(getConnectionProperties());
@@ -2403,6 +2466,9 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         if (changedProperties != 0) {
             int previousProperties = mConnectionProperties;
             mConnectionProperties = connectionProperties;
+            if ((changedProperties & Connection.PROPERTY_IS_EXTERNAL_CALL) != 0) {
+                mCallsManager.updateCallStateIndex(this);
+            }
             boolean didRttChange =
                     (changedProperties & Connection.PROPERTY_IS_RTT) == Connection.PROPERTY_IS_RTT;
             if (didRttChange) {
@@ -2632,8 +2698,10 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
      * connection through a connection service (or the call will have failed).
      *
      * @param phoneAccountRegistrar The phone account registrar.
+     * @param timingWheel The wheel the timeouts of the connection attempts are scheduled on.
      */
-    void startCreateConnection(PhoneAccountRegistrar phoneAccountRegistrar) {
+    void startCreateConnection(PhoneAccountRegistrar phoneAccountRegistrar,
+            TimingWheel timingWheel) {
         if (mCreateConnectionProcessor != null) {
             Log.w(this, "mCreateConnectionProcessor in startCreateConnection is not null. This is" +
                     " due to a race between NewOutgoingCallIntentBroadcaster and " +
@@ -2642,7 +2710,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             return;
         }
         mCreateConnectionProcessor = new CreateConnectionProcessor(this, mRepository, this,
-                phoneAccountRegistrar, mContext, mFlags, new Timeouts.Adapter());
+                phoneAccountRegistrar, mContext, mFlags, new Timeouts.Adapter(), timingWheel);
         mCreateConnectionProcessor.process();
     }
 
@@ -3688,6 +3756,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             mParentCall.removeChildCall(this);
         }
         mParentCall = parentCall;
+        mCallsManager.updateCallStateIndex(this);
     }
 
     /**
@@ -4259,7 +4328,20 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     }
 
     public void setStatusHints(StatusHints statusHints) {
+        updateStatusHints(statusHints);
+        notifyStatusHintsChanged();
+    }
+
+    /**
+     * Records the status hints, without notifying the listeners.  May be called with only the
+     * adapter callback lock held.  {@link #notifyStatusHintsChanged} must then be called, even if
+     * the hints are unchanged.
+     */
+    public void updateStatusHints(StatusHints statusHints) {
         mStatusHints = statusHints;
+    }
+
+    public void notifyStatusHintsChanged() {
         for (Listener l : mListeners) {
             l.onStatusHintsChanged(this);
         }
@@ -4312,6 +4394,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         Log.i(this, "Setting associated user for call: %s", associatedUser);
         Preconditions.checkNotNull(associatedUser);
         mAssociatedUser = associatedUser;
+        mCallsManager.updateCallStateIndex(this);
     }
 
     static int getStateFromConnectionState(int state) {
@@ -42,9 +42,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 /**
@@ -116,15 +114,17 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
         }
     }
 
-    // Handler for tracking pending timeouts.
-    private final ScheduledExecutorService mScheduledExecutorService;
+    // Timers for tracking pending timeouts; they only post the cleanup to mExecutor, which runs
+    // it under the lock.
+    private final TimingWheel mTimingWheel;
+    private final Executor mExecutor;
     private final TelecomSystem.SyncRoot mLock;
     private final Timeouts.Adapter mTimeoutAdapter;
     private final ClockProxy mClockProxy;
     private final FeatureFlags mFeatureFlags;
     private AnomalyReporterAdapter mAnomalyReporter = new AnomalyReporterAdapterImpl();
     // Pre-allocate space for 2 calls; realistically thats all we should ever need (tm)
-    private final Map<Call, ScheduledFuture<?>> mScheduledFutureMap = new ConcurrentHashMap<>(2);
+    private final Map<Call, TimingWheel.Timer> mScheduledTimerMap = new ConcurrentHashMap<>(2);
     private final Map<Call, WatchdogCallState> mWatchdogCallStateMap = new ConcurrentHashMap<>(2);
     // Track the calls which are pending destruction.
     // TODO: enhance to handle the case where a call never gets destroyed.
@@ -162,13 +162,14 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
         mAnomalyReporter = mAnomalyReporterAdapter;
     }
 
-    public CallAnomalyWatchdog(ScheduledExecutorService executorService,
+    public CallAnomalyWatchdog(TimingWheel timingWheel, Executor executor,
             TelecomSystem.SyncRoot lock,
             FeatureFlags featureFlags,
             Timeouts.Adapter timeoutAdapter, ClockProxy clockProxy,
             EmergencyCallDiagnosticLogger emergencyCallDiagnosticLogger,
             TelecomMetricsController metricsController) {
-        mScheduledExecutorService = executorService;
+        mTimingWheel = timingWheel;
+        mExecutor = executor;
         mLock = lock;
         mFeatureFlags = featureFlags;
         mTimeoutAdapter = timeoutAdapter;
@@ -277,10 +278,10 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
      * @param call the call.
      */
     private void stopTrackingCall(Call call) {
-        if (mScheduledFutureMap.containsKey(call)) {
-            ScheduledFuture<?> existingTimeout = mScheduledFutureMap.get(call);
-            existingTimeout.cancel(false /* cancelIfRunning */);
-            mScheduledFutureMap.remove(call);
+        if (mScheduledTimerMap.containsKey(call)) {
+            TimingWheel.Timer existingTimeout = mScheduledTimerMap.get(call);
+            existingTimeout.cancel();
+            mScheduledTimerMap.remove(call);
         }
         if (mCallsPendingDestruction.contains(call)) {
             mCallsPendingDestruction.remove(call);
@@ -312,10 +313,10 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
         mWatchdogCallStateMap.put(call, newState);
 
         // The call's state has changed, so we will remove any existing state cleanup tasks.
-        if (mScheduledFutureMap.containsKey(call)) {
-            ScheduledFuture<?> existingTimeout = mScheduledFutureMap.get(call);
-            existingTimeout.cancel(false /* cancelIfRunning */);
-            mScheduledFutureMap.remove(call);
+        if (mScheduledTimerMap.containsKey(call)) {
+            TimingWheel.Timer existingTimeout = mScheduledTimerMap.get(call);
+            existingTimeout.cancel();
+            mScheduledTimerMap.remove(call);
         }
 
         Log.i(this, "maybePostCleanupTask; callId=%s, state=%s, createConnComplete=%b",
@@ -329,11 +330,12 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
             Runnable cleanupRunnable = getCleanupRunnable(call, newState, timeoutMillis,
                     isEnabledDisconnect);
 
-            // Post cleanup to the executor service and cache the future, so we can cancel it if
-            // needed.
-            ScheduledFuture<?> future = mScheduledExecutorService.schedule(cleanupRunnable,
-                    timeoutMillis, TimeUnit.MILLISECONDS);
-            mScheduledFutureMap.put(call, future);
+            // Post cleanup to the executor once the timeout expires, and cache the timer so we
+            // can cancel it if needed.  The cleanup takes the lock, so it must not run on the
+            // wheel thread itself.
+            TimingWheel.Timer timer = mTimingWheel.schedule("CallAnomalyWatchdog",
+                    () -> mExecutor.execute(cleanupRunnable), timeoutMillis);
+            mScheduledTimerMap.put(call, timer);
         }
     }
 
@@ -373,6 +375,12 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
         Runnable cleanupRunnable = new android.telecom.Logging.Runnable("CAW.mR", mLock) {
             @Override
             public void loggedRun() {
+                // The cleanup was posted once its timer expired; if the call has changed state
+                // since, a newer timer is pending for it and this cleanup is stale.
+                TimingWheel.Timer pendingTimer = mScheduledTimerMap.get(call);
+                if (pendingTimer != null && pendingTimer.isPending()) {
+                    return;
+                }
                 // If we're already pending a cleanup due to a state violation for this call.
                 if (mCallsPendingDestruction.contains(call)) {
                     return;
@@ -417,7 +425,7 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
                         mWatchdogCallStateMap.remove(call);
                     }
                 }
-                mScheduledFutureMap.remove(call);
+                mScheduledTimerMap.remove(call);
             }
         }.prepare();
         return cleanupRunnable;
@@ -506,7 +514,7 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
         mLocalLog.dump(pw);
         pw.decreaseIndent();
         pw.print("Pending timeouts: ");
-        pw.println(mScheduledFutureMap.keySet().stream().map(c -> c.getId()).collect(
+        pw.println(mScheduledTimerMap.keySet().stream().map(c -> c.getId()).collect(
                 Collectors.joining(",")));
         pw.print("Pending destruction: ");
         pw.println(mCallsPendingDestruction.stream().map(c -> c.getId()).collect(
@@ -515,6 +523,6 @@ public class CallAnomalyWatchdog extends CallsManagerListenerBase implements Cal
 
     @VisibleForTesting
     public int getNumberOfScheduledTimeouts() {
-        return mScheduledFutureMap.size();
+        return mScheduledTimerMap.size();
     }
 }
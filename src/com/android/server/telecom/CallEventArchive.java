@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.telecom.Log;
+import android.telecom.Logging.EventManager;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * A compact archive of the event history of destroyed calls, for dumpsys.
+ * <p>
+ * The {@link android.telecom.Log} event history keeps only the most recent calls, and keeps each
+ * of them alive, along with an object per event, for as long as it is retained.  When a call is
+ * destroyed its events are copied here instead, into a fixed-size ring of primitive records of
+ * (time, call, event, data, session), with every string interned in a pool which is reference
+ * counted by the records using it.  The memory used is therefore bounded by {@link #CAPACITY}
+ * records regardless of how many calls are archived, and the oldest events are overwritten
+ * first.  The archive is rendered in the same format as the event history.
+ * <p>
+ * The archive also replaces the event record held by the call's {@link Analytics.CallInfo}: once
+ * a call's events are archived, its analytics keep only the events and timings they report.  The
+ * event history itself still holds the record, and the call, until the call is evicted from it;
+ * such calls are left out of the archive's dump.  Events are still logged as strings and
+ * {@link EventManager.Event} objects while the call is alive.  Archiving is done on the
+ * archive's own thread, so that destroying a call under the Telecom lock only hands the record
+ * over.
+ */
+public class CallEventArchive {
+    @VisibleForTesting
+    public static final int CAPACITY = 4096;
+
+    private static final int NONE = -1;
+    // Records are either an event or, following a call's events, one of its event timings.
+    private static final int KIND_EVENT = 0;
+    private static final int KIND_TIMING = 1;
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /**
+     * Interned strings, reference counted by the records which use them.
+     */
+    private static final class StringPool {
+        private final Map<String, Integer> mIndices = new HashMap<>();
+        private final List<String> mStrings = new ArrayList<>();
+        private int[] mRefCounts = new int[64];
+        private int[] mFree = new int[64];
+        private int mFreeCount;
+
+        int acquire(String s) {
+            if (s == null) {
+                return NONE;
+            }
+            Integer index = mIndices.get(s);
+            if (index == null) {
+                if (mFreeCount > 0) {
+                    index = mFree[--mFreeCount];
+                    mStrings.set(index, s);
+                } else {
+                    index = mStrings.size();
+                    mStrings.add(s);
+                    if (index >= mRefCounts.length) {
+                        int[] refCounts = new int[mRefCounts.length * 2];
+                        System.arraycopy(mRefCounts, 0, refCounts, 0, mRefCounts.length);
+                        mRefCounts = refCounts;
+                    }
+                }
+                mIndices.put(s, index);
+            }
+            mRefCounts[index]++;
+            return index;
+        }
+
+        void release(int index) {
+            if (index == NONE || --mRefCounts[index] > 0) {
+                return;
+            }
+            mIndices.remove(mStrings.get(index));
+            mStrings.set(index, null);
+            if (mFreeCount == mFree.length) {
+                int[] free = new int[mFree.length * 2];
+                System.arraycopy(mFree, 0, free, 0, mFree.length);
+                mFree = free;
+            }
+            mFree[mFreeCount++] = index;
+        }
+
+        String get(int index) {
+            return index == NONE ? null : mStrings.get(index);
+        }
+
+        int size() {
+            return mIndices.size();
+        }
+    }
+
+    private static CallEventArchive sInstance;
+
+    private final Executor mExecutor;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final StringPool mStrings = new StringPool();
+    // The wall clock time of an event, or the duration of a timing in mS.
+    @GuardedBy("mLock")
+    private final long[] mTimes = new long[CAPACITY];
+    @GuardedBy("mLock")
+    private final int[] mCalls = new int[CAPACITY];
+    @GuardedBy("mLock")
+    private final byte[] mKinds = new byte[CAPACITY];
+    @GuardedBy("mLock")
+    private final int[] mNames = new int[CAPACITY];
+    @GuardedBy("mLock")
+    private final int[] mData = new int[CAPACITY];
+    @GuardedBy("mLock")
+    private final int[] mSessions = new int[CAPACITY];
+    // The index of the next record to write, and the number of records held.
+    @GuardedBy("mLock")
+    private int mNext;
+    @GuardedBy("mLock")
+    private int mSize;
+    @GuardedBy("mLock")
+    private int mArchivedCalls;
+
+    public static synchronized CallEventArchive getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallEventArchive();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public CallEventArchive() {
+        this(Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    public CallEventArchive(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Archives the events and event timings of a destroyed call, then replaces the event record
+     * held by its analytics with the events and timings they report.  Returns once the record is
+     * handed to the archive's thread.
+     *
+     * @param record The event record of the call; ignored if {@code null}.
+     * @param analytics The analytics of the call.
+     */
+    public void archive(EventManager.EventRecord record, Analytics.CallInfo analytics) {
+        if (record == null) {
+            return;
+        }
+        String call = record.getRecordEntry().getDescription();
+        mExecutor.execute(() -> compact(call, record, analytics));
+    }
+
+    private void compact(String call, EventManager.EventRecord record,
+            Analytics.CallInfo analytics) {
+        List<EventManager.Event> events = record.getEvents();
+        List<EventManager.EventRecord.EventTiming> timings = record.extractEventTimings();
+        synchronized (mLock) {
+            for (EventManager.Event event : events) {
+                Object data = event.data;
+                if (data instanceof EventManager.Loggable) {
+                    data = "RecordEntry " + ((EventManager.Loggable) data).getId();
+                }
+                appendLocked(call, KIND_EVENT, event.eventId, event.time,
+                        data == null ? null : String.valueOf(data), event.sessionId);
+            }
+            for (EventManager.EventRecord.EventTiming timing : timings) {
+                appendLocked(call, KIND_TIMING, timing.name, timing.time, null, null);
+            }
+            mArchivedCalls++;
+        }
+        analytics.archiveCallEvents(events, timings);
+    }
+
+    /**
+     * Archives a single event of a call.
+     */
+    @VisibleForTesting
+    public void addEvent(String call, String eventId, long timeMillis, String data,
+            String sessionId) {
+        synchronized (mLock) {
+            appendLocked(call, KIND_EVENT, eventId, timeMillis, data, sessionId);
+        }
+    }
+
+    /**
+     * Archives a single event timing of a call.
+     */
+    @VisibleForTesting
+    public void addTiming(String call, String name, long durationMillis) {
+        synchronized (mLock) {
+            appendLocked(call, KIND_TIMING, name, durationMillis, null, null);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void appendLocked(String call, int kind, String name, long time, String data,
+            String sessionId) {
+        int i = mNext;
+        if (mSize == CAPACITY) {
+            // Overwrite the oldest record.
+            mStrings.release(mCalls[i]);
+            mStrings.release(mNames[i]);
+            mStrings.release(mData[i]);
+            mStrings.release(mSessions[i]);
+        } else {
+            mSize++;
+        }
+        mTimes[i] = time;
+        mKinds[i] = (byte) kind;
+        mCalls[i] = mStrings.acquire(call);
+        mNames[i] = mStrings.acquire(name);
+        mData[i] = mStrings.acquire(data);
+        mSessions[i] = mStrings.acquire(TextUtils.isEmpty(sessionId) ? null : sessionId);
+        mNext = (i + 1) % CAPACITY;
+    }
+
+    @VisibleForTesting
+    public int getSize() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    @VisibleForTesting
+    public int getStringCount() {
+        synchronized (mLock) {
+            return mStrings.size();
+        }
+    }
+
+    /**
+     * Dump the archived events, oldest call first, in the format of the event history.  Calls
+     * which are still in the {@link android.telecom.Log} event history are left out, since that
+     * is dumped as well.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        Set<String> liveCalls = new ArraySet<>();
+        for (EventManager.EventRecord record : Log.getEventManager().getEventRecords()) {
+            liveCalls.add(record.getRecordEntry().getDescription());
+        }
+        dump(pw, liveCalls);
+    }
+
+    /**
+     * Dump the archived events, leaving out the given calls.
+     *
+     * @param liveCalls The descriptions of the calls to leave out.
+     */
+    @VisibleForTesting
+    public void dump(IndentingPrintWriter pw, Set<String> liveCalls) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US, "archivedCalls=%d, records=%d/%d, strings=%d",
+                    mArchivedCalls, mSize, CAPACITY, mStrings.size()));
+            int call = NONE;
+            Map<String, long[]> timings = new ArrayMap<>();
+            int start = (mNext - mSize + CAPACITY) % CAPACITY;
+            for (int n = 0; n < mSize; n++) {
+                int i = (start + n) % CAPACITY;
+                if (liveCalls.contains(mStrings.get(mCalls[i]))) {
+                    continue;
+                }
+                if (mCalls[i] != call) {
+                    if (call != NONE) {
+                        dumpTimings(pw, timings);
+                        pw.decreaseIndent();
+                    }
+                    call = mCalls[i];
+                    pw.println(mStrings.get(call));
+                    pw.increaseIndent();
+                }
+                String name = mStrings.get(mNames[i]);
+                if (mKinds[i] == KIND_TIMING) {
+                    long[] total = timings.get(name);
+                    if (total == null) {
+                        total = new long[2];
+                        timings.put(name, total);
+                    }
+                    total[0] += mTimes[i];
+                    total[1]++;
+                    continue;
+                }
+                pw.print(DATE_TIME_FORMATTER.format(Instant.ofEpochMilli(mTimes[i])
+                        .atZone(ZoneId.systemDefault())));
+                pw.print(" - ");
+                pw.print(name);
+                if (mData[i] != NONE) {
+                    pw.print(" (");
+                    pw.print(mStrings.get(mData[i]));
+                    pw.print(")");
+                }
+                if (mSessions[i] != NONE) {
+                    pw.print(":");
+                    pw.print(mStrings.get(mSessions[i]));
+                }
+                pw.println();
+            }
+            if (call != NONE) {
+                dumpTimings(pw, timings);
+                pw.decreaseIndent();
+            }
+        }
+    }
+
+    private static void dumpTimings(IndentingPrintWriter pw, Map<String, long[]> timings) {
+        pw.println("Timings (average for this call, milliseconds):");
+        pw.increaseIndent();
+        for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+            long[] total = entry.getValue();
+            pw.println(entry.getKey() + ": " + (double) total[0] / total[1]);
+        }
+        pw.decreaseIndent();
+        pw.println();
+        timings.clear();
+    }
+}
@@ -23,7 +23,13 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.util.Collection;
 import java.util.Map;
 
-/** Utility to map {@link Call} objects to unique IDs. IDs are generated when a call is added. */
+/**
+ * Utility to map {@link Call} objects to unique IDs. IDs are generated when a call is added.
+ * <p>
+ * The mapper may be used without the Telecom lock, so that a {@link Call} can be looked up before
+ * taking its adapter callback lock; the mapper's own lock is never held while taking another lock.
+ * {@link #getCalls()} returns a live view and must only be used with the Telecom lock held.
+ */
 @VisibleForTesting
 public class CallIdMapper {
     /**
@@ -93,42 +99,42 @@ public class CallIdMapper {
         mCallInfo = callInfo;
     }
 
-    void replaceCall(Call newCall, Call callToReplace) {
+    synchronized void replaceCall(Call newCall, Call callToReplace) {
         // Use the old call's ID for the new call.
         String callId = getCallId(callToReplace);
         mCalls.put(callId, newCall);
     }
 
-    void addCall(Call call, String id) {
+    synchronized void addCall(Call call, String id) {
         if (call == null) {
             return;
         }
         mCalls.put(id, call);
     }
 
-    void addCall(Call call) {
+    synchronized void addCall(Call call) {
         addCall(call, mCallInfo.getCallId(call));
     }
 
-    void removeCall(Call call) {
+    synchronized void removeCall(Call call) {
         if (call == null) {
             return;
         }
         mCalls.removeValue(call);
     }
 
-    void removeCall(String callId) {
+    synchronized void removeCall(String callId) {
         mCalls.remove(callId);
     }
 
-    String getCallId(Call call) {
+    synchronized String getCallId(Call call) {
         if (call == null || mCalls.getKey(call) == null) {
             return null;
         }
         return mCallInfo.getCallId(call);
     }
 
-    Call getCall(Object objId) {
+    synchronized Call getCall(Object objId) {
         String callId = null;
         if (objId instanceof String) {
             callId = (String) objId;
@@ -141,7 +147,7 @@ public class CallIdMapper {
         return mCalls.getValues();
     }
 
-    void clear() {
+    synchronized void clear() {
         mCalls.clear();
     }
 }
@@ -31,10 +31,10 @@ import android.location.Country;
 import android.location.CountryDetector;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerExecutor;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.os.PersistableBundle;
@@ -51,13 +51,16 @@ import android.telecom.VideoProfile;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
 import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.flags.FeatureFlags;
 import com.android.server.telecom.flags.Flags;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
@@ -120,6 +123,11 @@ public final class CallLogManager extends CallsManagerListenerBase {
             "android.permission.PROCESS_CALLLOG_INFO";
     private static final String CALL_TYPE = "callType";
     private static final String CALL_DURATION = "duration";
+    /**
+     * The most calls written in one batch.
+     */
+    @VisibleForTesting
+    public static final int MAX_BATCH_SIZE = 16;
 
     private final Object mLock = new Object();
     private Country mCurrentCountry;
@@ -128,6 +136,30 @@ public final class CallLogManager extends CallsManagerListenerBase {
 
     private final FeatureFlags mFeatureFlags;
 
+    /**
+     * Calls are written to the call log on a single writer thread, in batches; see
+     * {@link #logCallAsync(AddCallArgs)}.
+     */
+    private final Object mWriterLock = new Object();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mWriteBatchRunnable = this::writeBatch;
+    @GuardedBy("mWriterLock")
+    private Handler mWriterHandler;
+    @GuardedBy("mWriterLock")
+    private final ArrayDeque<AddCallArgs> mPendingCalls = new ArrayDeque<>();
+    @GuardedBy("mWriterLock")
+    private boolean mIsBatchScheduled = false;
+    @GuardedBy("mWriterLock")
+    private int mBatchesWritten = 0;
+    @GuardedBy("mWriterLock")
+    private int mCallsWritten = 0;
+    @GuardedBy("mWriterLock")
+    private int mCallsFailed = 0;
+    @GuardedBy("mWriterLock")
+    private int mLastBatchSize = 0;
+    @GuardedBy("mWriterLock")
+    private int mMaxBatchSize = 0;
+
     public CallLogManager(Context context, PhoneAccountRegistrar phoneAccountRegistrar,
             MissedCallNotifier missedCallNotifier, AnomalyReporterAdapter anomalyReporterAdapter,
             FeatureFlags featureFlags) {
@@ -546,79 +578,110 @@ public final class CallLogManager extends CallsManagerListenerBase {
     }
 
     /**
-     * Adds the call defined by the parameters in the provided AddCallArgs to the CallLogProvider
-     * using an AsyncTask to avoid blocking the main thread.
+     * Queues the call defined by the parameters in the provided AddCallArgs to be added to the
+     * CallLogProvider by the call log writer thread, to avoid blocking the main thread.
+     * <p>
+     * A call queued while the writer is idle is written right away.  Calls queued while a batch
+     * is being written are written together by the next batch, up to {@link #MAX_BATCH_SIZE} at
+     * a time, so that their listeners are notified once per batch rather than once per call.
      *
      * @param args Prepopulated call details.
-     * @return A handle to the AsyncTask that will add the call to the call log asynchronously.
      */
-    public AsyncTask<AddCallArgs, Void, Uri[]> logCallAsync(AddCallArgs args) {
-        return new LogCallAsyncTask().execute(args);
+    private void logCallAsync(AddCallArgs args) {
+        synchronized (mWriterLock) {
+            if (mWriterHandler == null) {
+                HandlerThread writerThread = new HandlerThread(TAG + ".Writer");
+                writerThread.start();
+                mWriterHandler = new Handler(writerThread.getLooper());
+            }
+            mPendingCalls.add(args);
+            if (!mIsBatchScheduled) {
+                mWriterHandler.post(mWriteBatchRunnable);
+                mIsBatchScheduled = true;
+            }
+        }
     }
 
     /**
-     * Helper AsyncTask to access the call logs database asynchronously since database operations
-     * can take a long time depending on the system's load. Since it extends AsyncTask, it uses
-     * its own thread pool.
+     * Writes up to {@link #MAX_BATCH_SIZE} queued calls to the call log database; runs on the
+     * writer thread.  Database operations can take a long time depending on the system's load,
+     * so the listeners are notified on the main thread once the whole batch has been written.
      */
-    private class LogCallAsyncTask extends AsyncTask<AddCallArgs, Void, Uri[]> {
-
-        private LogCallCompletedListener[] mListeners;
-
-        @Override
-        protected Uri[] doInBackground(AddCallArgs... callList) {
-            int count = callList.length;
-            Uri[] result = new Uri[count];
-            mListeners = new LogCallCompletedListener[count];
-            for (int i = 0; i < count; i++) {
-                AddCallArgs c = callList[i];
-                mListeners[i] = c.logCallCompletedListener;
-                try {
-                    result[i] = Calls.addCall(c.context, c.params);
-                    Log.i(TAG, "LogCall; logged callId=%s, uri=%s",
-                            c.call.getId(), result[i]);
-                    if (result[i] == null) {
-                        // No call was added or even worse we lost a call in the log.  Trigger an
-                        // anomaly report.  Note: it technically possible that an app modified the
-                        // call log while we were writing to it here; that is pretty unlikely, and
-                        // the goal here is to try and identify potential anomalous conditions with
-                        // logging calls.
-                        mAnomalyReporterAdapter.reportAnomaly(LOG_CALL_FAILED_ANOMALY_ID,
-                                LOG_CALL_FAILED_ANOMALY_DESC);
-                    }
-                } catch (Exception e) {
-                    // This is very rare but may happen in legitimate cases.
-                    // E.g. If the phone is encrypted and thus write request fails, it may cause
-                    // some kind of Exception (right now it is IllegalArgumentException, but this
-                    // might change).
-                    //
-                    // We don't want to crash the whole process just because of that, so just log
-                    // it instead.
-                    Log.e(TAG, e, "LogCall: Exception raised adding callId=%s", c.call.getId());
-                    result[i] = null;
+    private void writeBatch() {
+        AddCallArgs[] callList;
+        synchronized (mWriterLock) {
+            callList = new AddCallArgs[Math.min(mPendingCalls.size(), MAX_BATCH_SIZE)];
+            for (int i = 0; i < callList.length; i++) {
+                callList[i] = mPendingCalls.poll();
+            }
+            mIsBatchScheduled = false;
+        }
+        if (callList.length == 0) {
+            return;
+        }
+        int count = callList.length;
+        Uri[] result = new Uri[count];
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            AddCallArgs c = callList[i];
+            try {
+                result[i] = Calls.addCall(c.context, c.params);
+                Log.i(TAG, "LogCall; logged callId=%s, uri=%s",
+                        c.call.getId(), result[i]);
+                if (result[i] == null) {
+                    // No call was added or even worse we lost a call in the log.  Trigger an
+                    // anomaly report.  Note: it technically possible that an app modified the
+                    // call log while we were writing to it here; that is pretty unlikely, and
+                    // the goal here is to try and identify potential anomalous conditions with
+                    // logging calls.
+                    failures++;
                     mAnomalyReporterAdapter.reportAnomaly(LOG_CALL_FAILED_ANOMALY_ID,
                             LOG_CALL_FAILED_ANOMALY_DESC);
                 }
+            } catch (Exception e) {
+                // This is very rare but may happen in legitimate cases.
+                // E.g. If the phone is encrypted and thus write request fails, it may cause
+                // some kind of Exception (right now it is IllegalArgumentException, but this
+                // might change).
+                //
+                // We don't want to crash the whole process just because of that, so just log
+                // it instead.
+                Log.e(TAG, e, "LogCall: Exception raised adding callId=%s", c.call.getId());
+                result[i] = null;
+                failures++;
+                mAnomalyReporterAdapter.reportAnomaly(LOG_CALL_FAILED_ANOMALY_ID,
+                        LOG_CALL_FAILED_ANOMALY_DESC);
             }
-            return result;
-        }
-
-        @Override
-        protected void onPostExecute(Uri[] result) {
-            for (int i = 0; i < result.length; i++) {
-                Uri uri = result[i];
-                /*
-                 Performs a simple correctness check to make sure the call was written in the
-                 database.
-                 Typically there is only one result per call so it is easy to identify which one
-                 failed.
-                 */
-                if (uri == null) {
-                    Log.w(TAG, "Failed to write call to the log.");
-                }
-                if (mListeners[i] != null) {
-                    mListeners[i].onLogCompleted(uri);
-                }
+        }
+        synchronized (mWriterLock) {
+            mBatchesWritten++;
+            mCallsWritten += count;
+            mCallsFailed += failures;
+            mLastBatchSize = count;
+            mMaxBatchSize = Math.max(mMaxBatchSize, count);
+            // Calls queued while this batch was written are written by the next one.
+            if (!mPendingCalls.isEmpty() && !mIsBatchScheduled && mWriterHandler != null) {
+                mWriterHandler.post(mWriteBatchRunnable);
+                mIsBatchScheduled = true;
+            }
+        }
+        mMainHandler.post(() -> onBatchWritten(callList, result));
+    }
+
+    private void onBatchWritten(AddCallArgs[] callList, Uri[] result) {
+        for (int i = 0; i < result.length; i++) {
+            Uri uri = result[i];
+            /*
+             Performs a simple correctness check to make sure the call was written in the
+             database.
+             Typically there is only one result per call so it is easy to identify which one
+             failed.
+             */
+            if (uri == null) {
+                Log.w(TAG, "Failed to write call to the log.");
+            }
+            if (callList[i].logCallCompletedListener != null) {
+                callList[i].logCallCompletedListener.onLogCompleted(uri);
             }
         }
     }
@@ -683,4 +746,46 @@ public final class CallLogManager extends CallsManagerListenerBase {
     public void setAnomalyReporterAdapter(AnomalyReporterAdapter anomalyReporterAdapter){
         mAnomalyReporterAdapter = anomalyReporterAdapter;
     }
+
+    @VisibleForTesting
+    public int getBatchesWritten() {
+        synchronized (mWriterLock) {
+            return mBatchesWritten;
+        }
+    }
+
+    @VisibleForTesting
+    public int getMaxBatchSize() {
+        synchronized (mWriterLock) {
+            return mMaxBatchSize;
+        }
+    }
+
+    /**
+     * Stops the writer thread; calls which are still queued are not written.
+     */
+    @VisibleForTesting
+    public void cleanup() {
+        synchronized (mWriterLock) {
+            if (mWriterHandler != null) {
+                mWriterHandler.getLooper().quitSafely();
+                mWriterHandler = null;
+            }
+            mPendingCalls.clear();
+            mIsBatchScheduled = false;
+        }
+    }
+
+    /**
+     * Dump the call log writer state for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mWriterLock) {
+            pw.println(String.format(Locale.US,
+                    "queueDepth=%d, batchesWritten=%d, callsWritten=%d, callsFailed=%d,"
+                            + " lastBatchSize=%d, maxBatchSize=%d",
+                    mPendingCalls.size(), mBatchesWritten, mCallsWritten, mCallsFailed,
+                    mLastBatchSize, mMaxBatchSize));
+        }
+    }
 }
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.UserHandle;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Indexes the calls tracked by {@link CallsManager} by {@link CallState} and by whether they are
+ * managed or self-managed.
+ * <p>
+ * Only top-level (i.e. not a conference child), non-external calls are placed in a bucket, since
+ * those are the only calls considered by the {@link CallsManager} state queries.  A call is
+ * re-filed whenever its state, parent, connection properties or self-managed status changes; see
+ * {@link Call#setState(int, String)}.  Buckets keep calls in the order they were filed, so counts
+ * are a sum of bucket sizes and first-call lookups only visit calls in the requested states.
+ * <p>
+ * Every change to the index also publishes an immutable {@link Summary} of the bucket sizes,
+ * which may be read from any thread without taking a lock.
+ */
+@VisibleForTesting
+public class CallStateIndex {
+    private static final int NUM_STATES = CallState.SIMULATED_RINGING + 1;
+    private static final int NUM_SLOTS = NUM_STATES * 2;
+    private static final int SLOT_UNTRACKED = -1;
+
+    /**
+     * An immutable summary of the index: the number of calls filed under each slot, in total and
+     * by the user the calls are visible to.  Used to answer the read-only call state binder APIs,
+     * which apps may poll frequently, without taking the Telecom lock.
+     */
+    public static final class Summary {
+        private static final Summary EMPTY = new Summary(new int[NUM_SLOTS], new int[NUM_SLOTS],
+                Collections.emptyMap());
+
+        private final int[] mCounts;
+        // Calls visible to every user.
+        private final int[] mAllUserCounts;
+        // Calls visible to a single user, keyed by that user.
+        private final Map<UserHandle, int[]> mUserCounts;
+
+        private Summary(int[] counts, int[] allUserCounts, Map<UserHandle, int[]> userCounts) {
+            mCounts = counts;
+            mAllUserCounts = allUserCounts;
+            mUserCounts = userCounts;
+        }
+
+        /**
+         * Counts the top-level, non-external calls in any of the given states, as
+         * {@link CallStateIndex#getNumCalls} does when no call or phone account is excluded.
+         *
+         * @param includeManaged Whether managed calls are counted.
+         * @param includeSelfManaged Whether self-managed calls are counted.
+         * @param callingUser Where {@code non-null}, only calls visible to this user are counted.
+         * @param states The states to count; duplicate states are only counted once.
+         * @return The number of matching calls.
+         */
+        public int getNumCalls(boolean includeManaged, boolean includeSelfManaged,
+                UserHandle callingUser, int... states) {
+            int[] userCounts = callingUser == null ? null : mUserCounts.get(callingUser);
+            int count = 0;
+            for (int i = 0; i < states.length; i++) {
+                if (!isValidState(states[i]) || isDuplicate(states, i)) {
+                    continue;
+                }
+                if (includeManaged) {
+                    count += getCount(getSlot(states[i], false), callingUser, userCounts);
+                }
+                if (includeSelfManaged) {
+                    count += getCount(getSlot(states[i], true), callingUser, userCounts);
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @see CallsManager#hasOngoingCalls(UserHandle, boolean)
+         */
+        public boolean hasOngoingCalls(UserHandle callingUser, boolean hasCrossUserAccess) {
+            return getNumCalls(true /* includeManaged */, true /* includeSelfManaged */,
+                    hasCrossUserAccess ? null : callingUser,
+                    CallsManager.ONGOING_CALL_STATES) > 0;
+        }
+
+        /**
+         * @see CallsManager#hasOngoingManagedCalls(UserHandle, boolean)
+         */
+        public boolean hasOngoingManagedCalls(UserHandle callingUser,
+                boolean hasCrossUserAccess) {
+            return getNumCalls(true /* includeManaged */, false /* includeSelfManaged */,
+                    hasCrossUserAccess ? null : callingUser,
+                    CallsManager.ONGOING_CALL_STATES) > 0;
+        }
+
+        /**
+         * @see CallsManager#hasRingingOrSimulatedRingingCall()
+         */
+        public boolean hasRingingOrSimulatedRingingCall() {
+            return getNumCalls(true /* includeManaged */, true /* includeSelfManaged */,
+                    null /* callingUser */, CallState.SIMULATED_RINGING, CallState.RINGING,
+                    CallState.ANSWERED) > 0;
+        }
+
+        private int getCount(int slot, UserHandle callingUser, int[] userCounts) {
+            if (callingUser == null) {
+                return mCounts[slot];
+            }
+            return mAllUserCounts[slot] + (userCounts == null ? 0 : userCounts[slot]);
+        }
+    }
+
+    private final Object mLock = new Object();
+    /**
+     * Returns the only user a call is visible to, or {@link UserHandle#ALL} if it is visible to
+     * every user; used to scope counts to a calling user.
+     */
+    private final Function<Call, UserHandle> mVisibleUserFunction;
+    /**
+     * Bucket of calls for each slot; see {@link #getSlot(int, boolean)}.
+     */
+    @GuardedBy("mLock")
+    private final List<Call>[] mBuckets;
+    /**
+     * The slot each tracked call is currently filed under, or {@link #SLOT_UNTRACKED} if the
+     * call is tracked but is not counted by any state query.
+     */
+    @GuardedBy("mLock")
+    private final Map<Call, Integer> mSlots = new HashMap<>();
+    private volatile Summary mSummary = Summary.EMPTY;
+
+    @SuppressWarnings("unchecked")
+    public CallStateIndex(Function<Call, UserHandle> visibleUserFunction) {
+        mVisibleUserFunction = visibleUserFunction;
+        mBuckets = new List[NUM_SLOTS];
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            mBuckets[i] = new ArrayList<>(2);
+        }
+    }
+
+    /**
+     * Starts tracking a call.
+     */
+    public void add(Call call) {
+        synchronized (mLock) {
+            if (mSlots.containsKey(call)) {
+                return;
+            }
+            int slot = computeSlot(call);
+            mSlots.put(call, slot);
+            if (slot != SLOT_UNTRACKED) {
+                mBuckets[slot].add(call);
+            }
+            publishLocked();
+        }
+    }
+
+    /**
+     * Stops tracking a call.
+     */
+    public void remove(Call call) {
+        synchronized (mLock) {
+            Integer slot = mSlots.remove(call);
+            if (slot != null && slot != SLOT_UNTRACKED) {
+                mBuckets[slot].remove(call);
+            }
+            publishLocked();
+        }
+    }
+
+    /**
+     * Re-files a tracked call after its state, parent, external or self-managed status changed,
+     * or after the users it is visible to changed.  Calls which are not tracked are ignored.
+     */
+    public void update(Call call) {
+        synchronized (mLock) {
+            Integer oldSlot = mSlots.get(call);
+            if (oldSlot == null) {
+                return;
+            }
+            int newSlot = computeSlot(call);
+            if (newSlot != oldSlot) {
+                if (oldSlot != SLOT_UNTRACKED) {
+                    mBuckets[oldSlot].remove(call);
+                }
+                if (newSlot != SLOT_UNTRACKED) {
+                    mBuckets[newSlot].add(call);
+                }
+                mSlots.put(call, newSlot);
+            }
+            publishLocked();
+        }
+    }
+
+    /**
+     * @return The summary of the index as of its last change.  May be called from any thread.
+     */
+    public Summary getSummary() {
+        return mSummary;
+    }
+
+    /**
+     * Counts the top-level, non-external calls in any of the given states.
+     *
+     * @param includeManaged Whether managed calls are counted.
+     * @param includeSelfManaged Whether self-managed calls are counted.
+     * @param excludeCall Where {@code non-null}, this call is excluded from the count.
+     * @param phoneAccountHandle Where {@code non-null}, only calls for this
+     *                           {@link PhoneAccountHandle} are counted.
+     * @param callingUser Where {@code non-null}, only calls visible to this user are counted.
+     * @param states The states to count; duplicate states are only counted once.
+     * @return The number of matching calls.
+     */
+    public int getNumCalls(boolean includeManaged, boolean includeSelfManaged, Call excludeCall,
+            PhoneAccountHandle phoneAccountHandle, UserHandle callingUser, int... states) {
+        synchronized (mLock) {
+            int count = 0;
+            for (int i = 0; i < states.length; i++) {
+                if (!isValidState(states[i]) || isDuplicate(states, i)) {
+                    continue;
+                }
+                if (includeManaged) {
+                    count += countBucket(getSlot(states[i], false), excludeCall,
+                            phoneAccountHandle, callingUser);
+                }
+                if (includeSelfManaged) {
+                    count += countBucket(getSlot(states[i], true), excludeCall,
+                            phoneAccountHandle, callingUser);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the first call found in the given states, with the states treated in priority
+     * order.  Within a state, managed calls are returned before self-managed calls, and calls are
+     * returned in the order they entered the state.
+     *
+     * @param preferredCall Where {@code non-null}, this call is returned in preference to other
+     *                      calls in the same state.
+     * @param callToSkip Where {@code non-null}, this call is never returned.
+     * @param states The states to search, in priority order.
+     * @return The first matching call, or {@code null} if there is none.
+     */
+    public Call getFirstCall(Call preferredCall, Call callToSkip, int... states) {
+        synchronized (mLock) {
+            for (int state : states) {
+                if (!isValidState(state)) {
+                    continue;
+                }
+                if (preferredCall != null && preferredCall.getState() == state) {
+                    return preferredCall;
+                }
+                Call call = getFirstInBucket(getSlot(state, false), callToSkip);
+                if (call == null) {
+                    call = getFirstInBucket(getSlot(state, true), callToSkip);
+                }
+                if (call != null) {
+                    return call;
+                }
+            }
+            return null;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("tracked=");
+            pw.print(mSlots.size());
+            for (int state = 0; state < NUM_STATES; state++) {
+                int managed = mBuckets[getSlot(state, false)].size();
+                int selfManaged = mBuckets[getSlot(state, true)].size();
+                if (managed == 0 && selfManaged == 0) {
+                    continue;
+                }
+                pw.print(", ");
+                pw.print(CallState.toString(state));
+                pw.print("=");
+                pw.print(managed);
+                pw.print("/");
+                pw.print(selfManaged);
+            }
+            pw.println();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private int countBucket(int slot, Call excludeCall, PhoneAccountHandle phoneAccountHandle,
+            UserHandle callingUser) {
+        List<Call> bucket = mBuckets[slot];
+        if (phoneAccountHandle == null && callingUser == null) {
+            int count = bucket.size();
+            if (excludeCall != null) {
+                Integer excludeSlot = mSlots.get(excludeCall);
+                if (excludeSlot != null && excludeSlot == slot) {
+                    count--;
+                }
+            }
+            return count;
+        }
+        int count = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Call call = bucket.get(i);
+            if (call == excludeCall) {
+                continue;
+            }
+            if (phoneAccountHandle != null
+                    && !phoneAccountHandle.equals(call.getTargetPhoneAccount())) {
+                continue;
+            }
+            if (callingUser != null && !isVisible(mVisibleUserFunction.apply(call), callingUser)) {
+                continue;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @GuardedBy("mLock")
+    private Call getFirstInBucket(int slot, Call callToSkip) {
+        List<Call> bucket = mBuckets[slot];
+        for (int i = 0; i < bucket.size(); i++) {
+            Call call = bucket.get(i);
+            if (call != callToSkip) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("mLock")
+    private void publishLocked() {
+        int[] counts = new int[NUM_SLOTS];
+        int[] allUserCounts = new int[NUM_SLOTS];
+        Map<UserHandle, int[]> userCounts = new ArrayMap<>();
+        for (int slot = 0; slot < NUM_SLOTS; slot++) {
+            List<Call> bucket = mBuckets[slot];
+            counts[slot] = bucket.size();
+            for (int i = 0; i < bucket.size(); i++) {
+                UserHandle user = mVisibleUserFunction.apply(bucket.get(i));
+                int[] target = allUserCounts;
+                if (!UserHandle.ALL.equals(user)) {
+                    target = userCounts.get(user);
+                    if (target == null) {
+                        target = new int[NUM_SLOTS];
+                        userCounts.put(user, target);
+                    }
+                }
+                target[slot]++;
+            }
+        }
+        mSummary = new Summary(counts, allUserCounts, userCounts);
+    }
+
+    private static boolean isVisible(UserHandle visibleUser, UserHandle callingUser) {
+        return UserHandle.ALL.equals(visibleUser) || Objects.equals(visibleUser, callingUser);
+    }
+
+    private static int computeSlot(Call call) {
+        int state = call.getState();
+        if (!isValidState(state) || call.getParentCall() != null || call.isExternalCall()) {
+            return SLOT_UNTRACKED;
+        }
+        return getSlot(state, call.isSelfManaged());
+    }
+
+    private static int getSlot(int state, boolean isSelfManaged) {
+        return state * 2 + (isSelfManaged ? 1 : 0);
+    }
+
+    private static boolean isValidState(int state) {
+        return state >= 0 && state < NUM_STATES;
+    }
+
+    private static boolean isDuplicate(int[] states, int index) {
+        for (int i = 0; i < index; i++) {
+            if (states[i] == states[index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
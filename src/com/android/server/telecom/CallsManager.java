@@ -63,10 +63,10 @@ import android.media.AudioManager;
 import android.media.AudioSystem;
 import android.media.MediaPlayer;
 import android.media.ToneGenerator;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.OutcomeReceiver;
 import android.os.PersistableBundle;
@@ -121,7 +121,9 @@ import com.android.server.telecom.bluetooth.BluetoothRouteManager;
 import com.android.server.telecom.bluetooth.BluetoothStateReceiver;
 import com.android.server.telecom.callfiltering.BlockCheckerAdapter;
 import com.android.server.telecom.callfiltering.BlockCheckerFilter;
+import com.android.server.telecom.callfiltering.BlockStatusCache;
 import com.android.server.telecom.callfiltering.BlockedNumbersAdapter;
+import com.android.server.telecom.callfiltering.CallFilterExecutor;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.callfiltering.CallFilteringResult.Builder;
@@ -156,7 +158,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -171,8 +172,6 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * Singleton.
@@ -380,6 +379,13 @@ public class CallsManager extends Call.ListenerBase
     private final Set<Call> mCalls = Collections.newSetFromMap(
             new ConcurrentHashMap<Call, Boolean>(8, 0.9f, 1));
 
+    /**
+     * Index of {@link #mCalls} by call state and by managed/self-managed; used to answer the
+     * state counting and first-call queries without walking every call.
+     */
+    private final CallStateIndex mCallStateIndex =
+            new CallStateIndex(this::getUserCallIsVisibleTo);
+
     /**
      * List of self-managed calls that have been initialized but not yet added to
      * CallsManager#addCall(Call). There is a window of time when a Call has been added to Telecom
@@ -489,6 +495,10 @@ public class CallsManager extends Call.ListenerBase
     private final EmergencyCallDiagnosticLogger mEmergencyCallDiagnosticLogger;
     private final CallStreamingController mCallStreamingController;
     private final BlockedNumbersAdapter mBlockedNumbersAdapter;
+    /**
+     * Caches the block status of incoming numbers; see {@link BlockCheckerFilter}.
+     */
+    private final BlockStatusCache mBlockStatusCache;
     private final TransactionManager mTransactionManager;
     private final UserManager mUserManager;
     private final CallStreamingNotification mCallStreamingNotification;
@@ -498,6 +508,8 @@ public class CallsManager extends Call.ListenerBase
     private final com.android.internal.telephony.flags.FeatureFlags mTelephonyFeatureFlags;
 
     private final IncomingCallFilterGraphProvider mIncomingCallFilterGraphProvider;
+    // Schedules the timeouts of the calls' connection attempts.
+    private final TimingWheel mTimingWheel;
 
     private final ConnectionServiceFocusManager.CallsManagerRequester mRequester =
             new ConnectionServiceFocusManager.CallsManagerRequester() {
@@ -524,8 +536,6 @@ public class CallsManager extends Call.ListenerBase
 
     private Runnable mStopTone;
 
-    private LinkedList<HandlerThread> mGraphHandlerThreads;
-
     // An executor that can be used to fire off async tasks that do not block Telecom in any manner.
     private final Executor mAsyncTaskExecutor;
 
@@ -567,14 +577,28 @@ public class CallsManager extends Call.ListenerBase
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)
-                    || BlockedNumbersManager
+            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
+                mBlockStatusCache.invalidate("carrier config changed");
+                updateEmergencyCallNotificationAsync(context);
+            } else if (BlockedNumbersManager
                     .ACTION_BLOCK_SUPPRESSION_STATE_CHANGED.equals(action)) {
+                mBlockStatusCache.onBlockSuppressionChanged();
                 updateEmergencyCallNotificationAsync(context);
             }
         }
     };
 
+    /**
+     * Invalidates the block status cache when the blocked numbers or the enhanced call blocking
+     * settings change.
+     */
+    private final ContentObserver mBlockedNumbersObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mBlockStatusCache.invalidate("blocked numbers changed: " + uri);
+        }
+    };
+
     /**
      * Initializes the required Telecom components.
      */
@@ -624,7 +648,8 @@ public class CallsManager extends Call.ListenerBase
             FeatureFlags featureFlags,
             com.android.internal.telephony.flags.FeatureFlags telephonyFlags,
             IncomingCallFilterGraphProvider incomingCallFilterGraphProvider,
-            TelecomMetricsController metricsController) {
+            TelecomMetricsController metricsController,
+            TimingWheel timingWheel) {
 
         mContext = context;
         mLock = lock;
@@ -644,6 +669,7 @@ public class CallsManager extends Call.ListenerBase
         mCallerInfoLookupHelper = callerInfoLookupHelper;
         mEmergencyCallDiagnosticLogger = emergencyCallDiagnosticLogger;
         mIncomingCallFilterGraphProvider = incomingCallFilterGraphProvider;
+        mTimingWheel = timingWheel;
 
         mDtmfLocalTonePlayer =
                 new DtmfLocalTonePlayer(new DtmfLocalTonePlayer.ToneGeneratorProxy());
@@ -730,6 +756,7 @@ public class CallsManager extends Call.ListenerBase
                         featureFlags);
         mInCallWakeLockController = inCallWakeLockControllerFactory.create(context, this);
         mClockProxy = clockProxy;
+        mBlockStatusCache = new BlockStatusCache(clockProxy);
         mToastFactory = toastFactory;
         mRoleManagerAdapter = roleManagerAdapter;
         mVoipCallMonitor = new VoipCallMonitor(mContext, mLock);
@@ -790,7 +817,11 @@ public class CallsManager extends Call.ListenerBase
         intentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
         intentFilter.addAction(BlockedNumbersManager.ACTION_BLOCK_SUPPRESSION_STATE_CHANGED);
         context.registerReceiver(mReceiver, intentFilter, Context.RECEIVER_EXPORTED);
-        mGraphHandlerThreads = new LinkedList<>();
+        context.getContentResolver().registerContentObserver(BlockedNumberContract.AUTHORITY_URI,
+                true, mBlockedNumbersObserver, UserHandle.USER_ALL);
+        context.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.DEBUG_ENABLE_ENHANCED_CALL_BLOCKING),
+                false, mBlockedNumbersObserver, UserHandle.USER_ALL);
 
         mCallAnomalyWatchdog = callAnomalyWatchdog;
         mAsyncTaskExecutor = asyncTaskExecutor;
@@ -912,11 +943,14 @@ public class CallsManager extends Call.ListenerBase
             return;
         } else if (performDndFilter && extras.getBoolean(PhoneAccount.EXTRA_SKIP_CALL_FILTERING)) {
             IncomingCallFilterGraph graph = setupDndFilterOnlyGraph(incomingCall);
+            mInCallController.prewarmBindingForIncomingCall(incomingCall);
             graph.performFiltering();
             return;
         }
 
         IncomingCallFilterGraph graph = setUpCallFilterGraph(incomingCall);
+        // Start binding to the in-call UI while the call is being filtered.
+        mInCallController.prewarmBindingForIncomingCall(incomingCall);
         graph.performFiltering();
     }
 
@@ -927,7 +961,6 @@ public class CallsManager extends Call.ListenerBase
                 incomingHfpCall,
                 this::onCallFilteringComplete, mContext, mTimeoutsAdapter, mFeatureFlags, mLock);
         graph.addFilter(dndCallFilter);
-        mGraphHandlerThreads.add(graph.getHandlerThread());
         return graph;
     }
 
@@ -948,7 +981,8 @@ public class CallsManager extends Call.ListenerBase
         DirectToVoicemailFilter voicemailFilter = new DirectToVoicemailFilter(incomingCall,
                 mCallerInfoLookupHelper);
         BlockCheckerFilter blockCheckerFilter = new BlockCheckerFilter(mContext, incomingCall,
-                mCallerInfoLookupHelper, new BlockCheckerAdapter(mFeatureFlags), mFeatureFlags);
+                mCallerInfoLookupHelper, new BlockCheckerAdapter(mFeatureFlags, mBlockStatusCache),
+                mFeatureFlags);
         DndCallFilter dndCallFilter = new DndCallFilter(incomingCall, getRinger());
         CallScreeningServiceFilter carrierCallScreeningServiceFilter =
                 new CallScreeningServiceFilter(incomingCall, carrierPackageName,
@@ -975,7 +1009,6 @@ public class CallsManager extends Call.ListenerBase
         IncomingCallFilterGraph.addEdge(blockCheckerFilter, carrierCallScreeningServiceFilter);
         IncomingCallFilterGraph.addEdge(carrierCallScreeningServiceFilter,
                 callScreeningServiceFilter);
-        mGraphHandlerThreads.add(graph.getHandlerThread());
         return graph;
     }
 
@@ -1000,7 +1033,6 @@ public class CallsManager extends Call.ListenerBase
         // that the connection service disconnected the call before it was even added to Telecom, in
         // which case it makes no sense to set it back to a ringing state.
         Log.i(this, "onCallFilteringComplete");
-        mGraphHandlerThreads.clear();
 
         if (timeout) {
             Log.i(this, "onCallFilteringCompleted: Call filters timeout!");
@@ -1015,6 +1047,7 @@ public class CallsManager extends Call.ListenerBase
             }
         } else {
             Log.i(this, "onCallFilteringCompleted: call already disconnected.");
+            mInCallController.releasePrewarmedBinding(incomingCall);
             return;
         }
 
@@ -1070,6 +1103,8 @@ public class CallsManager extends Call.ListenerBase
             Log.i(this, "onCallFilteringComplete: allow call.");
             if (hasMaximumManagedRingingCalls(incomingCall)) {
                 if (shouldSilenceInsteadOfReject(incomingCall)) {
+                    // The call is not added, so nothing else releases its binding.
+                    mInCallController.releasePrewarmedBinding(incomingCall);
                     incomingCall.silence();
                 } else {
                     Log.i(this, "onCallFilteringCompleted: Call rejected! " +
@@ -1079,6 +1114,8 @@ public class CallsManager extends Call.ListenerBase
                 }
             } else if (hasMaximumManagedDialingCalls(incomingCall)) {
                 if (shouldSilenceInsteadOfReject(incomingCall)) {
+                    // The call is not added, so nothing else releases its binding.
+                    mInCallController.releasePrewarmedBinding(incomingCall);
                     incomingCall.silence();
                 } else {
                     Log.i(this, "onCallFilteringCompleted: Call rejected! Exceeds maximum number of " +
@@ -1101,6 +1138,7 @@ public class CallsManager extends Call.ListenerBase
                 addCall(incomingCall);
             }
         } else {
+            mInCallController.releasePrewarmedBinding(incomingCall);
             if (result.shouldReject) {
                 Log.i(this, "onCallFilteringCompleted: blocked call, rejecting.");
                 if (mFeatureFlags.separatelyBindToBtIncallService()) {
@@ -1438,6 +1476,10 @@ public class CallsManager extends Call.ListenerBase
         return mCallEndpointController;
     }
 
+    public TelecomMetricsController getMetricsController() {
+        return mMetricsController;
+    }
+
     public EmergencyCallHelper getEmergencyCallHelper() {
         return mEmergencyCallHelper;
     }
@@ -1774,7 +1816,7 @@ public class CallsManager extends Call.ListenerBase
             addCall(call);
         } else {
             notifyStartCreateConnection(call);
-            call.startCreateConnection(mPhoneAccountRegistrar);
+            call.startCreateConnection(mPhoneAccountRegistrar, mTimingWheel);
         }
         return call;
     }
@@ -1811,7 +1853,7 @@ public class CallsManager extends Call.ListenerBase
         setIntentExtrasAndStartTime(call, extras);
         call.addListener(this);
         notifyStartCreateConnection(call);
-        call.startCreateConnection(mPhoneAccountRegistrar);
+        call.startCreateConnection(mPhoneAccountRegistrar, mTimingWheel);
     }
 
     private boolean areHandlesEqual(Uri handle1, Uri handle2) {
@@ -3055,6 +3097,8 @@ public class CallsManager extends Call.ListenerBase
                 } else {
                     BlockedNumberContract.SystemContract.notifyEmergencyContact(mContext);
                 }
+                // Don't wait for the suppression broadcast; cached statuses no longer apply.
+                mBlockStatusCache.onBlockSuppressionChanged();
             }).start();
         }
 
@@ -3080,7 +3124,7 @@ public class CallsManager extends Call.ListenerBase
                 }
                 try {
                     notifyStartCreateConnection(call);
-                    call.startCreateConnection(mPhoneAccountRegistrar);
+                    call.startCreateConnection(mPhoneAccountRegistrar, mTimingWheel);
                 } catch (Exception exception) {
                     // If an exceptions is thrown while creating the connection, prompt the user to
                     // generate a bugreport and force disconnect.
@@ -4573,33 +4617,28 @@ public class CallsManager extends Call.ListenerBase
      * @param callToSkip Call that this method should skip while searching
      */
     Call getFirstCallWithState(Call callToSkip, int... states) {
-        for (int currentState : states) {
-            // check the foreground first
-            Call foregroundCall = getForegroundCall();
-            if (foregroundCall != null && foregroundCall.getState() == currentState) {
-                return foregroundCall;
-            }
-
-            for (Call call : mCalls) {
-                if (Objects.equals(callToSkip, call)) {
-                    continue;
-                }
-
-                // Only operate on top-level calls
-                if (call.getParentCall() != null) {
-                    continue;
-                }
+        // The foreground call is checked first for each state; only top-level, non-external
+        // calls are indexed.
+        return mCallStateIndex.getFirstCall(getForegroundCall(), callToSkip, states);
+    }
 
-                if (call.isExternalCall()) {
-                    continue;
-                }
+    /**
+     * Re-files a call in the call state index after its state, parent, external or self-managed
+     * status has changed.  Has no effect for calls which are not tracked by CallsManager.
+     * @param call The call which changed.
+     */
+    public void updateCallStateIndex(Call call) {
+        mCallStateIndex.update(call);
+    }
 
-                if (currentState == call.getState()) {
-                    return call;
-                }
-            }
-        }
-        return null;
+    /**
+     * Returns a summary of the number of calls in each state, as of the last change to the calls
+     * tracked by CallsManager.  Unlike the other call state queries, this may be called without
+     * holding the Telecom lock.
+     * @return The summary.
+     */
+    public CallStateIndex.Summary getCallStateSummary() {
+        return mCallStateIndex.getSummary();
     }
 
     Call createConferenceCall(
@@ -4677,7 +4716,8 @@ public class CallsManager extends Call.ListenerBase
     }
 
     /**
-     * @return the call state currently tracked by {@link PhoneStateBroadcaster}
+     * @return the call state currently tracked by {@link PhoneStateBroadcaster}.  May be called
+     * without holding the Telecom lock.
      */
     int getCallState() {
         return mPhoneStateBroadcaster.getCallState();
@@ -4722,6 +4762,7 @@ public class CallsManager extends Call.ListenerBase
      * @param incomingCall Incoming call that has been rejected
      */
     private void autoMissCallAndLog(Call incomingCall, CallFilteringResult result) {
+        mInCallController.releasePrewarmedBinding(incomingCall);
         incomingCall.getAnalytics().setMissedReason(incomingCall.getMissedReason());
         if (incomingCall.getConnectionService() != null) {
             // Only reject the call if it has not already been destroyed.  If a call ends while
@@ -4754,6 +4795,7 @@ public class CallsManager extends Call.ListenerBase
         Log.i(this, "addCall(%s)", call);
         call.addListener(this);
         mCalls.add(call);
+        mCallStateIndex.add(call);
         mSelfManagedCallsBeingSetup.remove(call);
 
         // Specifies the time telecom finished routing the call. This is used by the dialer for
@@ -4788,9 +4830,15 @@ public class CallsManager extends Call.ListenerBase
         boolean shouldNotify = false;
         if (mCalls.contains(call)) {
             mCalls.remove(call);
+            mCallStateIndex.remove(call);
             shouldNotify = true;
         }
         mSelfManagedCallsBeingSetup.remove(call);
+        if (!shouldNotify) {
+            // A call which was never added may still hold the in-call binding started while it
+            // was being filtered, if the path which dropped it did not release it.
+            mInCallController.releasePrewarmedBinding(call);
+        }
 
         call.destroy();
         updateExternalCallCanPullSupport();
@@ -5050,31 +5098,9 @@ public class CallsManager extends Call.ListenerBase
     @VisibleForTesting
     public int getNumCallsWithState(final int callFilter, Call excludeCall,
                                     PhoneAccountHandle phoneAccountHandle, int... states) {
-
-        Set<Integer> desiredStates = IntStream.of(states).boxed().collect(Collectors.toSet());
-
-        Stream<Call> callsStream = mCalls.stream()
-                .filter(call -> desiredStates.contains(call.getState()) &&
-                        call.getParentCall() == null && !call.isExternalCall());
-
-        if (callFilter == CALL_FILTER_MANAGED) {
-            callsStream = callsStream.filter(call -> !call.isSelfManaged());
-        } else if (callFilter == CALL_FILTER_SELF_MANAGED) {
-            callsStream = callsStream.filter(call -> call.isSelfManaged());
-        }
-
-        // If a call to exclude was specified, filter it out.
-        if (excludeCall != null) {
-            callsStream = callsStream.filter(call -> call != excludeCall);
-        }
-
-        // If a phone account handle was specified, only consider calls for that phone account.
-        if (phoneAccountHandle != null) {
-            callsStream = callsStream.filter(
-                    call -> phoneAccountHandle.equals(call.getTargetPhoneAccount()));
-        }
-
-        return (int) callsStream.count();
+        return mCallStateIndex.getNumCalls(callFilter != CALL_FILTER_SELF_MANAGED,
+                callFilter != CALL_FILTER_MANAGED, excludeCall, phoneAccountHandle,
+                null /* callingUser */, states);
     }
 
     /**
@@ -5101,34 +5127,9 @@ public class CallsManager extends Call.ListenerBase
     public int getNumCallsWithState(final int callFilter, Call excludeCall,
             UserHandle callingUser, boolean hasCrossUserAccess,
             PhoneAccountHandle phoneAccountHandle, int... states) {
-
-        Set<Integer> desiredStates = IntStream.of(states).boxed().collect(Collectors.toSet());
-
-        Stream<Call> callsStream = mCalls.stream()
-                .filter(call -> desiredStates.contains(call.getState()) &&
-                        call.getParentCall() == null && !call.isExternalCall());
-
-        if (callFilter == CALL_FILTER_MANAGED) {
-            callsStream = callsStream.filter(call -> !call.isSelfManaged());
-        } else if (callFilter == CALL_FILTER_SELF_MANAGED) {
-            callsStream = callsStream.filter(call -> call.isSelfManaged());
-        }
-
-        // If a call to exclude was specified, filter it out.
-        if (excludeCall != null) {
-            callsStream = callsStream.filter(call -> call != excludeCall);
-        }
-
-        // If a phone account handle was specified, only consider calls for that phone account.
-        if (phoneAccountHandle != null) {
-            callsStream = callsStream.filter(
-                    call -> phoneAccountHandle.equals(call.getTargetPhoneAccount()));
-        }
-
-        callsStream = callsStream.filter(
-                call -> hasCrossUserAccess || isCallVisibleForUser(call, callingUser));
-
-        return (int) callsStream.count();
+        return mCallStateIndex.getNumCalls(callFilter != CALL_FILTER_SELF_MANAGED,
+                callFilter != CALL_FILTER_MANAGED, excludeCall, phoneAccountHandle,
+                hasCrossUserAccess ? null : callingUser, states);
     }
 
     public boolean hasMaximumLiveCalls(Call exceptCall) {
@@ -6069,6 +6070,9 @@ public class CallsManager extends Call.ListenerBase
             pw.decreaseIndent();
         }
 
+        pw.print("mCallStateIndex: ");
+        mCallStateIndex.dump(pw);
+
         if (mPendingCall != null) {
             pw.print("mPendingCall:");
             pw.println(mPendingCall.getId());
@@ -6156,6 +6160,26 @@ public class CallsManager extends Call.ListenerBase
             mConnectionSvrFocusMgr.dump(pw);
             pw.decreaseIndent();
         }
+
+        pw.println("mBlockStatusCache:");
+        pw.increaseIndent();
+        mBlockStatusCache.dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("CallFilterExecutor:");
+        pw.increaseIndent();
+        CallFilterExecutor.getInstance().dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("Block check executor:");
+        pw.increaseIndent();
+        CallFilterExecutor.getBlockCheckInstance().dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("mCallLogManager:");
+        pw.increaseIndent();
+        mCallLogManager.dump(pw);
+        pw.decreaseIndent();
     }
 
     /**
@@ -6426,7 +6450,7 @@ public class CallsManager extends Call.ListenerBase
                 disconnectSelfManagedCalls("emergency call");
             }
             notifyStartCreateConnection(call);
-            call.startCreateConnection(mPhoneAccountRegistrar);
+            call.startCreateConnection(mPhoneAccountRegistrar, mTimingWheel);
         }
 
     }
@@ -6607,7 +6631,7 @@ public class CallsManager extends Call.ListenerBase
         extras.putParcelable(TelecomManager.EXTRA_HANDOVER_FROM_PHONE_ACCOUNT,
                 fromCall.getTargetPhoneAccount());
         notifyStartCreateConnection(call);
-        call.startCreateConnection(mPhoneAccountRegistrar);
+        call.startCreateConnection(mPhoneAccountRegistrar, mTimingWheel);
     }
 
     public ConnectionServiceFocusManager getConnectionServiceFocusManager() {
@@ -6882,6 +6906,19 @@ public class CallsManager extends Call.ListenerBase
                 .hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER);
     }
 
+    /**
+     * Returns the only user a call is visible to, or {@link UserHandle#ALL} if the call uses a
+     * multi-user {@link PhoneAccount} and is visible to every user.
+     * @see #isCallVisibleForUser(Call, UserHandle)
+     */
+    private UserHandle getUserCallIsVisibleTo(Call call) {
+        PhoneAccount account = call.getPhoneAccountFromHandle();
+        if (account != null && account.hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER)) {
+            return UserHandle.ALL;
+        }
+        return call.getAssociatedUser();
+    }
+
     /**
      * Determines if two {@link Call} instances originated from either the same target
      * {@link PhoneAccountHandle} or connection manager {@link PhoneAccountHandle}.
@@ -6908,8 +6945,8 @@ public class CallsManager extends Call.ListenerBase
         return PhoneAccountHandle.areFromSamePackage(call1TargetAcct, call2TargetAcct);
     }
 
-    public LinkedList<HandlerThread> getGraphHandlerThreads() {
-        return mGraphHandlerThreads;
+    public BlockStatusCache getBlockStatusCache() {
+        return mBlockStatusCache;
     }
 
     private void maybeSendPostCallScreenIntent(Call call) {
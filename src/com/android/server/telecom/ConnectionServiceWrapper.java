@@ -82,6 +82,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.Objects;
 
 /**
@@ -126,8 +128,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                     mPackageAbbreviation);
             UserHandle callingUserHandle = Binder.getCallingUserHandle();
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_HANDLE_CREATE_CONNECTION_COMPLETE);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("handleCreateConnectionComplete %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     maybeRemoveCleanupFuture(call);
@@ -154,6 +160,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -166,8 +173,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                     mPackageAbbreviation);
             UserHandle callingUserHandle = Binder.getCallingUserHandle();
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_HANDLE_CREATE_CONNECTION_COMPLETE);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("handleCreateConferenceComplete %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     maybeRemoveCleanupFuture(call);
@@ -193,6 +204,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -204,8 +216,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_ACTIVE,
                     mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_ACTIVE);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setActive %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -218,6 +234,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -227,8 +244,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void setRinging(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_RINGING, mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_RINGING);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setRinging %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -241,6 +262,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -250,8 +272,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void resetConnectionTime(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.rCCT", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.rCCT");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("resetConnectionTime %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -261,6 +286,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -271,8 +297,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.sVP", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sVP");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setVideoProvider %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -283,6 +312,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -292,8 +322,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void setDialing(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_DIALING, mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_DIALING);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setDialing %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -306,6 +340,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -315,8 +350,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void setPulling(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_PULLING, mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_PULLING);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setPulling %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -327,6 +366,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -338,8 +378,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_DISCONNECTED,
                     mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_DISCONNECTED);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setDisconnected %s %s", callId, disconnectCause);
                     Call call = mCallIdMapper.getCall(callId);
                     Log.d(this, "disconnect call %s %s", disconnectCause, call);
@@ -353,6 +397,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -362,8 +407,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void setOnHold(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_ON_HOLD, mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_ON_HOLD);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setOnHold %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -376,6 +425,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -387,15 +437,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.SRR", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setRingbackRequested %s %b", callId, ringback);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setRingbackRequested(ringback);
-                    } else {
-                        // Log.w(this, "setRingback, unknown call id: %s", args.arg1);
-                    }
-                }
+                logIncoming("setRingbackRequested %s %b", callId, ringback);
+                updateCall(callId, "CSW.SRR", call -> {
+                    call.updateRingbackRequested(ringback);
+                    return true;
+                }, Call::notifyRingbackRequested);
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -409,8 +455,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void removeCall(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_REMOVE_CALL, mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_REMOVE_CALL);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("removeCall %s", callId);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -430,6 +480,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -441,16 +492,9 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.sCC", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setConnectionCapabilities %s %d", callId, connectionCapabilities);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setConnectionCapabilities(connectionCapabilities);
-                    } else {
-                        // Log.w(ConnectionServiceWrapper.this,
-                        // "setConnectionCapabilities, unknown call id: %s", msg.obj);
-                    }
-                }
+                logIncoming("setConnectionCapabilities %s %d", callId, connectionCapabilities);
+                applyToCall(callId, "CSW.sCC",
+                        call -> call.setConnectionCapabilities(connectionCapabilities));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -466,13 +510,9 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession("CSW.sCP", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setConnectionProperties %s %d", callId, connectionProperties);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setConnectionProperties(connectionProperties);
-                    }
-                }
+                logIncoming("setConnectionProperties %s %d", callId, connectionProperties);
+                applyToCall(callId, "CSW.sCP",
+                        call -> call.setConnectionProperties(connectionProperties));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -488,8 +528,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, LogUtils.Sessions.CSW_SET_IS_CONFERENCED,
                     mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_SET_IS_CONFERENCED);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setIsConferenced %s %s", callId, conferenceCallId);
                     Call childCall = mCallIdMapper.getCall(callId);
                     if (childCall != null) {
@@ -514,6 +558,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -523,8 +568,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         public void setConferenceMergeFailed(String callId, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.sCMF", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sCMF");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setConferenceMergeFailed %s", callId);
                     // TODO: we should move the UI for indication a merge failure here
                     // from CallNotifier.onSuppServiceFailed(). This way the InCallUI can
@@ -540,6 +588,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -582,8 +631,12 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             }
 
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock,
+                    LogUtils.Sessions.CSW_ADD_CONFERENCE_CALL);
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (mCallIdMapper.getCall(callId) != null) {
                         Log.w(this, "Attempting to add a conference call using an existing " +
                                 "call id %s", callId);
@@ -663,6 +716,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -674,15 +728,8 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.oPDW", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("onPostDialWait %s %s", callId, remaining);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.onPostDialWait(remaining);
-                    } else {
-                        // Log.w(this, "onPostDialWait, unknown call id: %s", args.arg1);
-                    }
-                }
+                logIncoming("onPostDialWait %s %s", callId, remaining);
+                applyToCall(callId, "CSW.oPDW", call -> call.onPostDialWait(remaining));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -698,15 +745,8 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.oPDC", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("onPostDialChar %s %s", callId, nextChar);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.onPostDialChar(nextChar);
-                    } else {
-                        // Log.w(this, "onPostDialChar, unknown call id: %s", args.arg1);
-                    }
-                }
+                logIncoming("onPostDialChar %s %s", callId, nextChar);
+                applyToCall(callId, "CSW.oPDC", call -> call.onPostDialChar(nextChar));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -722,8 +762,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             final UserHandle callingUserHandle = Binder.getCallingUserHandle();
             Log.startSession(sessionInfo, "CSW.qRCS", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.qRCS");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("queryRemoteConnectionServices callingPackage=" + callingPackage);
                     ConnectionServiceWrapper.this
                             .queryRemoteConnectionServices(callingUserHandle, callingPackage,
@@ -733,6 +776,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -743,13 +787,8 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.sVS", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setVideoState %s %d", callId, videoState);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setVideoState(videoState);
-                    }
-                }
+                logIncoming("setVideoState %s %d", callId, videoState);
+                applyToCall(callId, "CSW.sVS", call -> call.setVideoState(videoState));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -764,13 +803,8 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.sIVAM", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setIsVoipAudioMode %s %b", callId, isVoip);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setIsVoipAudioMode(isVoip);
-                    }
-                }
+                logIncoming("setIsVoipAudioMode %s %b", callId, isVoip);
+                applyToCall(callId, "CSW.sIVAM", call -> call.setIsVoipAudioMode(isVoip));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -785,8 +819,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 String bluetoothAddress, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.sAR", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sAR");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setAudioRoute %s %s", callId,
                             CallAudioState.audioRouteToString(audioRoute));
                     mCallsManager.setAudioRoute(audioRoute, bluetoothAddress);
@@ -795,6 +832,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -805,8 +843,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 ResultReceiver callback, Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.rCEC", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.rCEC");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("requestCallEndpointChange %s %s", callId,
                             endpoint.getEndpointName());
                     mCallsManager.requestCallEndpointChange(endpoint, callback);
@@ -815,6 +856,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -827,19 +869,17 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             UserHandle callingUserHandle = Binder.getCallingUserHandle();
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setStatusHints %s %s", callId, statusHints);
-                    // Check status hints image for cross user access
-                    if (statusHints != null) {
-                        Icon icon = statusHints.getIcon();
-                        statusHints.setIcon(StatusHints.validateAccountIconUserBoundary(
-                                icon, callingUserHandle));
-                    }
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setStatusHints(statusHints);
-                    }
+                logIncoming("setStatusHints %s %s", callId, statusHints);
+                // Check status hints image for cross user access
+                if (statusHints != null) {
+                    Icon icon = statusHints.getIcon();
+                    statusHints.setIcon(StatusHints.validateAccountIconUserBoundary(
+                            icon, callingUserHandle));
                 }
+                updateCall(callId, "CSW.sSH", call -> {
+                    call.updateStatusHints(statusHints);
+                    return true;
+                }, Call::notifyStatusHintsChanged);
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -854,13 +894,9 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.pE", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    Bundle.setDefusable(extras, true);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.putConnectionServiceExtras(extras);
-                    }
-                }
+                // A null bundle changes nothing.
+                updateCall(callId, "CSW.pE", call -> unparcelExtras(extras),
+                        call -> call.putConnectionServiceExtras(extras));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -875,13 +911,9 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.rE", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("removeExtra %s %s", callId, keys);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.removeExtras(Call.SOURCE_CONNECTION_SERVICE, keys);
-                    }
-                }
+                logIncoming("removeExtra %s %s", callId, keys);
+                updateCall(callId, "CSW.rE", call -> keys != null,
+                        call -> call.removeExtras(Call.SOURCE_CONNECTION_SERVICE, keys));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -898,13 +930,8 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
 
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setAddress %s %s %d", callId, address, presentation);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setHandle(address, presentation);
-                    }
-                }
+                logIncoming("setAddress %s %s %d", callId, address, presentation);
+                applyToCall(callId, "CSW.sA", call -> call.setHandle(address, presentation));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -920,14 +947,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.sCDN", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    logIncoming("setCallerDisplayName %s %s %d", callId, callerDisplayName,
-                            presentation);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.setCallerDisplayName(callerDisplayName, presentation);
-                    }
-                }
+                logIncoming("setCallerDisplayName %s %s %d", callId, callerDisplayName,
+                        presentation);
+                updateCall(callId, "CSW.sCDN",
+                        call -> call.updateCallerDisplayName(callerDisplayName, presentation),
+                        Call::notifyCallerDisplayNameChanged);
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -942,8 +966,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Session.Info sessionInfo) {
             Log.startSession(sessionInfo, "CSW.sCC", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sCC");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
 
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -964,6 +991,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -985,8 +1013,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                     android.Manifest.permission.INTERACT_ACROSS_USERS)
                     == PackageManager.PERMISSION_GRANTED;
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.aEC");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     // Make sure that the PhoneAccount associated with the incoming
                     // ParcelableConnection is in fact registered to Telecom and is being called
                     // from the correct user.
@@ -1126,6 +1157,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1137,13 +1169,10 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             Log.startSession(sessionInfo, "CSW.oCE", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
             try {
-                synchronized (mLock) {
-                    Bundle.setDefusable(extras, true);
-                    Call call = mCallIdMapper.getCall(callId);
-                    if (call != null) {
-                        call.onConnectionEvent(event, extras);
-                    }
-                }
+                updateCall(callId, "CSW.oCE", call -> {
+                    unparcelExtras(extras);
+                    return true;
+                }, call -> call.onConnectionEvent(event, extras));
             } catch (Throwable t) {
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
@@ -1164,8 +1193,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 throws RemoteException {
             Log.startSession(sessionInfo, "CSW.oRIF", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.oRIF");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
                         call.onRttConnectionFailure(reason);
@@ -1175,6 +1207,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1191,8 +1224,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 throws RemoteException {
             Log.startSession(sessionInfo, "CSW.oRRR", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.oRRR");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
                         call.onRemoteRttRequest();
@@ -1202,6 +1238,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1217,8 +1254,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             }
             Log.startSession(sessionInfo, "CSW.oPAC", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.oPAC");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
                         call.setTargetPhoneAccount(pHandle);
@@ -1228,6 +1268,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1238,8 +1279,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 throws RemoteException {
             Log.startSession(sessionInfo, "CSW.oCSFR", mPackageAbbreviation);
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.oCSFR");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     mConnSvrFocusListener.onConnectionServiceReleased(
                             ConnectionServiceWrapper.this);
                 }
@@ -1247,6 +1291,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1265,8 +1310,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             }
 
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sCS");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
                         call.setConferenceState(isConference);
@@ -1276,6 +1324,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1293,8 +1342,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             }
 
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.sCD");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("setCallDirection %s %d", callId, direction);
                     Call call = mCallIdMapper.getCall(callId);
                     if (call != null) {
@@ -1305,6 +1357,7 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
@@ -1360,8 +1413,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
             }
 
             long token = Binder.clearCallingIdentity();
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "CSW.qL");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     logIncoming("queryLocation %s %d", callId, timeoutMillis);
                     ConnectionServiceWrapper.this.queryCurrentLocation(timeoutMillis, provider,
                             callback);
@@ -1370,15 +1426,97 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
                 Log.e(ConnectionServiceWrapper.this, t, "");
                 throw t;
             } finally {
+                mLockProfiler.end(lockSample);
                 Binder.restoreCallingIdentity(token);
                 Log.endSession();
             }
         }
+
+        /**
+         * Applies a callback which only updates a single call.  Callbacks for the same call are
+         * serialized on the call's adapter callback lock, and the call's state is changed with
+         * only that lock held.  The Telecom lock is taken only if the change must be passed on to
+         * the call's listeners, which reach into {@link CallsManager}, so callbacks which change
+         * nothing never wait behind callbacks for other calls.  Callbacks which affect more than
+         * one call (conferences, call state changes which move focus, adding or removing calls)
+         * take the Telecom lock directly instead.
+         *
+         * @param callId The ID of the call to update.
+         * @param site The name of the callback, for the lock profiler.
+         * @param update Changes the call's state, or prepares the change, without the Telecom
+         *               lock unless re-entrant, returning whether the listeners must be notified.
+         * @param notify Notifies the call's listeners, with the Telecom lock held.
+         */
+        private void updateCall(String callId, String site, Predicate<Call> update,
+                Consumer<Call> notify) {
+            Call call = mCallIdMapper.getCall(callId);
+            if (call == null) {
+                return;
+            }
+            if (Thread.holdsLock(mLock)) {
+                // Re-entrant local call; the lock ordering forbids taking the call lock now.
+                if (update.test(call)) {
+                    notify.accept(call);
+                }
+                return;
+            }
+            synchronized (call.getAdapterCallbackLock()) {
+                // The call may have been removed since it was looked up.
+                if (mCallIdMapper.getCall(callId) != call || !update.test(call)) {
+                    return;
+                }
+                SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, site);
+                try {
+                    mLockProfiler.waiting(lockSample);
+                    synchronized (mLock) {
+                        mLockProfiler.locked(lockSample);
+                        if (mCallIdMapper.getCall(callId) == call) {
+                            notify.accept(call);
+                        }
+                    }
+                } finally {
+                    mLockProfiler.end(lockSample);
+                }
+            }
+        }
+
+        /**
+         * Like {@link #updateCall}, for a callback whose every effect reaches past the call, such
+         * as a change which feeds into call routing; it is applied with the Telecom lock held.
+         *
+         * @param callId The ID of the call to update.
+         * @param site The name of the callback, for the lock profiler.
+         * @param update The update to apply, with the Telecom lock held.
+         */
+        private void applyToCall(String callId, String site, Consumer<Call> update) {
+            updateCall(callId, site, call -> true, update);
+        }
+
+        /**
+         * Unparcels the extras sent with a callback, so that the work is done holding only the
+         * call's adapter callback lock rather than the Telecom lock.  The extras themselves are
+         * applied with the Telecom lock held, since the call's extras are also changed by
+         * InCallServices under that lock.
+         *
+         * @param extras The extras, which may be {@code null}.
+         * @return Whether there are extras to apply.
+         */
+        private boolean unparcelExtras(Bundle extras) {
+            if (extras == null) {
+                return false;
+            }
+            Bundle.setDefusable(extras, true);
+            for (String key : extras.keySet()) {
+                extras.get(key);
+            }
+            return true;
+        }
     }
 
     private final Adapter mAdapter = new Adapter();
     private final CallIdMapper mCallIdMapper = new CallIdMapper(Call::getConnectionId);
     private final Map<String, CreateConnectionResponse> mPendingResponses = new HashMap<>();
+    private final SyncRootProfiler mLockProfiler = SyncRootProfiler.getInstance();
 
     private Binder2 mBinder = new Binder2();
     private IConnectionService mServiceInterface;
@@ -2266,6 +2404,11 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         }
     }
 
+    @VisibleForTesting
+    public IConnectionServiceAdapter getAdapter() {
+        return mAdapter;
+    }
+
     @VisibleForTesting
     public void addCall(Call call) {
         if (mCallIdMapper.getCallId(call) == null) {
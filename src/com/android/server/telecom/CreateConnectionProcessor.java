@@ -139,6 +139,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
     private final Context mContext;
     private final FeatureFlags mFlags;
     private final Timeouts.Adapter mTimeoutsAdapter;
+    private final TimingWheel mTimingWheel;
     private CreateConnectionTimeout mTimeout;
     private ConnectionServiceWrapper mService;
     private int mConnectionAttempt;
@@ -150,7 +151,8 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
             PhoneAccountRegistrar phoneAccountRegistrar,
             Context context,
             FeatureFlags featureFlags,
-            Timeouts.Adapter timeoutsAdapter) {
+            Timeouts.Adapter timeoutsAdapter,
+            TimingWheel timingWheel) {
         Log.v(this, "CreateConnectionProcessor created for Call = %s", call);
         mCall = call;
         mRepository = repository;
@@ -160,6 +162,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         mConnectionAttempt = 0;
         mFlags = featureFlags;
         mTimeoutsAdapter = timeoutsAdapter;
+        mTimingWheel = timingWheel;
     }
 
     boolean isProcessingComplete() {
@@ -332,7 +335,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         clearTimeout();
 
         CreateConnectionTimeout timeout = new CreateConnectionTimeout(
-                mContext, mPhoneAccountRegistrar, service, mCall, mTimeoutsAdapter);
+                mContext, mPhoneAccountRegistrar, service, mCall, mTimeoutsAdapter, mTimingWheel);
         if (timeout.isTimeoutNeededForCall(getConnectionServices(mAttemptRecords),
                 attempt.connectionManagerPhoneAccount)) {
             mTimeout = timeout;
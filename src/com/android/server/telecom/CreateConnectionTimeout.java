@@ -42,19 +42,25 @@ public final class CreateConnectionTimeout extends Runnable {
     private final ConnectionServiceWrapper mConnectionService;
     private final Call mCall;
     private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // The timer only posts the timeout to mHandler, as timers must not do any work on the wheel
+    // thread.
+    private final TimingWheel mTimingWheel;
+    private TimingWheel.Timer mTimeout;
     private boolean mIsRegistered;
     private boolean mIsCallTimedOut;
     private final Timeouts.Adapter mTimeoutsAdapter;
 
     @VisibleForTesting
     public CreateConnectionTimeout(Context context, PhoneAccountRegistrar phoneAccountRegistrar,
-            ConnectionServiceWrapper service, Call call, Timeouts.Adapter timeoutsAdapter) {
+            ConnectionServiceWrapper service, Call call, Timeouts.Adapter timeoutsAdapter,
+            TimingWheel timingWheel) {
         super("CCT", null /*lock*/);
         mContext = context;
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mConnectionService = service;
         mCall = call;
         mTimeoutsAdapter = timeoutsAdapter;
+        mTimingWheel = timingWheel;
     }
 
     @VisibleForTesting
@@ -100,13 +106,19 @@ public final class CreateConnectionTimeout extends Runnable {
         if (timeoutLengthMillis <= 0) {
             Log.d(this, "registerTimeout, timeout set to %d, skipping", timeoutLengthMillis);
         } else {
-            mHandler.postDelayed(prepare(), timeoutLengthMillis);
+            java.lang.Runnable runnable = prepare();
+            mTimeout = mTimingWheel.schedule("CreateConnectionTimeout",
+                    () -> mHandler.post(runnable), timeoutLengthMillis);
         }
     }
 
     void unregisterTimeout() {
         Log.d(this, "unregisterTimeout");
         mIsRegistered = false;
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
         mHandler.removeCallbacksAndMessages(null);
         cancel();
     }
@@ -72,6 +72,7 @@ import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.telecom.SystemStateHelper.SystemStateListener;
 import com.android.server.telecom.flags.FeatureFlags;
+import com.android.server.telecom.metrics.ErrorStats;
 import com.android.server.telecom.ui.NotificationChannelManager;
 
 import java.util.ArrayList;
@@ -80,12 +81,12 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -1223,6 +1224,8 @@ public class InCallController extends CallsManagerListenerBase implements
     private static final int IN_CALL_SERVICE_TYPE_NON_UI = 4;
     private static final int IN_CALL_SERVICE_TYPE_COMPANION = 5;
     private static final int IN_CALL_SERVICE_TYPE_BLUETOOTH = 6;
+    private static final String[] IN_CALL_SERVICE_TYPE_NAMES = {"invalid", "defaultDialerUi",
+            "systemUi", "carModeUi", "nonUi", "companion", "bluetooth"};
 
     // Timeout value to be used to ensure future completion for mDisconnectedToneBtFutures. This is
     // set to 4 seconds to account for the exceptional case (TONE_CONGESTION).
@@ -1252,6 +1255,7 @@ public class InCallController extends CallsManagerListenerBase implements
     private final DefaultDialerCache mDefaultDialerCache;
     private final EmergencyCallHelper mEmergencyCallHelper;
     private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TimingWheel mTimingWheel;
     private final Map<UserHandle, CarSwappingInCallServiceConnection>
             mInCallServiceConnections = new ArrayMap<>();
     private final Map<UserHandle, NonUIInCallServiceConnectionCollection>
@@ -1280,6 +1284,127 @@ public class InCallController extends CallsManagerListenerBase implements
     // finishes playing.
     private Map<String, CompletableFuture<Void>> mDisconnectedToneBtFutures = new ArrayMap<>();
 
+    /**
+     * An update to a call which is waiting for the coalescing window to elapse before it is sent
+     * to the InCallServices.  Further updates to the same call received within the window are
+     * merged into this one.
+     */
+    private static class PendingCallUpdate {
+        boolean mVideoProviderChanged;
+        boolean mRttInfoChanged;
+        String mExceptPackageName;
+
+        PendingCallUpdate(boolean videoProviderChanged, boolean rttInfoChanged,
+                String exceptPackageName) {
+            mVideoProviderChanged = videoProviderChanged;
+            mRttInfoChanged = rttInfoChanged;
+            mExceptPackageName = exceptPackageName;
+        }
+
+        void merge(boolean videoProviderChanged, boolean rttInfoChanged,
+                String exceptPackageName) {
+            mVideoProviderChanged |= videoProviderChanged;
+            mRttInfoChanged |= rttInfoChanged;
+            // Only skip the requesting package if every merged update skips it.
+            if (!Objects.equals(mExceptPackageName, exceptPackageName)) {
+                mExceptPackageName = null;
+            }
+        }
+    }
+
+    // Call updates waiting to be sent once the coalescing window elapses.
+    private final Map<Call, PendingCallUpdate> mPendingCallUpdates = new ArrayMap<>();
+
+    private long mCallUpdatesBuilt = 0;
+    private long mCallUpdatesShared = 0;
+    private long mCallUpdatesSent = 0;
+    private long mCallUpdatesSuppressed = 0;
+    private long mCallUpdatesCoalesced = 0;
+
+    // The outbound queue of calls for each connected InCallService, which keeps them in order,
+    // suppresses updates which would not change anything the InCallService can see, and isolates
+    // Telecom from InCallServices which are slow to take them.  Guarded by itself since deferred
+    // BT ICS updates are sent off of the Telecom lock; the sent and suppressed counts are too.
+    private final Map<InCallServiceInfo, InCallServiceUpdateQueue> mUpdateQueues =
+            new ArrayMap<>();
+
+    // Incoming calls which the UI InCallService was bound for while they were being filtered,
+    // mapped to the user bound for and whether the UI InCallService binding succeeded.
+    private final Map<String, Pair<UserHandle, Boolean>> mPrewarmedCalls = new ArrayMap<>();
+    // The InCallService types each incoming call has been added to, as a bitmask.
+    private final Map<String, Integer> mIncomingCallAddedTypes = new ArrayMap<>();
+    // The time from an incoming call being created to it first being added to an InCallService
+    // of each type.
+    private final int[] mTimeToCallAddedCount = new int[IN_CALL_SERVICE_TYPE_NAMES.length];
+    private final long[] mTimeToCallAddedTotalMillis = new long[IN_CALL_SERVICE_TYPE_NAMES.length];
+    private final long[] mTimeToCallAddedMaxMillis = new long[IN_CALL_SERVICE_TYPE_NAMES.length];
+    private int mPrewarmedBindings = 0;
+    private int mPrewarmedBindingsReleased = 0;
+
+    /**
+     * The sanitized {@link ParcelableCall}s built for a single version of a call.  A parcel only
+     * depends on a few flags of the {@link InCallService} it is sent to and on whether the
+     * service may see contact information, so services in the same visibility class are sent
+     * the same instance, rather than each being sent its own copy.  Must be discarded once the
+     * call changes.
+     */
+    @VisibleForTesting
+    public class ParcelableCallSnapshots {
+        private static final int FLAG_INCLUDE_VIDEO_PROVIDER = 1;
+        private static final int FLAG_SUPPORTS_EXTERNAL_CALLS = 1 << 1;
+        private static final int FLAG_INCLUDE_RTT_CALL = 1 << 2;
+        private static final int FLAG_SYSTEM_IN_CALL_SERVICE = 1 << 3;
+        private static final int FLAG_HAS_CONTACTS_PERMISSION = 1 << 4;
+
+        private final Call mCall;
+        private final int mOverrideState;
+        // Indexed by the flags above.
+        private final ParcelableCall[] mParcels = new ParcelableCall[FLAG_HAS_CONTACTS_PERMISSION];
+        private final ParcelableCall[] mSanitizedParcels =
+                new ParcelableCall[FLAG_HAS_CONTACTS_PERMISSION << 1];
+
+        public ParcelableCallSnapshots(Call call) {
+            this(call, ParcelableCallUtils.CALL_STATE_OVERRIDE_NONE);
+        }
+
+        public ParcelableCallSnapshots(Call call, int overrideState) {
+            mCall = call;
+            mOverrideState = overrideState;
+        }
+
+        /**
+         * @return The sanitized call to send to the given service; built on first use for its
+         * visibility class.
+         */
+        public ParcelableCall get(InCallServiceInfo info, boolean includeVideoProvider,
+                boolean includeRttCall) {
+            boolean isForSystemInCallService = info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI
+                    || info.getType() == IN_CALL_SERVICE_TYPE_NON_UI;
+            int flags = (includeVideoProvider ? FLAG_INCLUDE_VIDEO_PROVIDER : 0)
+                    | (info.isExternalCallsSupported() ? FLAG_SUPPORTS_EXTERNAL_CALLS : 0)
+                    | (includeRttCall ? FLAG_INCLUDE_RTT_CALL : 0)
+                    | (isForSystemInCallService ? FLAG_SYSTEM_IN_CALL_SERVICE : 0);
+            boolean hasContactsPermission = hasContactsPermission(info);
+            int sanitizedFlags = flags | (hasContactsPermission ? FLAG_HAS_CONTACTS_PERMISSION : 0);
+            ParcelableCall sanitizedCall = mSanitizedParcels[sanitizedFlags];
+            if (sanitizedCall != null) {
+                mCallUpdatesShared++;
+                return sanitizedCall;
+            }
+            ParcelableCall parcelableCall = mParcels[flags];
+            if (parcelableCall == null) {
+                parcelableCall = ParcelableCallUtils.toParcelableCall(mCall, includeVideoProvider,
+                        mCallsManager.getPhoneAccountRegistrar(), info.isExternalCallsSupported(),
+                        mOverrideState, includeRttCall, isForSystemInCallService);
+                mParcels[flags] = parcelableCall;
+                mCallUpdatesBuilt++;
+            }
+            sanitizedCall = sanitizeParcelableCall(parcelableCall, hasContactsPermission);
+            mSanitizedParcels[sanitizedFlags] = sanitizedCall;
+            return sanitizedCall;
+        }
+    }
+
     private final CarModeTracker mCarModeTracker;
 
     /**
@@ -1316,16 +1441,18 @@ public class InCallController extends CallsManagerListenerBase implements
     public InCallController(Context context, TelecomSystem.SyncRoot lock, CallsManager callsManager,
             SystemStateHelper systemStateHelper, DefaultDialerCache defaultDialerCache,
             Timeouts.Adapter timeoutsAdapter, EmergencyCallHelper emergencyCallHelper,
-            CarModeTracker carModeTracker, ClockProxy clockProxy, FeatureFlags featureFlags) {
+            CarModeTracker carModeTracker, ClockProxy clockProxy, TimingWheel timingWheel,
+            FeatureFlags featureFlags) {
       this(context, lock, callsManager, systemStateHelper, defaultDialerCache, timeoutsAdapter,
-              emergencyCallHelper, carModeTracker, clockProxy, featureFlags, null);
+              emergencyCallHelper, carModeTracker, clockProxy, timingWheel, featureFlags, null);
     }
 
     @VisibleForTesting
     public InCallController(Context context, TelecomSystem.SyncRoot lock, CallsManager callsManager,
             SystemStateHelper systemStateHelper, DefaultDialerCache defaultDialerCache,
             Timeouts.Adapter timeoutsAdapter, EmergencyCallHelper emergencyCallHelper,
-            CarModeTracker carModeTracker, ClockProxy clockProxy, FeatureFlags featureFlags,
+            CarModeTracker carModeTracker, ClockProxy clockProxy, TimingWheel timingWheel,
+            FeatureFlags featureFlags,
             com.android.internal.telephony.flags.FeatureFlags telephonyFeatureFlags) {
         mContext = context;
         mAppOpsManager = context.getSystemService(AppOpsManager.class);
@@ -1339,6 +1466,7 @@ public class InCallController extends CallsManagerListenerBase implements
         mCarModeTracker = carModeTracker;
         mSystemStateHelper.addListener(mSystemStateListener);
         mClockProxy = clockProxy;
+        mTimingWheel = timingWheel;
         restrictPhoneCallOps();
         IntentFilter userAddedFilter = new IntentFilter(Intent.ACTION_USER_ADDED);
         userAddedFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
@@ -1423,6 +1551,16 @@ public class InCallController extends CallsManagerListenerBase implements
         // Track the call if we don't already know about it.
         addCall(call);
 
+        Pair<UserHandle, Boolean> prewarmedBinding = mPrewarmedCalls.remove(call.getId());
+        if (prewarmedBinding != null && prewarmedBinding.second
+                && isBoundAndConnectedToServices(userFromCall)
+                && !mNonUIInCallServiceConnections.containsKey(userFromCall)) {
+            // Only the UI InCallService was bound while the call was being filtered; now that
+            // the call has been allowed, bind the non-UI ones too.
+            Log.i(this, "onCallAdded: %s; using binding started while filtering.", call);
+            connectToNonUiInCallServices(call);
+        }
+
         if (mFeatureFlags.separatelyBindToBtIncallService()) {
             boolean bindingToBtRequired = false;
             boolean bindingToOtherServicesRequired = false;
@@ -1473,6 +1611,7 @@ public class InCallController extends CallsManagerListenerBase implements
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
         if (serviceMap.containsKey(userFromCall)) {
+            ParcelableCallSnapshots snapshots = new ParcelableCallSnapshots(call);
             for (Map.Entry<InCallServiceInfo, IInCallService> entry :
                     serviceMap.get(userFromCall).entrySet()) {
                 InCallServiceInfo info = entry.getKey();
@@ -1495,18 +1634,11 @@ public class InCallController extends CallsManagerListenerBase implements
                 componentsUpdated.add(info.getComponentName());
                 IInCallService inCallService = entry.getValue();
 
-                ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(call,
-                        true /* includeVideoProvider */,
-                        mCallsManager.getPhoneAccountRegistrar(),
-                        info.isExternalCallsSupported(), includeRttCall,
-                        info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI ||
-                                info.getType() == IN_CALL_SERVICE_TYPE_NON_UI);
-                try {
-                    inCallService.addCall(
-                            sanitizeParcelableCallForService(info, parcelableCall));
-                    updateCallTracking(call, info, true /* isAdd */);
-                } catch (RemoteException ignored) {
-                }
+                ParcelableCall sanitizedCall = snapshots.get(info,
+                        true /* includeVideoProvider */, includeRttCall);
+                addCallToIcs(inCallService, info, sanitizedCall);
+                updateCallTracking(call, info, true /* isAdd */);
+                recordIncomingCallAdded(call, info);
             }
             Log.i(this, "Call added to ICS: %s", componentsUpdated);
         }
@@ -1515,6 +1647,14 @@ public class InCallController extends CallsManagerListenerBase implements
     @Override
     public void onCallRemoved(Call call) {
         Log.i(this, "onCallRemoved: %s", call);
+        // Make sure the InCallServices hear about the final state of the call before we forget it.
+        flushPendingCallUpdate(call);
+        mIncomingCallAddedTypes.remove(call.getId());
+        synchronized (mUpdateQueues) {
+            for (InCallServiceUpdateQueue queue : mUpdateQueues.values()) {
+                queue.onCallRemoved(call.getId());
+            }
+        }
         // Instead of checking if there are no active calls, we should check if there any calls with
         // the same associated user returned from getUserFromCall. For instance, it's possible to
         // have calls coexist on the personal profile and work profile, in which case, we would only
@@ -1554,6 +1694,8 @@ public class InCallController extends CallsManagerListenerBase implements
         }
         call.removeListener(mCallListener);
         mCallIdMapper.removeCall(call);
+        // Nothing may be held for a call the InCallServices have forgotten.
+        mPendingCallUpdates.remove(call);
         if (mCallIdMapper.getCalls().isEmpty()) {
             mActiveCarrierPrivilegedApps.clear();
             mAppOpsManager.stopWatchingActive(this);
@@ -1666,6 +1808,7 @@ public class InCallController extends CallsManagerListenerBase implements
         if (!isExternalCall && serviceMap.containsKey(userFromCall)) {
             // The call was external but it is no longer external.  We must now add it to any
             // InCallServices which do not support external calls.
+            ParcelableCallSnapshots snapshots = new ParcelableCallSnapshots(call);
             for (Map.Entry<InCallServiceInfo, IInCallService> entry : serviceMap.
                     get(userFromCall).entrySet()) {
                 InCallServiceInfo info = entry.getKey();
@@ -1688,16 +1831,11 @@ public class InCallController extends CallsManagerListenerBase implements
                 boolean includeRttCall = info.equals(mInCallServiceConnections.
                         get(userFromCall).getInfo());
 
-                ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(call,
-                        true /* includeVideoProvider */, mCallsManager.getPhoneAccountRegistrar(),
-                        info.isExternalCallsSupported(), includeRttCall,
-                        info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI
-                                || info.getType() == IN_CALL_SERVICE_TYPE_NON_UI);
-                try {
-                    inCallService.addCall(sanitizeParcelableCallForService(info, parcelableCall));
-                    updateCallTracking(call, info, true /* isAdd */);
-                } catch (RemoteException ignored) {
-                }
+                ParcelableCall sanitizedCall = snapshots.get(info,
+                        true /* includeVideoProvider */, includeRttCall);
+                addCallToIcs(inCallService, info, sanitizedCall);
+                updateCallTracking(call, info, true /* isAdd */);
+                recordIncomingCallAdded(call, info);
             }
             Log.i(this, "Previously external call added to components: %s", componentsUpdated);
         } else {
@@ -1706,6 +1844,8 @@ public class InCallController extends CallsManagerListenerBase implements
             // Remove the call by sending a call update indicating the call was disconnected.
             Log.i(this, "Removing external call %s", call);
             if (serviceMap.containsKey(userFromCall)) {
+                ParcelableCallSnapshots snapshots = new ParcelableCallSnapshots(call,
+                        android.telecom.Call.STATE_DISCONNECTED /* overrideState */);
                 for (Map.Entry<InCallServiceInfo, IInCallService> entry :
                         serviceMap.get(userFromCall).entrySet()) {
                     InCallServiceInfo info = entry.getKey();
@@ -1718,22 +1858,10 @@ public class InCallController extends CallsManagerListenerBase implements
                     componentsUpdated.add(info.getComponentName());
                     IInCallService inCallService = entry.getValue();
 
-                    ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
-                            call,
-                            false /* includeVideoProvider */,
-                            mCallsManager.getPhoneAccountRegistrar(),
-                            false /* supportsExternalCalls */,
-                            android.telecom.Call.STATE_DISCONNECTED /* overrideState */,
-                            false /* includeRttCall */,
-                            info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI
-                                    || info.getType() == IN_CALL_SERVICE_TYPE_NON_UI
-                    );
-
-                    try {
-                        inCallService.updateCall(
-                                sanitizeParcelableCallForService(info, parcelableCall));
-                    } catch (RemoteException ignored) {
-                    }
+                    // Services which support external calls were skipped above.
+                    ParcelableCall sanitizedCall = snapshots.get(info,
+                            false /* includeVideoProvider */, false /* includeRttCall */);
+                    updateCallToIcs(inCallService, info, sanitizedCall, info.getComponentName());
                 }
                 Log.i(this, "External call removed from components: %s", componentsUpdated);
             }
@@ -1757,7 +1885,7 @@ public class InCallController extends CallsManagerListenerBase implements
                 Settings.System.VIBRATE_ON_DISCONNECT, 0, UserHandle.USER_CURRENT) == 1;
             if (vibrateOnDisconnect) vibrate(100, 200, 0);
         }
-        updateCall(call);
+        updateCallImmediately(call);
     }
 
     public void vibrate(int v1, int p1, int v2) {
@@ -1872,6 +2000,7 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     void onPostDialWait(Call call, String remaining) {
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
@@ -2016,24 +2145,30 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     private void notifyConnectionEvent(Call call, String event, Bundle extras) {
+        // Anything the call did before raising the event must reach the InCallServices first;
+        // an extras change held by the coalescing window would otherwise arrive after it.
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
         if (serviceMap.containsKey(userFromCall)) {
-            for (IInCallService inCallService : serviceMap.get(userFromCall).values()) {
-                try {
-                    Log.i(this, "notifyConnectionEvent {Call: %s, Event: %s, Extras:[%s]}",
-                            (call != null ? call.toString() : "null"),
-                            (event != null ? event : "null"),
-                            (extras != null ? extras.toString() : "null"));
-                    inCallService.onConnectionEvent(mCallIdMapper.getCallId(call), event, extras);
-                } catch (RemoteException ignored) {
+            for (Map.Entry<InCallServiceInfo, IInCallService> entry :
+                    serviceMap.get(userFromCall).entrySet()) {
+                Log.i(this, "notifyConnectionEvent {Call: %s, Event: %s, Extras:[%s]}",
+                        (call != null ? call.toString() : "null"),
+                        (event != null ? event : "null"),
+                        (extras != null ? extras.toString() : "null"));
+                InCallServiceUpdateQueue queue = getUpdateQueue(entry.getKey());
+                if (queue != null) {
+                    queue.onConnectionEvent(entry.getValue(), mCallIdMapper.getCallId(call),
+                            event, extras);
                 }
             }
         }
     }
 
     private void notifyRttInitiationFailure(Call call, int reason) {
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
@@ -2054,6 +2189,7 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     private void notifyRemoteRttRequest(Call call, int requestId) {
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
@@ -2074,6 +2210,7 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     private void notifyHandoverFailed(Call call, int error) {
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
@@ -2088,6 +2225,7 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     private void notifyHandoverComplete(Call call) {
+        flushPendingCallUpdate(call);
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
@@ -2169,9 +2307,10 @@ public class InCallController extends CallsManagerListenerBase implements
             }
         }
 
-        mBtBindingFuture.put(userToBind, new CompletableFuture<Boolean>().completeOnTimeout(false,
+        mBtBindingFuture.put(userToBind, mTimingWheel.completeOnTimeout(
+                "InCallController.btBinding", new CompletableFuture<Boolean>(), false,
                 mTimeoutsAdapter.getCallBindBluetoothInCallServicesDelay(
-                        mContext.getContentResolver()), TimeUnit.MILLISECONDS));
+                        mContext.getContentResolver()), mHandler::post));
         InCallServiceBindingConnection btIcsBindingConnection =
                 new InCallServiceBindingConnection(infos.get(0),
                         serviceUnavailableForUser ? parentUser : userToBind);
@@ -2189,6 +2328,71 @@ public class InCallController extends CallsManagerListenerBase implements
      */
     @VisibleForTesting
     public void bindToServices(Call call) {
+        bindToServices(call, true /* includeNonUiInCallServices */);
+    }
+
+    /**
+     * Starts binding to the UI {@link InCallService} for an incoming call as soon as it starts
+     * being filtered, so that binding to, and starting, the in-call app overlaps with call
+     * filtering rather than delaying the incoming call UI.  The non-UI InCallServices are only
+     * bound once the call is allowed and added.  If the call is never added, the binding must be
+     * released with {@link #releasePrewarmedBinding(Call)}.
+     *
+     * @param call The incoming call being filtered.
+     */
+    public void prewarmBindingForIncomingCall(Call call) {
+        UserHandle userFromCall = getUserFromCall(call);
+        if (mInCallServiceConnections.containsKey(userFromCall)) {
+            Pair<UserHandle, Boolean> existing = null;
+            for (Pair<UserHandle, Boolean> prewarmedBinding : mPrewarmedCalls.values()) {
+                if (prewarmedBinding.first.equals(userFromCall)) {
+                    existing = prewarmedBinding;
+                }
+            }
+            if (existing != null) {
+                // Share the binding started for another call which is still being filtered.
+                mPrewarmedCalls.put(call.getId(), existing);
+            }
+            return;
+        }
+        Log.i(this, "prewarmBindingForIncomingCall: %s", call);
+        mPrewarmedBindings++;
+        boolean isBound = bindToServices(call, false /* includeNonUiInCallServices */);
+        mPrewarmedCalls.put(call.getId(), new Pair<>(userFromCall, isBound));
+    }
+
+    /**
+     * Releases the binding started by {@link #prewarmBindingForIncomingCall(Call)} for a call
+     * which was not added, such as a call rejected by call filtering.  The binding is kept if it
+     * is in use by another call.
+     *
+     * @param call The incoming call.
+     */
+    public void releasePrewarmedBinding(Call call) {
+        Pair<UserHandle, Boolean> prewarmedBinding = mPrewarmedCalls.remove(call.getId());
+        if (prewarmedBinding == null) {
+            return;
+        }
+        UserHandle userHandle = prewarmedBinding.first;
+        boolean isInUse = mCallsManager.getCalls().stream()
+                .anyMatch(c -> getUserFromCall(c).equals(userHandle))
+                || mPrewarmedCalls.values().stream()
+                        .anyMatch(p -> p.first.equals(userHandle));
+        Log.i(this, "releasePrewarmedBinding: %s, inUse=%b", call, isInUse);
+        if (!isInUse) {
+            mPrewarmedBindingsReleased++;
+            unbindFromServices(userHandle);
+        }
+    }
+
+    /**
+     * Binds to the UI-providing InCallService and, if requested, the system-implemented non-UI
+     * InCallServices.
+     *
+     * @return {@code true} if binding to the UI InCallService started, or the call is
+     *         self-managed.
+     */
+    private boolean bindToServices(Call call, boolean includeNonUiInCallServices) {
         UserHandle userFromCall = getUserFromCall(call);
         UserManager um = mContext.getSystemService(UserManager.class);
         UserHandle parentUser = mFeatureFlags.profileUserSupport()
@@ -2247,17 +2451,20 @@ public class InCallController extends CallsManagerListenerBase implements
         inCallServiceConnection.chooseInitialInCallService(shouldUseCarModeUI());
 
         // Actually try binding to the UI InCallService.
-        if (inCallServiceConnection.connect(call) ==
+        boolean isBound = inCallServiceConnection.connect(call) ==
                 InCallServiceConnection.CONNECTION_SUCCEEDED || (call != null
-                && call.isSelfManaged())) {
+                && call.isSelfManaged());
+        if (isBound) {
             // Only connect to the non-ui InCallServices if we actually connected to the main UI
             // one, or if the call is self-managed (in which case we'd still want to keep Wear, BT,
             // etc. informed.
-            connectToNonUiInCallServices(call);
-            mBindingFuture = new CompletableFuture<Boolean>().completeOnTimeout(false,
+            if (includeNonUiInCallServices) {
+                connectToNonUiInCallServices(call);
+            }
+            mBindingFuture = mTimingWheel.completeOnTimeout(
+                    "InCallController.binding", new CompletableFuture<Boolean>(), false,
                     mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
-                            mContext.getContentResolver()),
-                    TimeUnit.MILLISECONDS);
+                            mContext.getContentResolver()), mHandler::post);
         } else {
             Log.i(this, "bindToServices: current UI doesn't support call; not binding.");
         }
@@ -2266,6 +2473,28 @@ public class InCallController extends CallsManagerListenerBase implements
         packageChangedFilter.addDataScheme("package");
         mContext.registerReceiverAsUser(mPackageChangedReceiver, UserHandle.ALL,
                 packageChangedFilter, null, null);
+        return isBound;
+    }
+
+    /**
+     * Records the time from an incoming call being created to it first being added to an
+     * {@link InCallService} of the given type.
+     */
+    private void recordIncomingCallAdded(Call call, InCallServiceInfo info) {
+        int type = info.getType();
+        if (!call.isIncoming() || type < 0 || type >= IN_CALL_SERVICE_TYPE_NAMES.length) {
+            return;
+        }
+        int addedTypes = mIncomingCallAddedTypes.getOrDefault(call.getId(), 0);
+        if ((addedTypes & (1 << type)) != 0) {
+            return;
+        }
+        mIncomingCallAddedTypes.put(call.getId(), addedTypes | (1 << type));
+        long latencyMillis =
+                mClockProxy.elapsedRealtime() - call.getCreationElapsedRealtimeMillis();
+        mTimeToCallAddedCount[type]++;
+        mTimeToCallAddedTotalMillis[type] += latencyMillis;
+        mTimeToCallAddedMaxMillis[type] = Math.max(mTimeToCallAddedMaxMillis[type], latencyMillis);
     }
 
     private void updateNonUiInCallServices(Call call) {
@@ -2674,6 +2903,7 @@ public class InCallController extends CallsManagerListenerBase implements
                     SET_IN_CALL_ADAPTER_ERROR_MSG);
             return false;
         }
+        createUpdateQueue(info);
 
         // Upon successful connection, send the state of the world to the service.
         List<Call> calls = orderCallsWithChildrenFirst(mCallsManager.getCalls().stream().filter(
@@ -2706,49 +2936,47 @@ public class InCallController extends CallsManagerListenerBase implements
     @VisibleForTesting
     public int sendCallToService(Call call, InCallServiceInfo info,
             IInCallService inCallService) {
-        try {
-            if ((call.isSelfManaged() && (!info.isSelfManagedCallsSupported()
-                    || !call.visibleToInCallService())) ||
-                    (call.isExternalCall() && !info.isExternalCallsSupported())) {
-                return 0;
-            }
+        if ((call.isSelfManaged() && (!info.isSelfManagedCallsSupported()
+                || !call.visibleToInCallService())) ||
+                (call.isExternalCall() && !info.isExternalCallsSupported())) {
+            return 0;
+        }
 
-            UserHandle userFromCall = getUserFromCall(call);
-            // Only send the RTT call if it's a UI in-call service
-            boolean includeRttCall = false;
-            if (mInCallServiceConnections.containsKey(userFromCall)) {
-                includeRttCall = info.equals(mInCallServiceConnections.get(userFromCall).getInfo());
-            }
-
-            // Track the call if we don't already know about it.
-            addCall(call);
-            ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
-                    call,
-                    true /* includeVideoProvider */,
-                    mCallsManager.getPhoneAccountRegistrar(),
-                    info.isExternalCallsSupported(),
-                    includeRttCall,
-                    info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI ||
-                            info.getType() == IN_CALL_SERVICE_TYPE_NON_UI);
-            if (mFeatureFlags.doNotSendCallToNullIcs()) {
-                if (inCallService != null) {
-                    inCallService.addCall(sanitizeParcelableCallForService(info, parcelableCall));
-                } else {
-                    Log.w(this, "call=[%s], was not sent to InCallService"
-                                    + " with info=[%s] due to a null InCallService binding",
-                            call, info);
-                    mAnomalyReporter.reportAnomaly(NULL_IN_CALL_SERVICE_BINDING_UUID,
-                            NULL_IN_CALL_SERVICE_BINDING_ERROR_MSG);
-                    return 0;
-                }
+        UserHandle userFromCall = getUserFromCall(call);
+        // Only send the RTT call if it's a UI in-call service
+        boolean includeRttCall = false;
+        if (mInCallServiceConnections.containsKey(userFromCall)) {
+            includeRttCall = info.equals(mInCallServiceConnections.get(userFromCall).getInfo());
+        }
+
+        // Track the call if we don't already know about it.
+        addCall(call);
+        ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
+                call,
+                true /* includeVideoProvider */,
+                mCallsManager.getPhoneAccountRegistrar(),
+                info.isExternalCallsSupported(),
+                includeRttCall,
+                info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI ||
+                        info.getType() == IN_CALL_SERVICE_TYPE_NON_UI);
+        ParcelableCall sanitizedCall = sanitizeParcelableCallForService(info, parcelableCall);
+        if (mFeatureFlags.doNotSendCallToNullIcs()) {
+            if (inCallService != null) {
+                addCallToIcs(inCallService, info, sanitizedCall);
             } else {
-                inCallService.addCall(sanitizeParcelableCallForService(info, parcelableCall));
+                Log.w(this, "call=[%s], was not sent to InCallService"
+                                + " with info=[%s] due to a null InCallService binding",
+                        call, info);
+                mAnomalyReporter.reportAnomaly(NULL_IN_CALL_SERVICE_BINDING_UUID,
+                        NULL_IN_CALL_SERVICE_BINDING_ERROR_MSG);
+                return 0;
             }
-            updateCallTracking(call, info, true /* isAdd */);
-            return 1;
-        } catch (RemoteException ignored) {
+        } else {
+            addCallToIcs(inCallService, info, sanitizedCall);
         }
-        return 0;
+        updateCallTracking(call, info, true /* isAdd */);
+        recordIncomingCallAdded(call, info);
+        return 1;
     }
 
     /**
@@ -2758,6 +2986,12 @@ public class InCallController extends CallsManagerListenerBase implements
      */
     private void onDisconnected(InCallServiceInfo disconnectedInfo, UserHandle userHandle) {
         Log.i(this, "onDisconnected from %s", disconnectedInfo.getComponentName());
+        synchronized (mUpdateQueues) {
+            InCallServiceUpdateQueue queue = mUpdateQueues.remove(disconnectedInfo);
+            if (queue != null) {
+                queue.clear();
+            }
+        }
         if (disconnectedInfo.getType() == IN_CALL_SERVICE_TYPE_CAR_MODE_UI
                 || disconnectedInfo.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI
                 || disconnectedInfo.getType() == IN_CALL_SERVICE_TYPE_DEFAULT_DIALER_UI) {
@@ -2797,12 +3031,81 @@ public class InCallController extends CallsManagerListenerBase implements
      */
     private void updateCall(Call call, boolean videoProviderChanged, boolean rttInfoChanged,
             String exceptPackageName) {
+        long coalesceWindowMillis = mTimeoutsAdapter.getInCallServiceUpdateCoalesceWindowMillis(
+                mContext.getContentResolver());
+        if (coalesceWindowMillis <= 0) {
+            sendCallUpdate(call, videoProviderChanged, rttInfoChanged, exceptPackageName);
+            return;
+        }
+
+        if (mCallIdMapper.getCallId(call) == null) {
+            // The call was never added to, or was already removed from, the InCallServices; the
+            // delayed flush would otherwise send an update for a call they no longer know about.
+            return;
+        }
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.get(call);
+        if (pendingUpdate != null) {
+            pendingUpdate.merge(videoProviderChanged, rttInfoChanged, exceptPackageName);
+            mCallUpdatesCoalesced++;
+            return;
+        }
+        mPendingCallUpdates.put(call, new PendingCallUpdate(videoProviderChanged, rttInfoChanged,
+                exceptPackageName));
+        mHandler.postDelayed(new Runnable("ICC.fCU", mLock) {
+            @Override
+            public void loggedRun() {
+                flushPendingCallUpdate(call);
+            }
+        }.prepare(), coalesceWindowMillis);
+    }
+
+    /**
+     * Informs all {@link InCallService} instances of the updated call information right away,
+     * merging in any update for the call which is still waiting on the coalescing window.  Used
+     * for changes which should never be delayed, such as call state changes.
+     *
+     * @param call The {@link Call}.
+     */
+    private void updateCallImmediately(Call call) {
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.remove(call);
+        if (pendingUpdate == null) {
+            sendCallUpdate(call, false /* videoProviderChanged */, false /* rttInfoChanged */,
+                    null /* exceptPackageName */);
+            return;
+        }
+        mCallUpdatesCoalesced++;
+        pendingUpdate.merge(false /* videoProviderChanged */, false /* rttInfoChanged */,
+                null /* exceptPackageName */);
+        sendCallUpdate(call, pendingUpdate.mVideoProviderChanged, pendingUpdate.mRttInfoChanged,
+                pendingUpdate.mExceptPackageName);
+    }
+
+    /**
+     * Sends the update for the call which is waiting on the coalescing window, if any.
+     *
+     * @param call The {@link Call}.
+     */
+    private void flushPendingCallUpdate(Call call) {
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.remove(call);
+        if (pendingUpdate != null) {
+            sendCallUpdate(call, pendingUpdate.mVideoProviderChanged,
+                    pendingUpdate.mRttInfoChanged, pendingUpdate.mExceptPackageName);
+        }
+    }
+
+    /**
+     * Builds and sends the updated call information to all {@link InCallService} instances.
+     * See {@link #updateCall(Call, boolean, boolean, String)} for a description of the parameters.
+     */
+    private void sendCallUpdate(Call call, boolean videoProviderChanged, boolean rttInfoChanged,
+            String exceptPackageName) {
         UserHandle userFromCall = getUserFromCall(call);
         Map<UserHandle, Map<InCallController.InCallServiceInfo, IInCallService>> serviceMap =
                 getCombinedInCallServiceMap();
         if (serviceMap.containsKey(userFromCall)) {
             Log.i(this, "Sending updateCall %s", call);
             List<ComponentName> componentsUpdated = new ArrayList<>();
+            ParcelableCallSnapshots snapshots = new ParcelableCallSnapshots(call);
             for (Map.Entry<InCallServiceInfo, IInCallService> entry : serviceMap.
                     get(userFromCall).entrySet()) {
                 InCallServiceInfo info = entry.getKey();
@@ -2825,15 +3128,10 @@ public class InCallController extends CallsManagerListenerBase implements
                     continue;
                 }
 
-                ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
-                        call,
+                ParcelableCall parcelableCall = snapshots.get(info,
                         videoProviderChanged /* includeVideoProvider */,
-                        mCallsManager.getPhoneAccountRegistrar(),
-                        info.isExternalCallsSupported(),
                         rttInfoChanged && info.equals(
-                                mInCallServiceConnections.get(userFromCall).getInfo()),
-                        info.getType() == IN_CALL_SERVICE_TYPE_SYSTEM_UI ||
-                        info.getType() == IN_CALL_SERVICE_TYPE_NON_UI);
+                                mInCallServiceConnections.get(userFromCall).getInfo()));
                 IInCallService inCallService = entry.getValue();
                 boolean isDisconnectingBtIcs = info.getType() == IN_CALL_SERVICE_TYPE_BLUETOOTH
                         && call.getState() == CallState.DISCONNECTED;
@@ -2845,9 +3143,10 @@ public class InCallController extends CallsManagerListenerBase implements
                         // Create the base future with timeout, we will chain more operations on to
                         // this.
                         CompletableFuture<Void> disconnectedToneFuture =
-                                new CompletableFuture<Void>()
-                                        .completeOnTimeout(null, DISCONNECTED_TONE_TIMEOUT,
-                                                TimeUnit.MILLISECONDS);
+                                mTimingWheel.completeOnTimeout(
+                                        "InCallController.disconnectedTone",
+                                        new CompletableFuture<Void>(), null,
+                                        DISCONNECTED_TONE_TIMEOUT, mHandler::post);
                         // Note: DO NOT chain async work onto this future; using thenRun ensures
                         // when disconnectedToneFuture is completed that the chained work is run
                         // synchronously.
@@ -2881,13 +3180,74 @@ public class InCallController extends CallsManagerListenerBase implements
     }
 
     private void updateCallToIcs(IInCallService inCallService, InCallServiceInfo info,
-            ParcelableCall parcelableCall, ComponentName componentName) {
-        try {
-            inCallService.updateCall(
-                    sanitizeParcelableCallForService(info, parcelableCall));
-        } catch (RemoteException exception) {
-            Log.w(this, "Call status update did not send to: "
-                    + componentName + " successfully with error " + exception);
+            ParcelableCall sanitizedCall, ComponentName componentName) {
+        InCallServiceUpdateQueue queue = getUpdateQueue(info);
+        if (queue == null) {
+            Log.w(this, "updateCallToIcs: %s is no longer connected", componentName);
+            return;
+        }
+        boolean isSent = queue.updateCall(inCallService, sanitizedCall);
+        synchronized (mUpdateQueues) {
+            if (isSent) {
+                mCallUpdatesSent++;
+            } else {
+                mCallUpdatesSuppressed++;
+            }
+        }
+        if (!isSent) {
+            Log.d(this, "updateCallToIcs: skipping unchanged update to %s", componentName);
+        }
+    }
+
+    private void addCallToIcs(IInCallService inCallService, InCallServiceInfo info,
+            ParcelableCall sanitizedCall) {
+        InCallServiceUpdateQueue queue = getUpdateQueue(info);
+        if (queue == null) {
+            Log.w(this, "addCallToIcs: %s is no longer connected", info.getComponentName());
+            return;
+        }
+        queue.addCall(inCallService, sanitizedCall);
+    }
+
+    /**
+     * Creates the outbound queue of calls for an {@link InCallService} once it is connected.
+     */
+    private void createUpdateQueue(InCallServiceInfo info) {
+        synchronized (mUpdateQueues) {
+            if (mUpdateQueues.containsKey(info)) {
+                return;
+            }
+            mUpdateQueues.put(info, new InCallServiceUpdateQueue(
+                    info.getComponentName().flattenToShortString() + "/"
+                            + IN_CALL_SERVICE_TYPE_NAMES[info.getType()],
+                    new InCallServiceUpdateQueue.Listener() {
+                        @Override
+                        public void onCallDropped(String callId) {
+                            logInCallServiceError(ErrorStats.ERROR_UNKNOWN);
+                        }
+
+                        @Override
+                        public void onSendFailed(String callId) {
+                            logInCallServiceError(ErrorStats.ERROR_EXTERNAL_EXCEPTION);
+                        }
+                    }, mClockProxy::elapsedRealtime));
+        }
+    }
+
+    /**
+     * @return The outbound queue of calls for an {@link InCallService}, or {@code null} if it is
+     * not connected.
+     */
+    private InCallServiceUpdateQueue getUpdateQueue(InCallServiceInfo info) {
+        synchronized (mUpdateQueues) {
+            return mUpdateQueues.get(info);
+        }
+    }
+
+    private void logInCallServiceError(@ErrorStats.ErrorId int errorId) {
+        if (mFeatureFlags.telecomMetricsSupport()) {
+            mCallsManager.getMetricsController().getErrorStats().log(
+                    ErrorStats.SUB_IN_CALL_SERVICE, errorId);
         }
     }
 
@@ -2986,6 +3346,38 @@ public class InCallController extends CallsManagerListenerBase implements
         }
         pw.decreaseIndent();
 
+        synchronized (mUpdateQueues) {
+            pw.println("Call updates: built=" + mCallUpdatesBuilt
+                    + ", shared=" + mCallUpdatesShared
+                    + ", sent=" + mCallUpdatesSent
+                    + ", suppressed=" + mCallUpdatesSuppressed
+                    + ", coalesced=" + mCallUpdatesCoalesced);
+        }
+
+        pw.println("Call update queues:");
+        pw.increaseIndent();
+        synchronized (mUpdateQueues) {
+            for (InCallServiceUpdateQueue queue : mUpdateQueues.values()) {
+                queue.dump(pw);
+            }
+        }
+        pw.decreaseIndent();
+
+        pw.println(String.format(Locale.US, "Prewarmed bindings: started=%d, released=%d",
+                mPrewarmedBindings, mPrewarmedBindingsReleased));
+        pw.println("Time to first onCallAdded for incoming calls:");
+        pw.increaseIndent();
+        for (int type = 0; type < IN_CALL_SERVICE_TYPE_NAMES.length; type++) {
+            if (mTimeToCallAddedCount[type] == 0) {
+                continue;
+            }
+            pw.println(String.format(Locale.US, "%s: count=%d, avg=%dmS, max=%dmS",
+                    IN_CALL_SERVICE_TYPE_NAMES[type], mTimeToCallAddedCount[type],
+                    mTimeToCallAddedTotalMillis[type] / mTimeToCallAddedCount[type],
+                    mTimeToCallAddedMaxMillis[type]));
+        }
+        pw.decreaseIndent();
+
         mCarModeTracker.dump(pw);
     }
 
@@ -3070,13 +3462,25 @@ public class InCallController extends CallsManagerListenerBase implements
     @VisibleForTesting
     public ParcelableCall sanitizeParcelableCallForService(
             InCallServiceInfo info, ParcelableCall parcelableCall) {
+        return sanitizeParcelableCall(parcelableCall, hasContactsPermission(info));
+    }
+
+    private boolean hasContactsPermission(InCallServiceInfo info) {
+        PackageManager pm = mContext.getPackageManager();
+        return pm.checkPermission(Manifest.permission.READ_CONTACTS,
+                info.getComponentName().getPackageName()) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Strips the information from a call which a service is not allowed to see.  Any new
+     * per-service sanitization must be keyed on in {@link ParcelableCallSnapshots} as well.
+     */
+    private ParcelableCall sanitizeParcelableCall(ParcelableCall parcelableCall,
+            boolean hasContactsPermission) {
         ParcelableCall.ParcelableCallBuilder builder =
                 ParcelableCall.ParcelableCallBuilder.fromParcelableCall(parcelableCall);
-        PackageManager pm = mContext.getPackageManager();
 
-        // Check for contacts permission.
-        if (pm.checkPermission(Manifest.permission.READ_CONTACTS,
-                info.getComponentName().getPackageName()) != PackageManager.PERMISSION_GRANTED) {
+        if (!hasContactsPermission) {
             // contacts permission is not present...
 
             // removing the contactsDisplayName
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.telecom.Call;
+import android.telecom.Log;
+import android.telecom.ParcelableCall;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telecom.IInCallService;
+import com.android.server.telecom.metrics.LogLinearHistogram;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * The outbound queue of calls sent to a single {@link android.telecom.InCallService}: every
+ * {@link IInCallService#addCall}, {@link IInCallService#updateCall} and
+ * {@link IInCallService#onConnectionEvent} for the service goes through it, so that they reach
+ * the service in the order they were made.
+ * <p>
+ * While the {@link android.telecom.InCallService} keeps up, calls are sent straight away on
+ * the calling thread, as they always have been.  Once a call takes longer than
+ * {@link #SLOW_TRANSACTION_MILLIS} to send, or fails to send, the service is considered slow and
+ * further calls are queued and sent from a background thread of the queue's own instead, so that
+ * a slow companion app cannot hold up Telecom or the calls sent to other in-call services.  A
+ * queued update is collapsed into the newest call queued for the same call if that call is an add
+ * or an update.  Once {@link #MAX_PENDING_UPDATES} calls are queued, the oldest queued connection
+ * event is dropped to make room.  Adds and updates are never dropped, so the service always
+ * receives the latest state of every call; as they collapse, at most one of them is queued per
+ * call once the connection events between them are dropped.  The service is considered healthy
+ * again once a call is sent quickly with nothing left queued.
+ * <p>
+ * The queue also remembers the last state of each call sent to the service, so that an update
+ * which would not change anything the service can see, compared to the newest state queued or
+ * sent, is not sent at all.
+ */
+public class InCallServiceUpdateQueue {
+    /**
+     * Notified of calls which were not sent.  Called on the thread which sent or queued the
+     * call, without any locks held.
+     */
+    public interface Listener {
+        void onCallDropped(String callId);
+
+        void onSendFailed(String callId);
+    }
+
+    @VisibleForTesting
+    public static final int MAX_PENDING_UPDATES = 16;
+    @VisibleForTesting
+    public static final long SLOW_TRANSACTION_MILLIS = 100;
+
+    private static final int OP_ADD_CALL = 0;
+    private static final int OP_UPDATE_CALL = 1;
+    private static final int OP_CONNECTION_EVENT = 2;
+
+    /**
+     * A single call to the {@link IInCallService}.
+     */
+    private static final class Op {
+        final int mType;
+        final String mCallId;
+        // The call to send and the copy of it to compare later updates to, for adds and updates.
+        ParcelableCall mCall;
+        ParcelableCall mSnapshot;
+        // The event and its extras, for connection events.
+        final String mEvent;
+        final Bundle mExtras;
+
+        Op(int type, ParcelableCall call, ParcelableCall snapshot) {
+            mType = type;
+            mCallId = call.getId();
+            mCall = call;
+            mSnapshot = snapshot;
+            mEvent = null;
+            mExtras = null;
+        }
+
+        Op(String callId, String event, Bundle extras) {
+            mType = OP_CONNECTION_EVENT;
+            mCallId = callId;
+            mEvent = event;
+            mExtras = extras;
+        }
+    }
+
+    // The threads queues drain on.  A queue drains on one thread at a time, and a queue blocked
+    // by its service holds only its own thread.
+    private static Executor sDrainExecutor;
+
+    private final String mName;
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final LongSupplier mClock;
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private IInCallService mService;
+    // Queued calls, in the order they are to be sent.
+    @GuardedBy("mLock")
+    private final List<Op> mPending = new ArrayList<>();
+    // The call being sent, if any; at most one is sent at a time.
+    @GuardedBy("mLock")
+    private Op mSendingOp;
+    // The last state of each call sent to the service, keyed by call id.
+    @GuardedBy("mLock")
+    private final Map<String, ParcelableCall> mLastSent = new ArrayMap<>();
+    // Calls which were removed while still queued or being sent; their state is not remembered
+    // once sent.
+    @GuardedBy("mLock")
+    private final Set<String> mRemovedCallIds = new ArraySet<>();
+    @GuardedBy("mLock")
+    private boolean mSlow;
+    // Whether the drain runnable is scheduled or running.
+    @GuardedBy("mLock")
+    private boolean mDrainScheduled;
+
+    @GuardedBy("mLock")
+    private final LogLinearHistogram mLatency = new LogLinearHistogram();
+    @GuardedBy("mLock")
+    private int mSent;
+    @GuardedBy("mLock")
+    private int mQueued;
+    @GuardedBy("mLock")
+    private int mCollapsed;
+    @GuardedBy("mLock")
+    private int mSuppressed;
+    @GuardedBy("mLock")
+    private int mDropped;
+    @GuardedBy("mLock")
+    private int mFailed;
+    @GuardedBy("mLock")
+    private int mSlowEpisodes;
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    public InCallServiceUpdateQueue(String name, Listener listener, LongSupplier clock) {
+        this(name, listener, getDrainExecutor(), clock);
+    }
+
+    @VisibleForTesting
+    public InCallServiceUpdateQueue(String name, Listener listener, Executor executor,
+            LongSupplier clock) {
+        mName = name;
+        mListener = listener;
+        mExecutor = executor;
+        mClock = clock;
+    }
+
+    private static synchronized Executor getDrainExecutor() {
+        if (sDrainExecutor == null) {
+            sDrainExecutor = Executors.newCachedThreadPool(
+                    runnable -> new Thread(runnable, "InCallServiceUpdates"));
+        }
+        return sDrainExecutor;
+    }
+
+    /**
+     * Adds a call to the {@link android.telecom.InCallService}.
+     *
+     * @param service The binder of the service.
+     * @param call The sanitized call to send.
+     */
+    public void addCall(IInCallService service, ParcelableCall call) {
+        enqueue(service, new Op(OP_ADD_CALL, call, ParcelableCallUtils.copyForComparison(call)));
+    }
+
+    /**
+     * Sends an update of a call to the {@link android.telecom.InCallService}, unless it would
+     * not change anything the service can see.
+     *
+     * @param service The binder of the service.
+     * @param call The sanitized call to send.
+     * @return {@code false} if the update was suppressed.
+     */
+    public boolean updateCall(IInCallService service, ParcelableCall call) {
+        return enqueue(service,
+                new Op(OP_UPDATE_CALL, call, ParcelableCallUtils.copyForComparison(call)));
+    }
+
+    /**
+     * Sends a connection event of a call to the {@link android.telecom.InCallService}.
+     *
+     * @param service The binder of the service.
+     * @param callId The id of the call.
+     * @param event The event.
+     * @param extras The extras of the event.
+     */
+    public void onConnectionEvent(IInCallService service, String callId, String event,
+            Bundle extras) {
+        enqueue(service, new Op(callId, event, extras));
+    }
+
+    /**
+     * Forgets the state of a call once it has been removed; if calls for it are still queued,
+     * they are sent, but its state is not remembered once they have been.
+     *
+     * @param callId The id of the call.
+     */
+    public void onCallRemoved(String callId) {
+        synchronized (mLock) {
+            mLastSent.remove(callId);
+            if (isQueuedOrSendingLocked(callId)) {
+                mRemovedCallIds.add(callId);
+            }
+        }
+    }
+
+    /**
+     * Discards any queued calls, once the service has disconnected.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mService = null;
+            mPending.clear();
+            mLastSent.clear();
+            mRemovedCallIds.clear();
+            mSlow = false;
+        }
+    }
+
+    /**
+     * Sends a call, or queues it if the service is slow or earlier calls are still waiting to be
+     * sent.
+     *
+     * @return {@code false} if the call was an update which was suppressed.
+     */
+    private boolean enqueue(IInCallService service, Op op) {
+        String dropped = null;
+        synchronized (mLock) {
+            if (op.mType == OP_UPDATE_CALL && ParcelableCallUtils.isUnchangedForInCallService(
+                    getNewestStateLocked(op.mCallId), op.mSnapshot)) {
+                mSuppressed++;
+                return false;
+            }
+            mService = service;
+            if (mSlow || mSendingOp != null || mDrainScheduled || !mPending.isEmpty()) {
+                dropped = queueLocked(op);
+                scheduleDrainLocked();
+                op = null;
+            } else {
+                mSendingOp = op;
+            }
+        }
+        if (dropped != null) {
+            mListener.onCallDropped(dropped);
+        }
+        if (op == null) {
+            return true;
+        }
+        send(service, op);
+        synchronized (mLock) {
+            if (!mPending.isEmpty()) {
+                scheduleDrainLocked();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The newest state of a call queued, being sent or sent, or {@code null}.
+     */
+    @GuardedBy("mLock")
+    private ParcelableCall getNewestStateLocked(String callId) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            Op op = mPending.get(i);
+            if (op.mType != OP_CONNECTION_EVENT && op.mCallId.equals(callId)) {
+                return op.mSnapshot;
+            }
+        }
+        if (mSendingOp != null && mSendingOp.mType != OP_CONNECTION_EVENT
+                && mSendingOp.mCallId.equals(callId)) {
+            return mSendingOp.mSnapshot;
+        }
+        return mLastSent.get(callId);
+    }
+
+    @GuardedBy("mLock")
+    private boolean isQueuedOrSendingLocked(String callId) {
+        if (mSendingOp != null && mSendingOp.mCallId.equals(callId)) {
+            return true;
+        }
+        for (Op op : mPending) {
+            if (op.mCallId.equals(callId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The id of the call whose queued call was dropped to make room, or {@code null}.
+     */
+    @GuardedBy("mLock")
+    private String queueLocked(Op op) {
+        mQueued++;
+        String dropped = null;
+        if (mPending.size() >= MAX_PENDING_UPDATES) {
+            int victim = findOldestConnectionEventLocked();
+            if (victim >= 0) {
+                dropped = mPending.remove(victim).mCallId;
+                mDropped++;
+                Log.w(this, "queueLocked: %s is too slow; dropped connection event for %s",
+                        mName, dropped);
+                collapseLocked(dropped);
+                maybeForgetRemovedCallLocked(dropped);
+            }
+        }
+        if (op.mType == OP_UPDATE_CALL) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                Op queued = mPending.get(i);
+                if (!queued.mCallId.equals(op.mCallId)) {
+                    continue;
+                }
+                if (queued.mType != OP_CONNECTION_EVENT) {
+                    // Replacing the call keeps its place in the queue, and keeps a queued add an
+                    // add.
+                    queued.mCall = op.mCall;
+                    queued.mSnapshot = op.mSnapshot;
+                    mCollapsed++;
+                    return dropped;
+                }
+                break;
+            }
+        }
+        mPending.add(op);
+        return dropped;
+    }
+
+    /**
+     * @return The index of the oldest queued connection event, or -1 if none is queued.
+     */
+    @GuardedBy("mLock")
+    private int findOldestConnectionEventLocked() {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).mType == OP_CONNECTION_EVENT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collapses the queued updates of a call which are no longer separated by a connection
+     * event into the add or update queued before them.
+     */
+    @GuardedBy("mLock")
+    private void collapseLocked(String callId) {
+        Op last = null;
+        for (Iterator<Op> iterator = mPending.iterator(); iterator.hasNext(); ) {
+            Op op = iterator.next();
+            if (!op.mCallId.equals(callId)) {
+                continue;
+            }
+            if (op.mType == OP_CONNECTION_EVENT) {
+                last = null;
+            } else if (last != null && op.mType == OP_UPDATE_CALL) {
+                last.mCall = op.mCall;
+                last.mSnapshot = op.mSnapshot;
+                iterator.remove();
+                mCollapsed++;
+            } else {
+                last = op;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a removed call once nothing is left queued or being sent for it.
+     */
+    @GuardedBy("mLock")
+    private void maybeForgetRemovedCallLocked(String callId) {
+        if (mRemovedCallIds.contains(callId) && !isQueuedOrSendingLocked(callId)) {
+            mRemovedCallIds.remove(callId);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleDrainLocked() {
+        if (mSendingOp == null && !mDrainScheduled) {
+            mDrainScheduled = true;
+            mExecutor.execute(mDrainRunnable);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            IInCallService service;
+            Op op;
+            synchronized (mLock) {
+                if (mService == null || mPending.isEmpty()) {
+                    mDrainScheduled = false;
+                    return;
+                }
+                service = mService;
+                op = mPending.remove(0);
+                mSendingOp = op;
+            }
+            send(service, op);
+        }
+    }
+
+    /**
+     * Sends a call; {@code mSendingOp} must have been set to it.
+     */
+    private void send(IInCallService service, Op op) {
+        long startMillis = mClock.getAsLong();
+        boolean succeeded = false;
+        try {
+            switch (op.mType) {
+                case OP_ADD_CALL:
+                    service.addCall(op.mCall);
+                    break;
+                case OP_UPDATE_CALL:
+                    service.updateCall(op.mCall);
+                    break;
+                case OP_CONNECTION_EVENT:
+                    service.onConnectionEvent(op.mCallId, op.mEvent, op.mExtras);
+                    break;
+            }
+            succeeded = true;
+        } catch (RemoteException e) {
+            Log.w(this, "send: call did not send to %s: %s", mName, e);
+        }
+        long latencyMillis = mClock.getAsLong() - startMillis;
+        synchronized (mLock) {
+            mSendingOp = null;
+            mLatency.record(latencyMillis);
+            if (succeeded) {
+                mSent++;
+                if (op.mType != OP_CONNECTION_EVENT && !mRemovedCallIds.contains(op.mCallId)
+                        && mService != null) {
+                    mLastSent.put(op.mCallId, op.mSnapshot);
+                }
+            } else {
+                mFailed++;
+            }
+            maybeForgetRemovedCallLocked(op.mCallId);
+            if (!succeeded || latencyMillis >= SLOW_TRANSACTION_MILLIS) {
+                if (!mSlow) {
+                    mSlow = true;
+                    mSlowEpisodes++;
+                    Log.w(this, "send: %s is slow (%dmS); queueing further calls", mName,
+                            latencyMillis);
+                }
+            } else if (mSlow && mPending.isEmpty()) {
+                mSlow = false;
+                Log.i(this, "send: %s has caught up", mName);
+            }
+        }
+        if (!succeeded) {
+            mListener.onSendFailed(op.mCallId);
+        }
+    }
+
+    @VisibleForTesting
+    public boolean isSlow() {
+        synchronized (mLock) {
+            return mSlow;
+        }
+    }
+
+    @VisibleForTesting
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    @VisibleForTesting
+    public int getCollapsedCount() {
+        synchronized (mLock) {
+            return mCollapsed;
+        }
+    }
+
+    @VisibleForTesting
+    public int getDroppedCount() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    @VisibleForTesting
+    public int getSuppressedCount() {
+        synchronized (mLock) {
+            return mSuppressed;
+        }
+    }
+
+    /**
+     * @return The number of calls whose last state sent is remembered.
+     */
+    @VisibleForTesting
+    public int getTrackedCallCount() {
+        synchronized (mLock) {
+            return mLastSent.size() + mRemovedCallIds.size();
+        }
+    }
+
+    /**
+     * Dump the counters and send latency of the queue for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US,
+                    "%s: sent=%d, queued=%d, collapsed=%d, suppressed=%d, dropped=%d, "
+                            + "failed=%d, pending=%d, slow=%b, slowEpisodes=%d",
+                    mName, mSent, mQueued, mCollapsed, mSuppressed, mDropped, mFailed,
+                    mPending.size(), mSlow, mSlowEpisodes));
+            pw.increaseIndent();
+            pw.print("latency: ");
+            mLatency.dump(pw, "mS");
+            pw.println();
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -35,10 +35,26 @@ public class LoggedHandlerExecutor implements Executor {
 
     @Override
     public void execute(java.lang.Runnable command) {
-        mHandler.post(new Runnable(mSessionName, mLock) {
+        // The lock is taken here rather than by the Logging.Runnable so that waiting for it can be
+        // profiled.
+        mHandler.post(new Runnable(mSessionName, null) {
             @Override
             public void loggedRun() {
-                command.run();
+                if (mLock == null) {
+                    command.run();
+                    return;
+                }
+                SyncRootProfiler profiler = SyncRootProfiler.getInstance();
+                SyncRootProfiler.Sample lockSample = profiler.begin(mLock, mSessionName);
+                try {
+                    profiler.waiting(lockSample);
+                    synchronized (mLock) {
+                        profiler.locked(lockSample);
+                        command.run();
+                    }
+                } finally {
+                    profiler.end(lockSample);
+                }
             }
         }.prepare());
     }
@@ -24,6 +24,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
+import android.telecom.GatewayInfo;
 import android.telecom.ParcelableCall;
 import android.telecom.ParcelableRttCall;
 import android.telecom.TelecomManager;
@@ -34,12 +35,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Utilities dealing with {@link ParcelableCall}.
  */
 public class ParcelableCallUtils {
-    private static final int CALL_STATE_OVERRIDE_NONE = -1;
+    static final int CALL_STATE_OVERRIDE_NONE = -1;
 
     /**
      * A list of extra keys which should be removed from a {@link ParcelableCall} when it is being
@@ -341,6 +343,154 @@ public class ParcelableCallUtils {
                 .createParcelableCall();
     }
 
+    /**
+     * Determines whether two {@link ParcelableCall}s sent to the same {@link InCallService} are
+     * indistinguishable from the point of view of that service, so that the second one does not
+     * need to be sent.  Comparison is done field by field.  Any update which carries a new video
+     * provider or RTT call is never considered identical since the recipient needs to act on
+     * those.
+     *
+     * @param lastSent The {@link ParcelableCall} last sent to the {@link InCallService}.
+     * @param update The {@link ParcelableCall} about to be sent.
+     * @return {@code true} if the update is identical to what was last sent, {@code false}
+     *      otherwise.
+     */
+    public static boolean isUnchangedForInCallService(ParcelableCall lastSent,
+            ParcelableCall update) {
+        if (lastSent == null || update == null) {
+            return false;
+        }
+        if (update.isVideoCallProviderChanged() || update.getIsRttCallChanged()) {
+            return false;
+        }
+        return Objects.equals(lastSent.getId(), update.getId())
+                && lastSent.getState() == update.getState()
+                && lastSent.getCapabilities() == update.getCapabilities()
+                && lastSent.getProperties() == update.getProperties()
+                && lastSent.getSupportedAudioRoutes() == update.getSupportedAudioRoutes()
+                && lastSent.getConnectTimeMillis() == update.getConnectTimeMillis()
+                && lastSent.getCreationTimeMillis() == update.getCreationTimeMillis()
+                && lastSent.getHandlePresentation() == update.getHandlePresentation()
+                && lastSent.getCallerDisplayNamePresentation()
+                        == update.getCallerDisplayNamePresentation()
+                && lastSent.getVideoState() == update.getVideoState()
+                && lastSent.getCallDirection() == update.getCallDirection()
+                && lastSent.getCallerNumberVerificationStatus()
+                        == update.getCallerNumberVerificationStatus()
+                && Objects.equals(lastSent.getDisconnectCause(), update.getDisconnectCause())
+                && Objects.equals(lastSent.getCannedSmsResponses(),
+                        update.getCannedSmsResponses())
+                && Objects.equals(lastSent.getHandle(), update.getHandle())
+                && Objects.equals(lastSent.getCallerDisplayName(), update.getCallerDisplayName())
+                && areGatewayInfosEqual(lastSent.getGatewayInfo(), update.getGatewayInfo())
+                && Objects.equals(lastSent.getAccountHandle(), update.getAccountHandle())
+                && Objects.equals(lastSent.getParentCallId(), update.getParentCallId())
+                && Objects.equals(lastSent.getChildCallIds(), update.getChildCallIds())
+                && Objects.equals(lastSent.getStatusHints(), update.getStatusHints())
+                && Objects.equals(lastSent.getConferenceableCallIds(),
+                        update.getConferenceableCallIds())
+                && Objects.equals(lastSent.getContactDisplayName(),
+                        update.getContactDisplayName())
+                && Objects.equals(lastSent.getActiveChildCallId(), update.getActiveChildCallId())
+                && Objects.equals(lastSent.getContactPhotoUri(), update.getContactPhotoUri())
+                && areBundlesEqual(lastSent.getIntentExtras(), update.getIntentExtras())
+                && areBundlesEqual(lastSent.getExtras(), update.getExtras());
+    }
+
+    /**
+     * Copies a {@link ParcelableCall} which has been sent to an {@link InCallService}, so that it
+     * can later be passed as the {@code lastSent} argument of
+     * {@link #isUnchangedForInCallService}.  The extras and intent extras of a call sent to a
+     * system {@link InCallService} are the call's own bundles, which are changed in place, so
+     * they are deep copied; otherwise an update which only changes the extras would be compared
+     * against itself and suppressed.  The video provider and RTT call are not copied since they
+     * are not compared.
+     *
+     * @param sentCall The {@link ParcelableCall} sent.
+     * @return A copy of the fields of {@code sentCall} compared by
+     *      {@link #isUnchangedForInCallService}.
+     */
+    public static ParcelableCall copyForComparison(ParcelableCall sentCall) {
+        return new ParcelableCall.ParcelableCallBuilder()
+                .setId(sentCall.getId())
+                .setState(sentCall.getState())
+                .setDisconnectCause(sentCall.getDisconnectCause())
+                .setCannedSmsResponses(copyList(sentCall.getCannedSmsResponses()))
+                .setCapabilities(sentCall.getCapabilities())
+                .setProperties(sentCall.getProperties())
+                .setSupportedAudioRoutes(sentCall.getSupportedAudioRoutes())
+                .setConnectTimeMillis(sentCall.getConnectTimeMillis())
+                .setHandle(sentCall.getHandle())
+                .setHandlePresentation(sentCall.getHandlePresentation())
+                .setCallerDisplayName(sentCall.getCallerDisplayName())
+                .setCallerDisplayNamePresentation(sentCall.getCallerDisplayNamePresentation())
+                .setGatewayInfo(sentCall.getGatewayInfo())
+                .setAccountHandle(sentCall.getAccountHandle())
+                .setParentCallId(sentCall.getParentCallId())
+                .setChildCallIds(copyList(sentCall.getChildCallIds()))
+                .setStatusHints(sentCall.getStatusHints())
+                .setVideoState(sentCall.getVideoState())
+                .setConferenceableCallIds(copyList(sentCall.getConferenceableCallIds()))
+                .setIntentExtras(copyBundle(sentCall.getIntentExtras()))
+                .setExtras(copyBundle(sentCall.getExtras()))
+                .setCreationTimeMillis(sentCall.getCreationTimeMillis())
+                .setCallDirection(sentCall.getCallDirection())
+                .setCallerNumberVerificationStatus(sentCall.getCallerNumberVerificationStatus())
+                .setContactDisplayName(sentCall.getContactDisplayName())
+                .setActiveChildCallId(sentCall.getActiveChildCallId())
+                .setContactPhotoUri(sentCall.getContactPhotoUri())
+                .createParcelableCall();
+    }
+
+    private static <T> List<T> copyList(List<T> list) {
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    private static Bundle copyBundle(Bundle bundle) {
+        return bundle == null ? null : bundle.deepCopy();
+    }
+
+    private static boolean areGatewayInfosEqual(GatewayInfo a, GatewayInfo b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        return Objects.equals(a.getGatewayProviderPackageName(),
+                b.getGatewayProviderPackageName())
+                && Objects.equals(a.getGatewayAddress(), b.getGatewayAddress())
+                && Objects.equals(a.getOriginalAddress(), b.getOriginalAddress());
+    }
+
+    /**
+     * Compares two bundles key by key, recursing into nested bundles.  A {@code null} bundle is
+     * treated as equal to an empty one.
+     */
+    private static boolean areBundlesEqual(Bundle a, Bundle b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return (a == null || a.isEmpty()) && (b == null || b.isEmpty());
+        }
+        if (a.size() != b.size() || !a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            Object valueA = a.get(key);
+            Object valueB = b.get(key);
+            if (valueA instanceof Bundle && valueB instanceof Bundle) {
+                if (!areBundlesEqual((Bundle) valueA, (Bundle) valueB)) {
+                    return false;
+                }
+            } else if (!Objects.deepEquals(valueA, valueB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Sanitize the extras bundle passed in, removing keys which should not be sent to non-system
      * incallservice apps.
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.graphics.drawable.Icon;
+import android.telecom.Log;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Stores the icons of the {@link android.telecom.PhoneAccount}s registered with
+ * {@link PhoneAccountRegistrar}, each in its own file named by the SHA-256 hash of the icon as
+ * written by {@link Icon#writeToStream}, so identical icons are stored once.
+ * <p>
+ * The registrar refers to icons by key, and only loads them, decoding their bitmaps, when
+ * accounts are passed out of Telecom; the most recently loaded icons are cached.  Added icons are
+ * held in memory until they are written, by {@link #writeIcons}, before the registrar state which
+ * refers to them.  Once that state has been written, {@link #removeUnreferenced} deletes the icons
+ * which it no longer refers to.
+ */
+public class PhoneAccountIconStore {
+    @VisibleForTesting
+    public static final int CACHE_SIZE = 8;
+
+    private static final int KEY_LENGTH = 64;
+
+    private final File mDirectory;
+    private final Object mLock = new Object();
+    // The keys of the icons which have been written to files.
+    @GuardedBy("mLock")
+    private final Set<String> mStored = new ArraySet<>();
+    // Encoded icons which have not been written yet, by key.
+    @GuardedBy("mLock")
+    private final Map<String, byte[]> mPending = new ArrayMap<>();
+    // The sequence number of the latest add of an icon, by key, so that an icon added after a
+    // state was taken is not removed when that state is written.
+    @GuardedBy("mLock")
+    private final Map<String, Long> mAddedSequences = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mSequence;
+    // The keys of icon objects which have been added or loaded, so they are only encoded once.
+    @GuardedBy("mLock")
+    private final Map<Icon, String> mKeys = new WeakHashMap<>();
+    @GuardedBy("mLock")
+    private final LruCache<String, Icon> mCache = new LruCache<>(CACHE_SIZE);
+    @GuardedBy("mLock")
+    private int mIconsWritten;
+    @GuardedBy("mLock")
+    private long mBytesWritten;
+    @GuardedBy("mLock")
+    private int mIconsLoaded;
+    @GuardedBy("mLock")
+    private int mCacheHits;
+
+    /**
+     * @param directory The directory to store the icons in; created when the first icon is
+     *                  written.
+     */
+    public PhoneAccountIconStore(File directory) {
+        mDirectory = directory;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (isKey(name)) {
+                    mStored.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an icon to the store.
+     *
+     * @return The key of the icon.
+     * @throws IOException if the icon cannot be encoded.
+     */
+    public String add(Icon icon) throws IOException {
+        synchronized (mLock) {
+            String key = mKeys.get(icon);
+            if (key == null || !(mPending.containsKey(key) || mStored.contains(key))) {
+                byte[] data = encode(icon);
+                key = getKey(data);
+                mKeys.put(icon, key);
+                if (!mStored.contains(key)) {
+                    mPending.put(key, data);
+                }
+            }
+            mAddedSequences.put(key, ++mSequence);
+            return key;
+        }
+    }
+
+    /**
+     * @return The sequence number of the latest {@link #add}, to pass to
+     * {@link #removeUnreferenced} with the keys referred to by a state taken now.
+     */
+    public long getSequence() {
+        synchronized (mLock) {
+            return mSequence;
+        }
+    }
+
+    /**
+     * Measures an icon without adding it to the store, so that an icon which is then rejected
+     * is not held.
+     *
+     * @return The length of the icon as written by {@link Icon#writeToStream}.
+     * @throws IOException if the icon cannot be encoded.
+     */
+    public static long getEncodedLength(Icon icon) throws IOException {
+        CountingOutputStream stream = new CountingOutputStream();
+        icon.writeToStream(stream);
+        return stream.mCount;
+    }
+
+    /**
+     * Loads an icon.
+     *
+     * @return The icon, or {@code null} if the store does not hold it or it cannot be read.
+     */
+    public Icon get(String key) {
+        byte[] data;
+        synchronized (mLock) {
+            Icon icon = mCache.get(key);
+            if (icon != null) {
+                mCacheHits++;
+                return icon;
+            }
+            data = mPending.get(key);
+        }
+        try {
+            if (data == null) {
+                data = new AtomicFile(getFile(key)).readFully();
+            }
+            Icon icon = Icon.createFromStream(new ByteArrayInputStream(data));
+            if (icon == null) {
+                return null;
+            }
+            synchronized (mLock) {
+                mIconsLoaded++;
+                mCache.put(key, icon);
+                mKeys.put(icon, key);
+            }
+            return icon;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(this, "Could not load icon %s: %s", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the added icons among those referred to by a state which is about to be written.
+     * Called on the thread which writes the state.
+     *
+     * @throws IOException if an icon cannot be written, in which case the state must not be
+     * written either.
+     */
+    public void writeIcons(Collection<String> keys) throws IOException {
+        for (String key : keys) {
+            byte[] data;
+            synchronized (mLock) {
+                data = mPending.get(key);
+            }
+            if (data == null) {
+                continue;
+            }
+            mDirectory.mkdirs();
+            AtomicFile file = new AtomicFile(getFile(key));
+            FileOutputStream stream = null;
+            try {
+                stream = file.startWrite();
+                stream.write(data);
+                file.finishWrite(stream);
+            } catch (IOException e) {
+                file.failWrite(stream);
+                throw e;
+            }
+            synchronized (mLock) {
+                mPending.remove(key);
+                mStored.add(key);
+                mIconsWritten++;
+                mBytesWritten += data.length;
+            }
+        }
+    }
+
+    /**
+     * Removes the icons which are not referred to by a state which has been written, other than
+     * those added since the state was taken.  Called on the thread which writes the state.
+     *
+     * @param keys The keys referred to by the state.
+     * @param sequence The value of {@link #getSequence} when the state was taken.
+     */
+    public void removeUnreferenced(Collection<String> keys, long sequence) {
+        List<String> unreferenced = new ArrayList<>();
+        synchronized (mLock) {
+            for (String key : mStored) {
+                if (!keys.contains(key) && !isAddedSince(key, sequence)) {
+                    unreferenced.add(key);
+                }
+            }
+            mStored.removeAll(unreferenced);
+            mPending.keySet().removeIf(key -> !keys.contains(key) && !isAddedSince(key, sequence));
+            mAddedSequences.values().removeIf(added -> added <= sequence);
+        }
+        for (String key : unreferenced) {
+            new AtomicFile(getFile(key)).delete();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean isAddedSince(String key, long sequence) {
+        Long added = mAddedSequences.get(key);
+        return added != null && added > sequence;
+    }
+
+    /**
+     * @return The number of icons held, written or not.
+     */
+    @VisibleForTesting
+    public int getCount() {
+        synchronized (mLock) {
+            return mStored.size() + mPending.size();
+        }
+    }
+
+    /**
+     * @return The total length of the icons written.
+     */
+    @VisibleForTesting
+    public long getBytesWritten() {
+        synchronized (mLock) {
+            return mBytesWritten;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US,
+                    "icons: stored=%d, pending=%d, cached=%d, written=%d (%d bytes), loaded=%d, "
+                            + "cacheHits=%d", mStored.size(), mPending.size(), mCache.size(),
+                    mIconsWritten, mBytesWritten, mIconsLoaded, mCacheHits));
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    /**
+     * Counts the bytes written to it, and discards them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private static byte[] encode(Icon icon) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        icon.writeToStream(stream);
+        return stream.toByteArray();
+    }
+
+    private static String getKey(byte[] data) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder key = new StringBuilder(KEY_LENGTH);
+        for (byte b : digest) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static boolean isKey(String name) {
+        if (name.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index over the registered {@link PhoneAccount}s of a
+ * {@link PhoneAccountRegistrar.State}.  Accounts are indexed by {@link PhoneAccountHandle}, with
+ * secondary indexes by user, package, capability bit and URI scheme.
+ * <p>
+ * Every secondary index keeps the accounts in the same relative order as the list it was built
+ * from, so that filtering a secondary index yields the same ordering as filtering the sorted
+ * {@link PhoneAccountRegistrar.State#accounts} list.  An index is tied to a specific version of
+ * the account list; {@link #isCurrent(List, int)} is used to tell when it must be rebuilt.
+ */
+@VisibleForTesting
+public class PhoneAccountIndex {
+    private static final int NUM_CAPABILITY_BITS = Integer.SIZE;
+
+    private final List<PhoneAccount> mSource;
+    private final int mVersion;
+    private final List<PhoneAccount> mAccounts;
+    private final Map<PhoneAccountHandle, PhoneAccount> mByHandle;
+    private final Map<UserHandle, List<PhoneAccount>> mByUser = new ArrayMap<>();
+    private final Map<String, List<PhoneAccount>> mByPackage = new ArrayMap<>();
+    private final Map<String, List<PhoneAccount>> mByUriScheme = new ArrayMap<>();
+    private final List<PhoneAccount>[] mByCapabilityBit;
+
+    /**
+     * Builds a new index over the given account list.
+     *
+     * @param accounts The account list to index.
+     * @param version The version of the account list at the time the index is built.  This must
+     *                be read <em>before</em> the list is iterated.
+     */
+    @SuppressWarnings("unchecked")
+    public PhoneAccountIndex(List<PhoneAccount> accounts, int version) {
+        mSource = accounts;
+        mVersion = version;
+        mAccounts = Collections.unmodifiableList(new ArrayList<>(accounts));
+        mByHandle = new ArrayMap<>(mAccounts.size());
+        mByCapabilityBit = new List[NUM_CAPABILITY_BITS];
+        for (PhoneAccount account : mAccounts) {
+            PhoneAccountHandle handle = account.getAccountHandle();
+            // Keep the first occurrence, matching a linear scan of the list.
+            mByHandle.putIfAbsent(handle, account);
+            addTo(mByUser, handle.getUserHandle(), account);
+            addTo(mByPackage, handle.getComponentName().getPackageName(), account);
+            List<String> schemes = account.getSupportedUriSchemes();
+            if (schemes != null) {
+                for (String scheme : schemes) {
+                    if (scheme != null) {
+                        List<PhoneAccount> bucket = mByUriScheme.get(scheme);
+                        // Accounts which declare the same scheme twice are only indexed once.
+                        if (bucket == null || bucket.get(bucket.size() - 1) != account) {
+                            addTo(mByUriScheme, scheme, account);
+                        }
+                    }
+                }
+            }
+            int capabilities = account.getCapabilities();
+            for (int bit = 0; bit < NUM_CAPABILITY_BITS; bit++) {
+                if ((capabilities & (1 << bit)) != 0) {
+                    if (mByCapabilityBit[bit] == null) {
+                        mByCapabilityBit[bit] = new ArrayList<>();
+                    }
+                    mByCapabilityBit[bit].add(account);
+                }
+            }
+        }
+    }
+
+    private static <K> void addTo(Map<K, List<PhoneAccount>> index, K key,
+            PhoneAccount account) {
+        List<PhoneAccount> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            index.put(key, bucket);
+        }
+        bucket.add(account);
+    }
+
+    /**
+     * @return {@code true} if this index was built from the given list at the given version.
+     */
+    public boolean isCurrent(List<PhoneAccount> accounts, int version) {
+        return mSource == accounts && mVersion == version;
+    }
+
+    /**
+     * @return The account registered with the given handle, or {@code null} if there is none.
+     */
+    public PhoneAccount get(PhoneAccountHandle handle) {
+        return mByHandle.get(handle);
+    }
+
+    /**
+     * @return All indexed accounts, in order.
+     */
+    public List<PhoneAccount> getAll() {
+        return mAccounts;
+    }
+
+    public List<PhoneAccount> getForUser(UserHandle userHandle) {
+        return nonNull(mByUser.get(userHandle));
+    }
+
+    public List<PhoneAccount> getForPackage(String packageName) {
+        return nonNull(mByPackage.get(packageName));
+    }
+
+    public List<PhoneAccount> getForUriScheme(String uriScheme) {
+        return nonNull(mByUriScheme.get(uriScheme));
+    }
+
+    /**
+     * Returns the smallest indexed list which is guaranteed to contain every account matching
+     * all of the given constraints.  The caller is still responsible for applying each
+     * constraint to the returned accounts.
+     *
+     * @param capabilities Capabilities which the account must have.  Ignored if 0.
+     * @param uriScheme URI scheme the account must support.  Ignored if {@code null}.
+     * @param packageName Package the account must belong to.  Ignored if {@code null}.
+     * @return The candidate accounts, in order.
+     */
+    public List<PhoneAccount> getCandidates(int capabilities, String uriScheme,
+            String packageName) {
+        List<PhoneAccount> candidates = mAccounts;
+        if (packageName != null) {
+            candidates = smallest(candidates, getForPackage(packageName));
+        }
+        if (uriScheme != null) {
+            candidates = smallest(candidates, getForUriScheme(uriScheme));
+        }
+        for (int bit = 0; bit < NUM_CAPABILITY_BITS && capabilities != 0; bit++) {
+            if ((capabilities & (1 << bit)) != 0) {
+                candidates = smallest(candidates, nonNull(mByCapabilityBit[bit]));
+            }
+        }
+        return candidates;
+    }
+
+    private static List<PhoneAccount> smallest(List<PhoneAccount> a, List<PhoneAccount> b) {
+        return b.size() < a.size() ? b : a;
+    }
+
+    private static List<PhoneAccount> nonNull(List<PhoneAccount> list) {
+        return list == null ? Collections.emptyList() : list;
+    }
+}
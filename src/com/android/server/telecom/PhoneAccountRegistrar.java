@@ -34,7 +34,8 @@ import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.UserHandle;
@@ -54,15 +55,22 @@ import android.text.TextUtils;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.EventLog;
+import android.util.Pair;
 import android.util.Xml;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.XmlUtils;
-import com.android.modules.utils.ModifiedUtf8;
 import com.android.server.telecom.flags.Flags;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarDefaultAccount;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarExtra;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarPhoneAccount;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarPhoneAccountHandle;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarState;
+import com.google.protobuf.nano.MessageNano;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -79,6 +87,8 @@ import java.lang.Integer;
 import java.lang.SecurityException;
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -90,6 +100,10 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 /**
@@ -156,11 +170,59 @@ public class PhoneAccountRegistrar {
         }
     };
 
+    /**
+     * Invalidates cached {@link ConnectionService} resolutions for a package whenever it is
+     * added, removed, changed (which includes component enable/disable) or fully removed.
+     */
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri uri = intent.getData();
+            invalidateResolveComponentCache(uri == null ? null : uri.getSchemeSpecificPart());
+        }
+    };
+
+    /**
+     * Receiver which writes any pending change to the state before the device shuts down or a
+     * user is stopped.
+     */
+    private final BroadcastReceiver mFlushReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("PARbR.fR");
+            try {
+                Log.i(PhoneAccountRegistrar.this, "Flushing state writes on %s",
+                        intent.getAction());
+                flushWrites();
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
     public static final String FILE_NAME = "phone-account-registrar-state.xml";
+    // The state is written in binary form to a file named after the XML file, with this suffix
+    // in place of ".xml".  An XML file found without a binary one is migrated when it is read.
+    @VisibleForTesting
+    public static final String BINARY_FILE_SUFFIX = ".pb";
+    // The icons of the registered accounts are stored in a directory named after the XML file,
+    // with this suffix in place of ".xml"; see PhoneAccountIconStore.
+    @VisibleForTesting
+    public static final String ICON_DIRECTORY_SUFFIX = "-icons";
     public static final String ICON_ERROR_MSG =
             "Icon cannot be written to memory. Try compressing or downsizing";
     @VisibleForTesting
     public static final int EXPECTED_STATE_VERSION = 9;
+    private static final ComponentName PSTN_COMPONENT_NAME = new ComponentName(
+            "com.android.phone", "com.android.services.telephony.TelephonyConnectionService");
+    private static final ComponentName SIP_COMPONENT_NAME = new ComponentName(
+            "com.android.phone", "com.android.services.telephony.sip.SipConnectionService");
+    /**
+     * How long a write of the state is deferred after the change which requested it, so that
+     * the changes made in the meantime are written with it.
+     */
+    @VisibleForTesting
+    public static final long WRITE_DELAY_MILLIS = 100;
     public static final int MAX_PHONE_ACCOUNT_REGISTRATIONS = 10;
     public static final int MAX_PHONE_ACCOUNT_EXTRAS_KEY_PAIR_LIMIT = 100;
     public static final int MAX_PHONE_ACCOUNT_FIELD_CHAR_LIMIT = 256;
@@ -171,6 +233,20 @@ public class PhoneAccountRegistrar {
 
     private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
     private final AtomicFile mAtomicFile;
+    private final AtomicFile mXmlAtomicFile;
+    private final PhoneAccountIconStore mIconStore;
+    private final AtomicInteger mStateWrites = new AtomicInteger();
+    private final AtomicLong mStateBytesWritten = new AtomicLong();
+    private final Object mWriteScheduleLock = new Object();
+    private final Runnable mWriteStateRunnable = this::writeScheduledState;
+    @GuardedBy("mWriteScheduleLock")
+    private Handler mWriterHandler;
+    @GuardedBy("mWriteScheduleLock")
+    private boolean mIsWriteScheduled;
+    // The number of calls to write(); each state written covers every request made before it
+    // was taken.
+    @GuardedBy("mWriteScheduleLock")
+    private int mWritesRequested;
     private final Context mContext;
     private final UserManager mUserManager;
     private final TelephonyManager mTelephonyManager;
@@ -179,11 +255,26 @@ public class PhoneAccountRegistrar {
     private final AppLabelProxy mAppLabelProxy;
     private final TelecomSystem.SyncRoot mLock;
     private State mState;
-    private UserHandle mCurrentUserHandle;
+    // Lazily (re)built index over mState.accounts; see getAccountIndex().
+    private volatile PhoneAccountIndex mAccountIndex;
+    // The latest snapshot of the accounts for lock-free reads; see getSnapshot().  Replaced,
+    // with the Telecom lock held, by publishSnapshot().
+    private volatile PhoneAccountSnapshot mSnapshot;
+    private final AtomicInteger mSnapshotsTaken = new AtomicInteger();
+    // Cache of ConnectionService resolution results keyed by (component, user).
+    private final Map<Pair<ComponentName, UserHandle>, List<ResolveInfo>> mResolveComponentCache =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger mResolveComponentCacheGeneration = new AtomicInteger();
+    private final AtomicLong mResolveComponentCacheHits = new AtomicLong();
+    private final AtomicLong mResolveComponentCacheMisses = new AtomicLong();
+    private volatile UserHandle mCurrentUserHandle;
     private String mTestPhoneAccountPackageNameFilter;
     private interface PhoneAccountRegistrarWriteLock {}
     private final PhoneAccountRegistrarWriteLock mWriteLock =
             new PhoneAccountRegistrarWriteLock() {};
+    // The number of write requests covered by the state last written.
+    @GuardedBy("mWriteLock")
+    private int mWritesRequestedWritten;
     private final FeatureFlags mTelephonyFeatureFlags;
     private final com.android.server.telecom.flags.FeatureFlags mTelecomFeatureFlags;
 
@@ -202,7 +293,10 @@ public class PhoneAccountRegistrar {
             FeatureFlags telephonyFeatureFlags,
             com.android.server.telecom.flags.FeatureFlags telecomFeatureFlags) {
 
-        mAtomicFile = new AtomicFile(new File(context.getFilesDir(), fileName));
+        mAtomicFile = new AtomicFile(new File(context.getFilesDir(), getBinaryFileName(fileName)));
+        mXmlAtomicFile = new AtomicFile(new File(context.getFilesDir(), fileName));
+        mIconStore = new PhoneAccountIconStore(
+                new File(context.getFilesDir(), getIconDirectoryName(fileName)));
 
         mState = new State();
         mContext = context;
@@ -227,7 +321,24 @@ public class PhoneAccountRegistrar {
         intentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
         mContext.registerReceiver(mManagedProfileReceiver, intentFilter);
 
+        IntentFilter packageIntentFilter = new IntentFilter();
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
+        packageIntentFilter.addDataScheme("package");
+        packageIntentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiverAsUser(mPackageChangeReceiver, UserHandle.ALL,
+                packageIntentFilter, null, null);
+
+        IntentFilter flushIntentFilter = new IntentFilter(Intent.ACTION_SHUTDOWN);
+        flushIntentFilter.addAction(Intent.ACTION_USER_STOPPING);
+        flushIntentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiverAsUser(mFlushReceiver, UserHandle.ALL, flushIntentFilter, null,
+                null);
+
         read();
+        publishSnapshot();
     }
 
     /**
@@ -694,6 +805,25 @@ public class PhoneAccountRegistrar {
         }
         Log.d(this, "setCurrentUserHandle, %s", userHandle);
         mCurrentUserHandle = userHandle;
+        invalidateResolveComponentCache(null);
+    }
+
+    /**
+     * Drops cached {@link ConnectionService} resolutions.
+     *
+     * @param packageName The package whose resolutions should be dropped, or {@code null} to drop
+     *                    all of them.
+     */
+    @VisibleForTesting
+    public void invalidateResolveComponentCache(String packageName) {
+        mResolveComponentCacheGeneration.incrementAndGet();
+        if (packageName == null) {
+            mResolveComponentCache.clear();
+        } else {
+            mResolveComponentCache.keySet().removeIf(
+                    key -> packageName.equals(key.first.getPackageName()));
+        }
+        publishSnapshot();
     }
 
     /**
@@ -799,6 +929,27 @@ public class PhoneAccountRegistrar {
 
     private List<ResolveInfo> resolveComponent(ComponentName componentName,
             UserHandle userHandle) {
+        Pair<ComponentName, UserHandle> key = new Pair<>(componentName, userHandle);
+        List<ResolveInfo> cached = mResolveComponentCache.get(key);
+        if (cached != null) {
+            mResolveComponentCacheHits.incrementAndGet();
+            return cached;
+        }
+        mResolveComponentCacheMisses.incrementAndGet();
+        // Remember the generation so a result racing with an invalidation is not cached.
+        int generation = mResolveComponentCacheGeneration.get();
+        List<ResolveInfo> resolveInfos = queryConnectionService(componentName, userHandle);
+        // Only cache components which resolve; a package being installed later will not always
+        // be preceded by a broadcast we can see, so unresolvable results are re-queried.
+        if (resolveInfos != null && !resolveInfos.isEmpty()
+                && generation == mResolveComponentCacheGeneration.get()) {
+            mResolveComponentCache.put(key, Collections.unmodifiableList(resolveInfos));
+        }
+        return resolveInfos;
+    }
+
+    private List<ResolveInfo> queryConnectionService(ComponentName componentName,
+            UserHandle userHandle) {
         PackageManager pm = mContext.getPackageManager();
         Intent intent = new Intent(ConnectionService.SERVICE_INTERFACE);
         intent.setComponent(componentName);
@@ -1044,8 +1195,9 @@ public class PhoneAccountRegistrar {
         if (packageName == null) {
             return new ArrayList<>();
         }
-        List<PhoneAccount> accounts = new ArrayList<>(mState.accounts.size());
-        for (PhoneAccount m : mState.accounts) {
+        List<PhoneAccount> candidates = getAccountIndex().getForPackage(packageName);
+        List<PhoneAccount> accounts = new ArrayList<>(candidates.size());
+        for (PhoneAccount m : candidates) {
             PhoneAccountHandle handle = m.getAccountHandle();
             if (!packageName.equals(handle.getComponentName().getPackageName())) {
                 // Not the right package name; skip this one.
@@ -1107,30 +1259,36 @@ public class PhoneAccountRegistrar {
         if (account.getIcon() == null) {
             return;
         }
-        String text = "";
-        // convert the icon into a Base64 String
+        // The icon is only measured here; it is added to the store once the account is
+        // registered, so that the icon of a rejected registration is not held.
+        long length;
         try {
-            text = XmlSerialization.writeIconToBase64String(account.getIcon());
+            length = PhoneAccountIconStore.getEncodedLength(account.getIcon());
         } catch (IOException e) {
             EventLog.writeEvent(0x534e4554, "259064622", Binder.getCallingUid(),
                     "enforceIconSizeLimit");
             throw new IllegalArgumentException(ICON_ERROR_MSG);
         }
-        // enforce the max bytes check in com.android.modules.utils.FastDataOutput#writeUTF(string)
-        try {
-            final int len = (int) ModifiedUtf8.countBytes(text, false);
-            if (len > 65_535 /* MAX_UNSIGNED_SHORT */) {
-                EventLog.writeEvent(0x534e4554, "259064622", Binder.getCallingUid(),
-                        "enforceIconSizeLimit");
-                throw new IllegalArgumentException(ICON_ERROR_MSG);
-            }
-        } catch (IOException e) {
+        // Icons were written to XML as Base64 text, whose length was limited by
+        // com.android.modules.utils.FastDataOutput#writeUTF(string); the limit is kept.
+        if (getBase64EncodedLength(length) > 65_535 /* MAX_UNSIGNED_SHORT */) {
             EventLog.writeEvent(0x534e4554, "259064622", Binder.getCallingUid(),
                     "enforceIconSizeLimit");
             throw new IllegalArgumentException(ICON_ERROR_MSG);
         }
     }
 
+    /**
+     * @return The length of the {@link Base64#DEFAULT} encoding of data of a given length: padded,
+     * with a newline after every 76 characters and at the end.
+     */
+    private static long getBase64EncodedLength(long length) {
+        if (length <= 0) {
+            return 0;
+        }
+        return (length + 2) / 3 * 4 + (length - 1) / 57 + 1;
+    }
+
     /**
      * All {@link PhoneAccount} and{@link PhoneAccountHandle} String and Char-Sequence fields
      * should be restricted to character limit of MAX_PHONE_ACCOUNT_CHAR_LIMIT to prevent exceptions
@@ -1337,6 +1495,7 @@ public class PhoneAccountRegistrar {
                     .build();
         }
 
+        account = internIcon(account);
         mState.accounts.add(account);
         // Set defaults and replace based on the group Id.
         maybeReplaceOldAccount(account);
@@ -1394,9 +1553,11 @@ public class PhoneAccountRegistrar {
      */
     public void clearAccounts(String packageName, UserHandle userHandle) {
         boolean accountsRemoved = false;
-        Iterator<PhoneAccount> it = mState.accounts.iterator();
-        while (it.hasNext()) {
-            PhoneAccount phoneAccount = it.next();
+        PhoneAccountIndex index = getAccountIndex();
+        List<PhoneAccount> byPackage = index.getForPackage(packageName);
+        List<PhoneAccount> byUser = index.getForUser(userHandle);
+        List<PhoneAccount> candidates = byPackage.size() <= byUser.size() ? byPackage : byUser;
+        for (PhoneAccount phoneAccount : candidates) {
             PhoneAccountHandle handle = phoneAccount.getAccountHandle();
             if (Objects.equals(packageName, handle.getComponentName().getPackageName())
                     && Objects.equals(userHandle, handle.getUserHandle())) {
@@ -1651,12 +1812,54 @@ public class PhoneAccountRegistrar {
      * @return The corresponding phone account if one exists.
      */
     public PhoneAccount getPhoneAccountUnchecked(PhoneAccountHandle handle) {
-        for (PhoneAccount m : mState.accounts) {
-            if (Objects.equals(handle, m.getAccountHandle())) {
-                return m;
-            }
+        return getAccountIndex().get(handle);
+    }
+
+    /**
+     * @return An index over the current {@link State#accounts}, rebuilding it first if the
+     * accounts changed since it was last built.
+     */
+    @VisibleForTesting
+    public PhoneAccountIndex getAccountIndex() {
+        State state = mState;
+        // Read the version before building so that a concurrent change marks the result stale.
+        int version = state.getAccountsVersion();
+        PhoneAccountIndex index = mAccountIndex;
+        if (index == null || !index.isCurrent(state.accounts, version)) {
+            index = new PhoneAccountIndex(state.accounts, version);
+            mAccountIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return A snapshot of the accounts as of the last change, to answer account queries without
+     * the Telecom lock.  Only reads the published snapshot; it is built by
+     * {@link #publishSnapshot()}.
+     */
+    public PhoneAccountSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Builds and publishes a new snapshot of the accounts.  Called after every change which
+     * changes the results of the account queries: a change to the accounts or their enabled
+     * states, of current user or of the resolvable {@link ConnectionService}s.
+     * <p>
+     * Callers usually hold the Telecom lock, so this only copies the accounts; resolving their
+     * {@link ConnectionService}s, which may need the package manager, is left to the first query
+     * of the snapshot.
+     */
+    private void publishSnapshot() {
+        synchronized (mLock) {
+            mSnapshot = new PhoneAccountSnapshot(mState.accounts,
+                    // As in getPhoneAccounts, transactional accounts do not need a
+                    // ConnectionService.
+                    account -> hasTransactionalCallCapabilities(account)
+                            || !resolveComponent(account.getAccountHandle()).isEmpty(),
+                    mCurrentUserHandle, mTelephonyFeatureFlags.workProfileApiSplit());
+            mSnapshotsTaken.incrementAndGet();
         }
-        return null;
     }
 
     /**
@@ -1795,9 +1998,13 @@ public class PhoneAccountRegistrar {
             UserHandle userHandle,
             boolean crossUserAccess,
             boolean includeAll) {
-        List<PhoneAccount> accounts = new ArrayList<>(mState.accounts.size());
-        List<PhoneAccount> matchedAccounts = new ArrayList<>(mState.accounts.size());
-        for (PhoneAccount m : mState.accounts) {
+        // Only visit the accounts from the most selective index; every filter below is still
+        // applied so the result is the same as filtering the whole list.
+        List<PhoneAccount> candidates = getAccountIndex().getCandidates(capabilities, uriScheme,
+                packageName);
+        List<PhoneAccount> accounts = new ArrayList<>(candidates.size());
+        List<PhoneAccount> matchedAccounts = new ArrayList<>(candidates.size());
+        for (PhoneAccount m : candidates) {
             if (!(m.isEnabled() || includeDisabledAccounts)) {
                 // Do not include disabled accounts.
                 continue;
@@ -1915,7 +2122,115 @@ public class PhoneAccountRegistrar {
         /**
          * The complete list of {@code PhoneAccount}s known to the Telecom subsystem.
          */
-        public final List<PhoneAccount> accounts = new CopyOnWriteArrayList<>();
+        public final List<PhoneAccount> accounts = new VersionedAccountList();
+
+        /**
+         * The keys in the {@link PhoneAccountIconStore} of the icons of {@link #accounts}.  The
+         * registered accounts do not hold their icons, which are only loaded when needed; see
+         * {@link PhoneAccountRegistrar#loadIcon}.
+         */
+        public final Map<PhoneAccountHandle, String> iconKeys = new ConcurrentHashMap<>();
+
+        /**
+         * @return A number which changes every time {@link #accounts} is modified; used to tell
+         * when a {@link PhoneAccountIndex} built over the accounts is stale.
+         */
+        public int getAccountsVersion() {
+            return ((VersionedAccountList) accounts).mVersion.get();
+        }
+
+        /**
+         * A {@link CopyOnWriteArrayList} which bumps a version counter after every mutation.  The
+         * counter is bumped <em>after</em> the mutation so that an index built concurrently with
+         * a mutation is always detected as stale.
+         */
+        private static class VersionedAccountList extends CopyOnWriteArrayList<PhoneAccount> {
+            final AtomicInteger mVersion = new AtomicInteger();
+
+            private <T> T bump(T result) {
+                mVersion.incrementAndGet();
+                return result;
+            }
+
+            @Override
+            public boolean add(PhoneAccount account) {
+                return bump(super.add(account));
+            }
+
+            @Override
+            public void add(int index, PhoneAccount account) {
+                super.add(index, account);
+                bump(null);
+            }
+
+            @Override
+            public boolean addAll(Collection<? extends PhoneAccount> c) {
+                return bump(super.addAll(c));
+            }
+
+            @Override
+            public boolean addAll(int index, Collection<? extends PhoneAccount> c) {
+                return bump(super.addAll(index, c));
+            }
+
+            @Override
+            public boolean addIfAbsent(PhoneAccount account) {
+                return bump(super.addIfAbsent(account));
+            }
+
+            @Override
+            public int addAllAbsent(Collection<? extends PhoneAccount> c) {
+                return bump(super.addAllAbsent(c));
+            }
+
+            @Override
+            public PhoneAccount set(int index, PhoneAccount account) {
+                return bump(super.set(index, account));
+            }
+
+            @Override
+            public PhoneAccount remove(int index) {
+                return bump(super.remove(index));
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                return bump(super.remove(o));
+            }
+
+            @Override
+            public boolean removeAll(Collection<?> c) {
+                return bump(super.removeAll(c));
+            }
+
+            @Override
+            public boolean retainAll(Collection<?> c) {
+                return bump(super.retainAll(c));
+            }
+
+            @Override
+            public boolean removeIf(Predicate<? super PhoneAccount> filter) {
+                return bump(super.removeIf(filter));
+            }
+
+            @Override
+            public void replaceAll(UnaryOperator<PhoneAccount> operator) {
+                super.replaceAll(operator);
+                bump(null);
+            }
+
+            @Override
+            public void sort(Comparator<? super PhoneAccount> c) {
+                super.sort(c);
+                bump(null);
+            }
+
+            @Override
+            public void clear() {
+                super.clear();
+                bump(null);
+            }
+        }
 
         /**
          * The version number of the State data.
@@ -1969,6 +2284,17 @@ public class PhoneAccountRegistrar {
                         + SubscriptionManager.getDefaultVoiceSubscriptionId());
             }
             pw.println("simCallManager: " + getSimCallManager(mCurrentUserHandle));
+            pw.println("resolveComponentCache: size=" + mResolveComponentCache.size()
+                    + ", hits=" + mResolveComponentCacheHits.get()
+                    + ", misses=" + mResolveComponentCacheMisses.get());
+            pw.println("stateWrites: requested=" + getWritesRequested()
+                    + ", performed=" + mStateWrites.get()
+                    + ", bytes=" + mStateBytesWritten.get());
+            mIconStore.dump(pw);
+            PhoneAccountSnapshot snapshot = mSnapshot;
+            pw.println("snapshots: taken=" + mSnapshotsTaken.get()
+                    + (snapshot == null ? "" : ", current accounts="
+                            + snapshot.getAccountCount()));
             pw.println("phoneAccounts:");
             pw.increaseIndent();
             for (PhoneAccount phoneAccount : mState.accounts) {
@@ -2032,64 +2358,168 @@ public class PhoneAccountRegistrar {
     // State management
     //
 
-    private class AsyncXmlWriter extends AsyncTask<ByteArrayOutputStream, Void, Void> {
-        @Override
-        public Void doInBackground(ByteArrayOutputStream... args) {
-            final ByteArrayOutputStream buffer = args[0];
-            FileOutputStream fileOutput = null;
-            try {
-                synchronized (mWriteLock) {
-                    fileOutput = mAtomicFile.startWrite();
-                    buffer.writeTo(fileOutput);
-                    mAtomicFile.finishWrite(fileOutput);
-                }
-            } catch (IOException e) {
-                Log.e(this, e, "Writing state to XML file");
-                mAtomicFile.failWrite(fileOutput);
+    /**
+     * Requests a write of the state, which is written on the writer thread
+     * {@link #WRITE_DELAY_MILLIS} after the first request made since the last write, so the
+     * changes requested in the meantime, such as the many registrations made by telephony at boot
+     * or on a SIM change, are serialized and written once.  Only one write is in flight at a
+     * time.  The accounts are sorted right away, as they are read in the sorted order.
+     */
+    private void write() {
+        sortPhoneAccounts();
+        publishSnapshot();
+        synchronized (mWriteScheduleLock) {
+            mWritesRequested++;
+            if (mIsWriteScheduled) {
+                return;
             }
-            return null;
+            if (mWriterHandler == null) {
+                HandlerThread writerThread = new HandlerThread("PhoneAccountRegistrar.Writer");
+                writerThread.start();
+                mWriterHandler = new Handler(writerThread.getLooper());
+            }
+            mWriterHandler.postDelayed(mWriteStateRunnable, WRITE_DELAY_MILLIS);
+            mIsWriteScheduled = true;
         }
     }
 
-    private void write() {
-        try {
-            sortPhoneAccounts();
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            XmlSerializer serializer = Xml.resolveSerializer(os);
-            writeToXml(mState, serializer, mContext, mTelephonyFeatureFlags);
-            serializer.flush();
-            new AsyncXmlWriter().execute(os);
-        } catch (IOException e) {
-            Log.e(this, e, "Writing state to XML buffer");
+    /**
+     * Writes any change to the state which has not been written yet, before returning.  Used when
+     * the device shuts down or a user is stopped, when a deferred write might never happen.
+     */
+    @VisibleForTesting
+    public void flushWrites() {
+        int writesRequested;
+        synchronized (mWriteScheduleLock) {
+            if (mWriterHandler != null) {
+                mWriterHandler.removeCallbacks(mWriteStateRunnable);
+            }
+            mIsWriteScheduled = false;
+            writesRequested = mWritesRequested;
         }
+        synchronized (mWriteLock) {
+            if (mWritesRequestedWritten >= writesRequested) {
+                return;
+            }
+        }
+        writeState();
     }
 
-    private void read() {
-        final InputStream is;
-        try {
-            is = mAtomicFile.openRead();
-        } catch (FileNotFoundException ex) {
-            return;
+    private void writeScheduledState() {
+        synchronized (mWriteScheduleLock) {
+            mIsWriteScheduled = false;
+        }
+        writeState();
+    }
+
+    /**
+     * Serializes the current state and writes it, along with any new icons it refers to.  A
+     * state which is not newer than the one last written, as when a flush overtakes a scheduled
+     * write, is dropped.
+     */
+    private void writeState() {
+        final byte[] data;
+        final Set<String> iconKeys = new HashSet<>();
+        final long iconSequence;
+        final int writesRequested;
+        synchronized (mLock) {
+            synchronized (mWriteScheduleLock) {
+                writesRequested = mWritesRequested;
+            }
+            Set<PhoneAccountHandle> handles = new HashSet<>();
+            for (PhoneAccount account : mState.accounts) {
+                handles.add(account.getAccountHandle());
+                String iconKey = mState.iconKeys.get(account.getAccountHandle());
+                if (iconKey != null) {
+                    iconKeys.add(iconKey);
+                }
+            }
+            // Forget the icons of accounts which have been removed.
+            mState.iconKeys.keySet().retainAll(handles);
+            iconSequence = mIconStore.getSequence();
+            try {
+                data = writeToProto(mState, mContext, mTelephonyFeatureFlags);
+            } catch (IOException e) {
+                Log.e(this, e, "Writing state to buffer");
+                return;
+            }
+        }
+
+        FileOutputStream fileOutput = null;
+        synchronized (mWriteLock) {
+            if (writesRequested <= mWritesRequestedWritten) {
+                return;
+            }
+            try {
+                // Write any new icons first, so that the state never refers to a missing one.
+                mIconStore.writeIcons(iconKeys);
+                fileOutput = mAtomicFile.startWrite();
+                fileOutput.write(data);
+                mAtomicFile.finishWrite(fileOutput);
+                mWritesRequestedWritten = writesRequested;
+                mStateWrites.incrementAndGet();
+                mStateBytesWritten.addAndGet(data.length);
+                mIconStore.removeUnreferenced(iconKeys, iconSequence);
+                // The binary state has been committed, so the XML state it was migrated from is
+                // no longer needed.
+                if (mXmlAtomicFile.exists()) {
+                    Log.i(this, "Deleting migrated XML state");
+                    mXmlAtomicFile.delete();
+                }
+            } catch (IOException e) {
+                Log.e(this, e, "Writing state to file");
+                if (fileOutput != null) {
+                    mAtomicFile.failWrite(fileOutput);
+                }
+            }
         }
+    }
 
+    private void read() {
         boolean versionChanged = false;
 
-        try {
-            XmlPullParser parser = Xml.resolvePullParser(is);
-            parser.nextTag();
-            mState = readFromXml(parser, mContext, mTelephonyFeatureFlags, mTelecomFeatureFlags);
-            migratePhoneAccountHandle(mState);
-            versionChanged = mState.versionNumber < EXPECTED_STATE_VERSION;
-
-        } catch (IOException | XmlPullParserException e) {
-            Log.e(this, e, "Reading state from XML file");
-            mState = new State();
-        } finally {
+        if (mAtomicFile.exists()) {
             try {
-                is.close();
+                mState = readFromProto(mAtomicFile.readFully(), mContext,
+                        mTelephonyFeatureFlags);
+                versionChanged = mState.versionNumber < EXPECTED_STATE_VERSION;
             } catch (IOException e) {
-                Log.e(this, e, "Closing InputStream");
+                Log.e(this, e, "Reading state from file");
+                mState = new State();
             }
+        } else {
+            final InputStream is;
+            try {
+                is = mXmlAtomicFile.openRead();
+            } catch (FileNotFoundException ex) {
+                return;
+            }
+
+            try {
+                XmlPullParser parser = Xml.resolvePullParser(is);
+                parser.nextTag();
+                mState = readFromXml(parser, mContext, mTelephonyFeatureFlags,
+                        mTelecomFeatureFlags);
+                migratePhoneAccountHandle(mState);
+                // Migrate the state to the binary format; the XML file is deleted once the
+                // binary state has been written.
+                Log.i(this, "Migrating XML state, version %d", mState.versionNumber);
+                versionChanged = true;
+            } catch (IOException | XmlPullParserException e) {
+                Log.e(this, e, "Reading state from XML file");
+                mState = new State();
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(this, e, "Closing InputStream");
+                }
+            }
+        }
+
+        // Move the icons of accounts read from XML, or held inline, into the icon store.
+        if (internIcons()) {
+            versionChanged = true;
         }
 
         // Verify all of the UserHandles.
@@ -2112,6 +2542,151 @@ public class PhoneAccountRegistrar {
         }
     }
 
+    /**
+     * Moves the icons of the accounts in the state into the icon store.
+     *
+     * @return {@code true} if any account held its icon.
+     */
+    private boolean internIcons() {
+        boolean changed = false;
+        List<PhoneAccount> accounts = new ArrayList<>(mState.accounts.size());
+        for (PhoneAccount account : mState.accounts) {
+            if (account.getIcon() != null) {
+                account = internIcon(account);
+                changed = true;
+            }
+            accounts.add(account);
+        }
+        if (changed) {
+            mState.accounts.clear();
+            mState.accounts.addAll(accounts);
+        }
+        return changed;
+    }
+
+    /**
+     * Adds the icon of an account to the icon store, and records its key.
+     *
+     * @return A copy of the account without its icon, or the account if it has none.
+     */
+    private PhoneAccount internIcon(PhoneAccount account) {
+        PhoneAccountHandle handle = account.getAccountHandle();
+        Icon icon = account.getIcon();
+        if (icon == null) {
+            mState.iconKeys.remove(handle);
+            return account;
+        }
+        try {
+            mState.iconKeys.put(handle, mIconStore.add(icon));
+        } catch (IOException e) {
+            Log.e(this, e, "Could not store the icon of %s", handle);
+            mState.iconKeys.remove(handle);
+        }
+        return account.toBuilder().setIcon(null).build();
+    }
+
+    /**
+     * Registered accounts do not hold their icons; this loads the icon of an account which is
+     * about to be passed out of Telecom.
+     *
+     * @return A copy of the account with its icon, or the account if it has no icon.
+     */
+    public PhoneAccount loadIcon(PhoneAccount account) {
+        if (account == null || account.getIcon() != null) {
+            return account;
+        }
+        String iconKey = mState.iconKeys.get(account.getAccountHandle());
+        if (iconKey == null) {
+            return account;
+        }
+        Icon icon = mIconStore.get(iconKey);
+        if (icon == null) {
+            return account;
+        }
+        PhoneAccount accountWithIcon = account.toBuilder().setIcon(icon).build();
+        accountWithIcon.setIsEnabled(account.isEnabled());
+        return accountWithIcon;
+    }
+
+    @VisibleForTesting
+    public PhoneAccountIconStore getIconStore() {
+        return mIconStore;
+    }
+
+    /**
+     * @return The number of writes of the state requested.
+     */
+    @VisibleForTesting
+    public int getWritesRequested() {
+        synchronized (mWriteScheduleLock) {
+            return mWritesRequested;
+        }
+    }
+
+    /**
+     * @return The number of writes of the state performed.
+     */
+    @VisibleForTesting
+    public int getWritesPerformed() {
+        return mStateWrites.get();
+    }
+
+    /**
+     * Stops the writer thread; changes which have not been written yet are written first.
+     */
+    @VisibleForTesting
+    public void cleanup() {
+        flushWrites();
+        synchronized (mWriteScheduleLock) {
+            if (mWriterHandler != null) {
+                mWriterHandler.getLooper().quitSafely();
+                mWriterHandler = null;
+            }
+        }
+    }
+
+    /**
+     * @return The total length of the states written.
+     */
+    @VisibleForTesting
+    public long getStateBytesWritten() {
+        return mStateBytesWritten.get();
+    }
+
+    /**
+     * Loads the icons of accounts which are about to be passed out of Telecom; see
+     * {@link #loadIcon}.
+     */
+    public List<PhoneAccount> loadIcons(List<PhoneAccount> accounts) {
+        List<PhoneAccount> accountsWithIcons = new ArrayList<>(accounts.size());
+        for (PhoneAccount account : accounts) {
+            accountsWithIcons.add(loadIcon(account));
+        }
+        return accountsWithIcons;
+    }
+
+    /**
+     * @return The name of the file the binary state is written to, given the name of the XML
+     * state file.
+     */
+    @VisibleForTesting
+    public static String getBinaryFileName(String fileName) {
+        String baseName = fileName.endsWith(".xml")
+                ? fileName.substring(0, fileName.length() - ".xml".length()) : fileName;
+        return baseName + BINARY_FILE_SUFFIX;
+    }
+
+    /**
+     * @return The name of the directory the account icons are stored in, given the name of the
+     * XML state file.
+     */
+    @VisibleForTesting
+    public static String getIconDirectoryName(String fileName) {
+        String baseName = fileName.endsWith(".xml")
+                ? fileName.substring(0, fileName.length() - ".xml".length()) : fileName;
+        return baseName + ICON_DIRECTORY_SUFFIX;
+    }
+
     private static void writeToXml(State state, XmlSerializer serializer, Context context,
             FeatureFlags telephonyFeatureFlags) throws IOException {
         sStateXml.writeToXml(state, serializer, context, telephonyFeatureFlags);
@@ -2170,6 +2745,322 @@ public class PhoneAccountRegistrar {
         }
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Binary serialization
+    //
+
+    /**
+     * Serializes the state in the binary format, which holds the same data as the XML format.
+     * Accounts refer to their icons by their key in the {@link PhoneAccountIconStore}; the icons
+     * of accounts which hold them are stored inline, as written by {@link Icon#writeToStream}.
+     */
+    @VisibleForTesting
+    public static byte[] writeToProto(State state, Context context,
+            FeatureFlags telephonyFeatureFlags) throws IOException {
+        UserManager userManager = context.getSystemService(UserManager.class);
+        RegistrarState proto = new RegistrarState();
+        proto.setVersion(EXPECTED_STATE_VERSION);
+
+        List<RegistrarDefaultAccount> defaultAccounts = new ArrayList<>();
+        for (DefaultPhoneAccountHandle defaultPhoneAccountHandle
+                : state.defaultOutgoingAccountHandles.values()) {
+            long serialNumber =
+                    userManager.getSerialNumberForUser(defaultPhoneAccountHandle.userHandle);
+            if (serialNumber == -1) {
+                continue;
+            }
+            RegistrarDefaultAccount defaultAccount = new RegistrarDefaultAccount();
+            defaultAccount.setUserSerialNumber(serialNumber);
+            defaultAccount.setGroupId(defaultPhoneAccountHandle.groupId != null
+                    ? defaultPhoneAccountHandle.groupId : "");
+            defaultAccount.accountHandle = writeHandleToProto(
+                    defaultPhoneAccountHandle.phoneAccountHandle, userManager);
+            defaultAccounts.add(defaultAccount);
+        }
+        proto.defaultOutgoing = defaultAccounts.toArray(new RegistrarDefaultAccount[0]);
+
+        List<RegistrarPhoneAccount> accounts = new ArrayList<>();
+        for (PhoneAccount account : state.accounts) {
+            accounts.add(writeAccountToProto(account,
+                    state.iconKeys.get(account.getAccountHandle()), userManager,
+                    telephonyFeatureFlags));
+        }
+        proto.accounts = accounts.toArray(new RegistrarPhoneAccount[0]);
+
+        return MessageNano.toByteArray(proto);
+    }
+
+    /**
+     * Reads state serialized by {@link #writeToProto}.
+     *
+     * @throws IOException if the data cannot be parsed.
+     */
+    @VisibleForTesting
+    public static State readFromProto(byte[] data, Context context,
+            FeatureFlags telephonyFeatureFlags) throws IOException {
+        RegistrarState proto = RegistrarState.parseFrom(data);
+        UserManager userManager = context.getSystemService(UserManager.class);
+        State s = new State();
+        // As in the XML, state written before versions were recorded is version 1.
+        s.versionNumber = proto.hasVersion() ? proto.getVersion() : 1;
+
+        for (RegistrarDefaultAccount defaultAccount : proto.defaultOutgoing) {
+            if (!defaultAccount.hasUserSerialNumber()) {
+                continue;
+            }
+            UserHandle userHandle =
+                    userManager.getUserForSerialNumber(defaultAccount.getUserSerialNumber());
+            PhoneAccountHandle accountHandle =
+                    readHandleFromProto(defaultAccount.accountHandle, userManager);
+            if (userHandle != null && accountHandle != null) {
+                s.defaultOutgoingAccountHandles.put(userHandle, new DefaultPhoneAccountHandle(
+                        userHandle, accountHandle, defaultAccount.getGroupId()));
+            }
+        }
+
+        // Add the accounts at once, as each change to the list copies it.
+        List<PhoneAccount> accounts = new ArrayList<>(proto.accounts.length);
+        for (RegistrarPhoneAccount account : proto.accounts) {
+            PhoneAccount phoneAccount =
+                    readAccountFromProto(account, s.versionNumber, context, userManager,
+                            telephonyFeatureFlags);
+            if (phoneAccount != null) {
+                accounts.add(phoneAccount);
+                if (account.hasIconKey()) {
+                    s.iconKeys.put(phoneAccount.getAccountHandle(), account.getIconKey());
+                }
+            }
+        }
+        s.accounts.addAll(accounts);
+        return s;
+    }
+
+    private static RegistrarPhoneAccount writeAccountToProto(PhoneAccount account,
+            String iconKey, UserManager userManager, FeatureFlags telephonyFeatureFlags)
+            throws IOException {
+        RegistrarPhoneAccount proto = new RegistrarPhoneAccount();
+        if (account.getAccountHandle() != null) {
+            proto.accountHandle = writeHandleToProto(account.getAccountHandle(), userManager);
+        }
+        if (account.getAddress() != null) {
+            proto.setAddress(account.getAddress().toString());
+        }
+        if (account.getSubscriptionAddress() != null) {
+            proto.setSubscriptionAddress(account.getSubscriptionAddress().toString());
+        }
+        proto.setCapabilities(account.getCapabilities());
+        if (account.getIcon() != null) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            account.getIcon().writeToStream(stream);
+            proto.setIcon(stream.toByteArray());
+        } else if (iconKey != null) {
+            proto.setIconKey(iconKey);
+        }
+        proto.setHighlightColor(account.getHighlightColor());
+        if (account.getLabel() != null) {
+            proto.setLabel(account.getLabel().toString());
+        }
+        if (account.getShortDescription() != null) {
+            proto.setShortDescription(account.getShortDescription().toString());
+        }
+        if (account.getSupportedUriSchemes() != null) {
+            proto.supportedUriSchemes = account.getSupportedUriSchemes().stream()
+                    .filter(Objects::nonNull)
+                    .toArray(String[]::new);
+        }
+
+        Bundle extras = account.getExtras();
+        if (extras != null) {
+            List<RegistrarExtra> extrasProto = new ArrayList<>();
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                if (value == null) {
+                    continue;
+                }
+                RegistrarExtra extra = new RegistrarExtra();
+                extra.setKey(key);
+                if (value instanceof String) {
+                    extra.setStringValue((String) value);
+                } else if (value instanceof Integer) {
+                    extra.setIntValue((Integer) value);
+                } else if (value instanceof Boolean) {
+                    extra.setBoolValue((Boolean) value);
+                } else {
+                    Log.w("PhoneAccountRegistrar",
+                            "PhoneAccounts support only string, integer and boolean extras.");
+                    continue;
+                }
+                extrasProto.add(extra);
+            }
+            proto.extras = extrasProto.toArray(new RegistrarExtra[0]);
+        }
+
+        proto.setEnabled(account.isEnabled());
+        proto.setSupportedAudioRoutes(account.getSupportedAudioRoutes());
+        if (account.hasSimultaneousCallingRestriction()
+                && telephonyFeatureFlags.simultaneousCallingIndications()) {
+            proto.setRestrictsSimultaneousCalling(true);
+            List<RegistrarPhoneAccountHandle> handles = new ArrayList<>();
+            for (PhoneAccountHandle handle : account.getSimultaneousCallingRestriction()) {
+                handles.add(writeHandleToProto(handle, userManager));
+            }
+            proto.simultaneousCallingRestriction =
+                    handles.toArray(new RegistrarPhoneAccountHandle[0]);
+        }
+        return proto;
+    }
+
+    /**
+     * Reads a {@link PhoneAccount} from its proto, applying the same upgrades as
+     * {@link #sPhoneAccountXml} for state written at an older {@code version}.  The upgrade of
+     * the icon package name does not apply, as the binary format stores icons whole.
+     */
+    private static PhoneAccount readAccountFromProto(RegistrarPhoneAccount proto, int version,
+            Context context, UserManager userManager, FeatureFlags telephonyFeatureFlags) {
+        PhoneAccountHandle accountHandle = readHandleFromProto(proto.accountHandle, userManager);
+        if (accountHandle == null) {
+            Log.w("PhoneAccountRegistrar", "Skipping PhoneAccount without a handle");
+            return null;
+        }
+
+        Icon icon = null;
+        if (proto.hasIcon()) {
+            try {
+                icon = Icon.createFromStream(new ByteArrayInputStream(proto.getIcon()));
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e("PhoneAccountRegistrar", e, "Could not read icon");
+            }
+        }
+
+        Bundle extras = null;
+        for (RegistrarExtra extra : proto.extras) {
+            if (extras == null) {
+                extras = new Bundle();
+            }
+            if (extra.hasStringValue()) {
+                extras.putString(extra.getKey(), extra.getStringValue());
+            } else if (extra.hasIntValue()) {
+                extras.putInt(extra.getKey(), extra.getIntValue());
+            } else if (extra.hasBoolValue()) {
+                extras.putBoolean(extra.getKey(), extra.getBoolValue());
+            }
+        }
+
+        List<String> supportedUriSchemes = Arrays.asList(proto.supportedUriSchemes);
+        boolean enabled = proto.getEnabled();
+        int supportedAudioRoutes = proto.getSupportedAudioRoutes();
+        ComponentName componentName = accountHandle.getComponentName();
+
+        // Upgrade older phone accounts to specify the supported URI schemes.
+        if (version < 2) {
+            supportedUriSchemes = new ArrayList<>();
+            if (componentName.equals(SIP_COMPONENT_NAME)) {
+                supportedUriSchemes.add(PhoneAccount.SCHEME_SIP);
+                if (useSipForPstnCalls(context)) {
+                    supportedUriSchemes.add(PhoneAccount.SCHEME_TEL);
+                }
+            } else {
+                supportedUriSchemes.add(PhoneAccount.SCHEME_TEL);
+                supportedUriSchemes.add(PhoneAccount.SCHEME_VOICEMAIL);
+            }
+        }
+        // Always enable all SIP accounts on upgrade to version 6.
+        if (version < 6 && componentName.equals(SIP_COMPONENT_NAME)) {
+            enabled = true;
+        }
+        // Always enable all PSTN accounts on upgrade to version 7.
+        if (version < 7 && componentName.equals(PSTN_COMPONENT_NAME)) {
+            enabled = true;
+        }
+        // Migrate the SIP account handle ids to use SIP username instead of SIP URI.
+        if (version < 8 && componentName.equals(SIP_COMPONENT_NAME)
+                && accountHandle.getId() != null) {
+            Uri accountUri = Uri.parse(accountHandle.getId());
+            if (PhoneAccount.SCHEME_SIP.equals(accountUri.getScheme())) {
+                accountHandle = new PhoneAccountHandle(componentName,
+                        accountUri.getSchemeSpecificPart(), accountHandle.getUserHandle());
+            }
+        }
+        // Set supported audio routes to all by default.
+        if (version < 9) {
+            supportedAudioRoutes = CallAudioState.ROUTE_ALL;
+        }
+
+        PhoneAccount.Builder builder = PhoneAccount.builder(accountHandle,
+                        proto.hasLabel() ? proto.getLabel() : null)
+                .setAddress(proto.hasAddress() ? Uri.parse(proto.getAddress()) : null)
+                .setSubscriptionAddress(proto.hasSubscriptionAddress()
+                        ? Uri.parse(proto.getSubscriptionAddress()) : null)
+                .setCapabilities(proto.getCapabilities())
+                .setSupportedAudioRoutes(supportedAudioRoutes)
+                .setShortDescription(
+                        proto.hasShortDescription() ? proto.getShortDescription() : null)
+                .setSupportedUriSchemes(supportedUriSchemes)
+                .setHighlightColor(proto.getHighlightColor())
+                .setExtras(extras)
+                .setIsEnabled(enabled);
+        if (icon != null) {
+            builder.setIcon(icon);
+        }
+        if (proto.getRestrictsSimultaneousCalling()
+                && telephonyFeatureFlags.simultaneousCallingIndications()) {
+            Set<PhoneAccountHandle> restriction = new HashSet<>();
+            for (RegistrarPhoneAccountHandle handle : proto.simultaneousCallingRestriction) {
+                PhoneAccountHandle phoneAccountHandle = readHandleFromProto(handle, userManager);
+                if (phoneAccountHandle != null) {
+                    restriction.add(phoneAccountHandle);
+                }
+            }
+            builder.setSimultaneousCallingRestriction(restriction);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Determines if the SIP call settings specify to use SIP for all calls, including PSTN
+     * calls.
+     *
+     * @param context The context.
+     * @return {@code True} if SIP should be used for all calls.
+     */
+    private static boolean useSipForPstnCalls(Context context) {
+        String option = Settings.System.getStringForUser(context.getContentResolver(),
+                Settings.System.SIP_CALL_OPTIONS, context.getUserId());
+        option = (option != null) ? option : Settings.System.SIP_ADDRESS_ONLY;
+        return option.equals(Settings.System.SIP_ALWAYS);
+    }
+
+    private static RegistrarPhoneAccountHandle writeHandleToProto(PhoneAccountHandle handle,
+            UserManager userManager) {
+        RegistrarPhoneAccountHandle proto = new RegistrarPhoneAccountHandle();
+        if (handle.getComponentName() != null) {
+            proto.setComponentName(handle.getComponentName().flattenToString());
+        }
+        if (handle.getId() != null) {
+            proto.setId(handle.getId());
+        }
+        if (handle.getUserHandle() != null) {
+            proto.setUserSerialNumber(userManager.getSerialNumberForUser(handle.getUserHandle()));
+        }
+        return proto;
+    }
+
+    private static PhoneAccountHandle readHandleFromProto(RegistrarPhoneAccountHandle proto,
+            UserManager userManager) {
+        if (proto == null || !proto.hasComponentName()) {
+            return null;
+        }
+        ComponentName componentName = ComponentName.unflattenFromString(proto.getComponentName());
+        if (componentName == null) {
+            return null;
+        }
+        UserHandle userHandle = proto.hasUserSerialNumber()
+                ? userManager.getUserForSerialNumber(proto.getUserSerialNumber()) : null;
+        return new PhoneAccountHandle(componentName, proto.hasId() ? proto.getId() : null,
+                userHandle);
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     //
     // XML serialization
@@ -2762,18 +3653,13 @@ public class PhoneAccountRegistrar {
                     }
                 }
 
-                ComponentName pstnComponentName = new ComponentName("com.android.phone",
-                        "com.android.services.telephony.TelephonyConnectionService");
-                ComponentName sipComponentName = new ComponentName("com.android.phone",
-                        "com.android.services.telephony.sip.SipConnectionService");
-
                 // Upgrade older phone accounts to specify the supported URI schemes.
                 if (version < 2) {
                     supportedUriSchemes = new ArrayList<>();
 
                     // Handle the SIP connection service.
                     // Check the system settings to see if it also should handle "tel" calls.
-                    if (accountHandle.getComponentName().equals(sipComponentName)) {
+                    if (accountHandle.getComponentName().equals(SIP_COMPONENT_NAME)) {
                         boolean useSipForPstn = useSipForPstnCalls(context);
                         supportedUriSchemes.add(PhoneAccount.SCHEME_SIP);
                         if (useSipForPstn) {
@@ -2794,19 +3680,19 @@ public class PhoneAccountRegistrar {
 
                 if (version < 6) {
                     // Always enable all SIP accounts on upgrade to version 6
-                    if (accountHandle.getComponentName().equals(sipComponentName)) {
+                    if (accountHandle.getComponentName().equals(SIP_COMPONENT_NAME)) {
                         enabled = true;
                     }
                 }
                 if (version < 7) {
                     // Always enabled all PSTN acocunts on upgrade to version 7
-                    if (accountHandle.getComponentName().equals(pstnComponentName)) {
+                    if (accountHandle.getComponentName().equals(PSTN_COMPONENT_NAME)) {
                         enabled = true;
                     }
                 }
                 if (version < 8) {
                     // Migrate the SIP account handle ids to use SIP username instead of SIP URI.
-                    if (accountHandle.getComponentName().equals(sipComponentName)) {
+                    if (accountHandle.getComponentName().equals(SIP_COMPONENT_NAME)) {
                         Uri accountUri = Uri.parse(accountHandle.getId());
                         if (accountUri.getScheme() != null &&
                             accountUri.getScheme().equals(PhoneAccount.SCHEME_SIP)) {
@@ -2849,20 +3735,6 @@ public class PhoneAccountRegistrar {
             }
             return null;
         }
-
-        /**
-         * Determines if the SIP call settings specify to use SIP for all calls, including PSTN
-         * calls.
-         *
-         * @param context The context.
-         * @return {@code True} if SIP should be used for all calls.
-         */
-        private boolean useSipForPstnCalls(Context context) {
-            String option = Settings.System.getStringForUser(context.getContentResolver(),
-                    Settings.System.SIP_CALL_OPTIONS, context.getUserId());
-            option = (option != null) ? option : Settings.System.SIP_ADDRESS_ONLY;
-            return option.equals(Settings.System.SIP_ALWAYS);
-        }
     };
 
     @VisibleForTesting
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link PhoneAccount}s registered with {@link PhoneAccountRegistrar} as of one version of
+ * its state, which answers the account queries of the Telecom binder APIs without the Telecom
+ * lock.
+ * <p>
+ * The registrar builds a new snapshot, with the Telecom lock held, every time the accounts, their
+ * enabled states, the current user or the resolvable {@link android.telecom.ConnectionService}s
+ * change, and publishes it for the binder threads; see {@link PhoneAccountRegistrar#getSnapshot()}.
+ * A snapshot is immutable: the accounts and their enabled states are copied when it is built,
+ * which is cheap enough to do with the lock held.  Which accounts can be resolved, and so which
+ * are visible to each user, is worked out on the first query, and the queries only filter those
+ * lists, as the registrar's own queries would.  Callers apply their own permission checks before
+ * querying.
+ */
+public class PhoneAccountSnapshot {
+    /**
+     * Decides whether an account's {@link android.telecom.ConnectionService} can be resolved.
+     */
+    public interface ConnectionServiceResolver {
+        boolean isResolvable(PhoneAccount account);
+    }
+
+    /**
+     * The accounts which passed the {@link ConnectionServiceResolver}, and the accounts visible
+     * to each user among them.
+     */
+    private static final class ResolvedAccounts {
+        // The accounts whose ConnectionService could be resolved, in the registrar's order.
+        final List<PhoneAccount> mAccounts;
+        // The accounts visible to each user which registered one.
+        final Map<UserHandle, List<PhoneAccount>> mVisibleAccounts = new HashMap<>();
+        // The accounts visible to any other user.
+        final List<PhoneAccount> mSharedAccounts;
+
+        ResolvedAccounts(List<PhoneAccount> accounts, List<PhoneAccount> sharedAccounts) {
+            mAccounts = Collections.unmodifiableList(accounts);
+            mSharedAccounts = Collections.unmodifiableList(sharedAccounts);
+        }
+    }
+
+    // Every registered account, in the registrar's order, whether it can be resolved or not.
+    private final List<PhoneAccount> mRegisteredAccounts;
+    private final ConnectionServiceResolver mResolver;
+    // The accounts which were enabled, as accounts are enabled and disabled in place.
+    private final Set<PhoneAccount> mEnabledAccounts =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private final UserHandle mCurrentUserHandle;
+    private final boolean mIsWorkProfileApiSplit;
+    // Resolved on the first query rather than by the registrar, which publishes snapshots with
+    // the Telecom lock held; see getResolvedAccounts().
+    private volatile ResolvedAccounts mResolvedAccounts;
+
+    /**
+     * @param accounts The registered accounts whose {@link android.telecom.ConnectionService} can
+     *                 be resolved, or which do not need one.
+     * @param currentUserHandle The current user, or {@code null} if not known yet.
+     * @param isWorkProfileApiSplit Whether queries for a user prefer the accounts the user
+     *                              registered, as with the registrar.
+     */
+    @VisibleForTesting
+    public PhoneAccountSnapshot(List<PhoneAccount> accounts, UserHandle currentUserHandle,
+            boolean isWorkProfileApiSplit) {
+        this(accounts, account -> true, currentUserHandle, isWorkProfileApiSplit);
+    }
+
+    /**
+     * @param accounts The registered accounts.
+     * @param resolver Decides, on the first query, which of the accounts can be used: those
+     *                 whose {@link android.telecom.ConnectionService} can be resolved, or which do
+     *                 not need one.
+     * @param currentUserHandle The current user, or {@code null} if not known yet.
+     * @param isWorkProfileApiSplit Whether queries for a user prefer the accounts the user
+     *                              registered, as with the registrar.
+     */
+    public PhoneAccountSnapshot(List<PhoneAccount> accounts, ConnectionServiceResolver resolver,
+            UserHandle currentUserHandle, boolean isWorkProfileApiSplit) {
+        mRegisteredAccounts = new ArrayList<>(accounts);
+        mResolver = resolver;
+        mCurrentUserHandle = currentUserHandle;
+        mIsWorkProfileApiSplit = isWorkProfileApiSplit;
+        for (PhoneAccount account : mRegisteredAccounts) {
+            if (account.isEnabled()) {
+                mEnabledAccounts.add(account);
+            }
+        }
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getCallCapablePhoneAccounts(String, boolean, UserHandle, boolean)
+     */
+    public List<PhoneAccountHandle> getCallCapablePhoneAccounts(String uriScheme,
+            boolean includeDisabledAccounts, UserHandle userHandle, boolean crossUserAccess) {
+        return getHandles(getPhoneAccounts(PhoneAccount.CAPABILITY_CALL_PROVIDER,
+                PhoneAccount.CAPABILITY_EMERGENCY_CALLS_ONLY, uriScheme, null /* packageName */,
+                includeDisabledAccounts, userHandle, crossUserAccess, false /* includeAll */));
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getSelfManagedPhoneAccounts(UserHandle)
+     */
+    public List<PhoneAccountHandle> getSelfManagedPhoneAccounts(UserHandle userHandle) {
+        return getHandles(getPhoneAccounts(PhoneAccount.CAPABILITY_SELF_MANAGED,
+                PhoneAccount.CAPABILITY_EMERGENCY_CALLS_ONLY, null /* uriScheme */,
+                null /* packageName */, false /* includeDisabledAccounts */, userHandle,
+                false /* crossUserAccess */, false /* includeAll */));
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getSelfManagedPhoneAccountsForPackage(String, UserHandle)
+     */
+    public List<PhoneAccountHandle> getSelfManagedPhoneAccountsForPackage(String packageName,
+            UserHandle userHandle) {
+        List<PhoneAccountHandle> handles = new ArrayList<>();
+        for (PhoneAccount account : getPhoneAccounts(0 /* capabilities */,
+                0 /* excludedCapabilities */, null /* uriScheme */, packageName,
+                false /* includeDisabledAccounts */, userHandle, false /* crossUserAccess */,
+                false /* includeAll */)) {
+            if (account.isSelfManaged()) {
+                handles.add(account.getAccountHandle());
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getAllPhoneAccountHandlesForPackage(UserHandle, String)
+     */
+    public List<PhoneAccountHandle> getAllPhoneAccountHandlesForPackage(UserHandle userHandle,
+            String packageName) {
+        return getHandles(getPhoneAccounts(0 /* capabilities */, 0 /* excludedCapabilities */,
+                null /* uriScheme */, packageName, true /* includeDisabledAccounts */, userHandle,
+                true /* crossUserAccess */, true /* includeAll */));
+    }
+
+    /**
+     * @return The accounts, enabled or not, registered by a package, as returned by
+     * {@link android.telecom.TelecomManager#getRegisteredPhoneAccounts()}.
+     */
+    public List<PhoneAccount> getRegisteredPhoneAccounts(String packageName,
+            UserHandle userHandle, boolean crossUserAccess) {
+        return getPhoneAccounts(0 /* capabilities */, 0 /* excludedCapabilities */,
+                null /* uriScheme */, packageName, true /* includeDisabledAccounts */, userHandle,
+                crossUserAccess, false /* includeAll */);
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getAllPhoneAccounts(UserHandle, boolean)
+     */
+    public List<PhoneAccount> getAllPhoneAccounts(UserHandle userHandle,
+            boolean crossUserAccess) {
+        // Like the registrar, this answers for the current user whichever user is given.
+        return getPhoneAccounts(0 /* capabilities */, 0 /* excludedCapabilities */,
+                null /* uriScheme */, null /* packageName */, false /* includeDisabledAccounts */,
+                mCurrentUserHandle, crossUserAccess, true /* includeAll */);
+    }
+
+    /**
+     * @see PhoneAccountRegistrar#getAllPhoneAccountHandles(UserHandle, boolean)
+     */
+    public List<PhoneAccountHandle> getAllPhoneAccountHandles(UserHandle userHandle,
+            boolean crossUserAccess) {
+        return getHandles(getPhoneAccounts(0 /* capabilities */, 0 /* excludedCapabilities */,
+                null /* uriScheme */, null /* packageName */, false /* includeDisabledAccounts */,
+                userHandle, crossUserAccess, true /* includeAll */));
+    }
+
+    /**
+     * @return The number of accounts in this snapshot.
+     */
+    public int getAccountCount() {
+        return getResolvedAccounts().mAccounts.size();
+    }
+
+    /**
+     * Resolves the accounts' {@link android.telecom.ConnectionService}s the first time the
+     * snapshot is queried, which happens on a binder thread without the Telecom lock.  Racing
+     * queries may each resolve the accounts; they come to the same result, and the resolutions
+     * are cached by the registrar.
+     */
+    private ResolvedAccounts getResolvedAccounts() {
+        ResolvedAccounts resolvedAccounts = mResolvedAccounts;
+        if (resolvedAccounts != null) {
+            return resolvedAccounts;
+        }
+        List<PhoneAccount> accounts = new ArrayList<>(mRegisteredAccounts.size());
+        List<PhoneAccount> sharedAccounts = new ArrayList<>();
+        Set<UserHandle> owners = new LinkedHashSet<>();
+        for (PhoneAccount account : mRegisteredAccounts) {
+            if (!mResolver.isResolvable(account)) {
+                continue;
+            }
+            accounts.add(account);
+            UserHandle owner = account.getAccountHandle().getUserHandle();
+            if (isVisibleToAllUsers(account)) {
+                sharedAccounts.add(account);
+            } else if (owner != null) {
+                owners.add(owner);
+            }
+        }
+        resolvedAccounts = new ResolvedAccounts(accounts, sharedAccounts);
+        for (UserHandle owner : owners) {
+            List<PhoneAccount> visibleAccounts = new ArrayList<>();
+            for (PhoneAccount account : accounts) {
+                if (isVisibleToAllUsers(account)
+                        || owner.equals(account.getAccountHandle().getUserHandle())) {
+                    visibleAccounts.add(account);
+                }
+            }
+            resolvedAccounts.mVisibleAccounts.put(owner,
+                    Collections.unmodifiableList(visibleAccounts));
+        }
+        mResolvedAccounts = resolvedAccounts;
+        return resolvedAccounts;
+    }
+
+    /**
+     * Filters the accounts as {@link PhoneAccountRegistrar#getPhoneAccounts} does.
+     */
+    private List<PhoneAccount> getPhoneAccounts(int capabilities, int excludedCapabilities,
+            String uriScheme, String packageName, boolean includeDisabledAccounts,
+            UserHandle userHandle, boolean crossUserAccess, boolean includeAll) {
+        ResolvedAccounts resolvedAccounts = getResolvedAccounts();
+        List<PhoneAccount> candidates = crossUserAccess
+                ? resolvedAccounts.mAccounts : getVisibleAccounts(resolvedAccounts, userHandle);
+        List<PhoneAccount> accounts = new ArrayList<>(candidates.size());
+        List<PhoneAccount> matchedAccounts = new ArrayList<>();
+        for (PhoneAccount account : candidates) {
+            if (!includeDisabledAccounts && !mEnabledAccounts.contains(account)) {
+                continue;
+            }
+            if ((account.getCapabilities() & excludedCapabilities) != 0) {
+                continue;
+            }
+            if (capabilities != 0 && !account.hasCapabilities(capabilities)) {
+                continue;
+            }
+            if (uriScheme != null && !account.supportsUriScheme(uriScheme)) {
+                continue;
+            }
+            PhoneAccountHandle handle = account.getAccountHandle();
+            if (packageName != null
+                    && !packageName.equals(handle.getComponentName().getPackageName())) {
+                continue;
+            }
+            if (userHandle != null && userHandle.equals(handle.getUserHandle())) {
+                matchedAccounts.add(account);
+            }
+            accounts.add(account);
+        }
+
+        // Return the accounts the user registered, if any. Otherwise, return any that's visible.
+        if (mIsWorkProfileApiSplit && !crossUserAccess && !includeAll
+                && !matchedAccounts.isEmpty()) {
+            return matchedAccounts;
+        }
+        return accounts;
+    }
+
+    /**
+     * @return The accounts visible to a user, without looking across profiles.
+     */
+    private static List<PhoneAccount> getVisibleAccounts(ResolvedAccounts resolvedAccounts,
+            UserHandle userHandle) {
+        if (userHandle == null) {
+            return Collections.emptyList();
+        }
+        List<PhoneAccount> visibleAccounts = resolvedAccounts.mVisibleAccounts.get(userHandle);
+        return visibleAccounts != null ? visibleAccounts : resolvedAccounts.mSharedAccounts;
+    }
+
+    /**
+     * @return Whether an account is visible to every user, as with
+     * {@code PhoneAccountRegistrar#isVisibleForUser}.
+     */
+    private boolean isVisibleToAllUsers(PhoneAccount account) {
+        if (account.hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER)) {
+            return true;
+        }
+        // While the current user is not known, accounts are visible to every user, so that
+        // emergency calls can be placed from the lock screen.
+        return mCurrentUserHandle == null && account.getAccountHandle().getUserHandle() != null;
+    }
+
+    private static List<PhoneAccountHandle> getHandles(List<PhoneAccount> accounts) {
+        List<PhoneAccountHandle> handles = new ArrayList<>(accounts.size());
+        for (PhoneAccount account : accounts) {
+            handles.add(account.getAccountHandle());
+        }
+        return handles;
+    }
+}
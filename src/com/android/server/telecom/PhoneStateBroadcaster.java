@@ -39,7 +39,8 @@ public final class PhoneStateBroadcaster extends CallsManagerListenerBase {
 
     private final CallsManager mCallsManager;
     private final TelephonyRegistryManager mRegistry;
-    private int mCurrentState = TelephonyManager.CALL_STATE_IDLE;
+    // Volatile so that getCallState() may be called without the Telecom lock.
+    private volatile int mCurrentState = TelephonyManager.CALL_STATE_IDLE;
 
     public PhoneStateBroadcaster(CallsManager callsManager) {
         mCallsManager = callsManager;
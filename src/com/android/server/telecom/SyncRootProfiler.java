@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.metrics.LogLinearHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * An opt-in profiler of contention on the {@link TelecomSystem.SyncRoot}.
+ * <p>
+ * Instrumented sites (the {@link TelecomServiceImpl} binder APIs, the
+ * {@link ConnectionServiceWrapper} adapter callbacks and the runnables posted by
+ * {@link LoggedHandlerExecutor}) record, per site, how long they waited to acquire the lock and
+ * how long they held it, in fixed-size histograms.  Java monitors cannot be timed from outside,
+ * so each site keeps its {@code synchronized} block and brackets it:
+ * <pre>
+ *     SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iIC");
+ *     try {
+ *         mLockProfiler.waiting(lockSample);
+ *         synchronized (mLock) {
+ *             mLockProfiler.locked(lockSample);
+ *             ...
+ *         }
+ *     } finally {
+ *         mLockProfiler.end(lockSample);
+ *     }
+ * </pre>
+ * {@link #end} is only called once the lock has been released, usually from a {@code finally}
+ * block which the site already has.
+ * <p>
+ * Profiling is off by default, in which case {@link #begin} returns {@code null} after reading a
+ * volatile flag and the other calls return immediately, so an instrumented site allocates
+ * nothing.  It is turned on and off and reset with {@code adb shell cmd telecom lock-stats},
+ * and the results are shown with {@code adb shell dumpsys telecom lock-stats}.  Re-entrant
+ * acquisitions by a thread which already holds the lock are not counted.
+ */
+public class SyncRootProfiler {
+    /**
+     * The timings of one instrumented call.  Only used by the thread making the call.
+     */
+    public static final class Sample {
+        private final String mSite;
+        private long mWaitStartNanos;
+        private long mLockedNanos;
+        private long mWaitNanos;
+        private long mHoldNanos;
+        private boolean mWasLocked;
+
+        private Sample(String site) {
+            mSite = site;
+        }
+    }
+
+    @VisibleForTesting
+    public static final int MAX_SITES = 128;
+    @VisibleForTesting
+    public static final String OTHER_SITE = "Other";
+    // Waits at least this long are counted as contended.
+    private static final long CONTENDED_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final class SiteStats {
+        // Both histograms are in uS.
+        final LogLinearHistogram mWait = new LogLinearHistogram();
+        final LogLinearHistogram mHold = new LogLinearHistogram();
+        long mTotalWaitNanos;
+        long mTotalHoldNanos;
+        int mContended;
+    }
+
+    private static SyncRootProfiler sInstance;
+
+    private final LongSupplier mNanoClock;
+    private volatile boolean mEnabled;
+    private final Object mStatsLock = new Object();
+    @GuardedBy("mStatsLock")
+    private final Map<String, SiteStats> mStats = new ArrayMap<>();
+    @GuardedBy("mStatsLock")
+    private long mStartedNanos;
+
+    public static synchronized SyncRootProfiler getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncRootProfiler(SystemClock::elapsedRealtimeNanos);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public SyncRootProfiler(LongSupplier nanoClock) {
+        mNanoClock = nanoClock;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns profiling on or off.  Statistics gathered so far are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (mStatsLock) {
+            if (enabled && !mEnabled) {
+                mStartedNanos = mNanoClock.getAsLong();
+            }
+            mEnabled = enabled;
+        }
+    }
+
+    /**
+     * Discards the statistics gathered so far.
+     */
+    public void reset() {
+        synchronized (mStatsLock) {
+            mStats.clear();
+            mStartedNanos = mNanoClock.getAsLong();
+        }
+    }
+
+    /**
+     * Starts profiling a call at an instrumented site.
+     *
+     * @param lock The lock which will be acquired.
+     * @param site The name of the site, such as the log session name.
+     * @return The sample to pass to the other calls, or {@code null} if profiling is off or the
+     * lock is already held by the calling thread.
+     */
+    public Sample begin(Object lock, String site) {
+        if (!mEnabled || lock == null || Thread.holdsLock(lock)) {
+            return null;
+        }
+        return new Sample(site);
+    }
+
+    /**
+     * Called immediately before acquiring the lock.  A site may acquire the lock more than once.
+     */
+    public void waiting(Sample sample) {
+        if (sample == null) {
+            return;
+        }
+        long now = mNanoClock.getAsLong();
+        if (sample.mLockedNanos != 0) {
+            // The lock was released since the previous acquisition.
+            sample.mHoldNanos += now - sample.mLockedNanos;
+            sample.mLockedNanos = 0;
+        }
+        sample.mWaitStartNanos = now;
+    }
+
+    /**
+     * Called as soon as the lock has been acquired.
+     */
+    public void locked(Sample sample) {
+        if (sample == null || sample.mWaitStartNanos == 0) {
+            return;
+        }
+        long now = mNanoClock.getAsLong();
+        sample.mWaitNanos += now - sample.mWaitStartNanos;
+        sample.mWaitStartNanos = 0;
+        sample.mLockedNanos = now;
+        sample.mWasLocked = true;
+    }
+
+    /**
+     * Called after leaving a synchronized block, for sites which do further work without the
+     * lock before they end.  Otherwise the lock is assumed to be held until the next
+     * {@link #waiting} or {@link #end} call.
+     */
+    public void unlocked(Sample sample) {
+        if (sample == null || sample.mLockedNanos == 0) {
+            return;
+        }
+        sample.mHoldNanos += mNanoClock.getAsLong() - sample.mLockedNanos;
+        sample.mLockedNanos = 0;
+    }
+
+    /**
+     * Called once the call has finished and released the lock, to record its timings.
+     */
+    public void end(Sample sample) {
+        if (sample == null || !sample.mWasLocked) {
+            return;
+        }
+        if (sample.mLockedNanos != 0) {
+            sample.mHoldNanos += mNanoClock.getAsLong() - sample.mLockedNanos;
+            sample.mLockedNanos = 0;
+        }
+        synchronized (mStatsLock) {
+            SiteStats stats = mStats.get(sample.mSite);
+            if (stats == null) {
+                String site = mStats.size() >= MAX_SITES - 1 ? OTHER_SITE : sample.mSite;
+                stats = mStats.get(site);
+                if (stats == null) {
+                    stats = new SiteStats();
+                    mStats.put(site, stats);
+                }
+            }
+            stats.mWait.record(TimeUnit.NANOSECONDS.toMicros(sample.mWaitNanos));
+            stats.mHold.record(TimeUnit.NANOSECONDS.toMicros(sample.mHoldNanos));
+            stats.mTotalWaitNanos += sample.mWaitNanos;
+            stats.mTotalHoldNanos += sample.mHoldNanos;
+            if (sample.mWaitNanos >= CONTENDED_NANOS) {
+                stats.mContended++;
+            }
+        }
+        sample.mWasLocked = false;
+    }
+
+    /**
+     * @return The number of calls recorded for a site.
+     */
+    @VisibleForTesting
+    public int getCount(String site) {
+        synchronized (mStatsLock) {
+            SiteStats stats = mStats.get(site);
+            return stats == null ? 0 : stats.mHold.getCount();
+        }
+    }
+
+    /**
+     * @return The total time a site has held the lock, in nS.
+     */
+    @VisibleForTesting
+    public long getTotalHoldNanos(String site) {
+        synchronized (mStatsLock) {
+            SiteStats stats = mStats.get(site);
+            return stats == null ? 0 : stats.mTotalHoldNanos;
+        }
+    }
+
+    /**
+     * @return The total time a site has waited for the lock, in nS.
+     */
+    @VisibleForTesting
+    public long getTotalWaitNanos(String site) {
+        synchronized (mStatsLock) {
+            SiteStats stats = mStats.get(site);
+            return stats == null ? 0 : stats.mTotalWaitNanos;
+        }
+    }
+
+    /**
+     * Dump the lock statistics for dumpsys, sites holding the lock longest first.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mStatsLock) {
+            long elapsedMillis = mStats.isEmpty() && !mEnabled ? 0
+                    : TimeUnit.NANOSECONDS.toMillis(mNanoClock.getAsLong() - mStartedNanos);
+            pw.println(String.format(Locale.US, "enabled=%b, elapsed=%dmS, sites=%d", mEnabled,
+                    elapsedMillis, mStats.size()));
+            List<Map.Entry<String, SiteStats>> entries = new ArrayList<>(mStats.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue().mTotalHoldNanos,
+                    a.getValue().mTotalHoldNanos));
+            for (Map.Entry<String, SiteStats> entry : entries) {
+                SiteStats stats = entry.getValue();
+                pw.println(String.format(Locale.US,
+                        "%s: count=%d, contended=%d, totalWait=%dmS, totalHold=%dmS",
+                        entry.getKey(), stats.mHold.getCount(), stats.mContended,
+                        TimeUnit.NANOSECONDS.toMillis(stats.mTotalWaitNanos),
+                        TimeUnit.NANOSECONDS.toMillis(stats.mTotalHoldNanos)));
+                pw.increaseIndent();
+                pw.print("wait: ");
+                stats.mWait.dump(pw, "uS");
+                pw.println();
+                pw.print("hold: ");
+                stats.mHold.dump(pw, "uS");
+                pw.println();
+                pw.decreaseIndent();
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.telecom.Log;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Caches the decisions of the permission checks {@link TelecomServiceImpl} makes of its callers,
+ * by check, calling uid and the package or other subject checked, so that a caller repeating the
+ * same API call does not cost the same PackageManager, AppOps and registrar queries each time.
+ * <p>
+ * Only the parts of a check which have no side effects are cached: app ops which must be noted
+ * are noted by the caller on every call, whatever the cached decision.  A check which fails by
+ * throwing a {@link SecurityException} is not cached, so the exception is always the one thrown
+ * by the check itself.
+ * <p>
+ * Every decision is dropped when a package is added, removed or changed, a permission of any
+ * uid changes, the default dialer changes, carrier config or the default subscription changes,
+ * or a user is removed.  Decisions which also depend on the {@link PhoneAccountRegistrar} are
+ * made within a scope, the registrar's current {@link PhoneAccountSnapshot}, and are only used
+ * while that scope is current.
+ */
+public class TelecomPermissionCache {
+    public static final int CHECK_CALLING_PACKAGE = 0;
+    public static final int CHECK_PRIVILEGED_DIALER = 1;
+    public static final int CHECK_READ_PHONE_STATE = 2;
+    public static final int CHECK_READ_PHONE_NUMBERS = 3;
+    public static final int CHECK_SIM_CALL_MANAGER = 4;
+    public static final int CHECK_REGISTERED_ENABLED = 5;
+    private static final String[] CHECK_NAMES = {
+            "enforceCallingPackage",
+            "isPrivilegedDialerCalling",
+            "canReadPhoneState",
+            "canReadPhoneNumbers",
+            "isCallerSimCallManager",
+            "enforcePhoneAccountIsRegisteredEnabled",
+    };
+
+    public static final int DENIED = 0;
+    public static final int ALLOWED = 1;
+
+    /**
+     * The most decisions held; once reached, every decision is dropped.
+     */
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 512;
+
+    private static final class Entry {
+        final int decision;
+        final Object scope;
+        final int generation;
+
+        Entry(int decision, Object scope, int generation) {
+            this.decision = decision;
+            this.scope = scope;
+            this.generation = generation;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // The decisions, keyed by the check, uid and subject.
+    private final Map<List<Object>, Entry> mEntries = new ConcurrentHashMap<>();
+    // Bumped by every invalidation, so that a decision being made at the time is not kept.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicIntegerArray mHits = new AtomicIntegerArray(CHECK_NAMES.length);
+    private final AtomicIntegerArray mMisses = new AtomicIntegerArray(CHECK_NAMES.length);
+    private final AtomicInteger mInvalidations = new AtomicInteger();
+    private volatile boolean mIsEnabled = true;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("TPC.oR");
+            try {
+                invalidate();
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+    private final ContentObserver mDefaultDialerObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+    private final PackageManager.OnPermissionsChangedListener mPermissionsChangedListener =
+            uid -> invalidate();
+
+    public TelecomPermissionCache(Context context) {
+        IntentFilter packageIntentFilter = new IntentFilter();
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageIntentFilter.addDataScheme("package");
+        packageIntentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageIntentFilter, null,
+                null);
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        intentFilter.addAction(SubscriptionManager.ACTION_DEFAULT_SUBSCRIPTION_CHANGED);
+        intentFilter.addAction(Intent.ACTION_USER_REMOVED);
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, intentFilter, null, null);
+
+        context.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.DIALER_DEFAULT_APPLICATION), false,
+                mDefaultDialerObserver, UserHandle.USER_ALL);
+
+        context.getPackageManager().addOnPermissionsChangeListener(mPermissionsChangedListener);
+    }
+
+    /**
+     * Returns the cached decision of a check, making it if there is none.
+     *
+     * @param check One of the {@code CHECK_} constants.
+     * @param uid The uid of the caller checked.
+     * @param subject The package or other subject checked, or {@code null}.
+     * @param scope The object the decision is only valid for, compared by identity, or
+     *              {@code null} if it is not scoped.
+     * @param decide Makes the decision, in the calling identity of the caller checked.  Must not
+     *               have side effects; a {@link SecurityException} it throws is passed on and
+     *               not cached.
+     * @return The decision.
+     */
+    public int get(int check, int uid, Object subject, Object scope, IntSupplier decide) {
+        if (!mIsEnabled) {
+            return decide.getAsInt();
+        }
+        List<Object> key = Arrays.asList(check, uid, subject);
+        int generation = mGeneration.get();
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.generation == generation && entry.scope == scope) {
+            mHits.incrementAndGet(check);
+            return entry.decision;
+        }
+        mMisses.incrementAndGet(check);
+        int decision = decide.getAsInt();
+        if (mEntries.size() >= MAX_ENTRIES) {
+            mEntries.clear();
+        }
+        mEntries.put(key, new Entry(decision, scope, generation));
+        return decision;
+    }
+
+    /**
+     * Like {@link #get}, for a check which either allows or denies.
+     */
+    public boolean isAllowed(int check, int uid, Object subject, Object scope,
+            BooleanSupplier decide) {
+        return get(check, uid, subject, scope,
+                () -> decide.getAsBoolean() ? ALLOWED : DENIED) == ALLOWED;
+    }
+
+    /**
+     * Drops every decision.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        mInvalidations.incrementAndGet();
+        mEntries.clear();
+    }
+
+    /**
+     * Enables or disables the cache; while disabled, every check is decided when it is made.
+     */
+    @VisibleForTesting
+    public void setEnabled(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+        invalidate();
+    }
+
+    @VisibleForTesting
+    public int getHits(int check) {
+        return mHits.get(check);
+    }
+
+    @VisibleForTesting
+    public int getMisses(int check) {
+        return mMisses.get(check);
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println(String.format(Locale.US, "enabled=%b, entries=%d, invalidations=%d",
+                mIsEnabled, mEntries.size(), mInvalidations.get()));
+        for (int check = 0; check < CHECK_NAMES.length; check++) {
+            int hits = mHits.get(check);
+            int total = hits + mMisses.get(check);
+            pw.println(String.format(Locale.US, "%s: hits=%d/%d (%.1f%%)", CHECK_NAMES[check],
+                    hits, total, total == 0 ? 0.0 : 100.0 * hits / total));
+        }
+    }
+}
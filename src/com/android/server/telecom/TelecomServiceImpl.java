@@ -146,7 +146,18 @@ public class TelecomServiceImpl {
             "Security exception thrown while placing an outgoing call.";
     private static final String TAG = "TelecomServiceImpl";
     private static final String TIME_LINE_ARG = "timeline";
+    private static final String LOCK_STATS_ARG = "lock-stats";
+    private static final String LOCK_STATS_ENABLE = "enable";
+    private static final String LOCK_STATS_DISABLE = "disable";
+    private static final String LOCK_STATS_RESET = "reset";
     private static final int DEFAULT_VIDEO_STATE = -1;
+    // The cached decision of canReadPhoneState for a caller which must have the app op noted.
+    private static final int READ_PHONE_STATE_NOTE_OP = 2;
+    // The cached facts canReadPhoneNumbers decides by, as flags.
+    private static final int PHONE_NUMBERS_TARGET_SDK_PRE_R = 1;
+    private static final int PHONE_NUMBERS_HOLDS_READ_PRIVILEGED_PHONE_STATE = 1 << 1;
+    private static final int PHONE_NUMBERS_HOLDS_READ_PHONE_NUMBERS = 1 << 2;
+    private static final int PHONE_NUMBERS_HOLDS_READ_SMS = 1 << 3;
     private static final String PERMISSION_HANDLE_CALL_INTENT =
             "android.permission.HANDLE_CALL_INTENT";
     private static final String ADD_CALL_ERR_MSG = "Call could not be created or found. "
@@ -158,6 +169,7 @@ public class TelecomServiceImpl {
     private final SubscriptionManagerAdapter mSubscriptionManagerAdapter;
     private final SettingsSecureAdapter mSettingsSecureAdapter;
     private final TelecomSystem.SyncRoot mLock;
+    private final SyncRootProfiler mLockProfiler = SyncRootProfiler.getInstance();
     private final TransactionalServiceRepository mTransactionalServiceRepository;
     private final BlockedNumbersManager mBlockedNumbersManager;
     private final FeatureFlags mFeatureFlags;
@@ -168,7 +180,9 @@ public class TelecomServiceImpl {
     private final Context mContext;
     private final AppOpsManager mAppOpsManager;
     private final PackageManager mPackageManager;
+    private final TelecomPermissionCache mPermissionCache;
     private final CallsManager mCallsManager;
+    private final TimingWheel mTimingWheel;
     private TransactionManager mTransactionManager;
     private final ITelecomService.Stub mBinderImpl = new ITelecomService.Stub() {
 
@@ -280,12 +294,15 @@ public class TelecomServiceImpl {
         @Override
         public PhoneAccountHandle getDefaultOutgoingPhoneAccount(String uriScheme,
                 String callingPackage, String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gDOPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_GETDEFAULTOUTGOINGPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.gDOPA", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     PhoneAccountHandle phoneAccountHandle = null;
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
@@ -313,18 +330,22 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public PhoneAccountHandle getUserSelectedOutgoingPhoneAccount(String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gUSOPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_GETUSERSELECTEDOUTGOINGPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
-            synchronized (mLock) {
-                try {
-                    Log.startSession("TSI.gUSOPA", Log.getPackageAbbreviation(callingPackage));
+            try {
+                Log.startSession("TSI.gUSOPA", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
+                synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!isDialerOrPrivileged(callingPackage, "getDefaultOutgoingPhoneAccount")) {
                         throw new SecurityException("Only the default dialer, or caller with "
                                 + "READ_PRIVILEGED_PHONE_STATE can call this method.");
@@ -333,24 +354,28 @@ public class TelecomServiceImpl {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     return mPhoneAccountRegistrar.getUserSelectedOutgoingPhoneAccount(
                             callingUserHandle);
-                } catch (Exception e) {
-                    Log.e(this, e, "getUserSelectedOutgoingPhoneAccount");
-                    throw e;
-                } finally {
-                    logEvent(event);
-                    Log.endSession();
                 }
+            } catch (Exception e) {
+                Log.e(this, e, "getUserSelectedOutgoingPhoneAccount");
+                throw e;
+            } finally {
+                logEvent(event);
+                mLockProfiler.end(lockSample);
+                Log.endSession();
             }
         }
 
         @Override
         public void setUserSelectedOutgoingPhoneAccount(PhoneAccountHandle accountHandle) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sUSOPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_SETUSERSELECTEDOUTGOINGPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.sUSOPA");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforceModifyPermission();
                     UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
@@ -369,6 +394,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -410,27 +436,25 @@ public class TelecomServiceImpl {
                     return ParceledListSlice.emptyList();
                 }
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    boolean crossUserAccess = (!mTelephonyFeatureFlags.workProfileApiSplit()
-                            || acrossProfiles) && (mTelephonyFeatureFlags.workProfileApiSplit()
-                            ? hasInAppCrossProfilePermission()
-                            : hasInAppCrossUserPermission());
-                    long token = Binder.clearCallingIdentity();
-                    try {
-                        return new ParceledListSlice<>(
-                                mPhoneAccountRegistrar.getCallCapablePhoneAccounts(null,
-                                        includeDisabledAccounts, callingUserHandle,
-                                        crossUserAccess));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getCallCapablePhoneAccounts");
-                        mAnomalyReporter.reportAnomaly(GET_CALL_CAPABLE_ACCOUNTS_ERROR_UUID,
-                                GET_CALL_CAPABLE_ACCOUNTS_ERROR_MSG);
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                boolean crossUserAccess = (!mTelephonyFeatureFlags.workProfileApiSplit()
+                        || acrossProfiles) && (mTelephonyFeatureFlags.workProfileApiSplit()
+                        ? hasInAppCrossProfilePermission()
+                        : hasInAppCrossUserPermission());
+                long token = Binder.clearCallingIdentity();
+                try {
+                    // Answered from the published snapshot, without taking the Telecom lock.
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getCallCapablePhoneAccounts(null, includeDisabledAccounts,
+                                    callingUserHandle, crossUserAccess));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getCallCapablePhoneAccounts");
+                    mAnomalyReporter.reportAnomaly(GET_CALL_CAPABLE_ACCOUNTS_ERROR_UUID,
+                            GET_CALL_CAPABLE_ACCOUNTS_ERROR_MSG);
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -450,20 +474,18 @@ public class TelecomServiceImpl {
                         "Requires READ_PHONE_STATE permission.")) {
                     throw new SecurityException("Requires READ_PHONE_STATE permission.");
                 }
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getSelfManagedPhoneAccounts(callingUserHandle));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getSelfManagedPhoneAccounts");
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getSelfManagedPhoneAccounts(callingUserHandle));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getSelfManagedPhoneAccounts");
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -489,22 +511,20 @@ public class TelecomServiceImpl {
                 if (!canReadMangeOwnCalls("Requires MANAGE_OWN_CALLS permission.")) {
                     throw new SecurityException("Requires MANAGE_OWN_CALLS permission.");
                 }
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getSelfManagedPhoneAccountsForPackage(callingPackage,
-                                        callingUserHandle));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e,
-                                "getSelfManagedPhoneAccountsForPackage");
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getSelfManagedPhoneAccountsForPackage(callingPackage,
+                                    callingUserHandle));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e,
+                            "getSelfManagedPhoneAccountsForPackage");
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -529,21 +549,19 @@ public class TelecomServiceImpl {
                     return ParceledListSlice.emptyList();
                 }
 
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getCallCapablePhoneAccounts(uriScheme, false,
-                                        callingUserHandle, false));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getPhoneAccountsSupportingScheme %s", uriScheme);
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getCallCapablePhoneAccounts(uriScheme, false, callingUserHandle,
+                                    false));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getPhoneAccountsSupportingScheme %s", uriScheme);
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -574,23 +592,21 @@ public class TelecomServiceImpl {
                     throw se2;
                 }
 
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        Log.startSession("TSI.gPAFP");
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getAllPhoneAccountHandlesForPackage(
-                                        callingUserHandle, packageName));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getPhoneAccountsForPackage %s", packageName);
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                        Log.endSession();
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    Log.startSession("TSI.gPAFP");
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getAllPhoneAccountHandlesForPackage(callingUserHandle,
+                                    packageName));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getPhoneAccountsForPackage %s", packageName);
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                    Log.endSession();
                 }
             } finally {
                 logEvent(event);
@@ -600,6 +616,7 @@ public class TelecomServiceImpl {
         @Override
         public PhoneAccount getPhoneAccount(PhoneAccountHandle accountHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -611,7 +628,9 @@ public class TelecomServiceImpl {
                             "getPhoneAccount: invalid calling package");
                     throw se;
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     if (CompatChanges.isChangeEnabled(
                             TelecomManager.ENABLE_GET_PHONE_ACCOUNT_PERMISSION_PROTECTION,
@@ -637,7 +656,8 @@ public class TelecomServiceImpl {
                         PhoneAccount account = mPhoneAccountRegistrar
                                 .getPhoneAccount(accountHandle, callingUserHandle,
                                         /* acrossProfiles */ true);
-                        return maybeCleansePhoneAccount(account, permissions);
+                        return maybeCleansePhoneAccount(
+                                mPhoneAccountRegistrar.loadIcon(account), permissions);
                     } catch (Exception e) {
                         event.setResult(ApiStats.RESULT_EXCEPTION);
                         Log.e(this, e, "getPhoneAccount %s", accountHandle);
@@ -650,6 +670,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -677,28 +698,19 @@ public class TelecomServiceImpl {
                     // pass through
                 }
 
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(
-                                mPhoneAccountRegistrar.getPhoneAccounts(
-                                        0 /* capabilities */,
-                                        0 /* excludedCapabilities */,
-                                        null /* UriScheme */,
-                                        callingPackage,
-                                        true /* includeDisabledAccounts */,
-                                        callingUserHandle,
-                                        hasCrossUserAccess /* crossUserAccess */,
-                                        false /* includeAll */));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getRegisteredPhoneAccounts");
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.loadIcons(
+                            mPhoneAccountRegistrar.getSnapshot().getRegisteredPhoneAccounts(
+                                    callingPackage, callingUserHandle, hasCrossUserAccess)));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getRegisteredPhoneAccounts");
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -722,17 +734,22 @@ public class TelecomServiceImpl {
                     throw e;
                 }
 
-                synchronized (mLock) {
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        // This list is pre-filtered for the calling user.
-                        return getAllPhoneAccounts().getList().size();
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getAllPhoneAccountsCount");
-                        throw e;
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    // This list is pre-filtered for the calling user.  The accounts are counted
+                    // directly, rather than through getAllPhoneAccounts(), so that their icons
+                    // are not loaded.
+                    return mPhoneAccountRegistrar.getSnapshot()
+                            .getAllPhoneAccounts(callingUserHandle, false).size();
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getAllPhoneAccountsCount");
+                    throw e;
 
-                    }
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -744,35 +761,34 @@ public class TelecomServiceImpl {
         public ParceledListSlice<PhoneAccount> getAllPhoneAccounts() {
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETALLPHONEACCOUNTS,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
-            synchronized (mLock) {
+            try {
+                Log.startSession("TSI.gAPA");
                 try {
-                    Log.startSession("TSI.gAPA");
-                    try {
-                        enforceModifyPermission(
-                                "getAllPhoneAccounts requires MODIFY_PHONE_STATE permission.");
-                    } catch (SecurityException e) {
-                        EventLog.writeEvent(0x534e4554, "62347125", Binder.getCallingUid(),
-                                "getAllPhoneAccounts");
-                        throw e;
-                    }
+                    enforceModifyPermission(
+                            "getAllPhoneAccounts requires MODIFY_PHONE_STATE permission.");
+                } catch (SecurityException e) {
+                    EventLog.writeEvent(0x534e4554, "62347125", Binder.getCallingUid(),
+                            "getAllPhoneAccounts");
+                    throw e;
+                }
 
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getAllPhoneAccounts(callingUserHandle, false));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getAllPhoneAccounts");
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.loadIcons(
+                            mPhoneAccountRegistrar.getSnapshot().getAllPhoneAccounts(
+                                    callingUserHandle, false)));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getAllPhoneAccounts");
+                    throw e;
                 } finally {
-                    logEvent(event);
-                    Log.endSession();
+                    Binder.restoreCallingIdentity(token);
                 }
+            } finally {
+                logEvent(event);
+                Log.endSession();
             }
         }
 
@@ -792,22 +808,19 @@ public class TelecomServiceImpl {
                     throw e;
                 }
 
-                synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
-                    boolean crossUserAccess = hasInAppCrossUserPermission();
-                    long token = Binder.clearCallingIdentity();
-                    event.setResult(ApiStats.RESULT_NORMAL);
-                    try {
-                        return new ParceledListSlice<>(mPhoneAccountRegistrar
-                                .getAllPhoneAccountHandles(callingUserHandle,
-                                        crossUserAccess));
-                    } catch (Exception e) {
-                        event.setResult(ApiStats.RESULT_EXCEPTION);
-                        Log.e(this, e, "getAllPhoneAccountsHandles");
-                        throw e;
-                    } finally {
-                        Binder.restoreCallingIdentity(token);
-                    }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                boolean crossUserAccess = hasInAppCrossUserPermission();
+                long token = Binder.clearCallingIdentity();
+                event.setResult(ApiStats.RESULT_NORMAL);
+                try {
+                    return new ParceledListSlice<>(mPhoneAccountRegistrar.getSnapshot()
+                            .getAllPhoneAccountHandles(callingUserHandle, crossUserAccess));
+                } catch (Exception e) {
+                    event.setResult(ApiStats.RESULT_EXCEPTION);
+                    Log.e(this, e, "getAllPhoneAccountsHandles");
+                    throw e;
+                } finally {
+                    Binder.restoreCallingIdentity(token);
                 }
             } finally {
                 logEvent(event);
@@ -817,9 +830,12 @@ public class TelecomServiceImpl {
 
         @Override
         public PhoneAccountHandle getSimCallManager(int subId, String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gSCM");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETSIMCALLMANAGER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
+            mLockProfiler.waiting(lockSample);
             synchronized (mLock) {
+                mLockProfiler.locked(lockSample);
                 try {
                     Log.startSession("TSI.gSCM", Log.getPackageAbbreviation(callingPackage));
                     final int callingUid = Binder.getCallingUid();
@@ -841,6 +857,7 @@ public class TelecomServiceImpl {
                     throw e;
                 } finally {
                     logEvent(event);
+                    mLockProfiler.end(lockSample);
                     Log.endSession();
                 }
             }
@@ -848,9 +865,12 @@ public class TelecomServiceImpl {
 
         @Override
         public PhoneAccountHandle getSimCallManagerForUser(int user, String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gSCMFU");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETSIMCALLMANAGERFORUSER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
+            mLockProfiler.waiting(lockSample);
             synchronized (mLock) {
+                mLockProfiler.locked(lockSample);
                 try {
                     Log.startSession("TSI.gSCMFU", Log.getPackageAbbreviation(callingPackage));
                     final int callingUid = Binder.getCallingUid();
@@ -871,6 +891,7 @@ public class TelecomServiceImpl {
                     throw e;
                 } finally {
                     logEvent(event);
+                    mLockProfiler.end(lockSample);
                     Log.endSession();
                 }
             }
@@ -878,11 +899,14 @@ public class TelecomServiceImpl {
 
         @Override
         public void registerPhoneAccount(PhoneAccount account, String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.rPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_REGISTERPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.rPA", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     try {
                         enforcePhoneAccountModificationForPackage(
                                 account.getAccountHandle().getComponentName().getPackageName());
@@ -972,6 +996,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -979,9 +1004,12 @@ public class TelecomServiceImpl {
         @Override
         public void unregisterPhoneAccount(PhoneAccountHandle accountHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.uPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_UNREGISTERPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
+            mLockProfiler.waiting(lockSample);
             synchronized (mLock) {
+                mLockProfiler.locked(lockSample);
                 try {
                     Log.startSession("TSI.uPA", Log.getPackageAbbreviation(callingPackage));
                     enforcePhoneAccountModificationForPackage(
@@ -999,6 +1027,7 @@ public class TelecomServiceImpl {
                     throw e;
                 } finally {
                     logEvent(event);
+                    mLockProfiler.end(lockSample);
                     Log.endSession();
                 }
             }
@@ -1006,9 +1035,12 @@ public class TelecomServiceImpl {
 
         @Override
         public void clearAccounts(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.cA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_CLEARACCOUNTS,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
+            mLockProfiler.waiting(lockSample);
             synchronized (mLock) {
+                mLockProfiler.locked(lockSample);
                 try {
                     Log.startSession("TSI.cA");
                     enforcePhoneAccountModificationForPackage(packageName);
@@ -1020,6 +1052,7 @@ public class TelecomServiceImpl {
                     throw e;
                 } finally {
                     logEvent(event);
+                    mLockProfiler.end(lockSample);
                     Log.endSession();
                 }
             }
@@ -1031,11 +1064,14 @@ public class TelecomServiceImpl {
         @Override
         public boolean isVoiceMailNumber(PhoneAccountHandle accountHandle, String number,
                 String callingPackage, String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iVMN");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISVOICEMAILNUMBER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.iVMN", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!canReadPhoneState(callingPackage, callingFeatureId, "isVoiceMailNumber")) {
                         return false;
                     }
@@ -1059,6 +1095,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1069,6 +1106,7 @@ public class TelecomServiceImpl {
         @Override
         public String getVoiceMailNumber(PhoneAccountHandle accountHandle, String callingPackage,
                 String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gVMN");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETVOICEMAILNUMBER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -1085,7 +1123,9 @@ public class TelecomServiceImpl {
                         return null;
                     }
                     int subId = mSubscriptionManagerAdapter.getDefaultVoiceSubId();
+                    mLockProfiler.waiting(lockSample);
                     synchronized (mLock) {
+                        mLockProfiler.locked(lockSample);
                         if (accountHandle != null) {
                             subId = mPhoneAccountRegistrar
                                     .getSubscriptionIdForPhoneAccount(accountHandle);
@@ -1103,6 +1143,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1113,6 +1154,7 @@ public class TelecomServiceImpl {
         @Override
         public String getLine1Number(PhoneAccountHandle accountHandle, String callingPackage,
                 String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "getL1N");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETLINE1NUMBER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -1131,7 +1173,9 @@ public class TelecomServiceImpl {
                 long token = Binder.clearCallingIdentity();
                 try {
                     int subId;
+                    mLockProfiler.waiting(lockSample);
                     synchronized (mLock) {
+                        mLockProfiler.locked(lockSample);
                         subId = mPhoneAccountRegistrar.getSubscriptionIdForPhoneAccount(
                                 accountHandle);
                     }
@@ -1149,6 +1193,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1158,11 +1203,14 @@ public class TelecomServiceImpl {
          */
         @Override
         public void silenceRinger(String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sR");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_SILENCERINGER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.sR", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforcePermissionOrPrivilegedDialer(MODIFY_PHONE_STATE, callingPackage);
                     UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     boolean crossUserAccess = hasInAppCrossUserPermission();
@@ -1181,6 +1229,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1276,19 +1325,24 @@ public class TelecomServiceImpl {
         }
 
         public void setSystemDialer(ComponentName testComponentName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sSD");
             try {
                 Log.startSession("TSI.sSD");
                 enforceModifyPermission();
                 enforceShellOnly(Binder.getCallingUid(), "setSystemDialer");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mDefaultDialerCache.setSystemDialerComponentName(testComponentName);
+                        mPermissionCache.invalidate();
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1306,10 +1360,9 @@ public class TelecomServiceImpl {
                     return false;
                 }
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    return mCallsManager.hasOngoingCalls(Binder.getCallingUserHandle(),
-                            hasInAppCrossUserPermission());
-                }
+                // Answered from the published summary, without taking the Telecom lock.
+                return mCallsManager.getCallStateSummary().hasOngoingCalls(
+                        Binder.getCallingUserHandle(), hasInAppCrossUserPermission());
             } finally {
                 logEvent(event);
                 Log.endSession();
@@ -1356,10 +1409,8 @@ public class TelecomServiceImpl {
                             "READ_PHONE_STATE permission can use this method.");
                 }
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    return mCallsManager.hasOngoingManagedCalls(Binder.getCallingUserHandle(),
-                            hasInAppCrossUserPermission());
-                }
+                return mCallsManager.getCallStateSummary().hasOngoingManagedCalls(
+                        Binder.getCallingUserHandle(), hasInAppCrossUserPermission());
             } finally {
                 logEvent(event);
                 Log.endSession();
@@ -1386,14 +1437,12 @@ public class TelecomServiceImpl {
                 }
 
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    // Note: We are explicitly checking the calls telecom is tracking rather than
-                    // relying on mCallsManager#getCallState(). Since getCallState() relies on the
-                    // current state as tracked by PhoneStateBroadcaster, any failure to properly
-                    // track the current call state there could result in the wrong ringing state
-                    // being reported by this API.
-                    return mCallsManager.hasRingingOrSimulatedRingingCall();
-                }
+                // Note: We are explicitly checking the calls telecom is tracking rather than
+                // relying on mCallsManager#getCallState(). Since getCallState() relies on the
+                // current state as tracked by PhoneStateBroadcaster, any failure to properly
+                // track the current call state there could result in the wrong ringing state
+                // being reported by this API.
+                return mCallsManager.getCallStateSummary().hasRingingOrSimulatedRingingCall();
             } finally {
                 logEvent(event);
                 Log.endSession();
@@ -1421,9 +1470,7 @@ public class TelecomServiceImpl {
                             + "targeting API version 30 or less.");
                 }
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    return mCallsManager.getCallState();
-                }
+                return mCallsManager.getCallState();
             } finally {
                 Log.endSession();
             }
@@ -1465,9 +1512,7 @@ public class TelecomServiceImpl {
                     }
                 }
                 event.setResult(ApiStats.RESULT_NORMAL);
-                synchronized (mLock) {
-                    return mCallsManager.getCallState();
-                }
+                return mCallsManager.getCallState();
             } finally {
                 logEvent(event);
                 Log.endSession();
@@ -1511,11 +1556,14 @@ public class TelecomServiceImpl {
          */
         @Override
         public boolean endCall(String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.eC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ENDCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.eC", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!enforceAnswerCallPermission(callingPackage, Binder.getCallingUid())) {
                         throw new SecurityException("requires ANSWER_PHONE_CALLS permission");
                     }
@@ -1537,6 +1585,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1546,11 +1595,14 @@ public class TelecomServiceImpl {
          */
         @Override
         public void acceptRingingCall(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aRC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ACCEPTRINGINGCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aRC", Log.getPackageAbbreviation(packageName));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!enforceAnswerCallPermission(packageName, Binder.getCallingUid())) return;
                     // Legacy behavior is to ignore whether the invocation is from a system app:
                     boolean isCallerPrivileged = false;
@@ -1571,6 +1623,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1580,12 +1633,15 @@ public class TelecomServiceImpl {
          */
         @Override
         public void acceptRingingCallWithVideoState(String packageName, int videoState) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aRCWVS");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_ACCEPTRINGINGCALLWITHVIDEOSTATE,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aRCWVS", Log.getPackageAbbreviation(packageName));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!enforceAnswerCallPermission(packageName, Binder.getCallingUid())) return;
                     // Legacy behavior is to ignore whether the invocation is from a system app:
                     boolean isCallerPrivileged = false;
@@ -1605,6 +1661,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1615,6 +1672,7 @@ public class TelecomServiceImpl {
         @Override
         public void showInCallScreen(boolean showDialpad, String callingPackage,
                 String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sICS");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_SHOWINCALLSCREEN,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -1623,7 +1681,9 @@ public class TelecomServiceImpl {
                     return;
                 }
 
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     UserHandle callingUser = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
@@ -1636,6 +1696,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1645,12 +1706,15 @@ public class TelecomServiceImpl {
          */
         @Override
         public void cancelMissedCallsNotification(String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.cMCN");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_CANCELMISSEDCALLSNOTIFICATION,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.cMCN", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforcePermissionOrPrivilegedDialer(MODIFY_PHONE_STATE, callingPackage);
                     UserHandle userHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
@@ -1663,6 +1727,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1704,6 +1769,7 @@ public class TelecomServiceImpl {
         @Override
         public boolean handlePinMmiForPhoneAccount(PhoneAccountHandle accountHandle,
                 String dialString, String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.hPMFPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(
                     ApiStats.API_HANDLEPINMMIFORPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
@@ -1711,7 +1777,9 @@ public class TelecomServiceImpl {
                 Log.startSession("TSI.hPMFPA", Log.getPackageAbbreviation(callingPackage));
                 enforcePermissionOrPrivilegedDialer(MODIFY_PHONE_STATE, callingPackage);
                 UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!isPhoneAccountHandleVisibleToCallingUser(accountHandle,
                             callingUserHandle)) {
                         Log.d(this, "%s is not visible for the calling user [hMMI]",
@@ -1727,10 +1795,13 @@ public class TelecomServiceImpl {
                 boolean retval = false;
                 int subId;
                 try {
+                    mLockProfiler.waiting(lockSample);
                     synchronized (mLock) {
+                        mLockProfiler.locked(lockSample);
                         subId = mPhoneAccountRegistrar.getSubscriptionIdForPhoneAccount(
                                 accountHandle);
                     }
+                    mLockProfiler.unlocked(lockSample);
                     try {
                         retval = getTelephonyManager(subId)
                                 .handlePinMmiForSubscriber(subId, dialString);
@@ -1745,6 +1816,7 @@ public class TelecomServiceImpl {
                 return retval;
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1755,12 +1827,15 @@ public class TelecomServiceImpl {
         @Override
         public Uri getAdnUriForPhoneAccount(PhoneAccountHandle accountHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aAUFPA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETADNURIFORPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aAUFPA", Log.getPackageAbbreviation(callingPackage));
                 enforcePermissionOrPrivilegedDialer(MODIFY_PHONE_STATE, callingPackage);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (!isPhoneAccountHandleVisibleToCallingUser(accountHandle,
                             Binder.getCallingUserHandle())) {
                         Log.d(this, "%s is not visible for the calling user [gA4PA]",
@@ -1784,6 +1859,7 @@ public class TelecomServiceImpl {
                 return Uri.parse(retval);
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1793,6 +1869,7 @@ public class TelecomServiceImpl {
          */
         @Override
         public boolean isTtySupported(String callingPackage, String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iTS");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISTTYSUPPORTED,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -1803,11 +1880,14 @@ public class TelecomServiceImpl {
                 }
 
                 event.setResult(ApiStats.RESULT_NORMAL);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     return mCallsManager.isTtySupported();
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1817,6 +1897,7 @@ public class TelecomServiceImpl {
          */
         @Override
         public int getCurrentTtyMode(String callingPackage, String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.gCTM");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_GETCURRENTTTYMODE,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -1826,11 +1907,14 @@ public class TelecomServiceImpl {
                 }
 
                 event.setResult(ApiStats.RESULT_NORMAL);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     return mCallsManager.getCurrentTtyMode();
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1841,11 +1925,14 @@ public class TelecomServiceImpl {
         @Override
         public void addNewIncomingCall(PhoneAccountHandle phoneAccountHandle, Bundle extras,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aNIC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ADDNEWINCOMINGCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aNIC", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Log.i(this, "Adding new incoming call with phoneAccountHandle %s",
                             phoneAccountHandle);
                     if (phoneAccountHandle != null &&
@@ -1923,6 +2010,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1933,11 +2021,14 @@ public class TelecomServiceImpl {
         @Override
         public void addNewIncomingConference(PhoneAccountHandle phoneAccountHandle, Bundle extras,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aNIC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ADDNEWINCOMINGCONFERENCE,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aNIC", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Log.i(this, "Adding new incoming conference with phoneAccountHandle %s",
                             phoneAccountHandle);
                     if (phoneAccountHandle != null &&
@@ -1978,6 +2069,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -1988,11 +2080,14 @@ public class TelecomServiceImpl {
         @Override
         public void acceptHandover(Uri srcAddr, int videoState, PhoneAccountHandle destAcct,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aHO");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ACCEPTHANDOVER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.aHO", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     Log.i(this, "acceptHandover; srcAddr=%s, videoState=%s, dest=%s",
                             Log.pii(srcAddr), VideoProfile.videoStateToString(videoState),
                             destAcct);
@@ -2035,6 +2130,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2044,6 +2140,7 @@ public class TelecomServiceImpl {
          */
         @Override
         public void addNewUnknownCall(PhoneAccountHandle phoneAccountHandle, Bundle extras) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aNUC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ADDNEWUNKNOWNCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -2057,7 +2154,9 @@ public class TelecomServiceImpl {
                     throw e;
                 }
 
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     if (phoneAccountHandle != null &&
                             phoneAccountHandle.getComponentName() != null) {
                         mAppOpsManager.checkPackage(
@@ -2094,6 +2193,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2134,6 +2234,7 @@ public class TelecomServiceImpl {
         @Override
         public void placeCall(Uri handle, Bundle extras, String callingPackage,
                 String callingFeatureId) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.pC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_PLACECALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -2208,7 +2309,9 @@ public class TelecomServiceImpl {
                 final boolean hasCallPrivilegedPermission = mContext.checkCallingOrSelfPermission(
                         CALL_PRIVILEGED) == PackageManager.PERMISSION_GRANTED;
 
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     final UserHandle userHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
@@ -2230,6 +2333,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2239,12 +2343,15 @@ public class TelecomServiceImpl {
          */
         @Override
         public boolean enablePhoneAccount(PhoneAccountHandle accountHandle, boolean isEnabled) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.ePA");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ENABLEPHONEACCOUNT,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.ePA");
                 enforceModifyPermission();
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
@@ -2256,37 +2363,47 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public boolean setDefaultDialer(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sDD");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_SETDEFAULTDIALER,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.sDD");
                 enforcePermission(MODIFY_PHONE_STATE);
                 enforcePermission(WRITE_SECURE_SETTINGS);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     int callerUserId = UserHandle.getCallingUserId();
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
-                        return mDefaultDialerCache.setDefaultDialer(packageName,
+                        boolean isChanged = mDefaultDialerCache.setDefaultDialer(packageName,
                                 callerUserId);
+                        if (isChanged) {
+                            mPermissionCache.invalidate();
+                        }
+                        return isChanged;
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void stopBlockSuppression() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sBS");
             try {
                 Log.startSession("TSI.sBS");
                 enforceModifyPermission();
@@ -2294,7 +2411,9 @@ public class TelecomServiceImpl {
                         && Binder.getCallingUid() != Process.ROOT_UID) {
                     throw new SecurityException("Shell-only API.");
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         if (mBlockedNumbersManager != null) {
@@ -2302,11 +2421,13 @@ public class TelecomServiceImpl {
                         } else {
                             BlockedNumberContract.SystemContract.endBlockSuppression(mContext);
                         }
+                        mCallsManager.getBlockStatusCache().onBlockSuppressionChanged();
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2361,6 +2482,35 @@ public class TelecomServiceImpl {
                 return;
             }
 
+            if (args != null && args.length > 0 && LOCK_STATS_ARG.equalsIgnoreCase(args[0])) {
+                // "lock-stats <enable|disable|reset>" controls the profiler, as used by the
+                // "telecom lock-stats" shell command; without an action the results are dumped.
+                if (args.length > 1) {
+                    switch (args[1]) {
+                        case LOCK_STATS_ENABLE:
+                            mLockProfiler.setEnabled(true);
+                            break;
+                        case LOCK_STATS_DISABLE:
+                            mLockProfiler.setEnabled(false);
+                            break;
+                        case LOCK_STATS_RESET:
+                            mLockProfiler.reset();
+                            break;
+                        default:
+                            writer.println("Invalid lock-stats action " + args[1]);
+                            return;
+                    }
+                    writer.println("Success - lock-stats " + args[1]);
+                    return;
+                }
+                final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+                pw.println("SyncRoot lock stats: ");
+                pw.increaseIndent();
+                mLockProfiler.dump(pw);
+                pw.decreaseIndent();
+                return;
+            }
+
             boolean isTimeLineView =
                     (args != null && args.length > 0 && TIME_LINE_ARG.equalsIgnoreCase(args[0]));
 
@@ -2376,6 +2526,11 @@ public class TelecomServiceImpl {
                 mPhoneAccountRegistrar.dump(pw);
                 pw.decreaseIndent();
 
+                pw.println("PermissionCache: ");
+                pw.increaseIndent();
+                mPermissionCache.dump(pw);
+                pw.decreaseIndent();
+
                 pw.println("Analytics:");
                 pw.increaseIndent();
                 Analytics.dump(pw);
@@ -2390,11 +2545,20 @@ public class TelecomServiceImpl {
                 pw.increaseIndent();
                 TransactionManager.getInstance().dump(pw);
                 pw.decreaseIndent();
+
+                pw.println("TimingWheel: ");
+                pw.increaseIndent();
+                mTimingWheel.dump(pw);
+                pw.decreaseIndent();
             }
             if (isTimeLineView) {
                 Log.dumpEventsTimeline(pw);
             } else {
                 Log.dumpEvents(pw);
+                pw.println("Archived call events: ");
+                pw.increaseIndent();
+                CallEventArchive.getInstance().dump(pw);
+                pw.decreaseIndent();
             }
         }
 
@@ -2484,6 +2648,7 @@ public class TelecomServiceImpl {
         @Override
         public boolean isIncomingCallPermitted(PhoneAccountHandle phoneAccountHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iICP");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISINCOMINGCALLPERMITTED,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             Log.startSession("TSI.iICP", Log.getPackageAbbreviation(callingPackage));
@@ -2492,7 +2657,9 @@ public class TelecomServiceImpl {
                 enforcePhoneAccountHandleMatchesCaller(phoneAccountHandle, callingPackage);
                 enforcePermission(android.Manifest.permission.MANAGE_OWN_CALLS);
                 enforceUserHandleMatchesCaller(phoneAccountHandle);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
@@ -2503,6 +2670,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2513,6 +2681,7 @@ public class TelecomServiceImpl {
         @Override
         public boolean isOutgoingCallPermitted(PhoneAccountHandle phoneAccountHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iOCP");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISOUTGOINGCALLPERMITTED,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             Log.startSession("TSI.iOCP", Log.getPackageAbbreviation(callingPackage));
@@ -2521,7 +2690,9 @@ public class TelecomServiceImpl {
                 enforcePhoneAccountHandleMatchesCaller(phoneAccountHandle, callingPackage);
                 enforcePermission(android.Manifest.permission.MANAGE_OWN_CALLS);
                 enforceUserHandleMatchesCaller(phoneAccountHandle);
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
@@ -2532,6 +2703,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2543,10 +2715,13 @@ public class TelecomServiceImpl {
          */
         @Override
         public void waitOnHandlers() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.wOH");
             try {
                 Log.startSession("TSI.wOH");
                 enforceModifyPermission();
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         Log.i(this, "waitOnHandlers");
@@ -2556,18 +2731,22 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void setTestEmergencyPhoneAccountPackageNameFilter(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sTPAPNF");
             try {
                 Log.startSession("TSI.sTPAPNF");
                 enforceModifyPermission();
                 enforceShellOnly(Binder.getCallingUid(),
                         "setTestEmergencyPhoneAccountPackageNameFilter");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mPhoneAccountRegistrar.setTestPhoneAccountPackageNameFilter(packageName);
@@ -2576,6 +2755,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2585,12 +2765,15 @@ public class TelecomServiceImpl {
          */
         @Override
         public boolean isInEmergencyCall() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iIEC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISINEMERGENCYCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
                 Log.startSession("TSI.iIEC");
                 enforceModifyPermission();
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
@@ -2603,6 +2786,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2612,9 +2796,12 @@ public class TelecomServiceImpl {
          */
         @Override
         public void handleCallIntent(Intent intent, String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.hCI");
             try {
                 Log.startSession("TSI.hCI");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     mContext.enforceCallingOrSelfPermission(PERMISSION_HANDLE_CALL_INTENT,
                             "handleCallIntent is for internal use only.");
 
@@ -2628,6 +2815,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2641,9 +2829,12 @@ public class TelecomServiceImpl {
          */
         @Override
         public void cleanupStuckCalls() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TCI.cSC");
             Log.startSession("TCI.cSC");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforceShellOnly(Binder.getCallingUid(), "cleanupStuckCalls");
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -2672,6 +2863,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2691,9 +2883,12 @@ public class TelecomServiceImpl {
          */
         @Override
         public int cleanupOrphanPhoneAccounts() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TCI.cOPA");
             Log.startSession("TCI.cOPA");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforceShellOnly(Binder.getCallingUid(), "cleanupOrphanPhoneAccounts");
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -2703,6 +2898,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2715,9 +2911,12 @@ public class TelecomServiceImpl {
          */
         @Override
         public boolean isNonUiInCallServiceBound(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TCI.iNUICSB");
             Log.startSession("TCI.iNUICSB");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforceShellOnly(Binder.getCallingUid(), "isNonUiInCallServiceBound");
                     if (!(mContext.checkCallingOrSelfPermission(READ_PHONE_STATE)
                             == PackageManager.PERMISSION_GRANTED) ||
@@ -2736,6 +2935,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2747,9 +2947,12 @@ public class TelecomServiceImpl {
          */
         @Override
         public void resetCarMode() {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TCI.rCM");
             Log.startSession("TCI.rCM");
             try {
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     enforceShellOnly(Binder.getCallingUid(), "resetCarMode");
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -2761,19 +2964,23 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void setTestDefaultCallRedirectionApp(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sTDCRA");
             try {
                 Log.startSession("TSI.sTDCRA");
                 enforceModifyPermission();
                 if (!Build.IS_USERDEBUG) {
                     throw new SecurityException("Test-only API.");
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mCallsManager.getRoleManagerAdapter().setTestDefaultCallRedirectionApp(
@@ -2783,19 +2990,23 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void setTestDefaultCallScreeningApp(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sTDCSA");
             try {
                 Log.startSession("TSI.sTDCSA");
                 enforceModifyPermission();
                 if (!Build.IS_USERDEBUG) {
                     throw new SecurityException("Test-only API.");
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mCallsManager.getRoleManagerAdapter().setTestDefaultCallScreeningApp(
@@ -2805,17 +3016,21 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void addOrRemoveTestCallCompanionApp(String packageName, boolean isAdded) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.aORTCCA");
             try {
                 Log.startSession("TSI.aORTCCA");
                 enforceModifyPermission();
                 enforceShellOnly(Binder.getCallingUid(), "addOrRemoveTestCallCompanionApp");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mCallsManager.getRoleManagerAdapter().addOrRemoveTestCallCompanionApp(
@@ -2825,16 +3040,20 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void requestLogMark(String message) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.rLM");
             try {
                 Log.startSession("TSI.rLM");
                 enforceShellOnly(Binder.getCallingUid(), "requestLogMark is for shell only");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mCallsManager.requestLogMark(message);
@@ -2843,6 +3062,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2850,6 +3070,7 @@ public class TelecomServiceImpl {
         @Override
         public void setTestPhoneAcctSuggestionComponent(String flattenedComponentName,
                 UserHandle userHandle) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sPASA");
             try {
                 Log.startSession("TSI.sPASA");
                 enforceModifyPermission();
@@ -2857,17 +3078,21 @@ public class TelecomServiceImpl {
                         && Binder.getCallingUid() != Process.ROOT_UID) {
                     throw new SecurityException("Shell-only API.");
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     PhoneAccountSuggestionHelper.setOverrideServiceName(flattenedComponentName);
                     PhoneAccountSuggestionHelper.setOverrideUserHandle(userHandle);
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void setTestDefaultDialer(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sTDD");
             try {
                 Log.startSession("TSI.sTDD");
                 enforceModifyPermission();
@@ -2875,7 +3100,9 @@ public class TelecomServiceImpl {
                         && Binder.getCallingUid() != Process.ROOT_UID) {
                     throw new SecurityException("Shell-only API.");
                 }
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         mCallsManager.getRoleManagerAdapter().setTestDefaultDialer(packageName);
@@ -2884,18 +3111,22 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
 
         @Override
         public void setTestCallDiagnosticService(String packageName) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.sTCDS");
             try {
                 Log.startSession("TSI.sTCDS");
                 enforceModifyPermission();
                 enforceShellOnly(Binder.getCallingUid(), "setTestCallDiagnosticService is for "
                         + "shell use only.");
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     try {
                         CallDiagnosticServiceController controller =
@@ -2908,6 +3139,7 @@ public class TelecomServiceImpl {
                     }
                 }
             } finally {
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2924,6 +3156,7 @@ public class TelecomServiceImpl {
         @Override
         public boolean isInSelfManagedCall(String packageName, UserHandle userHandle,
                 String callingPackage) {
+            SyncRootProfiler.Sample lockSample = mLockProfiler.begin(mLock, "TSI.iISMC");
             ApiStats.ApiEvent event = new ApiStats.ApiEvent(ApiStats.API_ISINSELFMANAGEDCALL,
                     Binder.getCallingUid(), ApiStats.RESULT_PERMISSION);
             try {
@@ -2936,7 +3169,9 @@ public class TelecomServiceImpl {
                 }
 
                 Log.startSession("TSI.iISMC", Log.getPackageAbbreviation(callingPackage));
+                mLockProfiler.waiting(lockSample);
                 synchronized (mLock) {
+                    mLockProfiler.locked(lockSample);
                     long token = Binder.clearCallingIdentity();
                     event.setResult(ApiStats.RESULT_NORMAL);
                     try {
@@ -2948,6 +3183,7 @@ public class TelecomServiceImpl {
                 }
             } finally {
                 logEvent(event);
+                mLockProfiler.end(lockSample);
                 Log.endSession();
             }
         }
@@ -2964,13 +3200,14 @@ public class TelecomServiceImpl {
             FeatureFlags featureFlags,
             com.android.internal.telephony.flags.FeatureFlags telephonyFeatureFlags,
             TelecomSystem.SyncRoot lock, TelecomMetricsController metricsController,
-            String sysUiPackageName) {
+            TimingWheel timingWheel, String sysUiPackageName) {
         mContext = context;
         mAppOpsManager = mContext.getSystemService(AppOpsManager.class);
 
         mPackageManager = mContext.getPackageManager();
 
         mCallsManager = callsManager;
+        mTimingWheel = timingWheel;
         mFeatureFlags = featureFlags;
         if (telephonyFeatureFlags != null) {
             mTelephonyFeatureFlags = telephonyFeatureFlags;
@@ -2987,8 +3224,11 @@ public class TelecomServiceImpl {
         mSettingsSecureAdapter = settingsSecureAdapter;
         mMetricsController = metricsController;
         mSystemUiPackageName = sysUiPackageName;
+        mPermissionCache = new TelecomPermissionCache(mContext);
 
         mDefaultDialerCache.observeDefaultDialerApplication(mContext.getMainExecutor(), userId -> {
+            // The dialer role decides which callers are privileged dialers.
+            mPermissionCache.invalidate();
             String defaultDialer = mDefaultDialerCache.getDefaultDialerApplication(userId);
             if (defaultDialer == null) {
                 // We are replacing the dialer, just wait for the upcoming callback.
@@ -3007,6 +3247,11 @@ public class TelecomServiceImpl {
                 : null;
     }
 
+    @VisibleForTesting
+    public TelecomPermissionCache getPermissionCache() {
+        return mPermissionCache;
+    }
+
     @VisibleForTesting
     public void setAnomalyReporterAdapter(AnomalyReporterAdapter mAnomalyReporterAdapter) {
         mAnomalyReporter = mAnomalyReporterAdapter;
@@ -3166,16 +3411,24 @@ public class TelecomServiceImpl {
     // and enabled.
     private void enforcePhoneAccountIsRegisteredEnabled(PhoneAccountHandle phoneAccountHandle,
             UserHandle callingUserHandle) {
-        PhoneAccount phoneAccount = mPhoneAccountRegistrar.getPhoneAccount(phoneAccountHandle,
-                callingUserHandle);
-        if (phoneAccount == null) {
-            EventLog.writeEvent(0x534e4554, "26864502", Binder.getCallingUid(), "R");
-            throw new SecurityException("This PhoneAccountHandle is not registered for this user!");
-        }
-        if (!phoneAccount.isEnabled()) {
-            EventLog.writeEvent(0x534e4554, "26864502", Binder.getCallingUid(), "E");
-            throw new SecurityException("This PhoneAccountHandle is not enabled for this user!");
-        }
+        // Only passing checks are cached, for as long as the registered accounts are unchanged.
+        mPermissionCache.isAllowed(TelecomPermissionCache.CHECK_REGISTERED_ENABLED,
+                Binder.getCallingUid(), Arrays.asList(phoneAccountHandle, callingUserHandle),
+                mPhoneAccountRegistrar.getSnapshot(), () -> {
+                    PhoneAccount phoneAccount = mPhoneAccountRegistrar.getPhoneAccount(
+                            phoneAccountHandle, callingUserHandle);
+                    if (phoneAccount == null) {
+                        EventLog.writeEvent(0x534e4554, "26864502", Binder.getCallingUid(), "R");
+                        throw new SecurityException(
+                                "This PhoneAccountHandle is not registered for this user!");
+                    }
+                    if (!phoneAccount.isEnabled()) {
+                        EventLog.writeEvent(0x534e4554, "26864502", Binder.getCallingUid(), "E");
+                        throw new SecurityException(
+                                "This PhoneAccountHandle is not enabled for this user!");
+                    }
+                    return true;
+                });
     }
 
     // Enforce that the PhoneAccountHandle is tied to a self-managed package and not managed (aka
@@ -3234,8 +3487,12 @@ public class TelecomServiceImpl {
     private void enforceCallingPackage(String packageName, String message) {
         int callingUid = Binder.getCallingUid();
 
-        if (callingUid != Process.ROOT_UID &&
-                !callingUidMatchesPackageManagerRecords(packageName)) {
+        // Scoped to the registered accounts, so that a package whose accounts are re-registered,
+        // as when it is reinstalled, is checked again.
+        if (callingUid != Process.ROOT_UID && !mPermissionCache.isAllowed(
+                TelecomPermissionCache.CHECK_CALLING_PACKAGE, callingUid, packageName,
+                mPhoneAccountRegistrar.getSnapshot(),
+                () -> callingUidMatchesPackageManagerRecords(packageName))) {
             throw new SecurityException(message + ": Package " + packageName
                     + " does not belong to " + callingUid);
         }
@@ -3443,19 +3700,27 @@ public class TelecomServiceImpl {
             return true;
         }
 
-        try {
-            mContext.enforceCallingOrSelfPermission(READ_PRIVILEGED_PHONE_STATE, message);
+        int decision = mPermissionCache.get(TelecomPermissionCache.CHECK_READ_PHONE_STATE,
+                Binder.getCallingUid(), callingPackage, null, () -> {
+                    try {
+                        mContext.enforceCallingOrSelfPermission(READ_PRIVILEGED_PHONE_STATE,
+                                message);
+                        return TelecomPermissionCache.ALLOWED;
+                    } catch (SecurityException e) {
+                        // Accessing phone state is gated by a special permission.
+                        mContext.enforceCallingOrSelfPermission(READ_PHONE_STATE, message);
+                        return READ_PHONE_STATE_NOTE_OP;
+                    }
+                });
+        if (decision == TelecomPermissionCache.ALLOWED) {
             // SKIP checking run-time OP_READ_PHONE_STATE since caller or self has PRIVILEGED
             // permission
             return true;
-        } catch (SecurityException e) {
-            // Accessing phone state is gated by a special permission.
-            mContext.enforceCallingOrSelfPermission(READ_PHONE_STATE, message);
-
-            // Some apps that have the permission can be restricted via app ops.
-            return mAppOpsManager.noteOp(AppOpsManager.OP_READ_PHONE_STATE, Binder.getCallingUid(),
-                    callingPackage, callingFeatureId, message) == AppOpsManager.MODE_ALLOWED;
         }
+
+        // Some apps that have the permission can be restricted via app ops.
+        return mAppOpsManager.noteOp(AppOpsManager.OP_READ_PHONE_STATE, Binder.getCallingUid(),
+                callingPackage, callingFeatureId, message) == AppOpsManager.MODE_ALLOWED;
     }
 
     private boolean canReadMangeOwnCalls(String message) {
@@ -3469,19 +3734,38 @@ public class TelecomServiceImpl {
 
     private boolean canReadPhoneNumbers(String callingPackage, String callingFeatureId,
             String message) {
-        boolean targetSdkPreR = false;
         int uid = Binder.getCallingUid();
-        try {
-            ApplicationInfo applicationInfo = mPackageManager.getApplicationInfoAsUser(
-                    callingPackage, 0, UserHandle.getUserHandleForUid(Binder.getCallingUid()));
-            targetSdkPreR = applicationInfo != null
-                    && applicationInfo.targetSdkVersion < Build.VERSION_CODES.R;
-        } catch (PackageManager.NameNotFoundException e) {
-            // In the case that the PackageManager cannot find the specified calling package apply
-            // the more restrictive target R+ requirements.
-        }
+        // The target SDK and permissions of the caller are cached; the app ops are noted below.
+        int decision = mPermissionCache.get(TelecomPermissionCache.CHECK_READ_PHONE_NUMBERS, uid,
+                callingPackage, null, () -> {
+                    int holds = 0;
+                    try {
+                        ApplicationInfo applicationInfo = mPackageManager.getApplicationInfoAsUser(
+                                callingPackage, 0, UserHandle.getUserHandleForUid(uid));
+                        if (applicationInfo != null
+                                && applicationInfo.targetSdkVersion < Build.VERSION_CODES.R) {
+                            holds |= PHONE_NUMBERS_TARGET_SDK_PRE_R;
+                        }
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // In the case that the PackageManager cannot find the specified calling
+                        // package apply the more restrictive target R+ requirements.
+                    }
+                    if (mContext.checkCallingOrSelfPermission(READ_PRIVILEGED_PHONE_STATE)
+                            == PackageManager.PERMISSION_GRANTED) {
+                        holds |= PHONE_NUMBERS_HOLDS_READ_PRIVILEGED_PHONE_STATE;
+                    }
+                    if (mContext.checkCallingOrSelfPermission(READ_PHONE_NUMBERS)
+                            == PackageManager.PERMISSION_GRANTED) {
+                        holds |= PHONE_NUMBERS_HOLDS_READ_PHONE_NUMBERS;
+                    }
+                    if (mContext.checkCallingOrSelfPermission(READ_SMS)
+                            == PackageManager.PERMISSION_GRANTED) {
+                        holds |= PHONE_NUMBERS_HOLDS_READ_SMS;
+                    }
+                    return holds;
+                });
         // Apps targeting pre-R can access phone numbers via READ_PHONE_STATE
-        if (targetSdkPreR) {
+        if ((decision & PHONE_NUMBERS_TARGET_SDK_PRE_R) != 0) {
             try {
                 return canReadPhoneState(callingPackage, callingFeatureId, message);
             } catch (SecurityException e) {
@@ -3494,18 +3778,17 @@ public class TelecomServiceImpl {
             if (isPrivilegedDialerCalling(callingPackage)) {
                 return true;
             }
-            if (mContext.checkCallingOrSelfPermission(READ_PRIVILEGED_PHONE_STATE)
-                    == PackageManager.PERMISSION_GRANTED) {
+            if ((decision & PHONE_NUMBERS_HOLDS_READ_PRIVILEGED_PHONE_STATE) != 0) {
                 return true;
             }
         }
-        if (mContext.checkCallingOrSelfPermission(READ_PHONE_NUMBERS)
-                == PackageManager.PERMISSION_GRANTED && mAppOpsManager.noteOpNoThrow(
+        if ((decision & PHONE_NUMBERS_HOLDS_READ_PHONE_NUMBERS) != 0
+                && mAppOpsManager.noteOpNoThrow(
                 AppOpsManager.OPSTR_READ_PHONE_NUMBERS, uid, callingPackage, callingFeatureId,
                 message) == AppOpsManager.MODE_ALLOWED) {
             return true;
         }
-        if (mContext.checkCallingOrSelfPermission(READ_SMS) == PackageManager.PERMISSION_GRANTED
+        if ((decision & PHONE_NUMBERS_HOLDS_READ_SMS) != 0
                 && mAppOpsManager.noteOpNoThrow(AppOpsManager.OPSTR_READ_SMS, uid, callingPackage,
                 callingFeatureId, message) == AppOpsManager.MODE_ALLOWED) {
             return true;
@@ -3600,6 +3883,14 @@ public class TelecomServiceImpl {
     }
 
     private boolean isCallerSimCallManager(PhoneAccountHandle targetPhoneAccount) {
+        // The SIM call manager depends on the registered accounts as well as the default dialer
+        // and carrier config.
+        return mPermissionCache.isAllowed(TelecomPermissionCache.CHECK_SIM_CALL_MANAGER,
+                Binder.getCallingUid(), targetPhoneAccount, mPhoneAccountRegistrar.getSnapshot(),
+                () -> isCallerSimCallManagerUncached(targetPhoneAccount));
+    }
+
+    private boolean isCallerSimCallManagerUncached(PhoneAccountHandle targetPhoneAccount) {
         long token = Binder.clearCallingIdentity();
         PhoneAccountHandle accountHandle = null;
         try {
@@ -3644,19 +3935,23 @@ public class TelecomServiceImpl {
     }
 
     private boolean isPrivilegedDialerCalling(String callingPackage) {
-        mAppOpsManager.checkPackage(Binder.getCallingUid(), callingPackage);
-
-        // Note: Important to clear the calling identity since the code below calls into RoleManager
-        // to check who holds the dialer role, and that requires MANAGE_ROLE_HOLDERS permission
-        // which is a system permission.
-        int callingUserId = Binder.getCallingUserHandle().getIdentifier();
-        long token = Binder.clearCallingIdentity();
-        try {
-            return mDefaultDialerCache.isDefaultOrSystemDialer(
-                    callingPackage, callingUserId);
-        } finally {
-            Binder.restoreCallingIdentity(token);
-        }
+        int callingUid = Binder.getCallingUid();
+        return mPermissionCache.isAllowed(TelecomPermissionCache.CHECK_PRIVILEGED_DIALER,
+                callingUid, callingPackage, null, () -> {
+                    mAppOpsManager.checkPackage(callingUid, callingPackage);
+
+                    // Note: Important to clear the calling identity since the code below calls
+                    // into RoleManager to check who holds the dialer role, and that requires
+                    // MANAGE_ROLE_HOLDERS permission which is a system permission.
+                    int callingUserId = Binder.getCallingUserHandle().getIdentifier();
+                    long token = Binder.clearCallingIdentity();
+                    try {
+                        return mDefaultDialerCache.isDefaultOrSystemDialer(
+                                callingPackage, callingUserId);
+                    } finally {
+                        Binder.restoreCallingIdentity(token);
+                    }
+                });
     }
 
     private TelephonyManager getTelephonyManager(int subId) {
@@ -87,6 +87,7 @@ public class TelecomShellCommand extends BasicShellCommandHandler {
      * Command used to emit a distinct "mark" in the logs.
      */
     private static final String COMMAND_LOG_MARK = "log-mark";
+    private static final String COMMAND_LOCK_STATS = "lock-stats";
 
     private final Context mContext;
     private final ITelecomService mTelecomService;
@@ -184,6 +185,9 @@ public class TelecomShellCommand extends BasicShellCommandHandler {
                 case COMMAND_LOG_MARK:
                     runLogMark();
                     break;
+                case COMMAND_LOCK_STATS:
+                    runLockStats();
+                    break;
                 default:
                     return handleDefaultCommands(command);
             }
@@ -262,6 +266,9 @@ public class TelecomShellCommand extends BasicShellCommandHandler {
                 + "testers to indicate where in the logs various test steps take place.\n"
                 + "telecom is-non-ui-in-call-service-bound <PACKAGE>: queries a particular "
                 + "non-ui-InCallService in InCallController to determine if it is bound \n"
+                + "telecom lock-stats <enable|disable|reset>: turns profiling of contention on "
+                + "the Telecom lock on or off, or discards the results gathered so far.  The "
+                + "results are shown with \"dumpsys telecom lock-stats\".\n"
         );
     }
     private void runSetPhoneAccountEnabled(boolean enabled) throws RemoteException {
@@ -458,6 +465,15 @@ public class TelecomShellCommand extends BasicShellCommandHandler {
         mTelecomService.requestLogMark(message);
     }
 
+    private void runLockStats() throws RemoteException {
+        // The profiler lives in the Telecom process; it is controlled through the lock-stats
+        // dump argument, which TelecomServiceImpl only accepts from callers holding DUMP.
+        String action = getNextArgRequired();
+        getOutPrintWriter().flush();
+        mTelecomService.asBinder().dump(getOutFileDescriptor(),
+                new String[] {COMMAND_LOCK_STATS, action});
+    }
+
     private UserHandle getUserHandleFromArgs() throws RemoteException {
         if (TextUtils.isEmpty(peekNextArg())) {
             return null;
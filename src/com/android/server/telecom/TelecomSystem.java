@@ -28,6 +28,7 @@ import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.BugreportManager;
 import android.os.DropBoxManager;
+import android.os.HandlerThread;
 import android.os.UserHandle;
 import android.telecom.Log;
 import android.telecom.PhoneAccountHandle;
@@ -61,7 +62,6 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 /**
  * Top-level Application class for Telecom.
@@ -140,6 +140,7 @@ public class TelecomSystem {
     private final ContactsAsyncHelper mContactsAsyncHelper;
     private final DialerCodeReceiver mDialerCodeReceiver;
     private final FeatureFlags mFeatureFlags;
+    private final TimingWheel mTimingWheel;
 
     private boolean mIsBootComplete = false;
 
@@ -236,6 +237,9 @@ public class TelecomSystem {
         LogUtils.initLogging(mContext);
         android.telecom.Log.setLock(mLock);
         AnomalyReporter.initialize(mContext);
+        HandlerThread timingWheelThread = new HandlerThread("TimingWheel");
+        timingWheelThread.start();
+        mTimingWheel = new TimingWheel(timingWheelThread.getLooper());
         DefaultDialerManagerAdapter defaultDialerAdapter =
                 new DefaultDialerCache.DefaultDialerManagerAdapterImpl();
 
@@ -297,7 +301,7 @@ public class TelecomSystem {
                         EmergencyCallHelper emergencyCallHelper) {
                     return new InCallController(context, lock, callsManager, systemStateProvider,
                             defaultDialerCache, timeoutsAdapter, emergencyCallHelper,
-                            new CarModeTracker(), clockProxy, featureFlags);
+                            new CarModeTracker(), clockProxy, mTimingWheel, featureFlags);
                 }
             };
 
@@ -379,10 +383,11 @@ public class TelecomSystem {
                     ? TelecomMetricsController.make(mContext) : null;
 
             CallAnomalyWatchdog callAnomalyWatchdog = new CallAnomalyWatchdog(
-                    Executors.newSingleThreadScheduledExecutor(),
-                    mLock, mFeatureFlags, timeoutsAdapter, clockProxy,
+                    mTimingWheel, mContext.getMainExecutor(), mLock, mFeatureFlags,
+                    timeoutsAdapter, clockProxy,
                     emergencyCallDiagnosticLogger, metricsController);
 
+            TransactionManager.initScheduler(mTimingWheel);
             TransactionManager transactionManager = TransactionManager.getInstance();
 
             CallStreamingNotification callStreamingNotification =
@@ -433,8 +438,13 @@ public class TelecomSystem {
                     bluetoothDeviceManager,
                     featureFlags,
                     telephonyFlags,
-                    IncomingCallFilterGraph::new,
-                    metricsController);
+                    (incomingCall, filterListener, graphContext, graphTimeoutsAdapter,
+                            graphFeatureFlags, graphLock) -> new IncomingCallFilterGraph(
+                                    incomingCall, filterListener, graphContext,
+                                    graphTimeoutsAdapter, graphFeatureFlags, graphLock,
+                                    mTimingWheel),
+                    metricsController,
+                    mTimingWheel);
 
             mIncomingCallNotifier = incomingCallNotifier;
             incomingCallNotifier.setCallsManagerProxy(new IncomingCallNotifier.CallsManagerProxy() {
@@ -505,6 +515,7 @@ public class TelecomSystem {
                     null,
                     mLock,
                     metricsController,
+                    mTimingWheel,
                     sysUiPackageName);
         } finally {
             Log.endSession();
@@ -544,4 +555,8 @@ public class TelecomSystem {
     public FeatureFlags getFeatureFlags() {
         return mFeatureFlags;
     }
+
+    public TimingWheel getTimingWheel() {
+        return mTimingWheel;
+    }
 }
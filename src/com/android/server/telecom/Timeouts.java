@@ -136,6 +136,10 @@ public final class Timeouts {
         public int getDaysBackToSearchEmergencyDiagnosticEntries(){
             return Timeouts.getDaysBackToSearchEmergencyDiagnosticEntries();
         }
+
+        public long getInCallServiceUpdateCoalesceWindowMillis(ContentResolver cr) {
+            return Timeouts.getInCallServiceUpdateCoalesceWindowMillis(cr);
+        }
     }
 
     /** A prefix to use for all keys so to not clobber the global namespace. */
@@ -313,6 +317,15 @@ public final class Timeouts {
         return get(contentResolver, "retry_bluetooth_connect_audio_backoff_millis", 500L);
     }
 
+    /**
+     * Returns the window during which back-to-back updates to the same call are merged into a
+     * single update sent to the bound in-call services.  A value of 0 disables coalescing.
+     */
+    public static long getInCallServiceUpdateCoalesceWindowMillis(
+            ContentResolver contentResolver) {
+        return get(contentResolver, "in_call_service_update_coalesce_window_millis", 20L);
+    }
+
     /**
      * Returns the amount of time to wait for the phone account suggestion service to reply.
      */
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telecom.Log;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * A hierarchical timing wheel for Telecom's timeouts, created by {@link TelecomSystem} and
+ * shared by the owners it is passed to.
+ * <p>
+ * Timers are kept in {@link #LEVELS} wheels of {@link #WHEEL_SIZE} slots each; a slot of the
+ * first wheel spans {@link #TICK_MILLIS}, and a slot of each following wheel spans a whole
+ * revolution of the previous one.  A timer is filed in the finest wheel that can hold its
+ * deadline, and is moved down to a finer wheel as its deadline nears.  Scheduling and cancelling
+ * a timer are O(1), and a single thread wakes up only when a slot holding timers, or a slot
+ * boundary, is reached, and expires every due timer in one batch.
+ * <p>
+ * Timer tasks run on the wheel thread, so they must be short and must not take the
+ * {@link TelecomSystem.SyncRoot}; a timer whose work needs the lock posts it to the handler or
+ * executor of its owner.  Timers fire at most one tick late, and
+ * like {@link Handler#postDelayed}, time spent in deep sleep is not counted.
+ */
+public class TimingWheel {
+    private static final String TAG = TimingWheel.class.getSimpleName();
+    @VisibleForTesting
+    public static final long TICK_MILLIS = 10;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    // The longest delay, in ticks, which can be filed in the wheels; longer timers are filed at
+    // the end of the last wheel, and re-filed when they are reached.
+    private static final long MAX_DELTA_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    /**
+     * A scheduled timer.
+     */
+    public static final class Timer {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final TimingWheel mWheel;
+        private final String mOwner;
+        private final Runnable mTask;
+        private final long mDeadlineTick;
+        // The slot list this timer is filed in, linked through mPrev and mNext.
+        private Timer[] mSlotHead;
+        private int mSlot;
+        private Timer mPrev;
+        private Timer mNext;
+        private int mState = STATE_PENDING;
+
+        private Timer(TimingWheel wheel, String owner, Runnable task, long deadlineTick) {
+            mWheel = wheel;
+            mOwner = owner;
+            mTask = task;
+            mDeadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the timer.
+         * @return {@code true} if the timer was pending and will now never run.
+         */
+        public boolean cancel() {
+            return mWheel.cancel(this);
+        }
+
+        public boolean isPending() {
+            synchronized (mWheel.mLock) {
+                return mState == STATE_PENDING;
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+    private final LongSupplier mClock;
+    private final Runnable mAdvanceRunnable = this::advance;
+    /**
+     * The heads of the timer lists of each slot of each wheel.
+     */
+    @GuardedBy("mLock")
+    private final Timer[][] mWheels = new Timer[LEVELS][WHEEL_SIZE];
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mPendingByOwner = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mCurrentTick;
+    // The tick the wheel thread is due to wake up at, or Long.MAX_VALUE.
+    @GuardedBy("mLock")
+    private long mWakeTick = Long.MAX_VALUE;
+    @GuardedBy("mLock")
+    private int mPending;
+    @GuardedBy("mLock")
+    private long mScheduled;
+    @GuardedBy("mLock")
+    private long mCancelled;
+    @GuardedBy("mLock")
+    private long mExpired;
+    @GuardedBy("mLock")
+    private long mWakeups;
+
+    /**
+     * @param looper The looper of the wheel thread, which timers expire on.
+     */
+    public TimingWheel(Looper looper) {
+        this(new Handler(looper), SystemClock::uptimeMillis);
+    }
+
+    /**
+     * @param handler The handler timers expire on.
+     * @param clock The current time in mS; must be the clock of {@link Handler#postAtTime}.
+     */
+    @VisibleForTesting
+    public TimingWheel(Handler handler, LongSupplier clock) {
+        mHandler = handler;
+        mClock = clock;
+        mCurrentTick = clock.getAsLong() / TICK_MILLIS;
+    }
+
+    /**
+     * Schedules a task to run on the wheel thread once the delay has elapsed.
+     *
+     * @param owner Identifies the owner of the timer in dumpsys.
+     * @param task The task to run.
+     * @param delayMillis The delay, in mS.
+     * @return The timer, which can be used to cancel it.
+     */
+    public Timer schedule(String owner, Runnable task, long delayMillis) {
+        synchronized (mLock) {
+            long nowMillis = mClock.getAsLong();
+            if (mPending == 0) {
+                // No timer is filed, so the wheels can be moved straight to the current time.
+                mCurrentTick = Math.max(mCurrentTick, nowMillis / TICK_MILLIS);
+            }
+            long deadlineTick = (nowMillis + Math.max(0, delayMillis) + TICK_MILLIS - 1)
+                    / TICK_MILLIS;
+            Timer timer = new Timer(this, owner, task, deadlineTick);
+            mScheduled++;
+            mPending++;
+            mPendingByOwner.merge(owner, 1, Integer::sum);
+            if (timer.mDeadlineTick <= mCurrentTick) {
+                // Already due; expire it on the next wakeup.
+                insert(mWheels[0], (int) (mCurrentTick & WHEEL_MASK), timer);
+                scheduleWakeup(mCurrentTick);
+            } else {
+                file(timer);
+                scheduleWakeup(nextWakeTick());
+            }
+            return timer;
+        }
+    }
+
+    /**
+     * Completes the future with the given value if it is not completed before the timeout; a
+     * replacement for {@link CompletableFuture#completeOnTimeout} which uses this wheel.  The
+     * future is completed on the given executor rather than on the wheel thread, since its
+     * dependents run wherever it is completed.
+     *
+     * @return The future.
+     */
+    public <T> CompletableFuture<T> completeOnTimeout(String owner, CompletableFuture<T> future,
+            T value, long timeoutMillis, Executor executor) {
+        Timer timer = schedule(owner, () -> executor.execute(() -> future.complete(value)),
+                timeoutMillis);
+        future.whenComplete((result, throwable) -> timer.cancel());
+        return future;
+    }
+
+    private boolean cancel(Timer timer) {
+        synchronized (mLock) {
+            if (timer.mState != Timer.STATE_PENDING) {
+                return false;
+            }
+            unlink(timer);
+            timer.mState = Timer.STATE_CANCELLED;
+            mCancelled++;
+            onNoLongerPending(timer);
+            return true;
+        }
+    }
+
+    /**
+     * Expires every due timer; runs on the wheel thread.
+     */
+    @VisibleForTesting
+    public void advance() {
+        List<Timer> expired = new ArrayList<>();
+        synchronized (mLock) {
+            mWakeups++;
+            mWakeTick = Long.MAX_VALUE;
+            long nowTick = mClock.getAsLong() / TICK_MILLIS;
+            // Timers due at the current tick were filed after it was processed.
+            collectSlot(mWheels[0], (int) (mCurrentTick & WHEEL_MASK), expired);
+            while (mCurrentTick < nowTick && mPending > 0) {
+                long next = nextWakeTick();
+                if (next > nowTick) {
+                    // Nothing is filed in the slots up to the current time.
+                    mCurrentTick = nowTick;
+                    break;
+                }
+                mCurrentTick = next;
+                cascade();
+                collectSlot(mWheels[0], (int) (mCurrentTick & WHEEL_MASK), expired);
+            }
+            if (mPending == 0) {
+                mCurrentTick = Math.max(mCurrentTick, nowTick);
+            } else {
+                scheduleWakeup(nextWakeTick());
+            }
+        }
+        for (Timer timer : expired) {
+            try {
+                timer.mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, e, "advance: timer for %s threw", timer.mOwner);
+            }
+        }
+    }
+
+    /**
+     * Moves the timers of every coarser wheel whose slot starts at the current tick down to the
+     * finer wheels.
+     */
+    @GuardedBy("mLock")
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((mCurrentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int slot = (int) ((mCurrentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timer timer = mWheels[level][slot];
+            mWheels[level][slot] = null;
+            while (timer != null) {
+                Timer next = timer.mNext;
+                timer.mPrev = null;
+                timer.mNext = null;
+                if (timer.mDeadlineTick <= mCurrentTick) {
+                    insert(mWheels[0], (int) (mCurrentTick & WHEEL_MASK), timer);
+                } else {
+                    file(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void collectSlot(Timer[] wheel, int slot, List<Timer> expired) {
+        Timer timer = wheel[slot];
+        wheel[slot] = null;
+        while (timer != null) {
+            Timer next = timer.mNext;
+            timer.mPrev = null;
+            timer.mNext = null;
+            timer.mSlotHead = null;
+            timer.mState = Timer.STATE_EXPIRED;
+            mExpired++;
+            onNoLongerPending(timer);
+            expired.add(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Files a timer due after the current tick in the finest wheel which can hold it.
+     */
+    @GuardedBy("mLock")
+    private void file(Timer timer) {
+        long delta = Math.min(timer.mDeadlineTick - mCurrentTick, MAX_DELTA_TICKS);
+        long deadline = mCurrentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        insert(mWheels[level], slot, timer);
+    }
+
+    @GuardedBy("mLock")
+    private static void insert(Timer[] wheel, int slot, Timer timer) {
+        timer.mSlotHead = wheel;
+        timer.mSlot = slot;
+        timer.mPrev = null;
+        timer.mNext = wheel[slot];
+        if (wheel[slot] != null) {
+            wheel[slot].mPrev = timer;
+        }
+        wheel[slot] = timer;
+    }
+
+    @GuardedBy("mLock")
+    private static void unlink(Timer timer) {
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else if (timer.mSlotHead != null) {
+            timer.mSlotHead[timer.mSlot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mSlotHead = null;
+    }
+
+    @GuardedBy("mLock")
+    private void onNoLongerPending(Timer timer) {
+        mPending--;
+        Integer count = mPendingByOwner.get(timer.mOwner);
+        if (count == null || count <= 1) {
+            mPendingByOwner.remove(timer.mOwner);
+        } else {
+            mPendingByOwner.put(timer.mOwner, count - 1);
+        }
+    }
+
+    /**
+     * @return The next tick after the current one with timers filed in the finest wheel, or at
+     * which the coarser wheels must be cascaded.
+     */
+    @GuardedBy("mLock")
+    private long nextWakeTick() {
+        if (mPending == 0) {
+            return Long.MAX_VALUE;
+        }
+        long tick = mCurrentTick + 1;
+        for (int i = 0; i < WHEEL_SIZE; i++, tick++) {
+            if ((tick & WHEEL_MASK) == 0 || mWheels[0][(int) (tick & WHEEL_MASK)] != null) {
+                return tick;
+            }
+        }
+        return tick;
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleWakeup(long tick) {
+        if (tick == Long.MAX_VALUE || tick >= mWakeTick) {
+            return;
+        }
+        mWakeTick = tick;
+        mHandler.removeCallbacks(mAdvanceRunnable);
+        mHandler.postAtTime(mAdvanceRunnable, tick * TICK_MILLIS);
+    }
+
+    @VisibleForTesting
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending;
+        }
+    }
+
+    @VisibleForTesting
+    public int getPendingCount(String owner) {
+        synchronized (mLock) {
+            return mPendingByOwner.getOrDefault(owner, 0);
+        }
+    }
+
+    /**
+     * @return {@code true} if a timer is pending which is due at the tick the given time falls in.
+     */
+    @VisibleForTesting
+    public boolean hasPendingTimerDueAt(long timeMillis) {
+        long tick = (timeMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+        synchronized (mLock) {
+            for (Timer[] wheel : mWheels) {
+                for (Timer timer : wheel) {
+                    for (; timer != null; timer = timer.mNext) {
+                        if (timer.mDeadlineTick == tick) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Dump the pending timers by owner for dumpsys, so that leaked timers are visible.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US,
+                    "pending=%d, scheduled=%d, cancelled=%d, expired=%d, wakeups=%d",
+                    mPending, mScheduled, mCancelled, mExpired, mWakeups));
+            pw.println("Pending timers by owner:");
+            pw.increaseIndent();
+            for (Map.Entry<String, Integer> entry : mPendingByOwner.entrySet()) {
+                pw.print(entry.getKey());
+                pw.print(": ");
+                pw.println(entry.getValue());
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -28,9 +28,19 @@ public class BlockCheckerAdapter {
     private static final String TAG = BlockCheckerAdapter.class.getSimpleName();
 
     private FeatureFlags mFeatureFlags;
+    private final BlockStatusCache mBlockStatusCache;
 
     public BlockCheckerAdapter(FeatureFlags featureFlags) {
+        this(featureFlags, null);
+    }
+
+    /**
+     * @param blockStatusCache Where {@code non-null}, the cache consulted before querying the
+     *                         provider.
+     */
+    public BlockCheckerAdapter(FeatureFlags featureFlags, BlockStatusCache blockStatusCache) {
         mFeatureFlags = featureFlags;
+        mBlockStatusCache = blockStatusCache;
     }
 
     /**
@@ -52,12 +62,30 @@ public class BlockCheckerAdapter {
      */
     public int getBlockStatus(Context context, String phoneNumber,
             int numberPresentation, boolean isNumberInContacts) {
-        int blockStatus = BlockedNumberContract.STATUS_NOT_BLOCKED;
-        long startTimeNano = System.nanoTime();
         BlockedNumbersManager blockedNumbersManager = mFeatureFlags
                 .telecomMainlineBlockedNumbersManager()
                 ? context.getSystemService(BlockedNumbersManager.class)
                 : null;
+        if (mBlockStatusCache == null) {
+            return queryBlockStatus(context, blockedNumbersManager, phoneNumber,
+                    numberPresentation, isNumberInContacts, null);
+        }
+        BlockStatusCache.Lookup lookup = mBlockStatusCache.lookup(context.getUser(), phoneNumber,
+                numberPresentation, isNumberInContacts,
+                () -> getBlockSuppressedUntilMillis(context, blockedNumbersManager));
+        if (lookup.hasBlockStatus()) {
+            Log.d(TAG, "Using cached block status %d", lookup.getBlockStatus());
+            return lookup.getBlockStatus();
+        }
+        return queryBlockStatus(context, blockedNumbersManager, phoneNumber, numberPresentation,
+                isNumberInContacts, lookup);
+    }
+
+    private int queryBlockStatus(Context context, BlockedNumbersManager blockedNumbersManager,
+            String phoneNumber, int numberPresentation, boolean isNumberInContacts,
+            BlockStatusCache.Lookup lookup) {
+        int blockStatus = BlockedNumberContract.STATUS_NOT_BLOCKED;
+        long startTimeNano = System.nanoTime();
 
         try {
             Bundle extras = new Bundle();
@@ -71,6 +99,10 @@ public class BlockCheckerAdapter {
             if (blockStatus != BlockedNumberContract.STATUS_NOT_BLOCKED) {
                 Log.d(TAG, phoneNumber + " is blocked.");
             }
+            // Only cache statuses actually returned by the provider.
+            if (lookup != null) {
+                mBlockStatusCache.store(lookup, blockStatus);
+            }
         } catch (Exception e) {
             Log.e(TAG, e, "Exception checking for blocked number");
         }
@@ -81,4 +113,31 @@ public class BlockCheckerAdapter {
         }
         return blockStatus;
     }
+
+    /**
+     * @return The time block suppression ends, 0 if blocking is not suppressed, or
+     * {@link BlockStatusCache#SUPPRESSION_STATUS_UNKNOWN} if the provider could not be queried.
+     */
+    private long getBlockSuppressedUntilMillis(Context context,
+            BlockedNumbersManager blockedNumbersManager) {
+        try {
+            if (blockedNumbersManager != null) {
+                BlockedNumbersManager.BlockSuppressionStatus status =
+                        blockedNumbersManager.getBlockSuppressionStatus();
+                return status.getIsSuppressed()
+                        ? toSuppressedUntilMillis(status.getUntilTimestampMillis()) : 0;
+            }
+            BlockedNumberContract.SystemContract.BlockSuppressionStatus status =
+                    BlockedNumberContract.SystemContract.getBlockSuppressionStatus(context);
+            return status.isSuppressed ? toSuppressedUntilMillis(status.untilTimestampMillis) : 0;
+        } catch (Exception e) {
+            Log.e(TAG, e, "Exception checking block suppression status");
+            return BlockStatusCache.SUPPRESSION_STATUS_UNKNOWN;
+        }
+    }
+
+    private static long toSuppressedUntilMillis(long untilTimestampMillis) {
+        // Treat a suppression without an end time as lasting until it is explicitly ended.
+        return untilTimestampMillis > 0 ? untilTimestampMillis : Long.MAX_VALUE;
+    }
 }
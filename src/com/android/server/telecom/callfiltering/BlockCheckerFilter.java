@@ -20,7 +20,6 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.UserManager;
 import android.provider.BlockedNumberContract;
 import android.provider.CallLog;
@@ -28,6 +27,8 @@ import android.telecom.CallerInfo;
 import android.telecom.Log;
 import android.telecom.TelecomManager;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallerInfoLookupHelper;
 import com.android.server.telecom.flags.FeatureFlags;
@@ -45,8 +46,7 @@ public class BlockCheckerFilter extends CallFilter {
     private final BlockCheckerAdapter mBlockCheckerAdapter;
     private final String TAG = "BlockCheckerFilter";
     private boolean mContactExists;
-    private HandlerThread mHandlerThread;
-    private Handler mHandler;
+    private final CallFilterExecutor mExecutor;
     private FeatureFlags mFeatureFlags;
 
     public static final long CALLER_INFO_QUERY_TIMEOUT = 5000;
@@ -109,14 +109,21 @@ public class BlockCheckerFilter extends CallFilter {
     public BlockCheckerFilter(Context context, Call call,
             CallerInfoLookupHelper callerInfoLookupHelper,
             BlockCheckerAdapter blockCheckerAdapter, FeatureFlags featureFlags) {
+        this(context, call, callerInfoLookupHelper, blockCheckerAdapter, featureFlags,
+                CallFilterExecutor.getBlockCheckInstance());
+    }
+
+    @VisibleForTesting
+    public BlockCheckerFilter(Context context, Call call,
+            CallerInfoLookupHelper callerInfoLookupHelper,
+            BlockCheckerAdapter blockCheckerAdapter, FeatureFlags featureFlags,
+            CallFilterExecutor executor) {
         mCall = call;
         mContext = context;
         mCallerInfoLookupHelper = callerInfoLookupHelper;
         mBlockCheckerAdapter = blockCheckerAdapter;
         mContactExists = false;
-        mHandlerThread = new HandlerThread(TAG);
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mExecutor = executor;
         mFeatureFlags = featureFlags;
     }
 
@@ -182,12 +189,16 @@ public class BlockCheckerFilter extends CallFilter {
         final String number = mCall.getHandle() == null ? null :
                 mCall.getHandle().getSchemeSpecificPart();
 
+        // The provider query blocks, so run it on a worker of the block check pool rather than on
+        // the thread running the filter graph, which is shared with the graphs of other calls.
+        Handler handler = mExecutor.obtainHandler();
         CompletableFuture.supplyAsync(
                 () -> mBlockCheckerAdapter.getBlockStatus(userContext, number,
                         presentation, isNumberInContacts),
-                new LoggedHandlerExecutor(mHandler, "BCF.gBS", null))
+                new LoggedHandlerExecutor(handler, "BCF.gBS", null))
                 .thenApplyAsync((x) -> completeResult(resultFuture, x),
-                        new LoggedHandlerExecutor(mHandler, "BCF.gBS", null));
+                        new LoggedHandlerExecutor(handler, "BCF.gBS", null))
+                .whenComplete((x, t) -> mExecutor.releaseHandler(handler));
     }
 
     private int completeResult(CompletableFuture<CallFilteringResult> resultFuture,
@@ -218,10 +229,14 @@ public class BlockCheckerFilter extends CallFilter {
         Log.addEvent(mCall, LogUtils.Events.BLOCK_CHECK_FINISHED,
                 blockStatusToString(blockStatus) + " " + result);
         resultFuture.complete(result);
-        mHandlerThread.quitSafely();
         return blockStatus;
     }
 
+    @Override
+    public String getLatencyName() {
+        return "BlockChecker";
+    }
+
     private int getBlockReason(int blockStatus) {
         switch (blockStatus) {
             case STATUS_BLOCKED_IN_LIST:
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.os.UserHandle;
+import android.telecom.Log;
+import android.telephony.PhoneNumberUtils;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.ClockProxy;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-memory cache of the block status returned by the BlockedNumberProvider, keyed by user,
+ * normalized number and the other inputs to the block check (presentation and whether the
+ * number is a contact).
+ * <p>
+ * The cache is cleared with {@link #invalidate(String)} whenever the blocked numbers, the
+ * enhanced call blocking settings or the carrier config change.  While block suppression is
+ * active after an emergency contact, the provider does not block any number, so the cache is
+ * bypassed entirely: nothing is read from or written to it until the suppression ends.  The
+ * suppression end time is fetched from the provider again after every
+ * {@link #onBlockSuppressionChanged()}.
+ */
+public class BlockStatusCache {
+    private static final String TAG = BlockStatusCache.class.getSimpleName();
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 256;
+    /**
+     * Returned by the suppression supplier passed to {@link #lookup} when the block suppression
+     * status could not be determined.
+     */
+    public static final long SUPPRESSION_STATUS_UNKNOWN = -1;
+
+    /**
+     * The result of a {@link #lookup}.  Either holds the cached block status, or identifies where
+     * the block status should be stored with {@link #store(Lookup, int)} once it is queried.
+     */
+    public static class Lookup {
+        private final String mKey;
+        private final long mGeneration;
+        private final boolean mCacheable;
+        private final Integer mBlockStatus;
+
+        private Lookup(String key, long generation, boolean cacheable, Integer blockStatus) {
+            mKey = key;
+            mGeneration = generation;
+            mCacheable = cacheable;
+            mBlockStatus = blockStatus;
+        }
+
+        public boolean hasBlockStatus() {
+            return mBlockStatus != null;
+        }
+
+        public int getBlockStatus() {
+            return mBlockStatus;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ClockProxy mClockProxy;
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mEntries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /**
+     * Incremented on every invalidation, so that a provider query which started before an
+     * invalidation does not store a stale result.
+     */
+    @GuardedBy("mLock")
+    private long mGeneration = 0;
+    @GuardedBy("mLock")
+    private boolean mIsSuppressionStatusKnown = false;
+    @GuardedBy("mLock")
+    private long mSuppressedUntilMillis = 0;
+    @GuardedBy("mLock")
+    private long mHits = 0;
+    @GuardedBy("mLock")
+    private long mMisses = 0;
+    @GuardedBy("mLock")
+    private long mBypassed = 0;
+    @GuardedBy("mLock")
+    private long mInvalidations = 0;
+
+    public BlockStatusCache(ClockProxy clockProxy) {
+        mClockProxy = clockProxy;
+    }
+
+    /**
+     * Looks up the cached block status for a number.
+     *
+     * @param userHandle The user the block check is performed for.
+     * @param phoneNumber The number to check.
+     * @param numberPresentation The presentation of the number.
+     * @param isNumberInContacts Whether the number is a contact of the user.
+     * @param suppressedUntilSupplier Queries the provider for the time, in
+     *                                {@link System#currentTimeMillis()}, block suppression ends;
+     *                                0 if it is not suppressed, or
+     *                                {@link #SUPPRESSION_STATUS_UNKNOWN}.  Only called when the
+     *                                suppression status has changed since the last lookup.
+     * @return The lookup result.
+     */
+    public Lookup lookup(UserHandle userHandle, String phoneNumber, int numberPresentation,
+            boolean isNumberInContacts, LongSupplier suppressedUntilSupplier) {
+        String key = makeKey(userHandle, phoneNumber, numberPresentation, isNumberInContacts);
+        long generation;
+        boolean isSuppressionStatusKnown;
+        synchronized (mLock) {
+            generation = mGeneration;
+            isSuppressionStatusKnown = mIsSuppressionStatusKnown;
+        }
+        if (!isSuppressionStatusKnown) {
+            long suppressedUntilMillis = suppressedUntilSupplier.getAsLong();
+            synchronized (mLock) {
+                if (suppressedUntilMillis != SUPPRESSION_STATUS_UNKNOWN
+                        && generation == mGeneration) {
+                    mSuppressedUntilMillis = suppressedUntilMillis;
+                    mIsSuppressionStatusKnown = true;
+                }
+            }
+        }
+        synchronized (mLock) {
+            if (!mIsSuppressionStatusKnown
+                    || mClockProxy.currentTimeMillis() < mSuppressedUntilMillis) {
+                mBypassed++;
+                return new Lookup(key, generation, false, null);
+            }
+            Integer blockStatus = mEntries.get(key);
+            if (blockStatus != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            return new Lookup(key, generation, true, blockStatus);
+        }
+    }
+
+    /**
+     * Stores the block status queried from the provider after a cache miss.  The status is
+     * dropped if the cache was invalidated since the lookup.
+     */
+    public void store(Lookup lookup, int blockStatus) {
+        if (!lookup.mCacheable) {
+            return;
+        }
+        synchronized (mLock) {
+            if (lookup.mGeneration == mGeneration) {
+                mEntries.put(lookup.mKey, blockStatus);
+            }
+        }
+    }
+
+    /**
+     * Clears the cache.
+     * @param reason The reason for the invalidation, for logging.
+     */
+    public void invalidate(String reason) {
+        synchronized (mLock) {
+            Log.i(TAG, "invalidate: %s, dropping %d entries", reason, mEntries.size());
+            mEntries.clear();
+            mGeneration++;
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Clears the cache and bypasses it until the block suppression status has been re-queried.
+     * Must be called after block suppression starts or ends.
+     */
+    public void onBlockSuppressionChanged() {
+        synchronized (mLock) {
+            mIsSuppressionStatusKnown = false;
+        }
+        invalidate("block suppression changed");
+    }
+
+    @VisibleForTesting
+    public long getHits() {
+        synchronized (mLock) {
+            return mHits;
+        }
+    }
+
+    @VisibleForTesting
+    public long getMisses() {
+        synchronized (mLock) {
+            return mMisses;
+        }
+    }
+
+    @VisibleForTesting
+    public long getBypassed() {
+        synchronized (mLock) {
+            return mBypassed;
+        }
+    }
+
+    /**
+     * Dump the cache counters for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            long lookups = mHits + mMisses;
+            pw.println(String.format(Locale.US,
+                    "entries=%d, hits=%d, misses=%d, hitRate=%d%%, bypassedWhileSuppressed=%d,"
+                            + " invalidations=%d, suppressedUntil=%s",
+                    mEntries.size(), mHits, mMisses, lookups == 0 ? 0 : mHits * 100 / lookups,
+                    mBypassed, mInvalidations,
+                    !mIsSuppressionStatusKnown ? "unknown" : mSuppressedUntilMillis));
+        }
+    }
+
+    private static String makeKey(UserHandle userHandle, String phoneNumber,
+            int numberPresentation, boolean isNumberInContacts) {
+        String normalized;
+        if (phoneNumber == null) {
+            normalized = "";
+        } else if (PhoneNumberUtils.isUriNumber(phoneNumber)
+                || phoneNumber.chars().anyMatch(Character::isLetter)) {
+            // Only strip separators from dialable numbers; normalizing would map letters to
+            // digits and could make distinct addresses share an entry.
+            normalized = phoneNumber;
+        } else {
+            normalized = PhoneNumberUtils.normalizeNumber(phoneNumber);
+        }
+        return (userHandle == null ? UserHandle.USER_NULL : userHandle.getIdentifier())
+                + "|" + numberPresentation + "|" + (isNumberInContacts ? 1 : 0) + "|"
+                + normalized;
+    }
+}
@@ -40,6 +40,14 @@ public class CallFilter {
         return CompletableFuture.completedFuture(priorStageResult);
     }
 
+    /**
+     * @return The name the latency of this filter is recorded under in dumpsys, or {@code null}
+     * if its latency is not recorded.
+     */
+    public String getLatencyName() {
+        return null;
+    }
+
     List<CallFilter> getDependencies() {
         return mDependencies;
     }
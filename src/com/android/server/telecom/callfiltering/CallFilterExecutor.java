@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded pool of {@link HandlerThread}s, along with latency histograms for each kind of
+ * {@link CallFilter}.  One pool is shared by every {@link IncomingCallFilterGraph}, and a separate
+ * one by the blocked number provider queries of every {@link BlockCheckerFilter}, so that a slow
+ * provider cannot hold up the filter graphs of other calls.
+ * <p>
+ * Previously each incoming call started a new {@link HandlerThread} for its filter graph and
+ * another for its block check.  Instead, a graph or block check now borrows a {@link Handler} on
+ * the least loaded worker of a pool and releases it once it is done.  Workers are started
+ * lazily, only when every existing worker is busy, up to the size of the pool, and are never
+ * stopped, so that the next incoming call does not pay for thread startup.
+ */
+public class CallFilterExecutor {
+    private static final String THREAD_NAME_PREFIX = "CallFilter-";
+    private static final String BLOCK_CHECK_THREAD_NAME_PREFIX = "BlockCheck-";
+    @VisibleForTesting
+    public static final int MAX_WORKER_THREADS = 3;
+    @VisibleForTesting
+    public static final int MAX_BLOCK_CHECK_THREADS = 2;
+    /**
+     * Upper bounds, in milliseconds, of each latency histogram bucket.  Latencies longer than
+     * the last bound are counted in a final overflow bucket.
+     */
+    @VisibleForTesting
+    public static final long[] LATENCY_BUCKET_BOUNDS_MILLIS =
+            {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private static CallFilterExecutor sInstance;
+    private static CallFilterExecutor sBlockCheckInstance;
+
+    private static class Worker {
+        final Handler mHandler;
+        // The number of graphs and block checks currently holding this worker.
+        int mInFlight = 0;
+
+        Worker(Handler handler) {
+            mHandler = handler;
+        }
+    }
+
+    /**
+     * Latency distribution of a single kind of filter.
+     */
+    @VisibleForTesting
+    public static class LatencyHistogram {
+        private final int[] mBuckets = new int[LATENCY_BUCKET_BOUNDS_MILLIS.length + 1];
+        private int mCount;
+        private int mTimeouts;
+        private long mTotalMillis;
+        private long mMaxMillis;
+
+        void record(long latencyMillis) {
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_BOUNDS_MILLIS.length
+                    && latencyMillis > LATENCY_BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalMillis += latencyMillis;
+            mMaxMillis = Math.max(mMaxMillis, latencyMillis);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getTimeouts() {
+            return mTimeouts;
+        }
+
+        public int getBucketCount(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            pw.print(String.format(Locale.US, "count=%d, timeouts=%d, avg=%dms, max=%dms, [",
+                    mCount, mTimeouts, mCount == 0 ? 0 : mTotalMillis / mCount, mMaxMillis));
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (i > 0) {
+                    pw.print(", ");
+                }
+                pw.print(i < LATENCY_BUCKET_BOUNDS_MILLIS.length
+                        ? "<=" + LATENCY_BUCKET_BOUNDS_MILLIS[i]
+                        : ">" + LATENCY_BUCKET_BOUNDS_MILLIS[i - 1]);
+                pw.print(":");
+                pw.print(mBuckets[i]);
+            }
+            pw.println("]");
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final String mThreadNamePrefix;
+    private final int mMaxWorkerThreads;
+    @GuardedBy("mLock")
+    private final List<Worker> mWorkers = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final Map<String, LatencyHistogram> mLatencies = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private int mInFlight = 0;
+    @GuardedBy("mLock")
+    private int mPeakInFlight = 0;
+
+    /**
+     * @return The executor shared by all incoming call filter graphs.
+     */
+    public static synchronized CallFilterExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallFilterExecutor(THREAD_NAME_PREFIX, MAX_WORKER_THREADS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The executor shared by all blocked number provider queries.
+     */
+    public static synchronized CallFilterExecutor getBlockCheckInstance() {
+        if (sBlockCheckInstance == null) {
+            sBlockCheckInstance = new CallFilterExecutor(BLOCK_CHECK_THREAD_NAME_PREFIX,
+                    MAX_BLOCK_CHECK_THREADS);
+        }
+        return sBlockCheckInstance;
+    }
+
+    @VisibleForTesting
+    public CallFilterExecutor(int maxWorkerThreads) {
+        this(THREAD_NAME_PREFIX, maxWorkerThreads);
+    }
+
+    private CallFilterExecutor(String threadNamePrefix, int maxWorkerThreads) {
+        mThreadNamePrefix = threadNamePrefix;
+        mMaxWorkerThreads = Math.max(1, maxWorkerThreads);
+    }
+
+    /**
+     * Borrows a {@link Handler} on the least loaded worker.  A new worker thread is only started
+     * if every existing worker is already in use.  The handler must be returned with
+     * {@link #releaseHandler(Handler)}.
+     */
+    public Handler obtainHandler() {
+        synchronized (mLock) {
+            Worker leastLoaded = null;
+            for (Worker w : mWorkers) {
+                if (leastLoaded == null || w.mInFlight < leastLoaded.mInFlight) {
+                    leastLoaded = w;
+                }
+            }
+            if (leastLoaded == null
+                    || (leastLoaded.mInFlight > 0 && mWorkers.size() < mMaxWorkerThreads)) {
+                HandlerThread thread = new HandlerThread(mThreadNamePrefix + mWorkers.size());
+                thread.start();
+                leastLoaded = new Worker(new Handler(thread.getLooper()));
+                mWorkers.add(leastLoaded);
+            }
+            leastLoaded.mInFlight++;
+            mInFlight++;
+            mPeakInFlight = Math.max(mPeakInFlight, mInFlight);
+            return leastLoaded.mHandler;
+        }
+    }
+
+    /**
+     * Returns a handler previously borrowed with {@link #obtainHandler()}.  Work already posted to
+     * the handler still runs.
+     */
+    public void releaseHandler(Handler handler) {
+        synchronized (mLock) {
+            for (Worker w : mWorkers) {
+                if (w.mHandler == handler) {
+                    if (w.mInFlight > 0) {
+                        w.mInFlight--;
+                        mInFlight--;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records how long a filter took from being started to producing its result.
+     * @param filterName The name of the filter; see {@link CallFilter#getLatencyName()}.
+     */
+    public void recordLatency(String filterName, long latencyMillis) {
+        synchronized (mLock) {
+            getHistogram(filterName).record(latencyMillis);
+        }
+    }
+
+    /**
+     * Records that a filter had not produced a result when its graph timed out.
+     * @param filterName The name of the filter; see {@link CallFilter#getLatencyName()}.
+     */
+    public void recordTimeout(String filterName) {
+        synchronized (mLock) {
+            getHistogram(filterName).mTimeouts++;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private LatencyHistogram getHistogram(String filterName) {
+        LatencyHistogram histogram = mLatencies.get(filterName);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mLatencies.put(filterName, histogram);
+        }
+        return histogram;
+    }
+
+    @VisibleForTesting
+    public LatencyHistogram getLatencyHistogram(String filterName) {
+        synchronized (mLock) {
+            return mLatencies.get(filterName);
+        }
+    }
+
+    @VisibleForTesting
+    public int getThreadsCreated() {
+        synchronized (mLock) {
+            return mWorkers.size();
+        }
+    }
+
+    @VisibleForTesting
+    public int getInFlight() {
+        synchronized (mLock) {
+            return mInFlight;
+        }
+    }
+
+    /**
+     * Dump the pool counters and filter latencies for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US,
+                    "threadsCreated=%d (max=%d), inFlight=%d, peakInFlight=%d",
+                    mWorkers.size(), mMaxWorkerThreads, mInFlight, mPeakInFlight));
+            pw.println("Filter latencies:");
+            pw.increaseIndent();
+            for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+                pw.print(entry.getKey());
+                pw.print(": ");
+                entry.getValue().dump(pw);
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
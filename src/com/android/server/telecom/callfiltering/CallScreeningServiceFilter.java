@@ -304,6 +304,23 @@ public class CallScreeningServiceFilter extends CallFilter {
         return super.toString() + ": " + mPackageName;
     }
 
+    @Override
+    public String getLatencyName() {
+        String packageType;
+        switch (mPackagetype) {
+            case PACKAGE_TYPE_CARRIER:
+                packageType = "carrier";
+                break;
+            case PACKAGE_TYPE_DEFAULT_DIALER:
+                packageType = "dialer";
+                break;
+            default:
+                packageType = "user";
+                break;
+        }
+        return "CallScreeningService[" + packageType + "]:" + mPackageName;
+    }
+
     private boolean hasReadContactsPermission() {
         int permission = PackageManager.PERMISSION_DENIED;
         if (mPackagetype == PACKAGE_TYPE_CARRIER || mPackagetype == PACKAGE_TYPE_DEFAULT_DIALER) {
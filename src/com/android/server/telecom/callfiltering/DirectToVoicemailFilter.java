@@ -79,4 +79,9 @@ public class DirectToVoicemailFilter extends CallFilter {
                 });
         return resultFuture;
     }
+
+    @Override
+    public String getLatencyName() {
+        return "DirectToVoicemail";
+    }
 }
@@ -69,4 +69,8 @@ public class DndCallFilter extends CallFilter {
         return resultFuture;
     }
 
+    @Override
+    public String getLatencyName() {
+        return "Dnd";
+    }
 }
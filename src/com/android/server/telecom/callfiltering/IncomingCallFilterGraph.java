@@ -18,15 +18,18 @@ package com.android.server.telecom.callfiltering;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.telecom.Log;
 import android.telecom.Logging.Runnable;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import com.android.server.telecom.Call;
 import com.android.server.telecom.LoggedHandlerExecutor;
 import com.android.server.telecom.LogUtils;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.flags.FeatureFlags;
 
 import java.util.ArrayList;
@@ -47,8 +50,8 @@ public class IncomingCallFilterGraph {
 
     private final CallFilterResultCallback mListener;
     private final Call mCall;
-    private final Handler mHandler;
-    private final HandlerThread mHandlerThread;
+    private final CallFilterExecutor mExecutor;
+    private Handler mHandler;
     private final TelecomSystem.SyncRoot mLock;
     private List<CallFilter> mFiltersList;
     private CallFilter mCompletionSentinel;
@@ -57,16 +60,34 @@ public class IncomingCallFilterGraph {
     private Context mContext;
     private Timeouts.Adapter mTimeoutsAdapter;
     private final FeatureFlags mFeatureFlags;
+    private Runnable mTimeoutRunnable;
+    // Schedules the timeout, which it only posts to mHandler.
+    private final TimingWheel mTimingWheel;
+    private TimingWheel.Timer mTimeout;
 
     private class PostFilterTask {
         private final CallFilter mFilter;
+        private final long mStartTimeMillis;
 
         public PostFilterTask(final CallFilter filter) {
             mFilter = filter;
+            mStartTimeMillis = SystemClock.elapsedRealtime();
         }
 
         public CallFilteringResult whenDone(CallFilteringResult result) {
             Log.i(TAG, "Filter %s done, result: %s.", mFilter, result);
+            String latencyName = mFilter.getLatencyName();
+            if (latencyName != null) {
+                mExecutor.recordLatency(latencyName,
+                        SystemClock.elapsedRealtime() - mStartTimeMillis);
+            }
+            synchronized (mLock) {
+                // The graph timed out and the handler was released; it is now shared with
+                // other graphs, so the rest of this graph must not run.
+                if (mFinished) {
+                    return result;
+                }
+            }
             mFilter.result = result;
             for (CallFilter filter : mFilter.getFollowings()) {
                 if (filter.decrementAndGetIndegree() == 0) {
@@ -79,7 +100,10 @@ public class IncomingCallFilterGraph {
                     mListener.onCallFilteringComplete(mCall, result, false);
                     Log.addEvent(mCall, LogUtils.Events.FILTERING_COMPLETED, result);
                 }
-                mHandlerThread.quit();
+                mTimeout.cancel();
+                mHandler.removeCallbacks(mTimeoutRunnable.getRunnableToCancel());
+                mTimeoutRunnable.cancel();
+                mExecutor.releaseHandler(mHandler);
             }
             return result;
         }
@@ -87,18 +111,25 @@ public class IncomingCallFilterGraph {
 
     public IncomingCallFilterGraph(Call call, CallFilterResultCallback listener, Context context,
             Timeouts.Adapter timeoutsAdapter, FeatureFlags featureFlags,
-            TelecomSystem.SyncRoot lock) {
+            TelecomSystem.SyncRoot lock, TimingWheel timingWheel) {
+        this(call, listener, context, timeoutsAdapter, featureFlags, lock, timingWheel,
+                CallFilterExecutor.getInstance());
+    }
+
+    @VisibleForTesting
+    public IncomingCallFilterGraph(Call call, CallFilterResultCallback listener, Context context,
+            Timeouts.Adapter timeoutsAdapter, FeatureFlags featureFlags,
+            TelecomSystem.SyncRoot lock, TimingWheel timingWheel, CallFilterExecutor executor) {
         mListener = listener;
         mCall = call;
         mFiltersList = new ArrayList<>();
         mFeatureFlags = featureFlags;
-        mHandlerThread = new HandlerThread(TAG);
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mExecutor = executor;
         mLock = lock;
         mFinished = false;
         mContext = context;
         mTimeoutsAdapter = timeoutsAdapter;
+        mTimingWheel = timingWheel;
         mCurrentResult = DEFAULT_RESULT;
     }
 
@@ -108,6 +139,9 @@ public class IncomingCallFilterGraph {
 
     public void performFiltering() {
         Log.addEvent(mCall, LogUtils.Events.FILTERING_INITIATED);
+        // Only borrow a worker once filtering starts, so that a graph which is built but never
+        // started does not hold one.
+        mHandler = mExecutor.obtainHandler();
         CallFilter dummyStart = new CallFilter();
         mCompletionSentinel = new CallFilter();
 
@@ -119,8 +153,7 @@ public class IncomingCallFilterGraph {
         }
         addEdge(dummyStart, mCompletionSentinel);
 
-        scheduleFilter(dummyStart);
-        mHandler.postDelayed(new Runnable("ICFG.pF", mLock) {
+        mTimeoutRunnable = new Runnable("ICFG.pF", mLock) {
             @Override
             public void loggedRun() {
                 if (!mFinished) {
@@ -128,16 +161,25 @@ public class IncomingCallFilterGraph {
                     mCurrentResult = onTimeoutCombineFinishedFilters(mFiltersList, mCurrentResult);
                     mListener.onCallFilteringComplete(mCall, mCurrentResult, true);
                     mFinished = true;
-                    mHandlerThread.quit();
+                    mExecutor.releaseHandler(mHandler);
                 }
                 for (CallFilter filter : mFiltersList) {
+                    String latencyName = filter.getLatencyName();
+                    if (filter.result == null && latencyName != null) {
+                        mExecutor.recordTimeout(latencyName);
+                    }
                     // unbind timed out call screening service
                     if (filter instanceof CallScreeningServiceFilter) {
                         ((CallScreeningServiceFilter) filter).unbindCallScreeningService();
                     }
                 }
             }
-        }.prepare(), mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
+        };
+        // Schedule the timeout first so that it can always be cancelled once the graph completes.
+        java.lang.Runnable timeoutRunnable = mTimeoutRunnable.prepare();
+        mTimeout = mTimingWheel.schedule(TAG, () -> mHandler.post(timeoutRunnable),
+                mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
+        scheduleFilter(dummyStart);
     }
 
     /**
@@ -202,7 +244,8 @@ public class IncomingCallFilterGraph {
         after.addDependency(before);
     }
 
-    public HandlerThread getHandlerThread() {
-        return mHandlerThread;
+    @VisibleForTesting
+    public Handler getHandler() {
+        return mHandler;
     }
 }
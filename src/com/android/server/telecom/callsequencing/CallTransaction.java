@@ -17,17 +17,18 @@
 package com.android.server.telecom.callsequencing;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.telecom.CallException;
 import android.telecom.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.telecom.LoggedHandlerExecutor;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.flags.Flags;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +39,28 @@ public class CallTransaction {
     //TODO: add log events
     private static final long DEFAULT_TRANSACTION_TIMEOUT_MS = 5000L;
 
+    /**
+     * Declared by transactions which may touch any call or global state.  Conflicts with every
+     * other transaction; see {@link #getResources()}.
+     */
+    public static final String RESOURCE_ALL = "all";
+    /**
+     * Audio focus, the audio route and the mute state.
+     */
+    public static final String RESOURCE_AUDIO = "audio";
+    /**
+     * The active call slot; declared by every transaction that may change which call is active,
+     * or hold or disconnect a call to make room for another one.
+     */
+    public static final String RESOURCE_ACTIVE_CALL = "activeCall";
+
+    /**
+     * @return The resource representing the state of a single call.
+     */
+    public static String callResource(String callId) {
+        return "call:" + callId;
+    }
+
     /**
      * Tracks stats about a transaction for logging purposes.
      */
@@ -131,21 +154,28 @@ public class CallTransaction {
 
     protected final AtomicBoolean mCompleted = new AtomicBoolean(false);
     protected final String mTransactionName = this.getClass().getSimpleName();
-    private final HandlerThread mHandlerThread;
-    protected final Handler mHandler;
+    // Shared worker handler assigned by the TransactionScheduler when the transaction is started
+    // (or first needs it); owned by the scheduler, not us.
+    private final Object mHandlerLock = new Object();
+    private volatile Handler mHandler;
+    private final TransactionScheduler mScheduler;
+    // The pending timeout, cancelled once the transaction finishes.
+    private volatile TimingWheel.Timer mTimeout;
+    private final AtomicBoolean mReleased = new AtomicBoolean(false);
     protected TransactionManager.TransactionCompleteListener mCompleteListener;
     protected final List<CallTransaction> mSubTransactions;
     protected final TelecomSystem.SyncRoot mLock;
     protected final long mTransactionTimeoutMs;
     protected final Stats mStats;
+    // Always recorded, unlike mStats, for the TransactionManager latency histograms.
+    private final long mCreatedTimeNs = System.nanoTime();
+    private volatile long mStartedTimeNs = -1L;
 
     public CallTransaction(
             List<CallTransaction> subTransactions, TelecomSystem.SyncRoot lock,
             long timeoutMs) {
         mSubTransactions = subTransactions;
-        mHandlerThread = new HandlerThread(this.toString());
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mScheduler = TransactionManager.getScheduler();
         mLock = lock;
         mTransactionTimeoutMs = timeoutMs;
         mStats = Flags.enableCallSequencing() ? new Stats() : null;
@@ -165,13 +195,19 @@ public class CallTransaction {
 
     public final void start() {
         if (mStats != null) mStats.markStarted();
+        if (mStartedTimeNs < 0) mStartedTimeNs = System.nanoTime();
+        // Pick the worker only now, so that the transactions of a tree which is built up front
+        // see each other in flight and are spread across the workers.
+        Handler handler = getHandler();
         // post timeout work
         CompletableFuture<Void> future = new CompletableFuture<>();
-        mHandler.postDelayed(() -> future.complete(null), mTransactionTimeoutMs);
+        // The timer only completes the future; timeout() then runs on the worker.
+        mTimeout = mScheduler.getTimingWheel().schedule(mTransactionName,
+                () -> future.complete(null), mTransactionTimeoutMs);
         future.thenApplyAsync((x) -> {
             timeout();
             return null;
-        }, new LoggedHandlerExecutor(mHandler, mTransactionName + "@" + hashCode()
+        }, new LoggedHandlerExecutor(handler, mTransactionName + "@" + hashCode()
                 + ".s", mLock));
 
         processTransactions();
@@ -195,7 +231,7 @@ public class CallTransaction {
     }
 
     protected final void scheduleTransaction() {
-        LoggedHandlerExecutor executor = new LoggedHandlerExecutor(mHandler,
+        LoggedHandlerExecutor executor = new LoggedHandlerExecutor(getHandler(),
                 mTransactionName + "@" + hashCode() + ".sT", mLock);
         CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
         future.thenComposeAsync(this::processTransaction, executor)
@@ -223,6 +259,18 @@ public class CallTransaction {
         }
     }
 
+    /**
+     * The {@link TransactionManager} runs transactions which do not declare any common resource
+     * concurrently, and transactions which do, one at a time in the order they were added.
+     * Transactions which only touch some calls or some global state should override this to
+     * declare them, so that they are not held up by unrelated transactions.
+     *
+     * @return The resources this transaction touches.  Defaults to {@link #RESOURCE_ALL}.
+     */
+    public Set<String> getResources() {
+        return Set.of(RESOURCE_ALL);
+    }
+
     protected CompletionStage<CallTransactionResult> processTransaction(Void v) {
         return CompletableFuture.completedFuture(
                 new CallTransactionResult(CallTransactionResult.RESULT_SUCCEED, null));
@@ -243,9 +291,23 @@ public class CallTransaction {
         }
     }
 
-    @VisibleForTesting
+    /**
+     * @return The handler all of the work of this transaction runs on, assigned by the
+     * {@link TransactionScheduler} the first time it is needed, normally when the transaction is
+     * started.
+     */
     public final Handler getHandler() {
-        return mHandler;
+        Handler handler = mHandler;
+        if (handler == null) {
+            synchronized (mHandlerLock) {
+                handler = mHandler;
+                if (handler == null) {
+                    handler = mScheduler.obtainHandler();
+                    mHandler = handler;
+                }
+            }
+        }
+        return handler;
     }
 
     public final void finish(CallTransactionResult result) {
@@ -259,7 +321,33 @@ public class CallTransaction {
         if (mSubTransactions != null && !mSubTransactions.isEmpty()) {
             mSubTransactions.forEach( t -> t.finish(isTimedOut, result));
         }
-        mHandlerThread.quitSafely();
+        // The handler thread is shared, so rather than quitting it, drop the pending timeout and
+        // hand the slot back to the scheduler.
+        TimingWheel.Timer timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        Handler handler = mHandler;
+        if (handler != null && !mReleased.getAndSet(true)) {
+            mScheduler.onTransactionFinished(handler);
+        }
+    }
+
+    /**
+     * @return Time in mS between when the transaction was created and when it was started, or
+     * -1 if it was not started.
+     */
+    final long getQueueWaitMs() {
+        return mStartedTimeNs < 0 ? -1
+                : TimeUnit.NANOSECONDS.toMillis(mStartedTimeNs - mCreatedTimeNs);
+    }
+
+    /**
+     * @return Time in mS since the transaction was started, or -1 if it was not started.
+     */
+    final long getTimeSinceStartedMs() {
+        return mStartedTimeNs < 0 ? -1
+                : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartedTimeNs);
     }
 
     /**
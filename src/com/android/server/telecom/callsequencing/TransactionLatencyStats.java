@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callsequencing;
+
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.metrics.LogLinearHistogram;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Always-on latency histograms of the {@link CallTransaction}s run by the
+ * {@link TransactionManager}, keyed by transaction class.
+ * <p>
+ * Unlike the completed transaction history, which only keeps the last few transactions, every
+ * finished transaction is counted here, so that tail latencies are visible.  The time spent
+ * waiting in the queue and the time spent executing are tracked separately, along with the
+ * number of transactions that failed or timed out, with latencies in mS.  Memory use is fixed:
+ * each histogram has {@link LogLinearHistogram#NUM_BUCKETS} buckets and at most
+ * {@link #MAX_TRANSACTION_TYPES} transaction classes are tracked, with any further classes
+ * counted under {@link #OTHER_TRANSACTION_TYPE}.
+ * <p>
+ * The histograms are only reported by dumpsys; they are neither persisted nor pulled.  Reporting
+ * them through {@link com.android.server.telecom.metrics.TelecomMetricsController} as the error
+ * and API stats are would need a new {@code TelecomStatsLog} atom, which is defined outside of
+ * Telecom.
+ */
+public class TransactionLatencyStats {
+    @VisibleForTesting
+    public static final int MAX_TRANSACTION_TYPES = 32;
+    @VisibleForTesting
+    public static final String OTHER_TRANSACTION_TYPE = "Other";
+    public static final int OUTCOME_SUCCEEDED = 0;
+    public static final int OUTCOME_FAILED = 1;
+    public static final int OUTCOME_TIMED_OUT = 2;
+
+    /**
+     * The latencies and outcomes of a single transaction class.
+     */
+    @VisibleForTesting
+    public static class TransactionTypeStats {
+        private final LogLinearHistogram mQueueWait = new LogLinearHistogram();
+        private final LogLinearHistogram mExecution = new LogLinearHistogram();
+        private int mFailures;
+        private int mTimeouts;
+
+        public LogLinearHistogram getQueueWait() {
+            return mQueueWait;
+        }
+
+        public LogLinearHistogram getExecution() {
+            return mExecution;
+        }
+
+        public int getFailures() {
+            return mFailures;
+        }
+
+        public int getTimeouts() {
+            return mTimeouts;
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<String, TransactionTypeStats> mStats = new ArrayMap<>();
+
+    /**
+     * Records a finished transaction.
+     *
+     * @param transactionType The class name of the transaction.
+     * @param queueWaitMillis The time the transaction waited in the queue before it started.
+     * @param executionMillis The time from the transaction starting to finishing.
+     * @param outcome One of {@link #OUTCOME_SUCCEEDED}, {@link #OUTCOME_FAILED} or
+     *                {@link #OUTCOME_TIMED_OUT}.
+     */
+    public void record(String transactionType, long queueWaitMillis, long executionMillis,
+            int outcome) {
+        synchronized (mLock) {
+            TransactionTypeStats stats = mStats.get(transactionType);
+            if (stats == null) {
+                if (mStats.size() >= MAX_TRANSACTION_TYPES - 1) {
+                    transactionType = OTHER_TRANSACTION_TYPE;
+                    stats = mStats.get(transactionType);
+                }
+                if (stats == null) {
+                    stats = new TransactionTypeStats();
+                    mStats.put(transactionType, stats);
+                }
+            }
+            stats.mQueueWait.record(queueWaitMillis);
+            stats.mExecution.record(executionMillis);
+            if (outcome == OUTCOME_FAILED) {
+                stats.mFailures++;
+            } else if (outcome == OUTCOME_TIMED_OUT) {
+                stats.mTimeouts++;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public TransactionTypeStats getStats(String transactionType) {
+        synchronized (mLock) {
+            return mStats.get(transactionType);
+        }
+    }
+
+    /**
+     * Dump the latency percentiles of each transaction class for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            for (Map.Entry<String, TransactionTypeStats> entry : mStats.entrySet()) {
+                TransactionTypeStats stats = entry.getValue();
+                pw.println(String.format(Locale.US, "%s: count=%d, failures=%d, timeouts=%d",
+                        entry.getKey(), stats.mExecution.getCount(), stats.mFailures,
+                        stats.mTimeouts));
+                pw.increaseIndent();
+                pw.print("queueWait: ");
+                stats.mQueueWait.dump(pw, "mS");
+                pw.println();
+                pw.print("execution: ");
+                stats.mExecution.dump(pw, "mS");
+                pw.println();
+                pw.decreaseIndent();
+            }
+        }
+    }
+}
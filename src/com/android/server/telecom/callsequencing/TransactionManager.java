@@ -21,27 +21,45 @@ import static android.telecom.CallException.CODE_OPERATION_TIMED_OUT;
 import android.os.OutcomeReceiver;
 import android.telecom.TelecomManager;
 import android.telecom.CallException;
+import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.flags.Flags;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * Runs {@link CallTransaction}s in the order they are added, while allowing transactions which
+ * do not conflict to run concurrently.
+ * <p>
+ * Each transaction declares the calls and global resources it touches with
+ * {@link CallTransaction#getResources()}.  A pending transaction is started once it does not
+ * share a resource with any running transaction, nor with any transaction added before it that
+ * is still pending; transactions which conflict therefore still run strictly one after another,
+ * in the order they were added.  Transactions which do not declare their resources conflict with
+ * every other transaction.
+ */
 public class TransactionManager {
     private static final String TAG = "CallTransactionManager";
     private static final int TRANSACTION_HISTORY_SIZE = 20;
     private static TransactionManager INSTANCE = null;
     private static final Object sLock = new Object();
+    private static TransactionScheduler sScheduler = null;
     private final Queue<CallTransaction> mTransactions;
     private final Deque<CallTransaction> mCompletedTransactions;
-    private CallTransaction mCurrentTransaction;
+    private final List<CallTransaction> mRunningTransactions;
+    private final TransactionLatencyStats mLatencyStats = new TransactionLatencyStats();
     private boolean mProcessingCallSequencing;
 
     public interface TransactionCompleteListener {
@@ -51,7 +69,7 @@ public class TransactionManager {
 
     private TransactionManager() {
         mTransactions = new ArrayDeque<>();
-        mCurrentTransaction = null;
+        mRunningTransactions = new ArrayList<>();
         if (Flags.enableCallSequencing()) {
             mCompletedTransactions = new ArrayDeque<>();
         } else
@@ -67,6 +85,42 @@ public class TransactionManager {
         return INSTANCE;
     }
 
+    /**
+     * @return The {@link TransactionScheduler} shared by all {@link CallTransaction}s to run their
+     * work on a bounded pool of threads.
+     */
+    public static TransactionScheduler getScheduler() {
+        synchronized (sLock) {
+            if (sScheduler == null) {
+                sScheduler = new TransactionScheduler();
+            }
+            return sScheduler;
+        }
+    }
+
+    /**
+     * Replaces the shared {@link TransactionScheduler} with one which schedules the transactions'
+     * timeouts on the given wheel; called by {@link com.android.server.telecom.TelecomSystem}
+     * before any transaction is created.
+     */
+    public static void initScheduler(TimingWheel timingWheel) {
+        synchronized (sLock) {
+            sScheduler = new TransactionScheduler(TransactionScheduler.MAX_WORKER_THREADS,
+                    timingWheel);
+        }
+    }
+
+    /**
+     * Replaces the shared {@link TransactionScheduler}, so that a test sees only the work of the
+     * transactions it creates.  Transactions keep the scheduler they were created with.
+     */
+    @VisibleForTesting
+    public static void setScheduler(TransactionScheduler scheduler) {
+        synchronized (sLock) {
+            sScheduler = scheduler;
+        }
+    }
+
     @VisibleForTesting
     public static TransactionManager getTestInstance() {
         return new TransactionManager();
@@ -99,7 +153,10 @@ public class TransactionManager {
                             + " %s resulted in an Exception.", result), e);
                     transactionCompleteFuture.complete(false);
                 }
-                finishTransaction();
+                finishTransaction(transaction,
+                        result.getResult() == TelecomManager.TELECOM_TRANSACTION_SUCCESS
+                                ? TransactionLatencyStats.OUTCOME_SUCCEEDED
+                                : TransactionLatencyStats.OUTCOME_FAILED);
             }
 
             @Override
@@ -114,7 +171,7 @@ public class TransactionManager {
                             + " %s resulted in an Exception.", transactionName), e);
                     transactionCompleteFuture.complete(false);
                 }
-                finishTransaction();
+                finishTransaction(transaction, TransactionLatencyStats.OUTCOME_TIMED_OUT);
             }
         });
 
@@ -123,26 +180,62 @@ public class TransactionManager {
     }
 
     private void startTransactions() {
+        List<CallTransaction> transactionsToStart = new ArrayList<>();
         synchronized (sLock) {
             if (mTransactions.isEmpty()) {
                 // No transaction waiting for process
                 return;
             }
+            // The resources held by running transactions and by transactions which are still
+            // pending ahead of the one being considered.
+            List<Set<String>> claimedResources = new ArrayList<>();
+            for (CallTransaction t : mRunningTransactions) {
+                claimedResources.add(t.getResources());
+            }
+            Iterator<CallTransaction> iterator = mTransactions.iterator();
+            while (iterator.hasNext()) {
+                CallTransaction t = iterator.next();
+                Set<String> resources = t.getResources();
+                boolean conflicts = false;
+                for (Set<String> claimed : claimedResources) {
+                    if (conflicts(resources, claimed)) {
+                        conflicts = true;
+                        break;
+                    }
+                }
+                claimedResources.add(resources);
+                if (!conflicts) {
+                    iterator.remove();
+                    mRunningTransactions.add(t);
+                    transactionsToStart.add(t);
+                }
+            }
+        }
+        for (CallTransaction t : transactionsToStart) {
+            t.start();
+        }
+    }
 
-            if (mCurrentTransaction != null) {
-                // Ongoing transaction
-                return;
+    private static boolean conflicts(Set<String> resources, Set<String> otherResources) {
+        if (resources.contains(CallTransaction.RESOURCE_ALL)
+                || otherResources.contains(CallTransaction.RESOURCE_ALL)) {
+            return true;
+        }
+        for (String resource : resources) {
+            if (otherResources.contains(resource)) {
+                return true;
             }
-            mCurrentTransaction = mTransactions.poll();
         }
-        mCurrentTransaction.start();
+        return false;
     }
 
-    private void finishTransaction() {
+    private void finishTransaction(CallTransaction transaction, int outcome) {
         synchronized (sLock) {
-            if (mCurrentTransaction != null) {
-                addTransactionToHistory(mCurrentTransaction);
-                mCurrentTransaction = null;
+            if (mRunningTransactions.remove(transaction)) {
+                addTransactionToHistory(transaction);
+                mLatencyStats.record(transaction.mTransactionName,
+                        transaction.getQueueWaitMs(), transaction.getTimeSinceStartedMs(),
+                        outcome);
             }
         }
         startTransactions();
@@ -169,6 +262,11 @@ public class TransactionManager {
         }
     }
 
+    @VisibleForTesting
+    public TransactionLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
     public void setProcessingCallSequencing(boolean processingCallSequencing) {
         mProcessingCallSequencing = processingCallSequencing;
     }
@@ -181,6 +279,14 @@ public class TransactionManager {
      * Called when the dumpsys is created for telecom to capture the current state.
      */
     public void dump(IndentingPrintWriter pw) {
+        pw.println("Transaction Scheduler:");
+        pw.increaseIndent();
+        getScheduler().dump(pw);
+        pw.decreaseIndent();
+        pw.println("Transaction latencies:");
+        pw.increaseIndent();
+        mLatencyStats.dump(pw);
+        pw.decreaseIndent();
         if (!Flags.enableCallSequencing()) {
             pw.println("<<Flag not enabled>>");
             return;
@@ -193,10 +299,31 @@ public class TransactionManager {
             }
             pw.decreaseIndent();
 
-            pw.println("Ongoing Transaction:");
+            pw.println("Pending Transactions by resource:");
             pw.increaseIndent();
-            if (mCurrentTransaction != null) {
-                printPendingTransactionStats(mCurrentTransaction, pw);
+            Map<String, List<CallTransaction>> pendingByResource = new ArrayMap<>();
+            for (CallTransaction t : mTransactions) {
+                for (String resource : t.getResources()) {
+                    pendingByResource.computeIfAbsent(resource, r -> new ArrayList<>()).add(t);
+                }
+            }
+            for (Map.Entry<String, List<CallTransaction>> entry : pendingByResource.entrySet()) {
+                pw.print(entry.getKey());
+                pw.print(":");
+                for (CallTransaction t : entry.getValue()) {
+                    CallTransaction.Stats s = t.getStats();
+                    pw.print(String.format(Locale.US, " %s@%d(waiting %dmS)",
+                            t.mTransactionName, t.hashCode(),
+                            s == null ? -1 : s.measureTimeSinceCreatedMs()));
+                }
+                pw.println();
+            }
+            pw.decreaseIndent();
+
+            pw.println("Ongoing Transactions:");
+            pw.increaseIndent();
+            for (CallTransaction t : mRunningTransactions) {
+                printPendingTransactionStats(t, pw);
             }
             pw.decreaseIndent();
 
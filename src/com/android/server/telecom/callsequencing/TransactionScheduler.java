@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callsequencing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A bounded pool of {@link HandlerThread}s that is shared by all {@link CallTransaction}s.
+ * <p>
+ * Previously every transaction (and every sub-transaction of a {@code SerialTransaction} or
+ * {@code ParallelTransaction}) started its own {@link HandlerThread}. Instead, each transaction
+ * is now assigned a {@link Handler} on the least loaded worker of this pool when it starts, and
+ * counts as in flight on that worker until it finishes. Workers are created lazily, only when all
+ * existing workers are busy, up to {@link #MAX_WORKER_THREADS}.
+ */
+public class TransactionScheduler {
+    private static final String THREAD_NAME_PREFIX = "CallTransaction-";
+    @VisibleForTesting
+    public static final int MAX_WORKER_THREADS = 4;
+
+    private static class Worker {
+        final Handler mHandler;
+        // The number of transactions assigned to this worker which have not yet finished.
+        int mInFlight = 0;
+
+        Worker(Handler handler) {
+            mHandler = handler;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final int mMaxWorkerThreads;
+    @GuardedBy("mLock")
+    private final List<Worker> mWorkers = new ArrayList<>();
+    @GuardedBy("mLock")
+    private int mThreadsCreated = 0;
+    @GuardedBy("mLock")
+    private int mInFlight = 0;
+    @GuardedBy("mLock")
+    private int mPeakInFlight = 0;
+    @GuardedBy("mLock")
+    private long mTransactionsScheduled = 0;
+    // Schedules the transactions' timeouts; see getTimingWheel().
+    @GuardedBy("mLock")
+    private TimingWheel mTimingWheel;
+
+    public TransactionScheduler() {
+        this(MAX_WORKER_THREADS);
+    }
+
+    @VisibleForTesting
+    public TransactionScheduler(int maxWorkerThreads) {
+        this(maxWorkerThreads, null /* timingWheel */);
+    }
+
+    /**
+     * @param maxWorkerThreads The most worker threads to start.
+     * @param timingWheel The wheel to schedule the transactions' timeouts on, or {@code null} to
+     *                    start one of the scheduler's own when it is first needed.
+     */
+    public TransactionScheduler(int maxWorkerThreads, TimingWheel timingWheel) {
+        mMaxWorkerThreads = Math.max(1, maxWorkerThreads);
+        mTimingWheel = timingWheel;
+    }
+
+    /**
+     * @return The wheel the transactions' timeouts are scheduled on.
+     */
+    public TimingWheel getTimingWheel() {
+        synchronized (mLock) {
+            if (mTimingWheel == null) {
+                HandlerThread thread = new HandlerThread(THREAD_NAME_PREFIX + "Timeouts");
+                thread.start();
+                mTimingWheel = new TimingWheel(thread.getLooper());
+            }
+            return mTimingWheel;
+        }
+    }
+
+    /**
+     * Assign a {@link Handler} to a transaction which is starting, and count it as in flight
+     * until {@link #onTransactionFinished} is called. The least loaded worker is picked and a new
+     * worker thread is only started if every existing worker already has work in flight.
+     * @return The handler the transaction should use for all of its work.
+     */
+    public Handler obtainHandler() {
+        synchronized (mLock) {
+            mTransactionsScheduled++;
+            Worker leastLoaded = null;
+            for (Worker w : mWorkers) {
+                if (leastLoaded == null || w.mInFlight < leastLoaded.mInFlight) {
+                    leastLoaded = w;
+                }
+            }
+            Worker worker;
+            if (leastLoaded != null
+                    && (leastLoaded.mInFlight == 0 || mWorkers.size() >= mMaxWorkerThreads)) {
+                worker = leastLoaded;
+            } else {
+                HandlerThread thread = new HandlerThread(THREAD_NAME_PREFIX + mThreadsCreated);
+                thread.start();
+                mThreadsCreated++;
+                worker = new Worker(new Handler(thread.getLooper()));
+                mWorkers.add(worker);
+            }
+            worker.mInFlight++;
+            mInFlight++;
+            mPeakInFlight = Math.max(mPeakInFlight, mInFlight);
+            return worker.mHandler;
+        }
+    }
+
+    /**
+     * Marks a transaction running on the given handler, from {@link #obtainHandler}, as finished.
+     */
+    public void onTransactionFinished(Handler handler) {
+        synchronized (mLock) {
+            Worker w = getWorker(handler);
+            if (w != null && w.mInFlight > 0) w.mInFlight--;
+            if (mInFlight > 0) mInFlight--;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Worker getWorker(Handler handler) {
+        for (Worker w : mWorkers) {
+            if (w.mHandler == handler) return w;
+        }
+        return null;
+    }
+
+    /**
+     * Stops the worker threads once they have run the work already posted to them.
+     */
+    @VisibleForTesting
+    public void quitSafely() {
+        synchronized (mLock) {
+            for (Worker w : mWorkers) {
+                w.mHandler.getLooper().quitSafely();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public int getThreadsCreated() {
+        synchronized (mLock) {
+            return mThreadsCreated;
+        }
+    }
+
+    @VisibleForTesting
+    public int getInFlight() {
+        synchronized (mLock) {
+            return mInFlight;
+        }
+    }
+
+    @VisibleForTesting
+    public int getPeakInFlight() {
+        synchronized (mLock) {
+            return mPeakInFlight;
+        }
+    }
+
+    /**
+     * Dump the scheduler counters for dumpsys.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format(Locale.US,
+                    "threadsCreated=%d (max=%d), transactionsScheduled=%d, inFlight=%d,"
+                            + " peakInFlight=%d",
+                    mThreadsCreated, mMaxWorkerThreads, mTransactionsScheduled, mInFlight,
+                    mPeakInFlight));
+        }
+    }
+}
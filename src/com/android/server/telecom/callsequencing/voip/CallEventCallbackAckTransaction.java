@@ -32,14 +32,17 @@ import com.android.server.telecom.TransactionalServiceWrapper;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * SRP: using the ICallEventCallback binder, reach out to the client for the pending call event and
  * get an acknowledgement that the call event can be completed.
+ * <p>
+ * The acknowledgement is not waited on: the transaction completes when the client's
+ * {@link ResultReceiver} is called, or when the ack timeout posted on the transaction's handler
+ * fires, so that a slow client does not hold the shared transaction handler thread.
  */
 public class CallEventCallbackAckTransaction extends CallTransaction {
     private static final String TAG = CallEventCallbackAckTransaction.class.getSimpleName();
@@ -53,18 +56,24 @@ public class CallEventCallbackAckTransaction extends CallTransaction {
     private final CallTransactionResult TRANSACTION_FAILED = new CallTransactionResult(
             CODE_OPERATION_TIMED_OUT, "failed to complete the operation before timeout");
 
+    private final CallTransactionResult TRANSACTION_SUCCEEDED = new CallTransactionResult(
+            CallTransactionResult.RESULT_SUCCEED, "success");
+
+    // Token used to cancel the pending ack timeout once the client acks.
+    private final Object mAckTimeoutToken = new Object();
+
     private static class AckResultReceiver extends ResultReceiver {
-        CountDownLatch mCountDownLatch;
+        private final CompletableFuture<Boolean> mAckFuture;
 
-        public AckResultReceiver(CountDownLatch latch) {
+        public AckResultReceiver(CompletableFuture<Boolean> ackFuture) {
             super(null);
-            mCountDownLatch = latch;
+            mAckFuture = ackFuture;
         }
 
         @Override
         protected void onReceiveResult(int resultCode, Bundle resultData) {
             if (resultCode == TELECOM_TRANSACTION_SUCCESS) {
-                mCountDownLatch.countDown();
+                mAckFuture.complete(true);
             }
         }
     }
@@ -97,11 +106,25 @@ public class CallEventCallbackAckTransaction extends CallTransaction {
     }
 
 
+    @Override
+    public Set<String> getResources() {
+        switch (mAction) {
+            case TransactionalServiceWrapper.ON_SET_ACTIVE:
+            case TransactionalServiceWrapper.ON_SET_INACTIVE:
+            case TransactionalServiceWrapper.ON_ANSWER:
+            case TransactionalServiceWrapper.ON_DISCONNECT:
+                // The call state is updated once the client acks the change.
+                return Set.of(RESOURCE_ACTIVE_CALL, callResource(mCallId));
+            default:
+                return Set.of(callResource(mCallId));
+        }
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
-        CountDownLatch latch = new CountDownLatch(1);
-        ResultReceiver receiver = new AckResultReceiver(latch);
+        CompletableFuture<Boolean> ackFuture = new CompletableFuture<>();
+        ResultReceiver receiver = new AckResultReceiver(ackFuture);
 
         try {
             switch (mAction) {
@@ -125,22 +148,23 @@ public class CallEventCallbackAckTransaction extends CallTransaction {
             return CompletableFuture.completedFuture(TRANSACTION_FAILED);
         }
 
-        try {
-            // wait for the client to ack that CallEventCallback
-            boolean success = latch.await(mTransactionTimeoutMs, TimeUnit.MILLISECONDS);
+        // schedule the timeout for the client to ack that CallEventCallback instead of waiting
+        getHandler().postDelayed(() -> ackFuture.complete(false), mAckTimeoutToken,
+                mTransactionTimeoutMs);
+        return ackFuture.thenApply(success -> {
             if (!success) {
                 // client send onError and failed to complete transaction
                 Log.i(TAG, String.format("CallEventCallbackAckTransaction:"
                         + " client failed to complete the [%s] transaction", mAction));
-                return CompletableFuture.completedFuture(TRANSACTION_FAILED);
-            } else {
-                // success
-                return CompletableFuture.completedFuture(
-                        new CallTransactionResult(CallTransactionResult.RESULT_SUCCEED,
-                                "success"));
+                return TRANSACTION_FAILED;
             }
-        } catch (InterruptedException ie) {
-            return CompletableFuture.completedFuture(TRANSACTION_FAILED);
-        }
+            getHandler().removeCallbacksAndMessages(mAckTimeoutToken);
+            return TRANSACTION_SUCCEEDED;
+        });
+    }
+
+    @Override
+    protected void finishTransaction() {
+        getHandler().removeCallbacksAndMessages(mAckTimeoutToken);
     }
 }
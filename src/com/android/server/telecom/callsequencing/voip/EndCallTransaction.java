@@ -25,6 +25,7 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -44,6 +45,11 @@ public class EndCallTransaction extends CallTransaction {
         mCall = call;
     }
 
+    @Override
+    public Set<String> getResources() {
+        return Set.of(RESOURCE_ACTIVE_CALL, callResource(mCall.getId()));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         int code = mCause.getCode();
@@ -26,6 +26,7 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -40,6 +41,11 @@ public class EndpointChangeTransaction extends CallTransaction {
         mCallsManager = callsManager;
     }
 
+    @Override
+    public Set<String> getResources() {
+        return Set.of(RESOURCE_AUDIO);
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.i(TAG, "processTransaction");
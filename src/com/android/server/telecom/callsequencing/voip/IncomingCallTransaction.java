@@ -35,6 +35,7 @@ import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.flags.FeatureFlags;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -66,6 +67,12 @@ public class IncomingCallTransaction extends CallTransaction {
         this(callId, callAttributes, callsManager, new Bundle(), featureFlags);
     }
 
+    @Override
+    public Set<String> getResources() {
+        // Adding a call may hold or disconnect the active call to make room for it.
+        return Set.of(RESOURCE_ACTIVE_CALL, callResource(mCallId));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -25,6 +25,7 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -47,6 +48,11 @@ public class MaybeHoldCallForNewCallTransaction extends CallTransaction {
         mIsCallControlRequest = isCallControlRequest;
     }
 
+    @Override
+    public Set<String> getResources() {
+        return Set.of(RESOURCE_ACTIVE_CALL, callResource(mCall.getId()));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -40,6 +40,7 @@ import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.flags.FeatureFlags;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -75,6 +76,12 @@ public class OutgoingCallTransaction extends CallTransaction {
         this(callId, context, callAttributes, callsManager, new Bundle(), featureFlags);
     }
 
+    @Override
+    public Set<String> getResources() {
+        // Adding a call may hold or disconnect the active call to make room for it.
+        return Set.of(RESOURCE_ACTIVE_CALL, callResource(mCallId));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -128,7 +135,7 @@ public class OutgoingCallTransaction extends CallTransaction {
                                         CallTransactionResult.RESULT_SUCCEED,
                                         call, null, true));
                     }
-                    , new LoggedHandlerExecutor(mHandler, "OCT.pT", null));
+                    , new LoggedHandlerExecutor(getHandler(), "OCT.pT", null));
 
             return result;
         } else {
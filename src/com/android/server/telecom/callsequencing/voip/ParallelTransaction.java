@@ -17,6 +17,7 @@
 package com.android.server.telecom.callsequencing.voip;
 
 import android.telecom.CallException;
+import android.util.ArraySet;
 
 import com.android.server.telecom.LoggedHandlerExecutor;
 import com.android.server.telecom.TelecomSystem;
@@ -25,6 +26,7 @@ import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.callsequencing.TransactionManager;
 
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,6 +39,18 @@ public class ParallelTransaction extends CallTransaction {
         super(subTransactions, lock);
     }
 
+    @Override
+    public Set<String> getResources() {
+        if (mSubTransactions == null || mSubTransactions.isEmpty()) {
+            return super.getResources();
+        }
+        Set<String> resources = new ArraySet<>();
+        for (CallTransaction transaction : mSubTransactions) {
+            resources.addAll(transaction.getResources());
+        }
+        return resources;
+    }
+
     @Override
     public void processTransactions() {
         if (mSubTransactions == null || mSubTransactions.isEmpty()) {
@@ -57,7 +71,7 @@ public class ParallelTransaction extends CallTransaction {
                                         mCompleteListener.onTransactionCompleted(result,
                                                 mTransactionName);
                                         return null;
-                                    }, new LoggedHandlerExecutor(mHandler,
+                                    }, new LoggedHandlerExecutor(getHandler(),
                                             mTransactionName + "@" + hashCode()
                                                     + ".oTC", mLock));
                         } else {
@@ -80,7 +94,7 @@ public class ParallelTransaction extends CallTransaction {
                                     mCompleteListener.onTransactionCompleted(mainResult,
                                             mTransactionName);
                                     return null;
-                                }, new LoggedHandlerExecutor(mHandler,
+                                }, new LoggedHandlerExecutor(getHandler(),
                                         mTransactionName + "@" + hashCode()
                                                 + ".oTT", mLock));
                     }
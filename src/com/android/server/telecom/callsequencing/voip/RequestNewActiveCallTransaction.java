@@ -28,6 +28,7 @@ import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.flags.Flags;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -56,6 +57,12 @@ public class RequestNewActiveCallTransaction extends CallTransaction {
         mCall = call;
     }
 
+    @Override
+    public Set<String> getResources() {
+        // Requesting call focus may also change audio focus.
+        return Set.of(RESOURCE_ACTIVE_CALL, RESOURCE_AUDIO, callResource(mCall.getId()));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -28,6 +28,7 @@ import com.android.server.telecom.Call;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -44,6 +45,11 @@ public class RequestVideoStateTransaction extends CallTransaction {
         mVideoProfileState = TransactionalVideoStateToVideoProfileState(transactionalVideoState);
     }
 
+    @Override
+    public Set<String> getResources() {
+        return Set.of(callResource(mCall.getId()));
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -17,6 +17,7 @@
 package com.android.server.telecom.callsequencing.voip;
 
 import android.telecom.CallException;
+import android.util.ArraySet;
 
 import com.android.server.telecom.LoggedHandlerExecutor;
 import com.android.server.telecom.TelecomSystem;
@@ -25,6 +26,7 @@ import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.callsequencing.TransactionManager;
 
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,6 +43,18 @@ public class SerialTransaction extends CallTransaction {
         mSubTransactions.add(transaction);
     }
 
+    @Override
+    public Set<String> getResources() {
+        if (mSubTransactions == null || mSubTransactions.isEmpty()) {
+            return super.getResources();
+        }
+        Set<String> resources = new ArraySet<>();
+        for (CallTransaction transaction : mSubTransactions) {
+            resources.addAll(transaction.getResources());
+        }
+        return resources;
+    }
+
     @Override
     public void processTransactions() {
         if (mSubTransactions == null || mSubTransactions.isEmpty()) {
@@ -62,7 +76,7 @@ public class SerialTransaction extends CallTransaction {
                                         mCompleteListener.onTransactionCompleted(result,
                                                 mTransactionName);
                                         return null;
-                                    }, new LoggedHandlerExecutor(mHandler,
+                                    }, new LoggedHandlerExecutor(getHandler(),
                                             mTransactionName + "@" + hashCode()
                                                     + ".oTC", mLock));
                         } else {
@@ -92,7 +106,7 @@ public class SerialTransaction extends CallTransaction {
                                     mCompleteListener.onTransactionCompleted(mainResult,
                                             mTransactionName);
                                     return null;
-                                }, new LoggedHandlerExecutor(mHandler,
+                                }, new LoggedHandlerExecutor(getHandler(),
                                         mTransactionName + "@" + hashCode()
                                                 + ".oTT", mLock));
                     }
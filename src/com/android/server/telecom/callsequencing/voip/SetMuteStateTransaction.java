@@ -22,6 +22,7 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -41,6 +42,11 @@ public class SetMuteStateTransaction extends CallTransaction {
         mIsMuted = isMuted;
     }
 
+    @Override
+    public Set<String> getResources() {
+        return Set.of(RESOURCE_AUDIO);
+    }
+
     @Override
     public CompletionStage<CallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
@@ -167,7 +167,15 @@ public class ApiStats extends TelecomPulledAtom {
             .TELECOM_API_STATS__API_RESULT__RESULT_EXCEPTION;
     private static final String TAG = ApiStats.class.getSimpleName();
     private static final String FILE_NAME = "api_stats";
+    private static final int COUNTER_STRIPES = 4;
+    private static final int COUNTER_SLOTS_PER_STRIPE = 512;
     private Map<ApiEvent, Integer> mApiStatsMap;
+    /**
+     * Counts logged since the last aggregation, keyed by {@link #toKey(int, int, int)}.
+     */
+    private final StripedEventCounter mCounters =
+            new StripedEventCounter(COUNTER_STRIPES, COUNTER_SLOTS_PER_STRIPE);
+    private final StripedEventCounter.Visitor mCounterVisitor = this::addCount;
 
     public ApiStats(@NonNull Context context, @NonNull Looper looper) {
         super(context, looper);
@@ -187,6 +195,7 @@ public class ApiStats extends TelecomPulledAtom {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     @Override
     public synchronized int onPull(final List<StatsEvent> data) {
+        onAggregate();
         if (mPulledAtoms.telecomApiStats.length != 0) {
             Arrays.stream(mPulledAtoms.telecomApiStats).forEach(v -> data.add(
                     TelecomStatsLog.buildStatsEvent(getTag(),
@@ -214,6 +223,7 @@ public class ApiStats extends TelecomPulledAtom {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     @Override
     public synchronized void onAggregate() {
+        mCounters.drain(mCounterVisitor);
         Log.d(TAG, "onAggregate: %s", mApiStatsMap);
         clearAtoms();
         if (mApiStatsMap.isEmpty()) {
@@ -231,14 +241,35 @@ public class ApiStats extends TelecomPulledAtom {
             mPulledAtoms.telecomApiStats[index[0]].setCount(v);
             index[0]++;
         });
-        save(DELAY_FOR_PERSISTENT_MILLIS);
+    }
+
+    @Override
+    protected void onSaveDue() {
+        onAggregate();
     }
 
     public void log(@NonNull ApiEvent event) {
-        post(() -> {
-            mApiStatsMap.put(event, mApiStatsMap.getOrDefault(event, 0) + 1);
-            onAggregate();
-        });
+        log(event.mId, event.mCallerUid, event.mResult);
+    }
+
+    /**
+     * Counts a call to a Telecom API.  This neither posts to the metrics handler nor allocates;
+     * the counts are aggregated into the pulled atoms when they are next saved or pulled.
+     */
+    public void log(@ApiId int apiId, int callerUid, @ResultId int result) {
+        mCounters.increment(toKey(apiId, callerUid, result));
+        save(DELAY_FOR_PERSISTENT_MILLIS);
+    }
+
+    private void addCount(long key, int count) {
+        ApiEvent event = new ApiEvent((int) (key >>> 40), (int) key,
+                (int) ((key >>> 32) & 0xff));
+        mApiStatsMap.merge(event, count, Integer::sum);
+    }
+
+    private static long toKey(@ApiId int apiId, int callerUid, @ResultId int result) {
+        return ((long) apiId << 40) | ((long) (result & 0xff) << 32)
+                | (callerUid & 0xffffffffL);
     }
 
     @IntDef(prefix = "API", value = {
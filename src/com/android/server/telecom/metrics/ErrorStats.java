@@ -116,7 +116,15 @@ public class ErrorStats extends TelecomPulledAtom {
             .TELECOM_ERROR_STATS__ERROR__ERROR_STUCK_CONNECTING;
     private static final String TAG = ErrorStats.class.getSimpleName();
     private static final String FILE_NAME = "error_stats";
+    private static final int COUNTER_STRIPES = 4;
+    private static final int COUNTER_SLOTS_PER_STRIPE = 64;
     private Map<ErrorEvent, Integer> mErrorStatsMap;
+    /**
+     * Counts logged since the last aggregation, keyed by {@link #toKey(int, int)}.
+     */
+    private final StripedEventCounter mCounters =
+            new StripedEventCounter(COUNTER_STRIPES, COUNTER_SLOTS_PER_STRIPE);
+    private final StripedEventCounter.Visitor mCounterVisitor = this::addCount;
 
     public ErrorStats(@NonNull Context context, @NonNull Looper looper) {
         super(context, looper);
@@ -136,6 +144,7 @@ public class ErrorStats extends TelecomPulledAtom {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     @Override
     public synchronized int onPull(final List<StatsEvent> data) {
+        onAggregate();
         if (mPulledAtoms.telecomErrorStats.length != 0) {
             Arrays.stream(mPulledAtoms.telecomErrorStats).forEach(v -> data.add(
                     TelecomStatsLog.buildStatsEvent(getTag(),
@@ -163,6 +172,7 @@ public class ErrorStats extends TelecomPulledAtom {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     @Override
     public synchronized void onAggregate() {
+        mCounters.drain(mCounterVisitor);
         Log.d(TAG, "onAggregate: %s", mErrorStatsMap);
         clearAtoms();
         if (mErrorStatsMap.isEmpty()) {
@@ -179,15 +189,29 @@ public class ErrorStats extends TelecomPulledAtom {
             mPulledAtoms.telecomErrorStats[index[0]].setCount(v);
             index[0]++;
         });
-        save(DELAY_FOR_PERSISTENT_MILLIS);
     }
 
+    @Override
+    protected void onSaveDue() {
+        onAggregate();
+    }
+
+    /**
+     * Counts an error.  This neither posts to the metrics handler nor allocates; the counts are
+     * aggregated into the pulled atoms when they are next saved or pulled.
+     */
     public void log(@SubModuleId int moduleId, @ErrorId int errorId) {
-        post(() -> {
-            ErrorEvent key = new ErrorEvent(moduleId, errorId);
-            mErrorStatsMap.put(key, mErrorStatsMap.getOrDefault(key, 0) + 1);
-            onAggregate();
-        });
+        mCounters.increment(toKey(moduleId, errorId));
+        save(DELAY_FOR_PERSISTENT_MILLIS);
+    }
+
+    private void addCount(long key, int count) {
+        mErrorStatsMap.merge(new ErrorEvent((int) (key >>> 32), (int) key), count,
+                Integer::sum);
+    }
+
+    private static long toKey(@SubModuleId int moduleId, @ErrorId int errorId) {
+        return ((long) moduleId << 32) | (errorId & 0xffffffffL);
     }
 
     @IntDef(prefix = "SUB", value = {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.metrics;
+
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Locale;
+
+/**
+ * A fixed-size histogram of non-negative values, such as latencies, with log-linear buckets.
+ * The unit of the values is up to the caller.  Not thread safe; callers synchronize access
+ * themselves.
+ */
+public class LogLinearHistogram {
+    // Each power of two range of values is split into this many linear sub-buckets, which
+    // bounds the error of a reported percentile to 25% of its value.
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values are tracked up to 2^17 (a little over two minutes in mS); anything larger is
+    // counted in the last bucket.
+    private static final int MAX_EXPONENT = 17;
+    @VisibleForTesting
+    public static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int[] mBuckets = new int[NUM_BUCKETS];
+    private int mCount;
+    private long mMax;
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        mBuckets[getBucket(value)]++;
+        mCount++;
+        mMax = Math.max(mMax, value);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return An upper bound of the given percentile of the recorded values, or 0 if nothing
+     * was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Dump the percentiles of the histogram.
+     *
+     * @param unit The unit of the recorded values, such as "mS".
+     */
+    public void dump(IndentingPrintWriter pw, String unit) {
+        pw.print(String.format(Locale.US, "p50=%d%s, p90=%d%s, p99=%d%s, max=%d%s",
+                getPercentile(50), unit, getPercentile(90), unit, getPercentile(99), unit,
+                mMax, unit));
+    }
+
+    @VisibleForTesting
+    public static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    @VisibleForTesting
+    public static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
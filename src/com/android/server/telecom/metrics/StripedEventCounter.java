@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.metrics;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter of events keyed by a non-negative {@code long}.
+ * <p>
+ * Counts are kept in a fixed number of stripes, each an open-addressed table of keys and counts.
+ * A thread always increments in the stripe picked by its id, so that binder threads logging the
+ * same event do not contend on the same counter.  Incrementing claims a slot with a CAS the first
+ * time a key is seen in a stripe and never allocates; only if every stripe is full does it fall
+ * back to a locked overflow map.  {@link #drain(Visitor)} hands the accumulated counts to the
+ * caller and resets them to zero.
+ * <p>
+ * Two sets of stripes are kept, and each drain swaps them, so that the slots of the keys counted
+ * since the previous drain are freed rather than held for good: the set which was retired by the
+ * previous drain is drained again, for increments which raced with that drain, and emptied
+ * before it takes new increments, and the set which was taking increments is retired and drained.
+ * A key thus only holds a slot until the second drain after it was last counted.  An increment
+ * from a thread stalled across two whole drains could be counted against another key.
+ */
+final class StripedEventCounter {
+    /**
+     * Receives the counts accumulated since the previous drain.
+     */
+    interface Visitor {
+        void visit(long key, int count);
+    }
+
+    /**
+     * One set of stripes.
+     */
+    private static final class Stripes {
+        final AtomicLongArray[] mKeys;
+        final AtomicIntegerArray[] mCounts;
+
+        Stripes(int stripes, int slots) {
+            mKeys = new AtomicLongArray[stripes];
+            mCounts = new AtomicIntegerArray[stripes];
+            for (int i = 0; i < stripes; i++) {
+                mKeys[i] = new AtomicLongArray(slots);
+                mCounts[i] = new AtomicIntegerArray(slots);
+            }
+        }
+    }
+
+    // Set on every claimed slot so that key 0 can be told apart from an empty slot.
+    private static final long SLOT_OCCUPIED = 1L << 63;
+
+    private final int mStripeMask;
+    private final int mSlotMask;
+    // The stripes taking increments.
+    private volatile Stripes mActive;
+    // The stripes retired by the previous drain; only touched by drains.
+    @GuardedBy("this")
+    private Stripes mRetired;
+    private final Object mOverflowLock = new Object();
+    @GuardedBy("mOverflowLock")
+    private final Map<Long, Integer> mOverflow = new HashMap<>();
+
+    /**
+     * @param numStripes The number of stripes; rounded up to a power of two.
+     * @param slotsPerStripe The number of distinct keys each stripe can hold between two drains;
+     *                       rounded up to a power of two.
+     */
+    StripedEventCounter(int numStripes, int slotsPerStripe) {
+        int stripes = roundUpToPowerOfTwo(numStripes);
+        int slots = roundUpToPowerOfTwo(slotsPerStripe);
+        mStripeMask = stripes - 1;
+        mSlotMask = slots - 1;
+        mActive = new Stripes(stripes, slots);
+        mRetired = new Stripes(stripes, slots);
+    }
+
+    /**
+     * Increments the count for the given key.
+     * @param key The key; must be non-negative.
+     */
+    void increment(long key) {
+        long taggedKey = key | SLOT_OCCUPIED;
+        Stripes active = mActive;
+        int stripe = (int) Thread.currentThread().getId() & mStripeMask;
+        for (int i = 0; i <= mStripeMask; i++) {
+            if (incrementInStripe(active, (stripe + i) & mStripeMask, taggedKey)) {
+                return;
+            }
+        }
+        synchronized (mOverflowLock) {
+            mOverflow.merge(key, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Reports every non-zero count to the visitor and resets it.  A key may be reported more
+     * than once per drain if it was counted in several stripes.
+     */
+    synchronized void drain(Visitor visitor) {
+        Stripes retired = mRetired;
+        drainStripes(retired, visitor, true /* freeSlots */);
+        mRetired = mActive;
+        mActive = retired;
+        drainStripes(mRetired, visitor, false /* freeSlots */);
+        synchronized (mOverflowLock) {
+            mOverflow.forEach(visitor::visit);
+            mOverflow.clear();
+        }
+    }
+
+    @GuardedBy("this")
+    private void drainStripes(Stripes stripes, Visitor visitor, boolean freeSlots) {
+        for (int stripe = 0; stripe <= mStripeMask; stripe++) {
+            AtomicLongArray keys = stripes.mKeys[stripe];
+            AtomicIntegerArray counts = stripes.mCounts[stripe];
+            for (int slot = 0; slot <= mSlotMask; slot++) {
+                long taggedKey = keys.get(slot);
+                if (taggedKey == 0) {
+                    continue;
+                }
+                if (freeSlots) {
+                    keys.set(slot, 0);
+                }
+                int count = counts.getAndSet(slot, 0);
+                if (count != 0) {
+                    visitor.visit(taggedKey & ~SLOT_OCCUPIED, count);
+                }
+            }
+        }
+    }
+
+    private boolean incrementInStripe(Stripes stripes, int stripe, long taggedKey) {
+        AtomicLongArray keys = stripes.mKeys[stripe];
+        int start = hash(taggedKey) & mSlotMask;
+        for (int probe = 0; probe <= mSlotMask; probe++) {
+            int slot = (start + probe) & mSlotMask;
+            long current = keys.get(slot);
+            if (current == 0) {
+                if (keys.compareAndSet(slot, 0, taggedKey)) {
+                    stripes.mCounts[stripe].incrementAndGet(slot);
+                    return true;
+                }
+                current = keys.get(slot);
+            }
+            if (current == taggedKey) {
+                stripes.mCounts[stripe].incrementAndGet(slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
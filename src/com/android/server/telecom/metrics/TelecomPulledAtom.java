@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class TelecomPulledAtom extends Handler {
     /**
@@ -48,6 +49,7 @@ public abstract class TelecomPulledAtom extends Handler {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     public PulledAtoms mPulledAtoms;
     protected long mLastPulledTimestamps;
+    private final AtomicBoolean mSavePending = new AtomicBoolean(false);
 
     protected TelecomPulledAtom(@NonNull Context context, @NonNull Looper looper) {
         super(looper);
@@ -80,6 +82,13 @@ public abstract class TelecomPulledAtom extends Handler {
         save(0);
     }
 
+    /**
+     * Called right before the atoms are written to file.  Atoms which count events without
+     * aggregating them into {@link #mPulledAtoms} on every event do so here.
+     */
+    protected void onSaveDue() {
+    }
+
     protected abstract String getFileName();
 
     private synchronized PulledAtoms loadAtomsFromFile() {
@@ -118,10 +127,13 @@ public abstract class TelecomPulledAtom extends Handler {
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     public void save(int delayMillis) {
         if (delayMillis > 0) {
-            if (!hasMessages(EVENT_SAVE)) {
-                sendMessageDelayed(obtainMessage(EVENT_SAVE), delayMillis);
+            // Checked without taking the message queue lock, since this is called for every
+            // logged event by some atoms.
+            if (mSavePending.compareAndSet(false, true)) {
+                sendEmptyMessageDelayed(EVENT_SAVE, delayMillis);
             }
         } else {
+            onSaveDue();
             onSave();
         }
     }
@@ -129,6 +141,8 @@ public abstract class TelecomPulledAtom extends Handler {
     @Override
     public void handleMessage(Message msg) {
         if (msg.what == EVENT_SAVE) {
+            mSavePending.set(false);
+            onSaveDue();
             onSave();
         }
     }
@@ -175,5 +175,8 @@ public final class BlockedNumbersUtil {
         } else {
             BlockedNumberContract.SystemContract.setEnhancedBlockSetting(context, key, value);
         }
+        // The provider does not notify setting changes; let the block status cache in the
+        // Telecom process know that cached block statuses may be stale.
+        context.getContentResolver().notifyChange(BlockedNumberContract.AUTHORITY_URI, null);
     }
 }
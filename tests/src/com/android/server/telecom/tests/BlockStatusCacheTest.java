@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static com.android.server.telecom.callfiltering.BlockCheckerFilter.STATUS_BLOCKED_IN_LIST;
+import static com.android.server.telecom.callfiltering.BlockCheckerFilter.STATUS_NOT_BLOCKED;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.os.UserHandle;
+import android.telecom.TelecomManager;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.ClockProxy;
+import com.android.server.telecom.callfiltering.BlockStatusCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class BlockStatusCacheTest extends TelecomTestCase {
+    private static final String NUMBER = "6505551234";
+    private static final String FORMATTED_NUMBER = "(650) 555-1234";
+    private static final UserHandle USER_0 = UserHandle.of(0);
+    private static final UserHandle USER_10 = UserHandle.of(10);
+    private static final int PRESENTATION = TelecomManager.PRESENTATION_ALLOWED;
+    private static final long NOW = 100000L;
+
+    @Mock private ClockProxy mClockProxy;
+    private BlockStatusCache mCache;
+    private final AtomicInteger mSuppressionQueries = new AtomicInteger();
+    private long mSuppressedUntil = 0;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mClockProxy.currentTimeMillis()).thenReturn(NOW);
+        mCache = new BlockStatusCache(mClockProxy);
+    }
+
+    @SmallTest
+    @Test
+    public void testHitAfterStore() {
+        BlockStatusCache.Lookup lookup = lookup(USER_0, NUMBER, false);
+        assertFalse(lookup.hasBlockStatus());
+        mCache.store(lookup, STATUS_BLOCKED_IN_LIST);
+
+        lookup = lookup(USER_0, FORMATTED_NUMBER, false);
+        assertTrue(lookup.hasBlockStatus());
+        assertEquals(STATUS_BLOCKED_IN_LIST, lookup.getBlockStatus());
+        assertEquals(1, mCache.getHits());
+        assertEquals(1, mCache.getMisses());
+        // The suppression status is only queried once.
+        assertEquals(1, mSuppressionQueries.get());
+    }
+
+    @SmallTest
+    @Test
+    public void testKeyedByUserAndContactStatus() {
+        mCache.store(lookup(USER_0, NUMBER, false), STATUS_BLOCKED_IN_LIST);
+
+        assertFalse(lookup(USER_10, NUMBER, false).hasBlockStatus());
+        assertFalse(lookup(USER_0, NUMBER, true).hasBlockStatus());
+    }
+
+    @SmallTest
+    @Test
+    public void testInvalidate() {
+        mCache.store(lookup(USER_0, NUMBER, false), STATUS_BLOCKED_IN_LIST);
+        mCache.invalidate("test");
+        assertFalse(lookup(USER_0, NUMBER, false).hasBlockStatus());
+    }
+
+    @SmallTest
+    @Test
+    public void testStoreDroppedAfterInvalidate() {
+        BlockStatusCache.Lookup lookup = lookup(USER_0, NUMBER, false);
+        // The blocked numbers change while the provider is being queried.
+        mCache.invalidate("test");
+        mCache.store(lookup, STATUS_NOT_BLOCKED);
+        assertFalse(lookup(USER_0, NUMBER, false).hasBlockStatus());
+    }
+
+    @SmallTest
+    @Test
+    public void testBypassedWhileBlockSuppressed() {
+        mCache.store(lookup(USER_0, NUMBER, false), STATUS_BLOCKED_IN_LIST);
+
+        // An emergency call starts block suppression.
+        mSuppressedUntil = NOW + 1000;
+        mCache.onBlockSuppressionChanged();
+        BlockStatusCache.Lookup lookup = lookup(USER_0, NUMBER, false);
+        assertFalse(lookup.hasBlockStatus());
+        mCache.store(lookup, STATUS_NOT_BLOCKED);
+        assertFalse(lookup(USER_0, NUMBER, false).hasBlockStatus());
+        assertEquals(2, mCache.getBypassed());
+        assertEquals(2, mSuppressionQueries.get());
+
+        // Once the suppression expires, the cache is used again.
+        when(mClockProxy.currentTimeMillis()).thenReturn(NOW + 1000);
+        lookup = lookup(USER_0, NUMBER, false);
+        assertFalse(lookup.hasBlockStatus());
+        mCache.store(lookup, STATUS_BLOCKED_IN_LIST);
+        assertTrue(lookup(USER_0, NUMBER, false).hasBlockStatus());
+    }
+
+    @SmallTest
+    @Test
+    public void testBypassedWhenSuppressionStatusUnknown() {
+        mSuppressedUntil = BlockStatusCache.SUPPRESSION_STATUS_UNKNOWN;
+        BlockStatusCache.Lookup lookup = lookup(USER_0, NUMBER, false);
+        mCache.store(lookup, STATUS_BLOCKED_IN_LIST);
+        assertFalse(lookup(USER_0, NUMBER, false).hasBlockStatus());
+        assertEquals(2, mSuppressionQueries.get());
+
+        mSuppressedUntil = 0;
+        mCache.store(lookup(USER_0, NUMBER, false), STATUS_BLOCKED_IN_LIST);
+        assertTrue(lookup(USER_0, NUMBER, false).hasBlockStatus());
+    }
+
+    private BlockStatusCache.Lookup lookup(UserHandle user, String number, boolean isContact) {
+        return mCache.lookup(user, number, PRESENTATION, isContact, () -> {
+            mSuppressionQueries.incrementAndGet();
+            return mSuppressedUntil;
+        });
+    }
+}
@@ -27,6 +27,9 @@ import static org.mockito.Mockito.when;
 
 import android.content.ComponentName;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
@@ -45,6 +48,7 @@ import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.PhoneNumberUtilsAdapter;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.metrics.TelecomMetricsController;
 import com.android.server.telecom.ui.ToastFactory;
 
@@ -55,6 +59,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 
+import java.util.concurrent.TimeUnit;
+
 @RunWith(JUnit4.class)
 public class CallAnomalyWatchdogTest extends TelecomTestCase {
     private static final ComponentName COMPONENT_NAME_1 = ComponentName
@@ -78,7 +84,9 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
     private final static long TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS = 450L;
 
     private CallAnomalyWatchdog mCallAnomalyWatchdog;
-    private TestScheduledExecutorService mTestScheduledExecutorService;
+    private TimingWheel mTimingWheel;
+    private long mStartMillis;
+    private long mNowMillis;
     private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
     @Mock private Timeouts.Adapter mTimeouts;
     @Mock private CallsManager mMockCallsManager;
@@ -101,7 +109,12 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         doReturn(mMockPhoneAccountRegistrar).when(mMockCallsManager).getPhoneAccountRegistrar();
         doReturn(SIM_1_ACCOUNT).when(mMockPhoneAccountRegistrar).getPhoneAccountUnchecked(
                 eq(SIM_1_HANDLE));
-        mTestScheduledExecutorService = new TestScheduledExecutorService();
+        // Start a day ahead of the real clock so the wheel's own wakeups never run; the tests
+        // advance the wheel themselves.
+        mStartMillis = (SystemClock.uptimeMillis() + TimeUnit.DAYS.toMillis(1))
+                / TimingWheel.TICK_MILLIS * TimingWheel.TICK_MILLIS;
+        mNowMillis = mStartMillis;
+        mTimingWheel = new TimingWheel(new Handler(Looper.getMainLooper()), () -> mNowMillis);
 
         when(mTimeouts.getVoipCallTransitoryStateTimeoutMillis()).
                 thenReturn(TEST_VOIP_TRANSITORY_MILLIS);
@@ -123,7 +136,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         when(mMockClockProxy.elapsedRealtime()).thenReturn(0L);
         doReturn(new ComponentName(mContext, CallTest.class))
                 .when(mMockConnectionService).getComponentName();
-        mCallAnomalyWatchdog = new CallAnomalyWatchdog(mTestScheduledExecutorService, mLock,
+        mCallAnomalyWatchdog = new CallAnomalyWatchdog(mTimingWheel, Runnable::run, mLock,
                 mFeatureFlags, mTimeouts, mMockClockProxy, mMockEmergencyCallDiagnosticLogger,
                 mMockTelecomMetricsController);
         mCallAnomalyWatchdog.setAnomalyReporterAdapter(mAnomalyReporterAdapter);
@@ -136,6 +149,15 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         super.tearDown();
     }
 
+    private void advanceTime(long durationMillis) {
+        mNowMillis += durationMillis;
+        mTimingWheel.advance();
+    }
+
+    private boolean isTimerScheduledAt(long delayMillis) {
+        return mTimingWheel.hasPendingTimerDueAt(mStartMillis + delayMillis);
+    }
+
     /**
      * Helper function that setups the call being tested.
      */
@@ -301,9 +323,8 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         Call call = setupCallHelper(CallState.RINGING, false, null, true, false);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Gets added to connection service; this moves it to an intermediate state,
@@ -312,14 +333,13 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         call.setConnectionService(mMockConnectionService);
         mCallAnomalyWatchdog.onCallAdded(call);
 
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock forward; we'll confirm that no timeout took place.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
         // Should still be ringing.
         assertEquals(CallState.RINGING, call.getState());
     }
@@ -335,9 +355,8 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         Call call = setupCallHelper(CallState.RINGING, false, null, true, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Gets added to connection service; this moves it to an intermediate state,
@@ -346,15 +365,14 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         call.setConnectionService(mMockConnectionService);
         mCallAnomalyWatchdog.onCallAdded(call);
 
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock forward; we'll confirm that no timeout took place.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
         // Should still be ringing.
         assertEquals(CallState.RINGING, call.getState());
     }
@@ -370,9 +388,8 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         Call call = setupCallHelper(CallState.RINGING, false, null, false, false);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Gets added to connection service; this moves it to an intermediate state,
@@ -381,15 +398,14 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         call.setConnectionService(mMockConnectionService);
         mCallAnomalyWatchdog.onCallAdded(call);
 
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock forward; we'll confirm that no timeout took place.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
         // Should still be ringing.
         assertEquals(CallState.RINGING, call.getState());
     }
@@ -405,9 +421,8 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         Call call = setupCallHelper(CallState.RINGING, false, null, false, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Gets added to connection service; this moves it to an intermediate state,
@@ -416,15 +431,14 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         call.setConnectionService(mMockConnectionService);
         mCallAnomalyWatchdog.onCallAdded(call);
 
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock forward; we'll confirm that no timeout took place.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
         // Should still be ringing.
         assertEquals(CallState.RINGING, call.getState());
     }
@@ -438,17 +452,16 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, false, null, true, false);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -461,18 +474,17 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, false, null, true, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS +
                 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -485,17 +497,16 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, false, null, false, false);;
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -508,18 +519,17 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, false, null, false, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -532,17 +542,16 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, true, mMockConnectionService, true, false);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_VOIP_INTERMEDIATE_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -555,18 +564,17 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, true, mMockConnectionService, true, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -579,17 +587,16 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, true, mMockConnectionService, false, false);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -602,18 +609,17 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         setupCallHelper(CallState.RINGING, true, mMockConnectionService, false, true);
 
         // Newly created call which hasn't been added; should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_EMERGENCY_INTERMEDIATE_MILLIS + 1);
 
         // No timeouts should be pending at this point since the timeout fired.
-        assertEquals(0, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
+        assertEquals(0, mTimingWheel.getPendingCount());
         assertEquals(0, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
     }
 
@@ -631,14 +637,13 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         mCallAnomalyWatchdog.onCallAdded(call);
 
         // Its transitory, so should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
     }
 
     /**
@@ -656,7 +661,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_VOIP_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_TRANSITORY_MILLIS + 1);
 
         //Ensure an anomaly was reported
         verify(mAnomalyReporterAdapter).reportAnomaly(
@@ -681,7 +686,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
 
         //Ensure an anomaly was reported
         verify(mAnomalyReporterAdapter).reportAnomaly(
@@ -703,15 +708,14 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         mCallAnomalyWatchdog.onCallAdded(call);
 
         // Its transitory, so should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
     }
 
     /**
@@ -728,14 +732,13 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         mCallAnomalyWatchdog.onCallAdded(call);
 
         // Its transitory, so should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).thenReturn(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_TRANSITORY_MILLIS + 1);
     }
 
     /**
@@ -752,16 +755,14 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         mCallAnomalyWatchdog.onCallAdded(call);
 
         // Its transitory, so should schedule timeout.
-        assertEquals(1, mTestScheduledExecutorService.getNumberOfScheduledRunnables());
-        assertTrue(mTestScheduledExecutorService.
-                isRunnableScheduledAtTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
+        assertEquals(1, mTimingWheel.getPendingCount());
+        assertTrue(isTimerScheduledAt(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS));
         assertEquals(1, mCallAnomalyWatchdog.getNumberOfScheduledTimeouts());
 
         // Move the clock to fire the timeout.
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
-        mTestScheduledExecutorService.
-                advanceTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_EMERGENCY_TRANSITORY_MILLIS + 1);
     }
 
     /**
@@ -783,7 +784,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         // Move the clock forward:
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
 
         //Ensure an anomaly report is not generated:
         verify(mAnomalyReporterAdapter, never()).reportAnomaly(
@@ -811,7 +812,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         // Move the clock forward:
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
 
         //Ensure an anomaly report is not generated:
         verify(mAnomalyReporterAdapter, never()).reportAnomaly(
@@ -839,7 +840,7 @@ public class CallAnomalyWatchdogTest extends TelecomTestCase {
         // Move the clock forward:
         when(mMockClockProxy.elapsedRealtime()).
                 thenReturn(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
-        mTestScheduledExecutorService.advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
+        advanceTime(TEST_NON_VOIP_INTERMEDIATE_MILLIS + 1);
 
         //Ensure an anomaly report is not generated:
         verify(mAnomalyReporterAdapter, never()).reportAnomaly(
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.telecom.Logging.EventManager;
+import android.telecom.ParcelableCallAnalytics;
+import android.util.IndentingPrintWriter;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.Analytics;
+import com.android.server.telecom.CallEventArchive;
+import com.android.server.telecom.LogUtils;
+import com.android.server.telecom.nano.TelecomLogClass;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class CallEventArchiveTest extends TelecomTestCase {
+    private static final String CALL_1 = "CallTC@1 [1/1/24, 12:00 PM](MT - incoming)";
+    private static final String CALL_2 = "CallTC@2 [1/1/24, 12:05 PM](MO - outgoing)";
+
+    @SmallTest
+    @Test
+    public void testDumpRendersEventHistory() {
+        CallEventArchive archive = new CallEventArchive();
+        archive.addEvent(CALL_1, LogUtils.Events.CREATED, 1000L, null, "CSW.hCCC@AAA");
+        archive.addEvent(CALL_1, LogUtils.Events.SET_ACTIVE, 2000L, "active", null);
+        archive.addTiming(CALL_1, "accept", 10L);
+        archive.addTiming(CALL_1, "accept", 20L);
+        archive.addEvent(CALL_2, LogUtils.Events.CREATED, 3000L, null, null);
+
+        String dump = dump(archive);
+        assertTrue(dump.contains("records=5/" + CallEventArchive.CAPACITY));
+        assertTrue(dump.contains(" - " + LogUtils.Events.CREATED + ":CSW.hCCC@AAA\n"));
+        assertTrue(dump.contains(" - " + LogUtils.Events.SET_ACTIVE + " (active)\n"));
+        assertTrue(dump.contains("accept: 15.0\n"));
+        // Events are grouped under the call they belong to, oldest call first.
+        assertTrue(dump.indexOf(CALL_1) < dump.indexOf(LogUtils.Events.SET_ACTIVE));
+        assertTrue(dump.indexOf(LogUtils.Events.SET_ACTIVE) < dump.indexOf(CALL_2));
+    }
+
+    @SmallTest
+    @Test
+    public void testOldestEventsOverwritten() {
+        CallEventArchive archive = new CallEventArchive();
+        archive.addEvent(CALL_1, LogUtils.Events.CREATED, 1000L, "first", null);
+        for (int i = 0; i < CallEventArchive.CAPACITY; i++) {
+            archive.addEvent(CALL_2, LogUtils.Events.INFO, 2000L + i, "data" + i, null);
+        }
+
+        assertEquals(CallEventArchive.CAPACITY, archive.getSize());
+        // The strings of overwritten records are released: the call, the event and the data of
+        // each record remain.
+        assertEquals(CallEventArchive.CAPACITY + 2, archive.getStringCount());
+        String dump = dump(archive);
+        assertFalse(dump.contains(CALL_1));
+        assertFalse(dump.contains("(first)"));
+        assertTrue(dump.contains("(data" + (CallEventArchive.CAPACITY - 1) + ")"));
+    }
+
+    @SmallTest
+    @Test
+    public void testDumpSkipsCallsInEventHistory() {
+        CallEventArchive archive = new CallEventArchive();
+        archive.addEvent(CALL_1, LogUtils.Events.CREATED, 1000L, null, null);
+        archive.addTiming(CALL_1, "accept", 10L);
+        archive.addEvent(CALL_2, LogUtils.Events.SET_ACTIVE, 2000L, null, null);
+
+        // CALL_1 is still in the event history, which is dumped separately.
+        String dump = dump(archive, Set.of(CALL_1));
+        assertFalse(dump.contains(CALL_1));
+        assertFalse(dump.contains(LogUtils.Events.CREATED));
+        assertFalse(dump.contains("accept"));
+        assertTrue(dump.contains(CALL_2));
+        assertTrue(dump.contains(" - " + LogUtils.Events.SET_ACTIVE + "\n"));
+    }
+
+    @SmallTest
+    @Test
+    public void testArchiveReplacesAnalyticsEventRecord() {
+        List<Runnable> pending = new ArrayList<>();
+        CallEventArchive archive = new CallEventArchive(pending::add);
+        EventManager.Loggable call = mock(EventManager.Loggable.class);
+        when(call.getDescription()).thenReturn(CALL_1);
+        EventManager.EventRecord record = mock(EventManager.EventRecord.class);
+        when(record.getRecordEntry()).thenReturn(call);
+        when(record.getEvents()).thenReturn(List.of(
+                new EventManager.Event(LogUtils.Events.CREATED, null, 1000L, null),
+                new EventManager.Event(LogUtils.Events.SET_ACTIVE, null, 2000L, null)));
+        when(record.extractEventTimings()).thenReturn(List.of(
+                new EventManager.EventRecord.EventTiming(
+                        LogUtils.Events.Timings.ACCEPT_TIMING, 10L)));
+        Analytics.CallInfoImpl analytics = (Analytics.CallInfoImpl)
+                Analytics.initiateCallAnalytics("TC@1", Analytics.INCOMING_DIRECTION);
+        analytics.setCallEvents(record);
+
+        // Nothing is archived until the archive's thread runs.
+        archive.archive(record, analytics);
+        assertEquals(0, archive.getSize());
+        assertEquals(record, analytics.callEvents);
+
+        pending.forEach(Runnable::run);
+        assertEquals(3, archive.getSize());
+        assertNull(analytics.callEvents);
+        TelecomLogClass.CallLog proto = analytics.toProto();
+        assertEquals(1, proto.callEvents.length);
+        assertEquals(ParcelableCallAnalytics.AnalyticsEvent.SET_ACTIVE,
+                proto.callEvents[0].getEventName());
+        assertEquals(1, proto.callTimings.length);
+        assertEquals(ParcelableCallAnalytics.EventTiming.ACCEPT_TIMING,
+                proto.callTimings[0].getTimingName());
+        assertEquals(10L, proto.callTimings[0].getTimeMillis());
+        Analytics.reset();
+    }
+
+    private static String dump(CallEventArchive archive) {
+        return dump(archive, Set.of());
+    }
+
+    private static String dump(CallEventArchive archive, Set<String> liveCalls) {
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        archive.dump(pw, liveCalls);
+        pw.flush();
+        return writer.toString();
+    }
+}
@@ -93,7 +93,10 @@ import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 @RunWith(JUnit4.class)
@@ -246,6 +249,7 @@ public class CallLogManagerTest extends TelecomTestCase {
     @Override
     @After
     public void tearDown() throws Exception {
+        mCallLogManager.cleanup();
         super.tearDown();
     }
 
@@ -399,6 +403,58 @@ public class CallLogManagerTest extends TelecomTestCase {
                 Integer.valueOf(CallLog.Calls.OUTGOING_TYPE));
     }
 
+    @MediumTest
+    @Test
+    public void testCallsQueuedDuringWriteAreWrittenInOneBatch() throws Exception {
+        when(mMockPhoneAccountRegistrar.getPhoneAccountUnchecked(any(PhoneAccountHandle.class)))
+                .thenReturn(makeFakePhoneAccount(mDefaultAccountHandle, 0 /* capabilities */));
+        when(mFeatureFlags.addCallUriForMissedCalls()).thenReturn(true);
+        // Hold up the write of the first call until the others have been queued.
+        CountDownLatch firstInsertStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstInsert = new CountDownLatch(1);
+        AtomicInteger inserts = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (inserts.getAndIncrement() == 0) {
+                firstInsertStarted.countDown();
+                releaseFirstInsert.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return (Uri) invocation.getArguments()[0];
+        }).when(mContentProvider).insert(any(Uri.class), any(ContentValues.class));
+
+        for (long creationTimeMillis = 1L; creationTimeMillis <= 3L; creationTimeMillis++) {
+            Call fakeMissedCall = makeFakeCall(
+                    DisconnectCause.MISSED, // disconnectCauseCode
+                    false, // isConference
+                    true, // isIncoming
+                    creationTimeMillis, // creationTimeMillis
+                    1000L, // ageMillis
+                    TEL_PHONEHANDLE, // callHandle
+                    mDefaultAccountHandle, // phoneAccountHandle
+                    NO_VIDEO_STATE, // callVideoState
+                    POST_DIAL_STRING, // postDialDigits
+                    VIA_NUMBER_STRING, // viaNumber
+                    null
+            );
+            mCallLogManager.onCallStateChanged(fakeMissedCall, CallState.ACTIVE,
+                    CallState.DISCONNECTED);
+            if (creationTimeMillis == 1L) {
+                // The first call is written right away, without waiting for others.
+                assertTrue(firstInsertStarted.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+        }
+        releaseFirstInsert.countDown();
+
+        Uri uri = ContentProvider.maybeAddUserId(CallLog.Calls.CONTENT_URI, CURRENT_USER_ID);
+        verify(mContentProvider, timeout(TEST_TIMEOUT_MILLIS).times(3)).insert(
+                eq(uri), any(ContentValues.class));
+        // Each call still gets its own completion callback.
+        verify(mMissedCallNotifier, timeout(TEST_TIMEOUT_MILLIS).times(3))
+                .showMissedCallNotification(any(MissedCallNotifier.CallInfo.class),
+                        any(Uri.class));
+        assertEquals(2, mCallLogManager.getBatchesWritten());
+        assertEquals(2, mCallLogManager.getMaxBatchSize());
+    }
+
     @MediumTest
     @Test
     public void testLogCallDirectionIncoming() {
@@ -450,7 +506,7 @@ public class CallLogManagerTest extends TelecomTestCase {
         ContentValues insertedValues = verifyInsertionWithCapture(CURRENT_USER_ID);
         assertEquals(insertedValues.getAsInteger(CallLog.Calls.TYPE),
                 Integer.valueOf(CallLog.Calls.MISSED_TYPE));
-        // Timeout needed because showMissedCallNotification is called from onPostExecute.
+        // Timeout needed because showMissedCallNotification is called once the batch is written.
         verify(mMissedCallNotifier, timeout(TEST_TIMEOUT_MILLIS))
                 .showMissedCallNotification(any(MissedCallNotifier.CallInfo.class),
                         /* uri= */ eq(null));
@@ -481,7 +537,7 @@ public class CallLogManagerTest extends TelecomTestCase {
         ContentValues insertedValues = verifyInsertionWithCapture(CURRENT_USER_ID);
         assertEquals(insertedValues.getAsInteger(CallLog.Calls.TYPE),
                 Integer.valueOf(CallLog.Calls.MISSED_TYPE));
-        // Timeout needed because showMissedCallNotification is called from onPostExecute.
+        // Timeout needed because showMissedCallNotification is called once the batch is written.
         verify(mMissedCallNotifier, timeout(TEST_TIMEOUT_MILLIS))
                 .showMissedCallNotification(any(MissedCallNotifier.CallInfo.class),
                         /* uri= */ any(Uri.class));
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.os.UserHandle;
+import android.telecom.Log;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallState;
+import com.android.server.telecom.CallStateIndex;
+import com.android.server.telecom.CallsManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(JUnit4.class)
+public class CallStateIndexTest extends TelecomTestCase {
+    private static final String TAG = "CallStateIndexTest";
+    private static final UserHandle USER_0 = UserHandle.of(0);
+    private static final UserHandle USER_10 = UserHandle.of(10);
+    private static final int QUERIES_PER_THREAD = 20000;
+    private static final long TEST_TIMEOUT = 20000L;
+
+    private final Set<Call> mMultiUserCalls = new HashSet<>();
+    private final CallStateIndex mIndex = new CallStateIndex(
+            call -> mMultiUserCalls.contains(call) ? UserHandle.ALL : call.getAssociatedUser());
+
+    @SmallTest
+    @Test
+    public void testSummaryMatchesIndex() {
+        mIndex.add(createCall(CallState.ACTIVE, false, USER_0));
+        mIndex.add(createCall(CallState.ON_HOLD, true, USER_10));
+        Call multiUserCall = createCall(CallState.RINGING, false, USER_10);
+        mMultiUserCalls.add(multiUserCall);
+        mIndex.add(multiUserCall);
+
+        CallStateIndex.Summary summary = mIndex.getSummary();
+        for (UserHandle user : new UserHandle[] {null, USER_0, USER_10, UserHandle.of(11)}) {
+            for (boolean managed : new boolean[] {true, false}) {
+                for (boolean selfManaged : new boolean[] {true, false}) {
+                    assertEquals(
+                            mIndex.getNumCalls(managed, selfManaged, null, null, user,
+                                    CallsManager.ONGOING_CALL_STATES),
+                            summary.getNumCalls(managed, selfManaged, user,
+                                    CallsManager.ONGOING_CALL_STATES));
+                }
+            }
+        }
+        // The multi-user call is visible to every user.
+        assertEquals(1, summary.getNumCalls(true, true, UserHandle.of(11),
+                CallsManager.ONGOING_CALL_STATES));
+        assertTrue(summary.hasOngoingManagedCalls(USER_0, false));
+        assertTrue(summary.hasRingingOrSimulatedRingingCall());
+    }
+
+    @SmallTest
+    @Test
+    public void testSummaryPublishedOnChange() {
+        Call call = createCall(CallState.RINGING, false, USER_0);
+        mIndex.add(call);
+        CallStateIndex.Summary ringing = mIndex.getSummary();
+        assertTrue(ringing.hasRingingOrSimulatedRingingCall());
+
+        when(call.getState()).thenReturn(CallState.ACTIVE);
+        mIndex.update(call);
+        // Published summaries are immutable.
+        assertTrue(ringing.hasRingingOrSimulatedRingingCall());
+        assertFalse(mIndex.getSummary().hasRingingOrSimulatedRingingCall());
+        assertTrue(mIndex.getSummary().hasOngoingCalls(USER_0, false));
+
+        // A change of user is picked up even though the call keeps its state.
+        when(call.getAssociatedUser()).thenReturn(USER_10);
+        mIndex.update(call);
+        assertFalse(mIndex.getSummary().hasOngoingCalls(USER_0, false));
+        assertTrue(mIndex.getSummary().hasOngoingCalls(USER_0, true));
+
+        mIndex.remove(call);
+        assertFalse(mIndex.getSummary().hasOngoingCalls(USER_10, false));
+    }
+
+    /**
+     * Benchmark comparing the call state queries answered under a shared lock, as the binder APIs
+     * used to be, against reading the published summary, with several reader threads and a
+     * thread changing call state under the lock.  Results are logged.
+     */
+    @MediumTest
+    @Test
+    public void testQueryBenchmark() throws Exception {
+        Object lock = new Object();
+        List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Call call = createCall(CallState.ACTIVE, i % 2 == 1, i < 2 ? USER_0 : USER_10);
+            calls.add(call);
+            mIndex.add(call);
+        }
+        for (int numReaders : new int[] {1, 4, 8}) {
+            long lockedNs = runReaders(numReaders, lock, calls, () -> {
+                synchronized (lock) {
+                    return mIndex.getNumCalls(true, true, null, null, USER_0,
+                            CallsManager.ONGOING_CALL_STATES) > 0;
+                }
+            });
+            long summaryNs = runReaders(numReaders, lock, calls,
+                    () -> mIndex.getSummary().hasOngoingCalls(USER_0, false));
+            Log.i(TAG, "readers=%d: locked=%dns summary=%dns (per query)", numReaders,
+                    lockedNs / QUERIES_PER_THREAD, summaryNs / QUERIES_PER_THREAD);
+        }
+    }
+
+    private interface Query {
+        boolean run();
+    }
+
+    /**
+     * Runs the query on several threads at once while another thread changes call state under
+     * the lock.
+     * @return The mean time taken by a reader thread to run its queries, in nS.
+     */
+    private long runReaders(int numReaders, Object lock, List<Call> calls, Query query)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicLong totalNs = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            int i = 0;
+            while (!done.get()) {
+                Call call = calls.get(i++ % calls.size());
+                synchronized (lock) {
+                    mIndex.update(call);
+                }
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < numReaders; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    start.await();
+                    long startNs = System.nanoTime();
+                    for (int q = 0; q < QUERIES_PER_THREAD; q++) {
+                        if (!query.run()) {
+                            failed.set(true);
+                        }
+                    }
+                    totalNs.addAndGet(System.nanoTime() - startNs);
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        writer.start();
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join(TEST_TIMEOUT);
+        }
+        done.set(true);
+        writer.join(TEST_TIMEOUT);
+        assertFalse(failed.get());
+        return totalNs.get() / numReaders;
+    }
+
+    private static Call createCall(int state, boolean isSelfManaged, UserHandle user) {
+        Call call = mock(Call.class);
+        when(call.getState()).thenReturn(state);
+        when(call.isSelfManaged()).thenReturn(isSelfManaged);
+        when(call.getAssociatedUser()).thenReturn(user);
+        return call;
+    }
+}
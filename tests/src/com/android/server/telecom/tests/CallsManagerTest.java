@@ -59,6 +59,7 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.OutcomeReceiver;
@@ -129,6 +130,7 @@ import com.android.server.telecom.RoleManagerAdapter;
 import com.android.server.telecom.SystemStateHelper;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.WiredHeadsetManager;
 import com.android.server.telecom.bluetooth.BluetoothDeviceManager;
 import com.android.server.telecom.bluetooth.BluetoothRouteManager;
@@ -321,6 +323,8 @@ public class CallsManagerTest extends TelecomTestCase {
     @Mock private UserManager mMockCurrentUserManager;
     @Mock private IConnectionService mIConnectionService;
     @Mock private TelecomMetricsController mMockTelecomMetricsController;
+    private HandlerThread mTimingWheelThread;
+    private TimingWheel mTimingWheel;
     private CallsManager mCallsManager;
 
     @Override
@@ -328,6 +332,9 @@ public class CallsManagerTest extends TelecomTestCase {
     public void setUp() throws Exception {
         super.setUp();
         MockitoAnnotations.initMocks(this);
+        mTimingWheelThread = new HandlerThread("TimingWheel");
+        mTimingWheelThread.start();
+        mTimingWheel = new TimingWheel(mTimingWheelThread.getLooper());
         when(mInCallWakeLockControllerFactory.create(any(), any())).thenReturn(
                 mInCallWakeLockController);
         when(mHeadsetMediaButtonFactory.create(any(), any(), any())).thenReturn(
@@ -400,7 +407,8 @@ public class CallsManagerTest extends TelecomTestCase {
                 mTelephonyFlags,
                 (call, listener, context, timeoutsAdapter,
                         mFeatureFlags, lock) -> mIncomingCallFilterGraph,
-                mMockTelecomMetricsController);
+                mMockTelecomMetricsController,
+                mTimingWheel);
 
         when(mPhoneAccountRegistrar.getPhoneAccount(
                 eq(SELF_MANAGED_HANDLE), any())).thenReturn(SELF_MANAGED_ACCOUNT);
@@ -431,6 +439,7 @@ public class CallsManagerTest extends TelecomTestCase {
     public void tearDown() throws Exception {
         mComponentContextFixture.removeConnectionService(
                 SIM_1_ACCOUNT.getAccountHandle().getComponentName(), mIConnectionService);
+        mTimingWheelThread.quitSafely();
         super.tearDown();
     }
 
@@ -1108,6 +1117,7 @@ public class CallsManagerTest extends TelecomTestCase {
         Call incomingCall = addSpyCall(CallState.RINGING);
         doAnswer(invocation -> {
             doReturn(CallState.ANSWERED).when(incomingCall).getState();
+            mCallsManager.updateCallStateIndex(incomingCall);
             return null;
         }).when(incomingCall).answer(anyInt());
         mCallsManager.answerCall(incomingCall, VideoProfile.STATE_AUDIO_ONLY);
@@ -1477,6 +1487,43 @@ public class CallsManagerTest extends TelecomTestCase {
         verify(incomingCall2).setIsUsingCallFiltering(eq(true));
     }
 
+    /**
+     * Verify that binding to the in-call UI starts while an incoming call is being filtered, and
+     * is released if filtering blocks the call.
+     */
+    @SmallTest
+    @Test
+    public void testInCallServiceBindingPrewarmedWhileFiltering() {
+        Call incomingCall = addSpyCall(CallState.NEW);
+        mCallsManager.onSuccessfulIncomingCall(incomingCall);
+        verify(mInCallController).prewarmBindingForIncomingCall(incomingCall);
+
+        Call blockedCall = addSpyCall(CallState.NEW);
+        mCallsManager.onCallFilteringComplete(blockedCall, new CallFilteringResult.Builder()
+                .setShouldAllowCall(false)
+                .setShouldReject(false)
+                .setShouldAddToCallLog(false)
+                .setShouldShowNotification(false)
+                .build(), false);
+        verify(mInCallController).releasePrewarmedBinding(blockedCall);
+    }
+
+    /**
+     * Verify that removing an incoming call which was never added releases the in-call binding
+     * prewarmed for it, whichever path dropped the call.
+     */
+    @SmallTest
+    @Test
+    public void testPrewarmedBindingReleasedWhenUnaddedCallRemoved() {
+        Call incomingCall = createSpyCall(SIM_2_HANDLE, CallState.NEW);
+        mCallsManager.onSuccessfulIncomingCall(incomingCall);
+        verify(mInCallController).prewarmBindingForIncomingCall(incomingCall);
+
+        mCallsManager.removeCall(incomingCall);
+        verify(mInCallController).releasePrewarmedBinding(incomingCall);
+        verify(mInCallController, never()).onCallRemoved(incomingCall);
+    }
+
     @SmallTest
     @Test
     public void testDsdaAvailableCheckWhenNoTelephony() {
@@ -1529,6 +1576,7 @@ public class CallsManagerTest extends TelecomTestCase {
         // GIVEN an incoming call
         Call incomingCall = addSpyCall();
         doReturn(CallState.RINGING).when(incomingCall).getState();
+        mCallsManager.updateCallStateIndex(incomingCall);
 
         // WHEN media button short press
         mCallsManager.onMediaButton(HeadsetMediaButton.SHORT_PRESS);
@@ -1547,6 +1595,7 @@ public class CallsManagerTest extends TelecomTestCase {
         // GIVEN an incoming call
         Call incomingCall = addSpyCall();
         doReturn(CallState.RINGING).when(incomingCall).getState();
+        mCallsManager.updateCallStateIndex(incomingCall);
 
         // WHEN media button long press
         mCallsManager.onMediaButton(HeadsetMediaButton.LONG_PRESS);
@@ -1597,6 +1646,7 @@ public class CallsManagerTest extends TelecomTestCase {
         // and a held call
         Call heldCall = addSpyCall();
         doReturn(CallState.ON_HOLD).when(heldCall).getState();
+        mCallsManager.updateCallStateIndex(heldCall);
 
         // WHEN media button short press
         mCallsManager.onMediaButton(HeadsetMediaButton.SHORT_PRESS);
@@ -1619,6 +1669,7 @@ public class CallsManagerTest extends TelecomTestCase {
         // and a held call
         Call heldCall = addSpyCall();
         doReturn(CallState.ON_HOLD).when(heldCall).getState();
+        mCallsManager.updateCallStateIndex(heldCall);
 
         // WHEN media button long press
         mCallsManager.onMediaButton(HeadsetMediaButton.LONG_PRESS);
@@ -1800,9 +1851,11 @@ public class CallsManagerTest extends TelecomTestCase {
         when(existingCall.isSelfManaged()).thenReturn(false);
 
         when(existingCall.getState()).thenReturn(CallState.RINGING);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isIncomingCallPermitted(SIM_1_HANDLE));
 
         when(existingCall.getState()).thenReturn(CallState.ON_HOLD);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isIncomingCallPermitted(SIM_1_HANDLE));
     }
 
@@ -1822,6 +1875,7 @@ public class CallsManagerTest extends TelecomTestCase {
         assertFalse(mCallsManager.isIncomingCallPermitted(SELF_MANAGED_HANDLE));
 
         when(existingCall.getState()).thenReturn(CallState.ACTIVE);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertTrue(mCallsManager.isIncomingCallPermitted(SELF_MANAGED_HANDLE));
 
         // Add self managed calls up to 10
@@ -1847,15 +1901,19 @@ public class CallsManagerTest extends TelecomTestCase {
         when(existingCall.isSelfManaged()).thenReturn(false);
 
         when(existingCall.getState()).thenReturn(CallState.CONNECTING);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isOutgoingCallPermitted(SIM_1_HANDLE));
 
         when(existingCall.getState()).thenReturn(CallState.DIALING);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isOutgoingCallPermitted(SIM_1_HANDLE));
 
         when(existingCall.getState()).thenReturn(CallState.ACTIVE);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isOutgoingCallPermitted(SIM_1_HANDLE));
 
         when(existingCall.getState()).thenReturn(CallState.ON_HOLD);
+        mCallsManager.updateCallStateIndex(existingCall);
         assertFalse(mCallsManager.isOutgoingCallPermitted(SIM_1_HANDLE));
     }
 
@@ -2594,6 +2652,91 @@ public class CallsManagerTest extends TelecomTestCase {
         verify(callSpy, never()).setDisconnectCause(any(DisconnectCause.class));
     }
 
+    /**
+     * Walks managed, self-managed and external calls through every call state and verifies that
+     * the state counting and first-call queries agree with a scan of all calls after each
+     * transition.
+     */
+    @SmallTest
+    @Test
+    public void testCallStateIndexMatchesCallScan() {
+        Call managedCall1 = createCall(SIM_1_HANDLE, CallState.NEW);
+        Call managedCall2 = createCall(SIM_2_HANDLE, CallState.NEW);
+        Call selfManagedCall = createCall(SELF_MANAGED_HANDLE, CallState.NEW);
+        Call externalCall = createCall(SIM_2_HANDLE, CallState.NEW);
+        externalCall.setConnectionProperties(Connection.PROPERTY_IS_EXTERNAL_CALL);
+        List<Call> calls = Arrays.asList(managedCall1, managedCall2, selfManagedCall,
+                externalCall);
+        for (Call call : calls) {
+            mCallsManager.addCall(call);
+        }
+        verifyCallStateIndex(calls);
+
+        for (Call call : calls) {
+            for (int state = CallState.NEW; state <= CallState.SIMULATED_RINGING; state++) {
+                call.setState(state, "testCallStateIndexMatchesCallScan");
+                verifyCallStateIndex(calls);
+            }
+            call.setState(CallState.ACTIVE, "testCallStateIndexMatchesCallScan");
+            verifyCallStateIndex(calls);
+        }
+
+        // An external call which is pulled becomes visible to the state queries.
+        externalCall.setConnectionProperties(0);
+        verifyCallStateIndex(calls);
+        selfManagedCall.setIsSelfManaged(false);
+        verifyCallStateIndex(calls);
+
+        mCallsManager.removeCall(managedCall1);
+        assertEquals(2, mCallsManager.getNumCallsWithState(false /* isSelfManaged */,
+                managedCall2, null /* phoneAccountHandle */, CallState.ACTIVE));
+        verifyCallStateIndex(Arrays.asList(managedCall2, selfManagedCall, externalCall));
+    }
+
+    private void verifyCallStateIndex(List<Call> calls) {
+        int[] multipleStates = {CallState.RINGING, CallState.ACTIVE, CallState.ON_HOLD,
+                CallState.ACTIVE};
+        for (boolean isSelfManaged : new boolean[] {false, true}) {
+            for (Call excludeCall : new Call[] {null, calls.get(0)}) {
+                for (PhoneAccountHandle handle : new PhoneAccountHandle[] {null, SIM_2_HANDLE}) {
+                    for (int state = CallState.NEW; state <= CallState.SIMULATED_RINGING;
+                            state++) {
+                        assertEquals(scanNumCallsWithState(calls, isSelfManaged, excludeCall,
+                                handle, state), mCallsManager.getNumCallsWithState(
+                                        isSelfManaged, excludeCall, handle, state));
+                    }
+                    assertEquals(scanNumCallsWithState(calls, isSelfManaged, excludeCall,
+                            handle, multipleStates), mCallsManager.getNumCallsWithState(
+                                    isSelfManaged, excludeCall, handle, multipleStates));
+                }
+            }
+        }
+        for (int state = CallState.NEW; state <= CallState.SIMULATED_RINGING; state++) {
+            final int currentState = state;
+            List<Call> expected = calls.stream()
+                    .filter(c -> c.getState() == currentState && c.getParentCall() == null
+                            && !c.isExternalCall())
+                    .collect(Collectors.toList());
+            Call first = mCallsManager.getFirstCallWithState(state);
+            if (expected.isEmpty()) {
+                assertNull(first);
+            } else {
+                assertTrue(expected.contains(first));
+            }
+        }
+    }
+
+    private static int scanNumCallsWithState(List<Call> calls, boolean isSelfManaged,
+            Call excludeCall, PhoneAccountHandle handle, int... states) {
+        Set<Integer> desiredStates = Arrays.stream(states).boxed().collect(Collectors.toSet());
+        return (int) calls.stream()
+                .filter(c -> desiredStates.contains(c.getState()) && c.getParentCall() == null
+                        && !c.isExternalCall() && c.isSelfManaged() == isSelfManaged
+                        && c != excludeCall
+                        && (handle == null || handle.equals(c.getTargetPhoneAccount())))
+                .count();
+    }
+
     @Test
     public void testIsInSelfManagedCallOnlyManaged() {
         Call managedCall = createCall(SIM_1_HANDLE, CallState.ACTIVE);
@@ -3285,6 +3428,7 @@ public class CallsManagerTest extends TelecomTestCase {
     public void testOnFailedOutgoingCallUnholdsCallAfterLocallyDisconnect() {
         Call existingCall = addSpyCall();
         when(existingCall.getState()).thenReturn(CallState.ON_HOLD);
+        mCallsManager.updateCallStateIndex(existingCall);
 
         Call call = addSpyCall();
         when(call.isDisconnectHandledViaFuture()).thenReturn(false);
@@ -3307,6 +3451,7 @@ public class CallsManagerTest extends TelecomTestCase {
         Call existingCall = addSpyCall();
         when(existingCall.can(Connection.CAPABILITY_SUPPORT_HOLD)).thenReturn(false);
         when(existingCall.getState()).thenReturn(CallState.ON_HOLD);
+        mCallsManager.updateCallStateIndex(existingCall);
 
         Call call = addSpyCall();
         when(call.isDisconnectHandledViaFuture()).thenReturn(false);
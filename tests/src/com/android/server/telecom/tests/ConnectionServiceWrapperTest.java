@@ -16,13 +16,31 @@
 
 package com.android.server.telecom.tests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.ComponentName;
+import android.os.Bundle;
 import android.os.UserHandle;
+import android.telecom.StatusHints;
+import android.telecom.TelecomManager;
+import android.telecom.VideoProfile;
 
+import androidx.test.filters.MediumTest;
+
+import com.android.internal.telecom.IConnectionServiceAdapter;
+import com.android.server.telecom.Call;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ConnectionServiceRepository;
 import com.android.server.telecom.ConnectionServiceWrapper;
@@ -36,8 +54,23 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @RunWith(JUnit4.class)
 public class ConnectionServiceWrapperTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 20000L;
+    private static final int NUM_CALLS = 4;
+    private static final int NUM_THREADS = 8;
+    private static final int UPDATES_PER_CALL = 200;
+    private static final String SEQUENCE_EXTRA = "sequence";
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() {};
+
     @Override
     @Before
     public void setUp() throws Exception {
@@ -68,4 +101,209 @@ public class ConnectionServiceWrapperTest extends TelecomTestCase {
                 .thenThrow(new UnsupportedOperationException("Bee boop"));
         assertNull(wrapper.getLastKnownCellIdentity());
    }
+
+    /**
+     * Drive single call callbacks for several calls from many binder threads at once, alongside a
+     * thread which makes callbacks with the Telecom lock already held, and verify that every
+     * update is applied exactly once, in order per thread and without deadlocking.  The call's
+     * own state must be changed holding only the call's callback lock, and the Telecom lock only
+     * taken to notify the listeners or apply changes which reach past the call.
+     */
+    @MediumTest
+    @Test
+    public void testConcurrentSingleCallCallbacks() throws Exception {
+        ConnectionServiceWrapper wrapper = createWrapper();
+        IConnectionServiceAdapter adapter = wrapper.getAdapter();
+        AtomicBoolean unlockedUpdate = new AtomicBoolean(false);
+        AtomicBoolean stateChangedUnderTelecomLock = new AtomicBoolean(false);
+        AtomicInteger[] notifications = new AtomicInteger[NUM_CALLS];
+        AtomicBoolean outOfOrderUpdate = new AtomicBoolean(false);
+        AtomicInteger[] updates = new AtomicInteger[NUM_CALLS];
+        // The last sequence number seen per call and thread; the threads number their events.
+        int[][] lastSeen = new int[NUM_CALLS][NUM_THREADS + 1];
+        for (int i = 0; i < NUM_CALLS; i++) {
+            int callIndex = i;
+            updates[i] = new AtomicInteger();
+            notifications[i] = new AtomicInteger();
+            Call call = createCall(wrapper, "call" + i);
+            doAnswer(invocation -> {
+                if (!Thread.holdsLock(mLock)) {
+                    unlockedUpdate.set(true);
+                }
+                int thread = Integer.parseInt(invocation.getArgument(0));
+                int sequence = ((Bundle) invocation.getArgument(1)).getInt(SEQUENCE_EXTRA);
+                if (sequence <= lastSeen[callIndex][thread]) {
+                    outOfOrderUpdate.set(true);
+                }
+                lastSeen[callIndex][thread] = sequence;
+                updates[callIndex].incrementAndGet();
+                return null;
+            }).when(call).onConnectionEvent(anyString(), any(Bundle.class));
+            doAnswer(invocation -> {
+                // Extras are unparcelled holding only the callback lock, then applied in order.
+                if (!Thread.holdsLock(mLock)
+                        || !Thread.holdsLock(call.getAdapterCallbackLock())) {
+                    unlockedUpdate.set(true);
+                }
+                return null;
+            }).when(call).putConnectionServiceExtras(any(Bundle.class));
+            doAnswer(invocation -> {
+                if (Thread.holdsLock(mLock)
+                        || !Thread.holdsLock(call.getAdapterCallbackLock())) {
+                    stateChangedUnderTelecomLock.set(true);
+                }
+                return true;
+            }).when(call).updateCallerDisplayName(anyString(), anyInt());
+            doAnswer(invocation -> {
+                if (!Thread.holdsLock(mLock)) {
+                    unlockedUpdate.set(true);
+                }
+                notifications[callIndex].incrementAndGet();
+                return null;
+            }).when(call).notifyCallerDisplayNameChanged();
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t <= NUM_THREADS; t++) {
+            // The last thread holds the Telecom lock, like a local call back into the adapter.
+            boolean holdsTelecomLock = t == NUM_THREADS;
+            String threadName = String.valueOf(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int sequence = 1; sequence <= UPDATES_PER_CALL; sequence++) {
+                        Bundle extras = new Bundle();
+                        extras.putInt(SEQUENCE_EXTRA, sequence);
+                        for (int i = 0; i < NUM_CALLS; i++) {
+                            if (holdsTelecomLock) {
+                                synchronized (mLock) {
+                                    adapter.onConnectionEvent("call" + i, threadName, extras,
+                                            null);
+                                }
+                            } else {
+                                adapter.onConnectionEvent("call" + i, threadName, extras, null);
+                                adapter.putExtras("call" + i, new Bundle(), null);
+                                adapter.setCallerDisplayName("call" + i, threadName + sequence,
+                                        TelecomManager.PRESENTATION_ALLOWED, null);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TEST_TIMEOUT);
+            assertFalse("Callbacks deadlocked", thread.isAlive());
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertFalse(unlockedUpdate.get());
+        assertFalse(stateChangedUnderTelecomLock.get());
+        assertFalse(outOfOrderUpdate.get());
+        for (int i = 0; i < NUM_CALLS; i++) {
+            assertEquals((NUM_THREADS + 1) * UPDATES_PER_CALL, updates[i].get());
+            assertEquals(NUM_THREADS * UPDATES_PER_CALL, notifications[i].get());
+        }
+    }
+
+    /**
+     * Verify that a single call callback which changes nothing completes without the Telecom
+     * lock, even while another thread holds it.
+     */
+    @Test
+    public void testUnchangedSingleCallStateSkipsTelecomLock() throws Exception {
+        ConnectionServiceWrapper wrapper = createWrapper();
+        Call call = createCall(wrapper, "call0");
+        when(call.updateCallerDisplayName(anyString(), anyInt())).thenReturn(false);
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (mLock) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Release the lock.
+                }
+            }
+        });
+        holder.start();
+        try {
+            assertTrue(locked.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            wrapper.getAdapter().setCallerDisplayName("call0", "name",
+                    TelecomManager.PRESENTATION_ALLOWED, null);
+        } finally {
+            release.countDown();
+            holder.join(TEST_TIMEOUT);
+        }
+
+        verify(call).updateCallerDisplayName("name", TelecomManager.PRESENTATION_ALLOWED);
+        verify(call, never()).notifyCallerDisplayNameChanged();
+    }
+
+    /**
+     * Verify that repeated ringback requests and status hints are passed on to the listeners,
+     * as they were before these callbacks were split: a repeated ringback request starts ringback
+     * for a call which has since moved to the foreground.
+     */
+    @Test
+    public void testRepeatedRingbackAndStatusHintsNotified() throws Exception {
+        ConnectionServiceWrapper wrapper = createWrapper();
+        Call call = createCall(wrapper, "call0");
+        StatusHints statusHints = new StatusHints("label", null, null);
+
+        for (int i = 0; i < 2; i++) {
+            wrapper.getAdapter().setRingbackRequested("call0", true, null);
+            wrapper.getAdapter().setStatusHints("call0", statusHints, null);
+        }
+
+        verify(call, times(2)).updateRingbackRequested(true);
+        verify(call, times(2)).notifyRingbackRequested();
+        verify(call, times(2)).updateStatusHints(statusHints);
+        verify(call, times(2)).notifyStatusHintsChanged();
+    }
+
+    /**
+     * Verify that single call callbacks for calls the wrapper does not know about are ignored.
+     */
+    @Test
+    public void testSingleCallCallbackForUnknownCall() throws Exception {
+        ConnectionServiceWrapper wrapper = createWrapper();
+        Call call = createCall(wrapper, "call0");
+
+        wrapper.getAdapter().setVideoState("call1", VideoProfile.STATE_BIDIRECTIONAL, null);
+        wrapper.getAdapter().setVideoState("call0", VideoProfile.STATE_TX_ENABLED, null);
+
+        verify(call).setVideoState(VideoProfile.STATE_TX_ENABLED);
+    }
+
+    private ConnectionServiceWrapper createWrapper() {
+        return new ConnectionServiceWrapper(
+                ComponentName.unflattenFromString("foo/baz"),
+                mock(ConnectionServiceRepository.class),
+                mock(PhoneAccountRegistrar.class),
+                mock(CallsManager.class),
+                mContext,
+                mLock,
+                UserHandle.CURRENT,
+                mock(FeatureFlags.class));
+    }
+
+    private Call createCall(ConnectionServiceWrapper wrapper, String callId) {
+        Call call = mock(Call.class);
+        when(call.getConnectionId()).thenReturn(callId);
+        when(call.getAdapterCallbackLock()).thenReturn(new Object());
+        wrapper.addCall(call);
+        return call;
+    }
 }
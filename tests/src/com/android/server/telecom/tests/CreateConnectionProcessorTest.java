@@ -38,6 +38,7 @@ import android.content.Context;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.HandlerThread;
 import android.os.UserHandle;
 import android.platform.test.flag.junit.SetFlagsRule;
 import android.telecom.DisconnectCause;
@@ -59,6 +60,7 @@ import com.android.server.telecom.CreateConnectionResponse;
 import com.android.server.telecom.CreateConnectionTimeout;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 
 import org.junit.After;
 import org.junit.Before;
@@ -103,6 +105,8 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
     @Mock
     ConnectionServiceFocusManager mConnectionServiceFocusManager;
     @Mock Timeouts.Adapter mTimeoutsAdapter;
+    private HandlerThread mTimingWheelThread;
+    private TimingWheel mTimingWheel;
 
     CreateConnectionProcessor mTestCreateConnectionProcessor;
     CreateConnectionTimeout mTestCreateConnectionTimeout;
@@ -117,6 +121,9 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
         super.setUp();
         MockitoAnnotations.initMocks(this);
         mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        mTimingWheelThread = new HandlerThread("TimingWheel");
+        mTimingWheelThread.start();
+        mTimingWheel = new TimingWheel(mTimingWheelThread.getLooper());
 
         when(mMockCall.getConnectionServiceFocusManager()).thenReturn(
                 mConnectionServiceFocusManager);
@@ -136,7 +143,7 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
 
         mTestCreateConnectionProcessor = new CreateConnectionProcessor(mMockCall,
                 mMockConnectionServiceRepository, mMockCreateConnectionResponse,
-                mMockAccountRegistrar, mContext, mFeatureFlags, mTimeoutsAdapter);
+                mMockAccountRegistrar, mContext, mFeatureFlags, mTimeoutsAdapter, mTimingWheel);
 
         mAccountToSub = new HashMap<>();
         phoneAccounts = new ArrayList<>();
@@ -161,7 +168,7 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
                 thenReturn(Binder.getCallingUserHandle());
 
         mTestCreateConnectionTimeout = new CreateConnectionTimeout(mContext, mMockAccountRegistrar,
-                makeConnectionServiceWrapper(), mMockCall, mTimeoutsAdapter);
+                makeConnectionServiceWrapper(), mMockCall, mTimeoutsAdapter, mTimingWheel);
 
         mSetFlagsRule.enableFlags(Flags.FLAG_CARRIER_ENABLED_SATELLITE_FLAG);
     }
@@ -170,6 +177,7 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
     @After
     public void tearDown() throws Exception {
         mTestCreateConnectionProcessor = null;
+        mTimingWheelThread.quitSafely();
         super.tearDown();
     }
 
@@ -22,7 +22,9 @@ import static com.android.server.telecom.tests.TelecomSystemTest.TEST_TIMEOUT;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -36,10 +38,12 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -71,7 +75,9 @@ import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Process;
@@ -81,6 +87,7 @@ import android.permission.PermissionCheckerManager;
 import android.telecom.CallAudioState;
 import android.telecom.CallEndpoint;
 import android.telecom.InCallService;
+import android.telecom.Log;
 import android.telecom.ParcelableCall;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
@@ -110,6 +117,7 @@ import com.android.server.telecom.RoleManagerAdapter;
 import com.android.server.telecom.SystemStateHelper;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 
 import org.junit.After;
 import org.junit.Before;
@@ -120,6 +128,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -189,6 +198,7 @@ public class InCallControllerTests extends TelecomTestCase {
     private static final String BT_PKG = "btpkg";
     private static final String BT_CLS = "btcls";
     private static final int BT_UID = 900974;
+    private static final int UPDATES_PER_RUN = 2000;
 
     private static final PhoneAccountHandle PA_HANDLE =
             new PhoneAccountHandle(new ComponentName("pa_pkg", "pa_cls"),
@@ -198,6 +208,7 @@ public class InCallControllerTests extends TelecomTestCase {
     private UserHandle mUserHandle = UserHandle.of(CURRENT_USER_ID);
     private InCallController mInCallController;
     private TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() {};
+    private HandlerThread mTimingWheelThread;
     private EmergencyCallHelper mEmergencyCallHelper;
     private SystemStateHelper.SystemStateListener mSystemStateListener;
     private CarModeTracker mCarModeTracker = spy(new CarModeTracker());
@@ -240,9 +251,12 @@ public class InCallControllerTests extends TelecomTestCase {
                 mMockPermissionInfo);
         when(mMockContext.getAttributionSource()).thenReturn(new AttributionSource(Process.myUid(),
                 "com.android.server.telecom.tests", null));
+        mTimingWheelThread = new HandlerThread("TimingWheel");
+        mTimingWheelThread.start();
         mInCallController = new InCallController(mMockContext, mLock, mMockCallsManager,
                 mMockSystemStateHelper, mDefaultDialerCache, mTimeoutsAdapter,
-                mEmergencyCallHelper, mCarModeTracker, mClockProxy, mFeatureFlags);
+                mEmergencyCallHelper, mCarModeTracker, mClockProxy,
+                new TimingWheel(mTimingWheelThread.getLooper()), mFeatureFlags);
         // Capture the broadcast receiver registered.
         doAnswer(invocation -> {
             mRegisteredReceiver = invocation.getArgument(0);
@@ -334,6 +348,7 @@ public class InCallControllerTests extends TelecomTestCase {
     public void tearDown() throws Exception {
         mInCallController.getHandler().removeCallbacksAndMessages(null);
         waitForHandlerAction(mInCallController.getHandler(), 1000);
+        mTimingWheelThread.quitSafely();
         super.tearDown();
     }
 
@@ -1305,6 +1320,70 @@ public class InCallControllerTests extends TelecomTestCase {
         verify(mockInCallService).addCall(any(ParcelableCall.class));
     }
 
+    /**
+     * Ensures that the UI binding started while an incoming call is being filtered is used once
+     * the call is added, rather than binding again.
+     */
+    @MediumTest
+    @Test
+    public void testPrewarmedBindingUsedWhenCallAdded() throws Exception {
+        setupPrewarmMocks();
+        mInCallController.prewarmBindingForIncomingCall(mMockCall);
+
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                serviceConnectionCaptor.capture(), eq(serviceBindingFlags), eq(mUserHandle));
+        IBinder mockBinder = mock(IBinder.class);
+        IInCallService mockInCallService = mock(IInCallService.class);
+        when(mockBinder.queryLocalInterface(anyString())).thenReturn(mockInCallService);
+        serviceConnectionCaptor.getValue().onServiceConnected(
+                new ComponentName(DEF_PKG, DEF_CLASS), mockBinder);
+        // The call is still being filtered, so it is not sent yet.
+        verify(mockInCallService, never()).addCall(any(ParcelableCall.class));
+
+        // Filtering allows the call.
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        mInCallController.onCallAdded(mMockCall);
+        verify(mockInCallService).addCall(any(ParcelableCall.class));
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+    }
+
+    /**
+     * Ensures that the UI binding started while an incoming call is being filtered is released
+     * if filtering rejects the call.
+     */
+    @MediumTest
+    @Test
+    public void testPrewarmedBindingReleasedWhenCallNotAdded() throws Exception {
+        setupPrewarmMocks();
+        mInCallController.prewarmBindingForIncomingCall(mMockCall);
+
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                serviceConnectionCaptor.capture(), eq(serviceBindingFlags), eq(mUserHandle));
+
+        mInCallController.releasePrewarmedBinding(mMockCall);
+        verify(mMockContext).unbindService(serviceConnectionCaptor.getValue());
+    }
+
+    private void setupPrewarmMocks() {
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.isInEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(true);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(PA_HANDLE);
+        when(mDefaultDialerCache.getDefaultDialerApplication(CURRENT_USER_ID)).thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(nullable(Intent.class),
+                nullable(ServiceConnection.class), anyInt(), nullable(UserHandle.class)))
+                .thenReturn(true);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+    }
+
     /**
      * Ensures that the {@link InCallController} will bind to an {@link InCallService} which
      * supports third party car mode ui calls
@@ -1653,6 +1732,152 @@ public class InCallControllerTests extends TelecomTestCase {
         assertTrue(bindTimeout.getNow(false));
     }
 
+    /**
+     * Ensures that an update which only changes the call's extras in place is still sent to a
+     * non-UI service, which is sent the call's own extras rather than a sanitized copy.
+     */
+    @MediumTest
+    @Test
+    public void testExtrasOnlyUpdateSentToNonUiService() throws Exception {
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.isInEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(false);
+        when(mMockCall.getAssociatedUser()).thenReturn(mUserHandle);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(PA_HANDLE);
+        Bundle extras = new Bundle();
+        extras.putString("key", "value");
+        when(mMockCall.getExtras()).thenReturn(extras);
+        when(mDefaultDialerCache.getDefaultDialerApplication(CURRENT_USER_ID)).thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(nullable(Intent.class),
+                nullable(ServiceConnection.class), anyInt(), nullable(UserHandle.class)))
+                .thenReturn(true);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        setupMockPackageManager(true /* default */, true /* nonui */, false /* appop_nonui */ ,
+                true /* system */, false /* external calls */,
+                false /* self mgd in default*/, false /* self mgd in car*/);
+        mInCallController.bindToServices(mMockCall);
+
+        ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(2)).bindServiceAsUser(
+                bindIntentCaptor.capture(),
+                serviceConnectionCaptor.capture(),
+                eq(serviceBindingFlags),
+                eq(mUserHandle));
+        int nonUiIdx = findFirstIndexMatching(bindIntentCaptor.getAllValues(),
+                i -> NONUI_PKG.equals(i.getComponent().getPackageName()));
+        if (nonUiIdx < 0) {
+            fail("Did not bind to non-ui incall");
+        }
+
+        IBinder mockBinder = mock(IBinder.class);
+        IInCallService mockInCallService = mock(IInCallService.class);
+        when(mockBinder.queryLocalInterface(anyString())).thenReturn(mockInCallService);
+        serviceConnectionCaptor.getAllValues().get(nonUiIdx).onServiceConnected(
+                new ComponentName(NONUI_PKG, NONUI_CLASS), mockBinder);
+        verify(mockInCallService).addCall(any(ParcelableCall.class));
+
+        ArgumentCaptor<Call.Listener> listenerCaptor = ArgumentCaptor.forClass(Call.Listener.class);
+        verify(mMockCall).addListener(listenerCaptor.capture());
+
+        // Nothing has changed, so nothing is sent.
+        listenerCaptor.getValue().onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE,
+                extras, null);
+        verify(mockInCallService, never()).updateCall(any(ParcelableCall.class));
+
+        // Change only the extras, in place, as Call does.
+        extras.putString("key", "new value");
+        listenerCaptor.getValue().onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE,
+                extras, null);
+        ArgumentCaptor<ParcelableCall> updateCaptor =
+                ArgumentCaptor.forClass(ParcelableCall.class);
+        verify(mockInCallService).updateCall(updateCaptor.capture());
+        assertEquals("new value", updateCaptor.getValue().getExtras().getString("key"));
+    }
+
+    /**
+     * Ensures that an update held by the coalescing window is sent before a connection event the
+     * call raises afterwards, and that nothing is held for a call once it has been removed.
+     */
+    @MediumTest
+    @Test
+    public void testCoalescedUpdateFlushedBeforeConnectionEvent() throws Exception {
+        when(mTimeoutsAdapter.getInCallServiceUpdateCoalesceWindowMillis(
+                nullable(ContentResolver.class))).thenReturn(TEST_TIMEOUT * 10);
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.isInEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(false);
+        when(mMockCall.getAssociatedUser()).thenReturn(mUserHandle);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(PA_HANDLE);
+        Bundle extras = new Bundle();
+        extras.putString("key", "value");
+        when(mMockCall.getExtras()).thenReturn(extras);
+        when(mDefaultDialerCache.getDefaultDialerApplication(CURRENT_USER_ID)).thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(nullable(Intent.class),
+                nullable(ServiceConnection.class), anyInt(), nullable(UserHandle.class)))
+                .thenReturn(true);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        setupMockPackageManager(true /* default */, true /* nonui */, false /* appop_nonui */ ,
+                true /* system */, false /* external calls */,
+                false /* self mgd in default*/, false /* self mgd in car*/);
+        mInCallController.bindToServices(mMockCall);
+
+        ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(2)).bindServiceAsUser(
+                bindIntentCaptor.capture(),
+                serviceConnectionCaptor.capture(),
+                eq(serviceBindingFlags),
+                eq(mUserHandle));
+        int nonUiIdx = findFirstIndexMatching(bindIntentCaptor.getAllValues(),
+                i -> NONUI_PKG.equals(i.getComponent().getPackageName()));
+        if (nonUiIdx < 0) {
+            fail("Did not bind to non-ui incall");
+        }
+
+        IBinder mockBinder = mock(IBinder.class);
+        IInCallService mockInCallService = mock(IInCallService.class);
+        when(mockBinder.queryLocalInterface(anyString())).thenReturn(mockInCallService);
+        serviceConnectionCaptor.getAllValues().get(nonUiIdx).onServiceConnected(
+                new ComponentName(NONUI_PKG, NONUI_CLASS), mockBinder);
+        verify(mockInCallService).addCall(any(ParcelableCall.class));
+
+        ArgumentCaptor<Call.Listener> listenerCaptor = ArgumentCaptor.forClass(Call.Listener.class);
+        verify(mMockCall).addListener(listenerCaptor.capture());
+        Call.Listener listener = listenerCaptor.getValue();
+
+        // The extras change is held by the coalescing window...
+        extras.putString("key", "new value");
+        listener.onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE, extras, null);
+        verify(mockInCallService, never()).updateCall(any(ParcelableCall.class));
+
+        // ...until the call raises a connection event, which must not overtake it.
+        listener.onConnectionEvent(mMockCall, "event", null);
+        verify(mockInCallService, timeout(TEST_TIMEOUT)).onConnectionEvent(anyString(),
+                eq("event"), nullable(Bundle.class));
+        InOrder inOrder = inOrder(mockInCallService);
+        inOrder.verify(mockInCallService).updateCall(any(ParcelableCall.class));
+        inOrder.verify(mockInCallService).onConnectionEvent(anyString(), eq("event"),
+                nullable(Bundle.class));
+
+        // A held update is sent when the call is removed, and none is held afterwards.
+        extras.putString("key", "final value");
+        listener.onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE, extras, null);
+        mInCallController.onCallRemoved(mMockCall);
+        verify(mockInCallService, timeout(TEST_TIMEOUT).times(2)).updateCall(
+                any(ParcelableCall.class));
+        extras.putString("key", "late value");
+        listener.onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE, extras, null);
+        mInCallController.getHandler().removeCallbacksAndMessages(null);
+        verify(mockInCallService, times(2)).updateCall(any(ParcelableCall.class));
+    }
+
     /**
      * Verify that if we go from a dialer which doesn't support self managed calls to a car mode
      * dialer that does support them, we will bind.
@@ -1798,6 +2023,122 @@ public class InCallControllerTests extends TelecomTestCase {
                 android.telecom.Call.EXTRA_IS_SUPPRESSED_BY_DO_NOT_DISTURB));
     }
 
+    /**
+     * Ensures services in the same visibility class are sent the same {@link ParcelableCall}
+     * rather than each getting their own copy, and that sanitization is still per-service.
+     */
+    @Test
+    public void testParcelableCallSharedWithinVisibilityClass() throws Exception {
+        setupMocks(false /* isExternalCall */);
+        setupMockPackageManager(true /* default */, true /* system */, true /* external calls */);
+        when(mMockPackageManager.checkPermission(matches(Manifest.permission.READ_CONTACTS),
+                anyString())).thenReturn(PackageManager.PERMISSION_GRANTED);
+        when(mMockPackageManager.checkPermission(matches(Manifest.permission.READ_CONTACTS),
+                matches(COMPANION_PKG))).thenReturn(PackageManager.PERMISSION_DENIED);
+        Bundle extras = new Bundle();
+        extras.putBoolean(android.telecom.Call.EXTRA_IS_SUPPRESSED_BY_DO_NOT_DISTURB, true);
+        when(mMockCall.getExtras()).thenReturn(extras);
+
+        // The dialer, car mode and BT services; the types are private to InCallController.
+        InCallController.InCallServiceInfo dialer = mockInCallServiceInfo(DEF_PKG, 1);
+        InCallController.InCallServiceInfo car = mockInCallServiceInfo(CAR_PKG, 3);
+        InCallController.InCallServiceInfo bt = mockInCallServiceInfo(BT_PKG, 6);
+        // System UI and non-UI services are sent all of the call extras.
+        InCallController.InCallServiceInfo system = mockInCallServiceInfo(SYS_PKG, 2);
+        InCallController.InCallServiceInfo nonUi = mockInCallServiceInfo(NONUI_PKG, 4);
+        // A companion without the contacts permission.
+        InCallController.InCallServiceInfo companion = mockInCallServiceInfo(COMPANION_PKG, 5);
+
+        InCallController.ParcelableCallSnapshots snapshots =
+                mInCallController.new ParcelableCallSnapshots(mMockCall);
+        ParcelableCall dialerCall = snapshots.get(dialer, true /* includeVideoProvider */,
+                false /* includeRttCall */);
+        assertSame(dialerCall, snapshots.get(car, true, false));
+        assertSame(dialerCall, snapshots.get(bt, true, false));
+        ParcelableCall systemCall = snapshots.get(system, true, false);
+        assertNotSame(dialerCall, systemCall);
+        assertSame(systemCall, snapshots.get(nonUi, true, false));
+        ParcelableCall companionCall = snapshots.get(companion, true, false);
+        assertNotSame(dialerCall, companionCall);
+        assertTrue(dialerCall.getExtras().containsKey(
+                android.telecom.Call.EXTRA_IS_SUPPRESSED_BY_DO_NOT_DISTURB));
+        assertFalse(companionCall.getExtras().containsKey(
+                android.telecom.Call.EXTRA_IS_SUPPRESSED_BY_DO_NOT_DISTURB));
+        // Including the RTT call changes the visibility class.
+        assertNotSame(dialerCall, snapshots.get(dialer, true, true /* includeRttCall */));
+    }
+
+    /**
+     * Benchmark comparing the cost of a call update sent to 1 and to 7 bound services, building a
+     * ParcelableCall for each service, as updates used to be, against sharing one per visibility
+     * class.  The CPU time and the bytes allocated by the test thread per update are logged.
+     */
+    @MediumTest
+    @Test
+    public void testParcelableCallSharingBenchmark() throws Exception {
+        setupMocks(false /* isExternalCall */);
+        setupMockPackageManager(true /* default */, true /* system */, true /* external calls */);
+        when(mMockPackageManager.checkPermission(matches(Manifest.permission.READ_CONTACTS),
+                anyString())).thenReturn(PackageManager.PERMISSION_GRANTED);
+        when(mMockCall.getExtras()).thenReturn(new Bundle());
+
+        // The dialer, two car mode, BT, system UI, non-UI and companion services.
+        List<InCallController.InCallServiceInfo> services = List.of(
+                mockInCallServiceInfo(DEF_PKG, 1), mockInCallServiceInfo(CAR_PKG, 3),
+                mockInCallServiceInfo(BT_PKG, 6), mockInCallServiceInfo(SYS_PKG, 2),
+                mockInCallServiceInfo(NONUI_PKG, 4), mockInCallServiceInfo(COMPANION_PKG, 5),
+                mockInCallServiceInfo(CAR2_PKG, 3));
+        for (int numServices : new int[] {1, 7}) {
+            List<InCallController.InCallServiceInfo> bound = services.subList(0, numServices);
+            // A snapshot per service builds every service its own call, as before sharing.
+            long[] perService = runUpdates(() -> {
+                for (InCallController.InCallServiceInfo info : bound) {
+                    mInCallController.new ParcelableCallSnapshots(mMockCall).get(info,
+                            true /* includeVideoProvider */, false /* includeRttCall */);
+                }
+            });
+            long[] shared = runUpdates(() -> {
+                InCallController.ParcelableCallSnapshots snapshots =
+                        mInCallController.new ParcelableCallSnapshots(mMockCall);
+                for (InCallController.InCallServiceInfo info : bound) {
+                    snapshots.get(info, true /* includeVideoProvider */,
+                            false /* includeRttCall */);
+                }
+            });
+            Log.i(this, "services=%d: perService=%dns/%dB shared=%dns/%dB (per update)",
+                    numServices, perService[0], perService[1], shared[0], shared[1]);
+        }
+    }
+
+    /**
+     * Runs a call update {@link #UPDATES_PER_RUN} times on the test thread.
+     * @return The mean CPU time, in nS, and the mean bytes allocated, per update.
+     */
+    @SuppressWarnings("deprecation")
+    private long[] runUpdates(Runnable update) {
+        // Warm up, so that class loading and the mocks' first answers are not counted.
+        for (int i = 0; i < UPDATES_PER_RUN / 10; i++) {
+            update.run();
+        }
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long startNs = Debug.threadCpuTimeNanos();
+        for (int i = 0; i < UPDATES_PER_RUN; i++) {
+            update.run();
+        }
+        long cpuNs = Debug.threadCpuTimeNanos() - startNs;
+        Debug.stopAllocCounting();
+        return new long[] {cpuNs / UPDATES_PER_RUN, Debug.getThreadAllocSize() / UPDATES_PER_RUN};
+    }
+
+    private InCallController.InCallServiceInfo mockInCallServiceInfo(String packageName,
+            int type) {
+        InCallController.InCallServiceInfo info = mock(InCallController.InCallServiceInfo.class);
+        when(info.getComponentName()).thenReturn(new ComponentName(packageName, DEF_CLASS));
+        when(info.getType()).thenReturn(type);
+        return info;
+    }
+
     @Test
     public void testSecondaryUserCallBindToCurrentUser() throws Exception {
         setupMocks(true /* isExternalCall */);
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.telecom.Call;
+import android.telecom.ParcelableCall;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telecom.IInCallService;
+import com.android.server.telecom.InCallServiceUpdateQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(JUnit4.class)
+public class InCallServiceUpdateQueueTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 5000L;
+
+    @Mock private IInCallService mInCallService;
+    @Mock private InCallServiceUpdateQueue.Listener mListener;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private long mNow;
+    private long mSendMillis;
+    private InCallServiceUpdateQueue mQueue;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("InCallServiceUpdateQueueTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        doAnswer(invocation -> {
+            mNow += mSendMillis;
+            return null;
+        }).when(mInCallService).updateCall(any());
+        mQueue = new InCallServiceUpdateQueue("test", mListener, mHandler::post, () -> mNow);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    @SmallTest
+    @Test
+    public void testSentInlineWhileFast() throws Exception {
+        ParcelableCall call = createCall("1", Call.STATE_ACTIVE);
+        assertTrue(mQueue.updateCall(mInCallService, call));
+
+        verify(mInCallService).updateCall(call);
+        assertFalse(mQueue.isSlow());
+        assertEquals(0, mQueue.getPendingCount());
+
+        // An update which changes nothing since the last one sent is suppressed.
+        assertFalse(mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE)));
+        verify(mInCallService, times(1)).updateCall(any());
+        assertEquals(1, mQueue.getSuppressedCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testUpdatesCollapsedWhileSlow() throws Exception {
+        mSendMillis = InCallServiceUpdateQueue.SLOW_TRANSACTION_MILLIS;
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_RINGING));
+        assertTrue(mQueue.isSlow());
+
+        // Hold up the background thread so that the queued updates can be inspected.
+        CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        });
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE));
+        ParcelableCall latest = createCall("1", Call.STATE_HOLDING);
+        mQueue.updateCall(mInCallService, latest);
+        assertEquals(1, mQueue.getPendingCount());
+        assertEquals(1, mQueue.getCollapsedCount());
+
+        // Once the service catches up, updates are sent inline again.
+        mSendMillis = 0;
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        verify(mInCallService).updateCall(latest);
+        assertFalse(mQueue.isSlow());
+        verify(mInCallService, times(2)).updateCall(any());
+    }
+
+    @SmallTest
+    @Test
+    public void testQueueDepthBounded() throws Exception {
+        doThrow(new RemoteException()).when(mInCallService).updateCall(any());
+        mQueue.updateCall(mInCallService, createCall("0", Call.STATE_ACTIVE));
+        verify(mListener).onSendFailed("0");
+        assertTrue(mQueue.isSlow());
+
+        CountDownLatch latch = blockHandler();
+        for (int i = 1; i <= InCallServiceUpdateQueue.MAX_PENDING_UPDATES; i++) {
+            mQueue.onConnectionEvent(mInCallService, "1", "event" + i, null);
+        }
+        mQueue.updateCall(mInCallService, createCall("2", Call.STATE_ACTIVE));
+        assertEquals(InCallServiceUpdateQueue.MAX_PENDING_UPDATES, mQueue.getPendingCount());
+        assertEquals(1, mQueue.getDroppedCount());
+        // The oldest connection event is dropped to make room.
+        verify(mListener).onCallDropped("1");
+
+        // Updates are never dropped; only the connection events left are.
+        for (int i = 3; i <= InCallServiceUpdateQueue.MAX_PENDING_UPDATES + 3; i++) {
+            mQueue.updateCall(mInCallService, createCall(String.valueOf(i), Call.STATE_ACTIVE));
+        }
+        assertEquals(InCallServiceUpdateQueue.MAX_PENDING_UPDATES, mQueue.getDroppedCount());
+        assertEquals(InCallServiceUpdateQueue.MAX_PENDING_UPDATES + 2, mQueue.getPendingCount());
+        verify(mListener, never()).onCallDropped("2");
+
+        // Queued updates are discarded once the service disconnects.
+        mQueue.clear();
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        assertEquals(0, mQueue.getPendingCount());
+        verify(mInCallService, times(1)).updateCall(any());
+    }
+
+    @SmallTest
+    @Test
+    public void testUpdatesCollapsedOnceEventBetweenDropped() throws Exception {
+        mSendMillis = InCallServiceUpdateQueue.SLOW_TRANSACTION_MILLIS;
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_RINGING));
+        CountDownLatch latch = blockHandler();
+
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE));
+        mQueue.onConnectionEvent(mInCallService, "1", "event", null);
+        for (int i = 2; i < InCallServiceUpdateQueue.MAX_PENDING_UPDATES; i++) {
+            mQueue.updateCall(mInCallService, createCall(String.valueOf(i), Call.STATE_ACTIVE));
+        }
+        ParcelableCall latest = createCall("1", Call.STATE_HOLDING);
+        mQueue.updateCall(mInCallService, latest);
+        // The event is dropped, and the update after it joins the one queued before it.
+        assertEquals(1, mQueue.getDroppedCount());
+        assertEquals(InCallServiceUpdateQueue.MAX_PENDING_UPDATES - 1, mQueue.getPendingCount());
+
+        mSendMillis = 0;
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        verify(mInCallService).updateCall(latest);
+        verify(mInCallService, never()).onConnectionEvent(any(), any(), any());
+    }
+
+    @SmallTest
+    @Test
+    public void testSlowQueuesDrainIndependently() throws Exception {
+        IInCallService blockedService = mock(IInCallService.class);
+        IInCallService otherService = mock(IInCallService.class);
+        CountDownLatch unblock = new CountDownLatch(1);
+        // Each service fails its first call, so that both queues send from the background.
+        doThrow(new RemoteException()).doAnswer(invocation -> {
+            unblock.await();
+            return null;
+        }).when(blockedService).updateCall(any());
+        doThrow(new RemoteException()).doNothing().when(otherService).updateCall(any());
+        InCallServiceUpdateQueue blockedQueue =
+                new InCallServiceUpdateQueue("blocked", mListener, () -> mNow);
+        InCallServiceUpdateQueue otherQueue =
+                new InCallServiceUpdateQueue("other", mListener, () -> mNow);
+        blockedQueue.updateCall(blockedService, createCall("1", Call.STATE_RINGING));
+        otherQueue.updateCall(otherService, createCall("1", Call.STATE_RINGING));
+
+        try {
+            blockedQueue.updateCall(blockedService, createCall("1", Call.STATE_ACTIVE));
+            verify(blockedService, timeout(TEST_TIMEOUT).times(2)).updateCall(any());
+            // A service blocking its queue does not hold up the other queue.
+            ParcelableCall active = createCall("1", Call.STATE_ACTIVE);
+            otherQueue.updateCall(otherService, active);
+            verify(otherService, timeout(TEST_TIMEOUT)).updateCall(active);
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testSuppressionComparesAgainstNewestQueuedUpdate() throws Exception {
+        mSendMillis = InCallServiceUpdateQueue.SLOW_TRANSACTION_MILLIS;
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_RINGING));
+        CountDownLatch latch = blockHandler();
+
+        // Going back to the state last sent must not be suppressed while a newer state is queued.
+        assertTrue(mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE)));
+        ParcelableCall latest = createCall("1", Call.STATE_RINGING);
+        assertTrue(mQueue.updateCall(mInCallService, latest));
+        assertFalse(mQueue.updateCall(mInCallService, createCall("1", Call.STATE_RINGING)));
+        assertEquals(1, mQueue.getPendingCount());
+
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        verify(mInCallService).updateCall(latest);
+    }
+
+    @SmallTest
+    @Test
+    public void testAddsEventsAndUpdatesSentInOrder() throws Exception {
+        mSendMillis = InCallServiceUpdateQueue.SLOW_TRANSACTION_MILLIS;
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE));
+        CountDownLatch latch = blockHandler();
+
+        ParcelableCall added = createCall("2", Call.STATE_RINGING);
+        mQueue.addCall(mInCallService, added);
+        mQueue.onConnectionEvent(mInCallService, "2", "event", null);
+        ParcelableCall updated = createCall("2", Call.STATE_ACTIVE);
+        mQueue.updateCall(mInCallService, updated);
+        assertEquals(3, mQueue.getPendingCount());
+
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        InOrder inOrder = inOrder(mInCallService);
+        inOrder.verify(mInCallService).addCall(added);
+        inOrder.verify(mInCallService).onConnectionEvent("2", "event", null);
+        inOrder.verify(mInCallService).updateCall(updated);
+    }
+
+    @SmallTest
+    @Test
+    public void testRemovedCallForgottenOnceQueuedUpdateSent() throws Exception {
+        mSendMillis = InCallServiceUpdateQueue.SLOW_TRANSACTION_MILLIS;
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_ACTIVE));
+        assertEquals(1, mQueue.getTrackedCallCount());
+        CountDownLatch latch = blockHandler();
+
+        mQueue.updateCall(mInCallService, createCall("1", Call.STATE_DISCONNECTED));
+        mQueue.onCallRemoved("1");
+
+        latch.countDown();
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        verify(mInCallService, times(2)).updateCall(any());
+        assertEquals(0, mQueue.getTrackedCallCount());
+    }
+
+    /**
+     * Holds up the background thread so that queued calls can be inspected.
+     */
+    private CountDownLatch blockHandler() {
+        CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        });
+        return latch;
+    }
+
+    private static ParcelableCall createCall(String id, int state) {
+        return new ParcelableCall.ParcelableCallBuilder()
+                .setId(id)
+                .setState(state)
+                .createParcelableCall();
+    }
+}
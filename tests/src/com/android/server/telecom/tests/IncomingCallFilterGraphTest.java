@@ -18,6 +18,7 @@ package com.android.server.telecom.tests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
@@ -35,20 +36,26 @@ import com.android.server.telecom.Call;
 import com.android.server.telecom.Ringer;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.callfiltering.CallFilter;
+import com.android.server.telecom.callfiltering.CallFilterExecutor;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.callfiltering.DndCallFilter;
 import com.android.server.telecom.callfiltering.IncomingCallFilterGraph;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 @RunWith(JUnit4.class)
@@ -58,6 +65,8 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
     @Mock private Context mContext;
     @Mock private Timeouts.Adapter mTimeoutsAdapter;
     private TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() {};
+    private HandlerThread mTimingWheelThread;
+    private TimingWheel mTimingWheel;
 
     private static final CallFilteringResult PASS_CALL_RESULT = new CallFilteringResult.Builder()
             .setShouldAllowCall(true)
@@ -115,7 +124,16 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         when(mContext.getContentResolver()).thenReturn(null);
         when(mTimeoutsAdapter.getCallScreeningTimeoutMillis(nullable(ContentResolver.class)))
                 .thenReturn(FILTER_TIMEOUT);
+        mTimingWheelThread = new HandlerThread("TimingWheel");
+        mTimingWheelThread.start();
+        mTimingWheel = new TimingWheel(mTimingWheelThread.getLooper());
+    }
 
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        mTimingWheelThread.quitSafely();
+        super.tearDown();
     }
 
     @SmallTest
@@ -125,7 +143,7 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         CallFilterResultCallback listener = (call, result, timeout) -> testResult.complete(result);
 
         IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall, listener, mContext,
-                mTimeoutsAdapter, mFeatureFlags, mLock);
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel);
         graph.performFiltering();
 
         assertEquals(PASS_CALL_RESULT, testResult.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
@@ -138,7 +156,7 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         CallFilterResultCallback listener = (call, result, timeout) -> testResult.complete(result);
 
         IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall, listener, mContext,
-                mTimeoutsAdapter, mFeatureFlags, mLock);
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel);
         AllowFilter allowFilter = new AllowFilter();
         DisallowFilter disallowFilter = new DisallowFilter();
         graph.addFilter(allowFilter);
@@ -156,7 +174,7 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         CallFilterResultCallback listener = (call, result, timeout) -> testResult.complete(result);
 
         IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall, listener, mContext,
-                mTimeoutsAdapter, mFeatureFlags, mLock);
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel);
         AllowFilter allowFilter1 = new AllowFilter();
         AllowFilter allowFilter2 = new AllowFilter();
         DisallowFilter disallowFilter = new DisallowFilter();
@@ -175,7 +193,7 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         CallFilterResultCallback listener = (call, result, timeout) -> testResult.complete(result);
 
         IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall, listener, mContext,
-                mTimeoutsAdapter, mFeatureFlags, mLock);
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel);
         DisallowFilter disallowFilter = new DisallowFilter();
         TimeoutFilter timeoutFilter = new TimeoutFilter();
         graph.addFilter(disallowFilter);
@@ -214,7 +232,8 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
                 mContext,
                 mTimeoutsAdapter,
                 mFeatureFlags,
-                mLock);
+                mLock,
+                mTimingWheel);
         // create the filters / nodes  for the graph
         TimeoutFilter timeoutFilter = new TimeoutFilter();
         DndCallFilter dndCallFilter = new DndCallFilter(mCall, mockRinger);
@@ -238,4 +257,151 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
         assertTrue(testResult.get(TIMEOUT_FILTER_SLEEP_TIME,
                 TimeUnit.MILLISECONDS).shouldSuppressCallDueToDndStatus);
     }
+
+    /**
+     * Verify that the timeout of a graph is scheduled on the timing wheel, under the graph's
+     * owner tag, and cancelled once filtering completes.
+     */
+    @SmallTest
+    @Test
+    public void testTimeoutScheduledOnTimingWheel() throws Exception {
+        CallFilterExecutor executor = new CallFilterExecutor(1);
+        CompletableFuture<CallFilteringResult> filterResult = new CompletableFuture<>();
+        CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+        IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall,
+                (call, result, timeout) -> testResult.complete(result), mContext,
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel, executor);
+        graph.addFilter(new CallFilter() {
+            @Override
+            public CompletionStage<CallFilteringResult> startFilterLookup(
+                    CallFilteringResult priorStageResult) {
+                return filterResult;
+            }
+        });
+        graph.performFiltering();
+        assertEquals(1, mTimingWheel.getPendingCount(IncomingCallFilterGraph.TAG));
+
+        filterResult.complete(PASS_CALL_RESULT);
+        assertEquals(PASS_CALL_RESULT, testResult.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        waitForHandlerAction(graph.getHandler(), TEST_TIMEOUT);
+        assertEquals(0, mTimingWheel.getPendingCount(IncomingCallFilterGraph.TAG));
+    }
+
+    /**
+     * Verify that graphs for consecutive calls reuse the same pooled worker thread rather than
+     * each starting a new thread.
+     */
+    @SmallTest
+    @Test
+    public void testGraphsShareWorkerThread() throws Exception {
+        CallFilterExecutor executor = new CallFilterExecutor(2);
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+            IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall,
+                    (call, result, timeout) -> testResult.complete(result), mContext,
+                    mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel, executor);
+            graph.addFilter(new AllowFilter());
+            graph.performFiltering();
+
+            assertEquals(PASS_CALL_RESULT, testResult.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForHandlerAction(graph.getHandler(), TEST_TIMEOUT);
+            assertEquals(0, executor.getInFlight());
+        }
+        assertEquals(1, executor.getThreadsCreated());
+    }
+
+    /**
+     * Verify that graphs for concurrent calls are spread over the pool, but never start more
+     * threads than the pool allows.
+     */
+    @SmallTest
+    @Test
+    public void testConcurrentGraphsBoundedByPool() throws Exception {
+        CallFilterExecutor executor = new CallFilterExecutor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<CallFilteringResult>> results = new ArrayList<>();
+        List<IncomingCallFilterGraph> graphs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+            results.add(testResult);
+            graphs.add(new IncomingCallFilterGraph(mCall,
+                    (call, result, timeout) -> testResult.complete(result), mContext,
+                    mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel, executor));
+        }
+        // A graph does not hold a worker until it starts filtering.
+        assertEquals(0, executor.getThreadsCreated());
+        assertEquals(0, executor.getInFlight());
+
+        for (IncomingCallFilterGraph graph : graphs) {
+            graph.addFilter(new CallFilter() {
+                @Override
+                public CompletionStage<CallFilteringResult> startFilterLookup(
+                        CallFilteringResult priorStageResult) {
+                    try {
+                        release.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return CompletableFuture.completedFuture(REJECT_CALL_RESULT);
+                }
+            });
+            graph.performFiltering();
+        }
+        assertEquals(2, executor.getThreadsCreated());
+        assertEquals(4, executor.getInFlight());
+
+        release.countDown();
+        for (int i = 0; i < graphs.size(); i++) {
+            assertEquals(REJECT_CALL_RESULT,
+                    results.get(i).get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForHandlerAction(graphs.get(i).getHandler(), TEST_TIMEOUT);
+        }
+        assertEquals(0, executor.getInFlight());
+    }
+
+    /**
+     * Verify that the latency of named filters is recorded, and that filters which have not
+     * finished when the graph times out are counted as timeouts.
+     */
+    @SmallTest
+    @Test
+    public void testFilterLatencyRecorded() throws Exception {
+        CallFilterExecutor executor = new CallFilterExecutor(1);
+        Ringer mockRinger = mock(Ringer.class);
+        when(mockRinger.shouldRingForContact(mCall)).thenReturn(true);
+        CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+        IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall,
+                (call, result, timeout) -> testResult.complete(result), mContext,
+                mTimeoutsAdapter, mFeatureFlags, mLock, mTimingWheel, executor);
+        DndCallFilter dndCallFilter = new DndCallFilter(mCall, mockRinger);
+        CallFilter neverFinishes = new CallFilter() {
+            @Override
+            public CompletionStage<CallFilteringResult> startFilterLookup(
+                    CallFilteringResult priorStageResult) {
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public String getLatencyName() {
+                return "NeverFinishes";
+            }
+        };
+        graph.addFilter(dndCallFilter);
+        graph.addFilter(neverFinishes);
+        graph.performFiltering();
+
+        testResult.get(TIMEOUT_FILTER_SLEEP_TIME, TimeUnit.MILLISECONDS);
+        waitForHandlerAction(graph.getHandler(), TEST_TIMEOUT);
+        CallFilterExecutor.LatencyHistogram dndLatency =
+                executor.getLatencyHistogram(dndCallFilter.getLatencyName());
+        assertNotNull(dndLatency);
+        assertEquals(1, dndLatency.getCount());
+        assertEquals(0, dndLatency.getTimeouts());
+        CallFilterExecutor.LatencyHistogram timedOutLatency =
+                executor.getLatencyHistogram("NeverFinishes");
+        assertNotNull(timedOutLatency);
+        assertEquals(0, timedOutLatency.getCount());
+        assertEquals(1, timedOutLatency.getTimeouts());
+        assertEquals(0, executor.getInFlight());
+    }
 }
@@ -174,6 +174,53 @@ public class ParcelableCallUtilsTest extends TelecomTestCase {
         checkVerStatParcelingForDialer(Connection.VERIFICATION_STATUS_FAILED, true);
     }
 
+    @SmallTest
+    @Test
+    public void testUnchangedParcelIsDetected() {
+        mCall.putConnectionServiceExtras(getSomeExtras());
+        ParcelableCall first = toParcelableCallForDialer(false /* includeVideoProvider */);
+        ParcelableCall second = toParcelableCallForDialer(false /* includeVideoProvider */);
+        assertTrue(ParcelableCallUtils.isUnchangedForInCallService(first, second));
+
+        // Re-putting the same extras should not be considered a change.
+        mCall.putConnectionServiceExtras(getSomeExtras());
+        ParcelableCall third = toParcelableCallForDialer(false /* includeVideoProvider */);
+        assertTrue(ParcelableCallUtils.isUnchangedForInCallService(second, third));
+    }
+
+    @SmallTest
+    @Test
+    public void testChangedParcelIsDetected() {
+        ParcelableCall first = toParcelableCallForDialer(false /* includeVideoProvider */);
+        Bundle extras = new Bundle();
+        extras.putString(Connection.EXTRA_CALL_SUBJECT, "new subject");
+        mCall.putConnectionServiceExtras(extras);
+        ParcelableCall second = toParcelableCallForDialer(false /* includeVideoProvider */);
+        assertFalse(ParcelableCallUtils.isUnchangedForInCallService(first, second));
+
+        mCall.setCallerNumberVerificationStatus(Connection.VERIFICATION_STATUS_PASSED);
+        ParcelableCall third = toParcelableCallForDialer(false /* includeVideoProvider */);
+        assertFalse(ParcelableCallUtils.isUnchangedForInCallService(second, third));
+    }
+
+    @SmallTest
+    @Test
+    public void testVideoProviderChangeIsNeverSuppressed() {
+        ParcelableCall first = toParcelableCallForDialer(false /* includeVideoProvider */);
+        ParcelableCall second = toParcelableCallForDialer(true /* includeVideoProvider */);
+        assertFalse(ParcelableCallUtils.isUnchangedForInCallService(first, second));
+        assertFalse(ParcelableCallUtils.isUnchangedForInCallService(null, first));
+    }
+
+    private ParcelableCall toParcelableCallForDialer(boolean includeVideoProvider) {
+        return ParcelableCallUtils.toParcelableCall(mCall,
+                includeVideoProvider,
+                null /* phoneAccountRegistrar */,
+                false /* supportsExternalCalls */,
+                false /* includeRttCall */,
+                true /* isForSystemDialer */);
+    }
+
     private void checkVerStatParcelingForCallScreening(int connectionVerificationStatus,
             boolean isForSystemDialer) {
         mCall.setCallerNumberVerificationStatus(connectionVerificationStatus);
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.os.UserHandle;
+import android.telecom.Log;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.PhoneAccountIndex;
+import com.android.server.telecom.PhoneAccountRegistrar;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+@RunWith(JUnit4.class)
+public class PhoneAccountIndexTest extends TelecomTestCase {
+    private static final String TAG = "PhoneAccountIndexTest";
+    private static final int LOOKUPS_PER_RUN = 10000;
+
+    @SmallTest
+    @Test
+    public void testLookupMatchesLinearScan() {
+        List<PhoneAccount> accounts = makeAccounts(50);
+        PhoneAccountIndex index = new PhoneAccountIndex(accounts, 0);
+        for (PhoneAccount account : accounts) {
+            assertSame(account, index.get(account.getAccountHandle()));
+        }
+        assertNull(index.get(makeHandle(1000)));
+    }
+
+    @SmallTest
+    @Test
+    public void testCandidatesContainAllMatchesInOrder() {
+        List<PhoneAccount> accounts = makeAccounts(50);
+        PhoneAccountIndex index = new PhoneAccountIndex(accounts, 0);
+        int[] capabilities = { 0, PhoneAccount.CAPABILITY_SELF_MANAGED,
+                PhoneAccount.CAPABILITY_CALL_PROVIDER | PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION };
+        String[] schemes = { null, PhoneAccount.SCHEME_TEL, PhoneAccount.SCHEME_SIP };
+        String[] packages = { null, "com.test.pkg1", "com.test.unknown" };
+        for (int capability : capabilities) {
+            for (String scheme : schemes) {
+                for (String packageName : packages) {
+                    assertEquals(linearFilter(accounts, capability, scheme, packageName),
+                            indexFilter(index, capability, scheme, packageName));
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testStateVersionTracksMutations() {
+        PhoneAccountRegistrar.State state = new PhoneAccountRegistrar.State();
+        int version = state.getAccountsVersion();
+        PhoneAccountIndex index = new PhoneAccountIndex(state.accounts, version);
+        assertTrue(index.isCurrent(state.accounts, state.getAccountsVersion()));
+
+        PhoneAccount account = makeAccount(0);
+        state.accounts.add(account);
+        assertFalse(index.isCurrent(state.accounts, state.getAccountsVersion()));
+
+        index = new PhoneAccountIndex(state.accounts, state.getAccountsVersion());
+        assertSame(account, index.get(account.getAccountHandle()));
+        state.accounts.remove(account);
+        assertFalse(index.isCurrent(state.accounts, state.getAccountsVersion()));
+    }
+
+    /**
+     * Microbenchmark comparing the lookup cost of the index against the previous linear scan
+     * with 10, 100 and 1000 registered accounts.  Results are logged.
+     */
+    @MediumTest
+    @Test
+    public void testLookupBenchmark() {
+        for (int numAccounts : new int[] {10, 100, 1000}) {
+            List<PhoneAccount> accounts = makeAccounts(numAccounts);
+            PhoneAccountIndex index = new PhoneAccountIndex(accounts, 0);
+            List<PhoneAccountHandle> handles = new ArrayList<>();
+            for (PhoneAccount account : accounts) {
+                handles.add(account.getAccountHandle());
+            }
+
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < LOOKUPS_PER_RUN; i++) {
+                PhoneAccountHandle handle = handles.get(i % handles.size());
+                for (PhoneAccount m : accounts) {
+                    if (Objects.equals(handle, m.getAccountHandle())) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+            long linearNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS_PER_RUN; i++) {
+                if (index.get(handles.get(i % handles.size())) != null) {
+                    found++;
+                }
+            }
+            long indexedNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS_PER_RUN; i++) {
+                indexFilter(index, PhoneAccount.CAPABILITY_SELF_MANAGED, null, "com.test.pkg1");
+            }
+            long indexedFilterNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS_PER_RUN; i++) {
+                linearFilter(accounts, PhoneAccount.CAPABILITY_SELF_MANAGED, null,
+                        "com.test.pkg1");
+            }
+            long linearFilterNs = System.nanoTime() - start;
+
+            assertEquals(2 * LOOKUPS_PER_RUN, found);
+            Log.i(TAG, "accounts=%d: get linear=%dns indexed=%dns;"
+                    + " filter linear=%dns indexed=%dns (per lookup)", numAccounts,
+                    linearNs / LOOKUPS_PER_RUN, indexedNs / LOOKUPS_PER_RUN,
+                    linearFilterNs / LOOKUPS_PER_RUN, indexedFilterNs / LOOKUPS_PER_RUN);
+        }
+    }
+
+    private static List<PhoneAccount> linearFilter(List<PhoneAccount> accounts, int capabilities,
+            String scheme, String packageName) {
+        return filter(accounts, capabilities, scheme, packageName);
+    }
+
+    private static List<PhoneAccount> indexFilter(PhoneAccountIndex index, int capabilities,
+            String scheme, String packageName) {
+        return filter(index.getCandidates(capabilities, scheme, packageName), capabilities,
+                scheme, packageName);
+    }
+
+    private static List<PhoneAccount> filter(List<PhoneAccount> accounts, int capabilities,
+            String scheme, String packageName) {
+        List<PhoneAccount> result = new ArrayList<>();
+        for (PhoneAccount m : accounts) {
+            if (capabilities != 0 && !m.hasCapabilities(capabilities)) continue;
+            if (scheme != null && !m.supportsUriScheme(scheme)) continue;
+            if (packageName != null && !packageName.equals(
+                    m.getAccountHandle().getComponentName().getPackageName())) continue;
+            result.add(m);
+        }
+        return result;
+    }
+
+    private static List<PhoneAccount> makeAccounts(int count) {
+        List<PhoneAccount> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(makeAccount(i));
+        }
+        return accounts;
+    }
+
+    private static PhoneAccount makeAccount(int idx) {
+        int capabilities;
+        switch (idx % 3) {
+            case 0:
+                capabilities = PhoneAccount.CAPABILITY_SELF_MANAGED;
+                break;
+            case 1:
+                capabilities = PhoneAccount.CAPABILITY_CALL_PROVIDER
+                        | PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION;
+                break;
+            default:
+                capabilities = PhoneAccount.CAPABILITY_CALL_PROVIDER;
+                break;
+        }
+        return new PhoneAccount.Builder(makeHandle(idx), "label" + idx)
+                .setCapabilities(capabilities)
+                .addSupportedUriScheme(idx % 2 == 0 ? PhoneAccount.SCHEME_TEL
+                        : PhoneAccount.SCHEME_SIP)
+                .setIsEnabled(true)
+                .build();
+    }
+
+    private static PhoneAccountHandle makeHandle(int idx) {
+        return new PhoneAccountHandle(
+                new ComponentName("com.test.pkg" + (idx % 10), "com.test.Service"),
+                "id" + idx, UserHandle.of(idx % 2));
+    }
+}
@@ -19,7 +19,10 @@ package com.android.server.telecom.tests;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -39,8 +42,10 @@ import static org.mockito.Mockito.when;
 import android.annotation.Nullable;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.graphics.drawable.Icon;
@@ -51,6 +56,7 @@ import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.telecom.CallAudioState;
 import android.telecom.Log;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
@@ -58,6 +64,7 @@ import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.util.AtomicFile;
 import android.util.Xml;
 
 import androidx.test.InstrumentationRegistry;
@@ -71,7 +78,10 @@ import com.android.server.telecom.AppLabelProxy;
 import com.android.server.telecom.DefaultDialerCache;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.PhoneAccountRegistrar.DefaultPhoneAccountHandle;
+import com.android.server.telecom.PhoneAccountSnapshot;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.nano.PhoneAccountRegistrarStateClass.RegistrarState;
+import com.google.protobuf.nano.MessageNano;
 
 import org.junit.After;
 import org.junit.Before;
@@ -89,6 +99,7 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -97,8 +108,14 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RunWith(JUnit4.class)
 public class PhoneAccountRegistrarTest extends TelecomTestCase {
@@ -108,6 +125,14 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
             PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_FIELD_CHAR_LIMIT + 1;
     private static final String INVALID_STR = "a".repeat(INVALID_CHAR_LIMIT_COUNT);
     private static final String FILE_NAME = "phone-account-registrar-test-1223.xml";
+    private static final String BINARY_FILE_NAME =
+            PhoneAccountRegistrar.getBinaryFileName(FILE_NAME);
+    private static final String ICON_DIRECTORY_NAME =
+            PhoneAccountRegistrar.getIconDirectoryName(FILE_NAME);
+    private static final int ICON_SIZE = 32;
+    private static final int BENCHMARK_RUNS = 5;
+    private static final int QUERIES_PER_THREAD = 2000;
+    private static final long TEST_TIMEOUT = 20000L;
     private static final String TEST_LABEL = "right";
     private static final String TEST_ID = "123";
     private final String PACKAGE_1 = "PACKAGE_1";
@@ -134,6 +159,11 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                 mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
                 FILE_NAME)
                 .delete();
+        new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME)
+                .delete();
+        deleteIconDirectory();
         when(mDefaultDialerCache.getDefaultDialerApplication(anyInt()))
                 .thenReturn("com.android.dialer");
         when(mAppLabelProxy.getAppLabel(anyString(), any()))
@@ -150,11 +180,17 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
     @Override
     @After
     public void tearDown() throws Exception {
+        mRegistrar.cleanup();
         mRegistrar = null;
         new File(
                 mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
                 FILE_NAME)
                 .delete();
+        new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME)
+                .delete();
+        deleteIconDirectory();
         super.tearDown();
     }
 
@@ -425,6 +461,496 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
         assertStateEquals(input, result);
     }
 
+    @MediumTest
+    @Test
+    public void testStateProto() throws Exception {
+        doReturn(true).when(mTelephonyFeatureFlags).simultaneousCallingIndications();
+        PhoneAccountRegistrar.State input = makeQuickState();
+        Bundle extras = new Bundle();
+        extras.putInt("EXTRA_INT", 1);
+        extras.putBoolean("EXTRA_BOOL", true);
+        extras.putString("EXTRA_STR", "Hello");
+        input.accounts.add(makeQuickAccountBuilder("id3", 3, null)
+                .setIcon(makeBitmapIcon(3))
+                .setExtras(extras)
+                .setSimultaneousCallingRestriction(Set.of(makeQuickAccountHandle("id0")))
+                .build());
+
+        PhoneAccountRegistrar.State result = PhoneAccountRegistrar.readFromProto(
+                PhoneAccountRegistrar.writeToProto(input, mContext, mTelephonyFeatureFlags),
+                mContext, mTelephonyFeatureFlags);
+        assertEquals(PhoneAccountRegistrar.EXPECTED_STATE_VERSION, result.versionNumber);
+        assertStateEquals(input, result);
+    }
+
+    @MediumTest
+    @Test
+    public void testStateProtoUpgradedFromOlderVersion() throws Exception {
+        ComponentName pstnComponent = new ComponentName("com.android.phone",
+                "com.android.services.telephony.TelephonyConnectionService");
+        ComponentName sipComponent = new ComponentName("com.android.phone",
+                "com.android.services.telephony.sip.SipConnectionService");
+        PhoneAccountRegistrar.State input = new PhoneAccountRegistrar.State();
+        input.accounts.add(new PhoneAccount.Builder(
+                makeQuickAccountHandle(pstnComponent, "pstn"), "pstn")
+                .setSupportedAudioRoutes(CallAudioState.ROUTE_EARPIECE)
+                .setIsEnabled(false)
+                .build());
+        input.accounts.add(new PhoneAccount.Builder(
+                makeQuickAccountHandle(sipComponent, "sip:user@example.com"), "sip")
+                .setIsEnabled(false)
+                .build());
+        RegistrarState proto = RegistrarState.parseFrom(
+                PhoneAccountRegistrar.writeToProto(input, mContext, mTelephonyFeatureFlags));
+        proto.setVersion(5);
+
+        PhoneAccountRegistrar.State result = PhoneAccountRegistrar.readFromProto(
+                MessageNano.toByteArray(proto), mContext, mTelephonyFeatureFlags);
+        // The old version is kept so that the upgraded state is written back.
+        assertEquals(5, result.versionNumber);
+        PhoneAccount pstnAccount = result.accounts.get(0);
+        assertTrue(pstnAccount.isEnabled());
+        assertEquals(CallAudioState.ROUTE_ALL, pstnAccount.getSupportedAudioRoutes());
+        PhoneAccount sipAccount = result.accounts.get(1);
+        assertTrue(sipAccount.isEnabled());
+        assertEquals(makeQuickAccountHandle(sipComponent, "user@example.com"),
+                sipAccount.getAccountHandle());
+    }
+
+    @MediumTest
+    @Test
+    public void testXmlStateMigrated() throws Exception {
+        PhoneAccountRegistrar.State input = makeQuickState();
+        File filesDir = mContext.getFilesDir();
+        writeStateFile(new AtomicFile(new File(filesDir, FILE_NAME)),
+                toXml(input, PhoneAccountRegistrar.sStateXml, mContext, mTelephonyFeatureFlags));
+
+        PhoneAccountRegistrar migratingRegistrar = new PhoneAccountRegistrar(mContext, mLock,
+                FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mTelephonyFeatureFlags,
+                mFeatureFlags);
+        waitForStateWrites(migratingRegistrar);
+        migratingRegistrar.cleanup();
+        // The state is rewritten in the binary format and the XML file removed.
+        assertTrue(new File(filesDir, BINARY_FILE_NAME).exists());
+        assertFalse(new File(filesDir, FILE_NAME).exists());
+
+        PhoneAccountRegistrar registrar = new PhoneAccountRegistrar(mContext, mLock, FILE_NAME,
+                mDefaultDialerCache, mAppLabelProxy, mTelephonyFeatureFlags, mFeatureFlags);
+        for (PhoneAccount account : input.accounts) {
+            assertPhoneAccountEquals(account, registrar.loadIcon(
+                    registrar.getPhoneAccountUnchecked(account.getAccountHandle())));
+        }
+        registrar.cleanup();
+    }
+
+    @MediumTest
+    @Test
+    public void testWritesCoalesced() throws Exception {
+        waitForStateWrites(mRegistrar);
+        int writesRequested = mRegistrar.getWritesRequested();
+        int writesPerformed = mRegistrar.getWritesPerformed();
+        List<PhoneAccountHandle> handles = new ArrayList<>();
+        for (int i = 0; i < PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS; i++) {
+            PhoneAccountHandle handle = makeQuickAccountHandle(TEST_ID + i);
+            handles.add(handle);
+            mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle).build());
+        }
+        waitForStateWrites(mRegistrar);
+
+        // Every registration requests a write, but they are written together.
+        int requested = mRegistrar.getWritesRequested() - writesRequested;
+        int performed = mRegistrar.getWritesPerformed() - writesPerformed;
+        assertTrue(requested >= handles.size());
+        assertTrue(performed >= 1);
+        assertTrue(performed < requested);
+
+        PhoneAccountRegistrar registrar = new PhoneAccountRegistrar(mContext, mLock, FILE_NAME,
+                mDefaultDialerCache, mAppLabelProxy, mTelephonyFeatureFlags, mFeatureFlags);
+        for (PhoneAccountHandle handle : handles) {
+            assertNotNull(registrar.getPhoneAccountUnchecked(handle));
+        }
+        registrar.cleanup();
+    }
+
+    @SmallTest
+    @Test
+    public void testFlushWritesOnlyPendingChanges() throws Exception {
+        waitForStateWrites(mRegistrar);
+        int writesPerformed = mRegistrar.getWritesPerformed();
+        // Nothing has changed since the last write.
+        mRegistrar.flushWrites();
+        assertEquals(writesPerformed, mRegistrar.getWritesPerformed());
+
+        PhoneAccountHandle handle = makeQuickAccountHandle(TEST_ID);
+        mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle).build());
+        mRegistrar.flushWrites();
+        assertEquals(writesPerformed + 1, mRegistrar.getWritesPerformed());
+        // The scheduled write was cancelled by the flush.
+        Thread.sleep(PhoneAccountRegistrar.WRITE_DELAY_MILLIS * 2);
+        assertEquals(writesPerformed + 1, mRegistrar.getWritesPerformed());
+    }
+
+    @SmallTest
+    @Test
+    public void testSnapshotMatchesRegistrar() throws Exception {
+        registerSelfManagedAccounts(5);
+        registerAndEnableAccount(makeQuickAccountBuilder("id0", 0, null)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .build());
+        UserHandle user = Process.myUserHandle();
+
+        PhoneAccountSnapshot snapshot = mRegistrar.getSnapshot();
+        for (boolean includeDisabled : new boolean[] {true, false}) {
+            assertEquals(mRegistrar.getCallCapablePhoneAccounts(null, includeDisabled, user,
+                            false),
+                    snapshot.getCallCapablePhoneAccounts(null, includeDisabled, user, false));
+        }
+        assertEquals(mRegistrar.getSelfManagedPhoneAccounts(user),
+                snapshot.getSelfManagedPhoneAccounts(user));
+        assertEquals(mRegistrar.getAllPhoneAccounts(user, false),
+                snapshot.getAllPhoneAccounts(user, false));
+        assertEquals(mRegistrar.getAllPhoneAccountHandles(user, true),
+                snapshot.getAllPhoneAccountHandles(user, true));
+        assertEquals(mRegistrar.getPhoneAccounts(0, 0, null, "com.example.voip0", true, user,
+                        false, false),
+                snapshot.getRegisteredPhoneAccounts("com.example.voip0", user, false));
+        assertEquals(1, snapshot.getCallCapablePhoneAccounts(null, false, user, false).size());
+        assertEquals(5, snapshot.getSelfManagedPhoneAccounts(user).size());
+
+        // The snapshot is built when the accounts change, not when it is queried.
+        assertSame(snapshot, mRegistrar.getSnapshot());
+    }
+
+    @SmallTest
+    @Test
+    public void testSnapshotReplacedOnChange() throws Exception {
+        List<PhoneAccountHandle> handles = registerSelfManagedAccounts(2);
+        UserHandle user = Process.myUserHandle();
+        PhoneAccountSnapshot snapshot = mRegistrar.getSnapshot();
+        assertEquals(Set.copyOf(handles), Set.copyOf(snapshot.getSelfManagedPhoneAccounts(user)));
+
+        // Disabling an account does not change the account list.
+        mRegistrar.enablePhoneAccount(handles.get(0), false);
+        PhoneAccountSnapshot disabledSnapshot = mRegistrar.getSnapshot();
+        assertNotSame(snapshot, disabledSnapshot);
+        assertEquals(List.of(handles.get(1)), disabledSnapshot.getSelfManagedPhoneAccounts(user));
+        // Published snapshots are unchanged.
+        assertEquals(2, snapshot.getSelfManagedPhoneAccounts(user).size());
+
+        mRegistrar.unregisterPhoneAccount(handles.get(1));
+        assertTrue(mRegistrar.getSnapshot().getSelfManagedPhoneAccounts(user).isEmpty());
+
+        PhoneAccountSnapshot unregisteredSnapshot = mRegistrar.getSnapshot();
+        mRegistrar.setCurrentUserHandle(UserHandle.of(10));
+        assertNotSame(unregisteredSnapshot, mRegistrar.getSnapshot());
+    }
+
+    @SmallTest
+    @Test
+    public void testSnapshotVisibilityPerUser() throws Exception {
+        PhoneAccount ownAccount = makeQuickAccountBuilder("id0", 0, USER_HANDLE_10)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .setIsEnabled(true)
+                .build();
+        PhoneAccount multiUserAccount = makeQuickAccountBuilder("id1", 1, UserHandle.SYSTEM)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER
+                        | PhoneAccount.CAPABILITY_MULTI_USER)
+                .setIsEnabled(true)
+                .build();
+        PhoneAccount systemAccount = makeQuickAccountBuilder("id2", 2, UserHandle.SYSTEM)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .setIsEnabled(true)
+                .build();
+        List<PhoneAccount> accounts = List.of(ownAccount, multiUserAccount, systemAccount);
+
+        PhoneAccountSnapshot snapshot = new PhoneAccountSnapshot(accounts, UserHandle.SYSTEM,
+                false);
+        assertEquals(List.of(ownAccount.getAccountHandle(), multiUserAccount.getAccountHandle()),
+                snapshot.getCallCapablePhoneAccounts(null, false, USER_HANDLE_10, false));
+        // A user which registered nothing only sees the multi-user accounts.
+        assertEquals(List.of(multiUserAccount.getAccountHandle()),
+                snapshot.getCallCapablePhoneAccounts(null, false, UserHandle.of(11), false));
+        assertEquals(3, snapshot.getCallCapablePhoneAccounts(null, false, USER_HANDLE_10,
+                true).size());
+
+        // Until the current user is known, every account is visible to every user.
+        snapshot = new PhoneAccountSnapshot(accounts, null, false);
+        assertEquals(3, snapshot.getCallCapablePhoneAccounts(null, false, UserHandle.of(11),
+                false).size());
+    }
+
+    @SmallTest
+    @Test
+    public void testSnapshotResolvesOnFirstQuery() throws Exception {
+        PhoneAccount resolvableAccount = makeQuickAccountBuilder("id0", 0, UserHandle.SYSTEM)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .setIsEnabled(true)
+                .build();
+        PhoneAccount unresolvableAccount = makeQuickAccountBuilder("id1", 1, UserHandle.SYSTEM)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .setIsEnabled(true)
+                .build();
+        AtomicInteger resolutions = new AtomicInteger();
+        PhoneAccountSnapshot snapshot = new PhoneAccountSnapshot(
+                List.of(resolvableAccount, unresolvableAccount),
+                account -> {
+                    resolutions.incrementAndGet();
+                    return account == resolvableAccount;
+                },
+                UserHandle.SYSTEM, false);
+
+        // Publishing a snapshot, which happens with the Telecom lock held, resolves nothing.
+        assertEquals(0, resolutions.get());
+        assertEquals(List.of(resolvableAccount.getAccountHandle()),
+                snapshot.getCallCapablePhoneAccounts(null, false, UserHandle.SYSTEM, false));
+        assertEquals(2, resolutions.get());
+        // Later queries reuse the resolutions.
+        assertEquals(1, snapshot.getAccountCount());
+        assertEquals(2, resolutions.get());
+    }
+
+    /**
+     * Benchmark comparing the account queries of the binder APIs answered by the registrar under
+     * the Telecom lock, as they used to be, against the published snapshot, with several reader
+     * threads and a thread holding the lock to query and, now and then, change the accounts.
+     * Results are logged.
+     */
+    @MediumTest
+    @Test
+    public void testSnapshotQueryBenchmark() throws Exception {
+        List<PhoneAccountHandle> handles = registerSelfManagedAccounts(20);
+        UserHandle user = Process.myUserHandle();
+        for (int numReaders : new int[] {1, 4, 8}) {
+            long lockedNs = runReaders(numReaders, handles, () -> {
+                synchronized (mLock) {
+                    return mRegistrar.getSelfManagedPhoneAccounts(user).size() > 0;
+                }
+            });
+            long snapshotNs = runReaders(numReaders, handles,
+                    () -> mRegistrar.getSnapshot().getSelfManagedPhoneAccounts(user).size() > 0);
+            Log.i(this, "readers=%d: locked=%dns snapshot=%dns (per query)", numReaders,
+                    lockedNs / QUERIES_PER_THREAD, snapshotNs / QUERIES_PER_THREAD);
+        }
+    }
+
+    private interface Query {
+        boolean run();
+    }
+
+    /**
+     * Runs the query on several threads at once while another thread holds the lock, querying
+     * the accounts and toggling whether one of them is enabled every so often.
+     * @return The mean time taken by a reader thread to run its queries, in nS.
+     */
+    private long runReaders(int numReaders, List<PhoneAccountHandle> handles, Query query)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicLong totalNs = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            int i = 0;
+            while (!done.get()) {
+                synchronized (mLock) {
+                    mRegistrar.getAllPhoneAccounts(Process.myUserHandle(), false);
+                    if (++i % 100 == 0) {
+                        // Never disables every account, so the queries always find some.
+                        mRegistrar.enablePhoneAccount(handles.get(0), (i / 100) % 2 == 0);
+                    }
+                }
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < numReaders; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    start.await();
+                    long startNs = System.nanoTime();
+                    for (int q = 0; q < QUERIES_PER_THREAD; q++) {
+                        if (!query.run()) {
+                            failed.set(true);
+                        }
+                    }
+                    totalNs.addAndGet(System.nanoTime() - startNs);
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        writer.start();
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join(TEST_TIMEOUT);
+        }
+        done.set(true);
+        writer.join(TEST_TIMEOUT);
+        assertFalse(failed.get());
+        return totalNs.get() / numReaders;
+    }
+
+    /**
+     * Registers transactional accounts, which are self-managed, for several apps.
+     */
+    private List<PhoneAccountHandle> registerSelfManagedAccounts(int numAccounts) {
+        List<PhoneAccountHandle> handles = new ArrayList<>();
+        for (int i = 0; i < numAccounts; i++) {
+            PhoneAccountHandle handle = makeQuickAccountHandle(
+                    new ComponentName("com.example.voip" + i, "Service"), TEST_ID);
+            mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle).build());
+            handles.add(handle);
+        }
+        return handles;
+    }
+
+    @MediumTest
+    @Test
+    public void testIconsStoredByContent() throws Exception {
+        Icon icon = makeBitmapIcon(0);
+        PhoneAccountHandle handle1 = makeQuickAccountHandle(TEST_ID);
+        PhoneAccountHandle handle2 = makeQuickAccountHandle(TEST_ID + "2");
+        mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle1)
+                .setIcon(icon).build());
+        // A different icon object with the same content.
+        mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle2)
+                .setIcon(Icon.createFromStream(new ByteArrayInputStream(encodeIcon(icon))))
+                .build());
+        waitForStateWrites(mRegistrar);
+
+        // The registered accounts do not hold their icons, which are stored once.
+        assertNull(mRegistrar.getPhoneAccountUnchecked(handle1).getIcon());
+        assertEquals(1, getIconFileCount());
+        assertIconEquals(icon,
+                mRegistrar.loadIcon(mRegistrar.getPhoneAccountUnchecked(handle1)).getIcon());
+        assertIconEquals(icon,
+                mRegistrar.loadIcon(mRegistrar.getPhoneAccountUnchecked(handle2)).getIcon());
+
+        // The icon is kept until no account refers to it.
+        mRegistrar.unregisterPhoneAccount(handle1);
+        waitForStateWrites(mRegistrar);
+        assertEquals(1, getIconFileCount());
+        mRegistrar.unregisterPhoneAccount(handle2);
+        waitForStateWrites(mRegistrar);
+        assertEquals(0, getIconFileCount());
+    }
+
+    @MediumTest
+    @Test
+    public void testIconsReadFromStore() throws Exception {
+        PhoneAccountHandle handle = makeQuickAccountHandle(TEST_ID);
+        Icon icon = makeBitmapIcon(0);
+        mRegistrar.registerPhoneAccount(makeBuilderWithBindCapabilities(handle)
+                .setIcon(icon).build());
+        waitForStateWrites(mRegistrar);
+
+        PhoneAccountRegistrar registrar = new PhoneAccountRegistrar(mContext, mLock, FILE_NAME,
+                mDefaultDialerCache, mAppLabelProxy, mTelephonyFeatureFlags, mFeatureFlags);
+        PhoneAccount account = registrar.getPhoneAccountUnchecked(handle);
+        assertNull(account.getIcon());
+        // Nothing is decoded until the icon is loaded.
+        assertEquals(0, registrar.getIconStore().getCount() - getIconFileCount());
+        assertIconEquals(icon, registrar.loadIcon(account).getIcon());
+        registrar.cleanup();
+    }
+
+    /**
+     * Compares the bytes written when one of many registered VoIP accounts with icons changes,
+     * and the memory held by their icon bitmaps, against the state holding the icons inline, as
+     * it used to.  Results are logged.
+     */
+    @MediumTest
+    @Test
+    public void testIconStoreWriteBenchmark() throws Exception {
+        PhoneAccountRegistrar.State inlineState = new PhoneAccountRegistrar.State();
+        long bitmapBytes = 0;
+        for (int numAccounts : new int[] {5, 50}) {
+            for (int i = inlineState.accounts.size(); i < numAccounts; i++) {
+                // One account for each of several apps.
+                PhoneAccountHandle handle = makeQuickAccountHandle(
+                        new ComponentName("com.example.voip" + i, "Service"), TEST_ID);
+                Icon icon = makeBitmapIcon(i);
+                bitmapBytes += icon.getBitmap().getAllocationByteCount();
+                PhoneAccount account = makeBuilderWithBindCapabilities(handle)
+                        .setIcon(icon).build();
+                mRegistrar.registerPhoneAccount(account);
+                inlineState.accounts.add(account);
+            }
+            waitForStateWrites(mRegistrar);
+            for (PhoneAccount account : inlineState.accounts) {
+                assertNull(mRegistrar.getPhoneAccountUnchecked(account.getAccountHandle())
+                        .getIcon());
+            }
+
+            long iconBytes = mRegistrar.getIconStore().getBytesWritten();
+            long stateBytes = mRegistrar.getStateBytesWritten();
+            PhoneAccountHandle handle = inlineState.accounts.get(0).getAccountHandle();
+            mRegistrar.enablePhoneAccount(handle,
+                    !mRegistrar.getPhoneAccountUnchecked(handle).isEnabled());
+            waitForStateWrites(mRegistrar);
+            // Only the state is written when an account changes.
+            assertEquals(iconBytes, mRegistrar.getIconStore().getBytesWritten());
+            long writeBytes = mRegistrar.getStateBytesWritten() - stateBytes;
+
+            Log.i(this, "accounts=%d: bytes per write=%d (xml with icons=%d, binary with "
+                            + "icons=%d), icon bitmap bytes held=0 (was %d)", numAccounts,
+                    writeBytes,
+                    toXml(inlineState, PhoneAccountRegistrar.sStateXml, mContext,
+                            mTelephonyFeatureFlags).length,
+                    PhoneAccountRegistrar.writeToProto(inlineState, mContext,
+                            mTelephonyFeatureFlags).length,
+                    bitmapBytes);
+        }
+    }
+
+    /**
+     * Benchmark of reading the state at startup from the XML and the binary formats, for
+     * increasing numbers of accounts with bitmap icons.  Each run reads the state file and
+     * parses it, as {@code PhoneAccountRegistrar#read} does.  Results are logged.
+     */
+    @MediumTest
+    @Test
+    public void testReadStateBenchmark() throws Exception {
+        File filesDir = mContext.getFilesDir();
+        AtomicFile xmlFile = new AtomicFile(new File(filesDir, FILE_NAME));
+        AtomicFile binaryFile = new AtomicFile(new File(filesDir, BINARY_FILE_NAME));
+        for (int numAccounts : new int[] {5, 50, 500}) {
+            PhoneAccountRegistrar.State state = new PhoneAccountRegistrar.State();
+            for (int i = 0; i < numAccounts; i++) {
+                state.accounts.add(makeQuickAccountBuilder("id" + i, i, null)
+                        .setIcon(makeBitmapIcon(i))
+                        .setIsEnabled(true)
+                        .build());
+            }
+            writeStateFile(xmlFile, toXml(state, PhoneAccountRegistrar.sStateXml, mContext,
+                    mTelephonyFeatureFlags));
+            writeStateFile(binaryFile,
+                    PhoneAccountRegistrar.writeToProto(state, mContext, mTelephonyFeatureFlags));
+
+            long xmlNanos = Long.MAX_VALUE;
+            long binaryNanos = Long.MAX_VALUE;
+            for (int run = 0; run < BENCHMARK_RUNS; run++) {
+                long startNanos = System.nanoTime();
+                PhoneAccountRegistrar.State xmlState = fromXml(xmlFile.readFully(),
+                        PhoneAccountRegistrar.sStateXml, mContext, mTelephonyFeatureFlags,
+                        mFeatureFlags);
+                xmlNanos = Math.min(xmlNanos, System.nanoTime() - startNanos);
+
+                startNanos = System.nanoTime();
+                PhoneAccountRegistrar.State binaryState = PhoneAccountRegistrar.readFromProto(
+                        binaryFile.readFully(), mContext, mTelephonyFeatureFlags);
+                binaryNanos = Math.min(binaryNanos, System.nanoTime() - startNanos);
+
+                assertEquals(numAccounts, xmlState.accounts.size());
+                assertEquals(numAccounts, binaryState.accounts.size());
+            }
+            Log.i(this, "accounts=%d: xml=%dB in %duS, binary=%dB in %duS", numAccounts,
+                    xmlFile.getBaseFile().length(), TimeUnit.NANOSECONDS.toMicros(xmlNanos),
+                    binaryFile.getBaseFile().length(),
+                    TimeUnit.NANOSECONDS.toMicros(binaryNanos));
+        }
+    }
+
     private void registerAndEnableAccount(PhoneAccount account) {
         mRegistrar.registerPhoneAccount(account);
         mRegistrar.enablePhoneAccount(account.getAccountHandle(), true);
@@ -492,6 +1018,8 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
         // remove the ConnectionService so that the account cannot be resolved anymore
         mComponentContextFixture.removeConnectionService(componentName,
                 Mockito.mock(IConnectionService.class));
+        // the package manager broadcasts a package change, which invalidates cached resolutions
+        mRegistrar.invalidateResolveComponentCache(componentName.getPackageName());
         // verify the account is unregistered when fetching the phone accounts for the package
         assertEquals(1,
                 mRegistrar.getRegisteredAccountsForPackageName(componentName.getPackageName(),
@@ -503,6 +1031,29 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                         USER_HANDLE_10).size());
     }
 
+    /**
+     * Verify that resolving the {@link android.telecom.ConnectionService} of a phone account is
+     * only done once until the package changes.
+     */
+    @Test
+    public void testResolveComponentIsCachedUntilPackageChanges() throws Exception {
+        ComponentName componentName = makeQuickConnectionServiceComponentName();
+        PhoneAccountHandle handle = makeQuickAccountHandle("0");
+        mComponentContextFixture.addConnectionService(componentName,
+                Mockito.mock(IConnectionService.class));
+        PackageManager pm = mContext.getPackageManager();
+        mRegistrar.invalidateResolveComponentCache(null);
+        Mockito.clearInvocations(pm);
+
+        mRegistrar.phoneAccountRequiresBindPermission(handle);
+        mRegistrar.phoneAccountRequiresBindPermission(handle);
+        verify(pm, times(1)).queryIntentServicesAsUser(any(Intent.class), anyInt(), anyInt());
+
+        mRegistrar.invalidateResolveComponentCache(componentName.getPackageName());
+        mRegistrar.phoneAccountRequiresBindPermission(handle);
+        verify(pm, times(2)).queryIntentServicesAsUser(any(Intent.class), anyInt(), anyInt());
+    }
+
     /**
      * Verify that if a client adds both the {@link
      * PhoneAccount#CAPABILITY_SUPPORTS_TRANSACTIONAL_OPERATIONS} capability AND is backed by a
@@ -1937,6 +2488,21 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
         }
     }
 
+    /**
+     * Ensure the icon of a registration which is rejected is not held by the icon store.
+     */
+    @Test
+    public void testRejectedIconNotStored() throws Exception {
+        int count = mRegistrar.getIconStore().getCount();
+        byte[] data = new byte[60_000];
+        PhoneAccount account = makeBuilderWithBindCapabilities(makeQuickAccountHandle(TEST_ID))
+                .setIcon(Icon.createWithData(data, 0, data.length)).build();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> mRegistrar.registerPhoneAccount(account));
+        assertEquals(count, mRegistrar.getIconStore().getCount());
+    }
+
     /**
      * Ensure an IllegalArgumentException is thrown when providing a SubscriptionAddress that
      * exceeds the PhoneAccountRegistrar limit.
@@ -2085,6 +2651,17 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                 "label" + idx);
     }
 
+    private static Icon makeBitmapIcon(int seed) {
+        // Random pixels, so that the icons do not compress to almost nothing.
+        Random random = new Random(seed);
+        int[] pixels = new int[ICON_SIZE * ICON_SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return Icon.createWithBitmap(
+                Bitmap.createBitmap(pixels, ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
     private static PhoneAccount copyPhoneAccountAndOverrideCapabilities(
             PhoneAccount base, int newCapabilities) {
         return base.toBuilder().setCapabilities(newCapabilities).build();
@@ -2187,6 +2764,44 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
         return result;
     }
 
+    private static void writeStateFile(AtomicFile file, byte[] data) throws IOException {
+        FileOutputStream stream = file.startWrite();
+        stream.write(data);
+        file.finishWrite(stream);
+    }
+
+    private static byte[] encodeIcon(Icon icon) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        icon.writeToStream(stream);
+        return stream.toByteArray();
+    }
+
+    private File getIconDirectory() {
+        return new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                ICON_DIRECTORY_NAME);
+    }
+
+    private int getIconFileCount() {
+        String[] names = getIconDirectory().list();
+        return names == null ? 0 : names.length;
+    }
+
+    private void deleteIconDirectory() {
+        File[] files = getIconDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        getIconDirectory().delete();
+    }
+
+    private static void waitForStateWrites(PhoneAccountRegistrar registrar) {
+        // Writes are deferred; write anything pending now.
+        registrar.flushWrites();
+    }
+
     private static <T> byte[] toXml(T input, PhoneAccountRegistrar.XmlSerialization<T> xml,
             Context context, FeatureFlags telephonyFeatureFlags) throws Exception {
         XmlSerializer serializer = new FastXmlSerializer();
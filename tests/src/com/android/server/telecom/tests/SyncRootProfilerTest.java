@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.SyncRootProfiler;
+import com.android.server.telecom.TelecomSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SyncRootProfilerTest extends TelecomTestCase {
+    private static final String SITE = "TSI.gCS";
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private long mNowNanos = 1000;
+    private SyncRootProfiler mProfiler;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mProfiler = new SyncRootProfiler(() -> mNowNanos);
+        mProfiler.setEnabled(true);
+    }
+
+    @SmallTest
+    @Test
+    public void testDisabledByDefault() {
+        SyncRootProfiler profiler = new SyncRootProfiler(() -> mNowNanos);
+        assertNull(profiler.begin(mLock, SITE));
+        // The other calls accept the null sample.
+        profiler.waiting(null);
+        profiler.locked(null);
+        profiler.end(null);
+        assertEquals(0, profiler.getCount(SITE));
+    }
+
+    @SmallTest
+    @Test
+    public void testWaitAndHoldRecorded() {
+        SyncRootProfiler.Sample sample = mProfiler.begin(mLock, SITE);
+        mProfiler.waiting(sample);
+        mNowNanos += 300;
+        synchronized (mLock) {
+            mProfiler.locked(sample);
+            mNowNanos += 5000;
+        }
+        mProfiler.end(sample);
+
+        assertEquals(1, mProfiler.getCount(SITE));
+        assertEquals(300, mProfiler.getTotalWaitNanos(SITE));
+        assertEquals(5000, mProfiler.getTotalHoldNanos(SITE));
+    }
+
+    @SmallTest
+    @Test
+    public void testRepeatedAcquisitionsAccumulate() {
+        SyncRootProfiler.Sample sample = mProfiler.begin(mLock, SITE);
+        for (int i = 0; i < 2; i++) {
+            mProfiler.waiting(sample);
+            mNowNanos += 100;
+            synchronized (mLock) {
+                mProfiler.locked(sample);
+                mNowNanos += 1000;
+            }
+            mProfiler.unlocked(sample);
+            // Time spent without the lock is not counted.
+            mNowNanos += 1000000;
+        }
+        mProfiler.end(sample);
+
+        assertEquals(1, mProfiler.getCount(SITE));
+        assertEquals(200, mProfiler.getTotalWaitNanos(SITE));
+        assertEquals(2000, mProfiler.getTotalHoldNanos(SITE));
+    }
+
+    @SmallTest
+    @Test
+    public void testRecordedWhenWorkThrows() {
+        assertThrows(IllegalStateException.class, () -> {
+            SyncRootProfiler.Sample sample = mProfiler.begin(mLock, SITE);
+            try {
+                mProfiler.waiting(sample);
+                synchronized (mLock) {
+                    mProfiler.locked(sample);
+                    mNowNanos += 1000;
+                    throw new IllegalStateException();
+                }
+            } finally {
+                mProfiler.end(sample);
+            }
+        });
+
+        assertFalse(Thread.holdsLock(mLock));
+        assertEquals(1, mProfiler.getCount(SITE));
+        assertEquals(1000, mProfiler.getTotalHoldNanos(SITE));
+    }
+
+    @SmallTest
+    @Test
+    public void testReentrantAcquisitionNotCounted() {
+        synchronized (mLock) {
+            assertNull(mProfiler.begin(mLock, SITE));
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testUnlockedCallNotCounted() {
+        // The call returned early, before taking the lock.
+        SyncRootProfiler.Sample sample = mProfiler.begin(mLock, SITE);
+        mProfiler.end(sample);
+        assertEquals(0, mProfiler.getCount(SITE));
+    }
+
+    @SmallTest
+    @Test
+    public void testSitesBoundedAndReset() {
+        for (int i = 0; i < SyncRootProfiler.MAX_SITES * 2; i++) {
+            SyncRootProfiler.Sample sample = mProfiler.begin(mLock, "Site" + i);
+            mProfiler.waiting(sample);
+            mProfiler.locked(sample);
+            mProfiler.end(sample);
+        }
+        assertEquals(1, mProfiler.getCount("Site0"));
+        assertEquals(0, mProfiler.getCount("Site" + SyncRootProfiler.MAX_SITES));
+        assertEquals(SyncRootProfiler.MAX_SITES + 1,
+                mProfiler.getCount(SyncRootProfiler.OTHER_SITE));
+
+        mProfiler.reset();
+        assertEquals(0, mProfiler.getCount("Site0"));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import android.content.pm.PackageManager;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.TelecomPermissionCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class TelecomPermissionCacheTest extends TelecomTestCase {
+    private static final int UID_1 = 10001;
+    private static final int UID_2 = 10002;
+    private static final String PACKAGE_1 = "com.test.package1";
+
+    private TelecomPermissionCache mCache;
+    private final AtomicInteger mDecisions = new AtomicInteger();
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new TelecomPermissionCache(mContext);
+    }
+
+    @SmallTest
+    @Test
+    public void testDecisionsCachedPerUidAndSubject() {
+        assertTrue(isAllowed(UID_1, PACKAGE_1, null, true));
+        assertTrue(isAllowed(UID_1, PACKAGE_1, null, false));
+        assertEquals(1, mDecisions.get());
+
+        // Another uid checking the same package is decided separately.
+        assertFalse(isAllowed(UID_2, PACKAGE_1, null, false));
+        assertFalse(isAllowed(UID_2, PACKAGE_1, null, true));
+        assertEquals(2, mDecisions.get());
+        assertEquals(2, mCache.getHits(TelecomPermissionCache.CHECK_CALLING_PACKAGE));
+        assertEquals(2, mCache.getMisses(TelecomPermissionCache.CHECK_CALLING_PACKAGE));
+    }
+
+    @SmallTest
+    @Test
+    public void testScopedDecisionsDroppedWithScope() {
+        Object scope = new Object();
+        assertTrue(isAllowed(UID_1, PACKAGE_1, scope, true));
+        assertTrue(isAllowed(UID_1, PACKAGE_1, scope, false));
+        assertFalse(isAllowed(UID_1, PACKAGE_1, new Object(), false));
+        assertEquals(2, mDecisions.get());
+    }
+
+    @SmallTest
+    @Test
+    public void testFailedChecksNotCached() {
+        for (int i = 0; i < 2; i++) {
+            assertThrows(SecurityException.class, () -> mCache.get(
+                    TelecomPermissionCache.CHECK_READ_PHONE_STATE, UID_1, PACKAGE_1, null, () -> {
+                        mDecisions.incrementAndGet();
+                        throw new SecurityException();
+                    }));
+        }
+        assertEquals(2, mDecisions.get());
+        assertEquals(0, mCache.getHits(TelecomPermissionCache.CHECK_READ_PHONE_STATE));
+    }
+
+    @SmallTest
+    @Test
+    public void testPermissionChangeInvalidates() {
+        ArgumentCaptor<PackageManager.OnPermissionsChangedListener> listener =
+                ArgumentCaptor.forClass(PackageManager.OnPermissionsChangedListener.class);
+        verify(mContext.getPackageManager()).addOnPermissionsChangeListener(listener.capture());
+
+        assertTrue(isAllowed(UID_1, PACKAGE_1, null, true));
+        listener.getValue().onPermissionsChanged(UID_1);
+        assertFalse(isAllowed(UID_1, PACKAGE_1, null, false));
+        assertEquals(2, mDecisions.get());
+    }
+
+    @SmallTest
+    @Test
+    public void testDumpReportsHitRates() {
+        isAllowed(UID_1, PACKAGE_1, null, true);
+        for (int i = 0; i < 3; i++) {
+            isAllowed(UID_1, PACKAGE_1, null, true);
+        }
+
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        mCache.dump(pw);
+        pw.flush();
+        assertTrue(writer.toString().contains("enforceCallingPackage: hits=3/4 (75.0%)"));
+        assertTrue(writer.toString().contains("canReadPhoneState: hits=0/0 (0.0%)"));
+    }
+
+    private boolean isAllowed(int uid, String packageName, Object scope, boolean decision) {
+        return mCache.isAllowed(TelecomPermissionCache.CHECK_CALLING_PACKAGE, uid, packageName,
+                scope, () -> {
+                    mDecisions.incrementAndGet();
+                    return decision;
+                });
+    }
+}
@@ -73,6 +73,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 public class TelecomPulledAtomTest extends TelecomTestCase {
@@ -310,14 +312,39 @@ public class TelecomPulledAtomTest extends TelecomTestCase {
             apiStats.log(event);
             waitForHandlerAction(apiStats, TEST_TIMEOUT);
 
-            verify(apiStats, times(i + 1)).onAggregate();
+            // Logging only counts the event; it is aggregated when saved or pulled.
+            verify(apiStats, times(i)).onAggregate();
             verify(apiStats, times(i + 1)).save(eq(DELAY_FOR_PERSISTENT_MILLIS));
+            apiStats.onAggregate();
             assertEquals(apiStats.mPulledAtoms.telecomApiStats.length, 1);
             verifyMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats[0], VALUE_API_ID,
                     VALUE_UID, VALUE_API_RESULT, i + 1);
         }
     }
 
+    @Test
+    public void testApiStatsLogCountManyEventsAcrossAggregations() throws Exception {
+        ApiStats apiStats = new ApiStats(mSpyContext, mLooper);
+        // More distinct events over all rounds than the counters hold at once; the counts must
+        // stay exact as the slots of the events already aggregated are freed and reused.
+        int eventsPerRound = 1500;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < eventsPerRound; i++) {
+                apiStats.log(VALUE_API_ID, round * eventsPerRound + i, VALUE_API_RESULT);
+            }
+            // An event from the first round is counted again in every round.
+            apiStats.log(VALUE_API_ID, 0, VALUE_API_RESULT);
+            apiStats.onAggregate();
+
+            assertEquals((round + 1) * eventsPerRound,
+                    apiStats.mPulledAtoms.telecomApiStats.length);
+            assertTrue(hasMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats,
+                    VALUE_API_ID, 0, VALUE_API_RESULT, round + 2));
+            assertTrue(hasMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats,
+                    VALUE_API_ID, round * eventsPerRound + 1, VALUE_API_RESULT, 1));
+        }
+    }
+
     @Test
     public void testApiStatsLogEvent() throws Exception {
         final int[] apis = {
@@ -398,14 +425,55 @@ public class TelecomPulledAtomTest extends TelecomTestCase {
             apiStats.log(event);
             waitForHandlerAction(apiStats, TEST_TIMEOUT);
 
-            verify(apiStats, times(i + 1)).onAggregate();
+            verify(apiStats, times(i)).onAggregate();
             verify(apiStats, times(i + 1)).save(eq(DELAY_FOR_PERSISTENT_MILLIS));
+            apiStats.onAggregate();
             assertEquals(apiStats.mPulledAtoms.telecomApiStats.length, eventMap.size());
             assertTrue(hasMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats,
                     api, uid, result, eventMap.get(event)));
         }
     }
 
+    @Test
+    public void testApiStatsLogFromMultipleThreads() throws Exception {
+        final int numThreads = 8;
+        final int logsPerThread = 1000;
+        ApiStats apiStats = new ApiStats(mSpyContext, mLooper);
+        CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            final int uid = VALUE_UID + (t % 2);
+            new Thread(() -> {
+                for (int i = 0; i < logsPerThread; i++) {
+                    apiStats.log(VALUE_API_ID, uid, VALUE_API_RESULT);
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        apiStats.onAggregate();
+
+        assertEquals(2, apiStats.mPulledAtoms.telecomApiStats.length);
+        assertTrue(hasMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats,
+                VALUE_API_ID, VALUE_UID, VALUE_API_RESULT, numThreads / 2 * logsPerThread));
+        assertTrue(hasMessageForApiStats(apiStats.mPulledAtoms.telecomApiStats,
+                VALUE_API_ID, VALUE_UID + 1, VALUE_API_RESULT, numThreads / 2 * logsPerThread));
+    }
+
+    @Test
+    public void testApiStatsPullIncludesCountsNotYetAggregated() throws Exception {
+        createTestFileForApiStats(System.currentTimeMillis() - MIN_PULL_INTERVAL_MILLIS - 1);
+        ApiStats apiStats = new ApiStats(mSpyContext, mLooper);
+        final List<StatsEvent> data = new ArrayList<>();
+        apiStats.log(VALUE_API_ID, VALUE_UID + 1, VALUE_API_RESULT);
+
+        int result = apiStats.pull(data);
+
+        assertEquals(StatsManager.PULL_SUCCESS, result);
+        assertEquals(VALUE_ATOM_COUNT + 1, data.size());
+        assertEquals(apiStats.mPulledAtoms.telecomApiStats.length, 0);
+    }
+
     @Test
     public void testAudioRouteStatsLog() throws Exception {
         AudioRouteStats audioRouteStats = spy(new AudioRouteStats(mSpyContext, mLooper));
@@ -749,8 +817,10 @@ public class TelecomPulledAtomTest extends TelecomTestCase {
             errorStats.log(VALUE_MODULE_ID, VALUE_ERROR_ID);
             waitForHandlerAction(errorStats, TEST_TIMEOUT);
 
-            verify(errorStats, times(i + 1)).onAggregate();
+            // Logging only counts the error; it is aggregated when saved or pulled.
+            verify(errorStats, times(i)).onAggregate();
             verify(errorStats, times(i + 1)).save(eq(DELAY_FOR_PERSISTENT_MILLIS));
+            errorStats.onAggregate();
             assertEquals(errorStats.mPulledAtoms.telecomErrorStats.length, 1);
             verifyMessageForErrorStats(errorStats.mPulledAtoms.telecomErrorStats[0],
                     VALUE_MODULE_ID,
@@ -815,8 +885,9 @@ public class TelecomPulledAtomTest extends TelecomTestCase {
             errorStats.log(module, error);
             waitForHandlerAction(errorStats, DELAY_TOLERANCE);
 
-            verify(errorStats, times(i + 1)).onAggregate();
+            verify(errorStats, times(i)).onAggregate();
             verify(errorStats, times(i + 1)).save(eq(DELAY_FOR_PERSISTENT_MILLIS));
+            errorStats.onAggregate();
             assertEquals(errorStats.mPulledAtoms.telecomErrorStats.length, eventMap.size());
             assertTrue(hasMessageForErrorStats(
                     errorStats.mPulledAtoms.telecomErrorStats, module, error, eventMap.get(key)));
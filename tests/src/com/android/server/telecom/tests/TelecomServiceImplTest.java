@@ -69,6 +69,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.OutcomeReceiver;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -87,12 +88,17 @@ import com.android.server.telecom.AnomalyReporterAdapter;
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallIntentProcessor;
 import com.android.server.telecom.CallState;
+import com.android.server.telecom.CallStateIndex;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.DefaultDialerCache;
 import com.android.server.telecom.InCallController;
 import com.android.server.telecom.PhoneAccountRegistrar;
+import com.android.server.telecom.PhoneAccountSnapshot;
+import com.android.server.telecom.SyncRootProfiler;
+import com.android.server.telecom.TelecomPermissionCache;
 import com.android.server.telecom.TelecomServiceImpl;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.components.UserCallIntentProcessor;
 import com.android.server.telecom.components.UserCallIntentProcessorFactory;
 import com.android.server.telecom.flags.FeatureFlags;
@@ -110,6 +116,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
@@ -186,11 +193,13 @@ public class TelecomServiceImplTest extends TelecomTestCase {
 
     @Mock private CallsManager mFakeCallsManager;
     @Mock private PhoneAccountRegistrar mFakePhoneAccountRegistrar;
+    private PhoneAccountSnapshot mPhoneAccountSnapshot;
     @Mock private TelecomManager mTelecomManager;
     private CallIntentProcessor.Adapter mCallIntentProcessorAdapter =
             spy(new CallIntentProcessAdapterFake());
     @Mock private DefaultDialerCache mDefaultDialerCache;
     private IntConsumer mDefaultDialerObserver;
+    private TelecomPermissionCache mPermissionCache;
     private TelecomServiceImpl.SubscriptionManagerAdapter mSubscriptionManagerAdapter =
             spy(new SubscriptionManagerAdapterFake());
     private TelecomServiceImpl.SettingsSecureAdapter mSettingsSecureAdapter =
@@ -206,6 +215,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
 
     @Mock private InCallController mInCallController;
     @Mock private TelecomMetricsController mMockTelecomMetricsController;
+    @Mock private TimingWheel mTimingWheel;
 
     private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
 
@@ -262,9 +272,11 @@ public class TelecomServiceImplTest extends TelecomTestCase {
                 mTelephonyFeatureFlags,
                 mLock,
                 mMockTelecomMetricsController,
+                mTimingWheel,
                 SYSTEM_UI_PACKAGE);
         telecomServiceImpl.setTransactionManager(mTransactionManager);
         telecomServiceImpl.setAnomalyReporterAdapter(mAnomalyReporterAdapter);
+        mPermissionCache = telecomServiceImpl.getPermissionCache();
         mTSIBinder = telecomServiceImpl.getBinder();
         mComponentContextFixture.setTelecomManager(mTelecomManager);
         when(mTelecomManager.getDefaultDialerPackage()).thenReturn(DEFAULT_DIALER_PACKAGE);
@@ -282,6 +294,12 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         when(mPackageManager.getPackageUid(anyString(), eq(0))).thenReturn(Binder.getCallingUid());
         when(mFeatureFlags.earlyBindingToIncallService()).thenReturn(true);
         when(mTelephonyFeatureFlags.workProfileApiSplit()).thenReturn(false);
+        // Accounts are returned as they are, with their icons.
+        when(mFakePhoneAccountRegistrar.loadIcon(any())).thenAnswer(i -> i.getArgument(0));
+        when(mFakePhoneAccountRegistrar.loadIcons(any())).thenAnswer(i -> i.getArgument(0));
+        // A snapshot answered by the registrar as it is stubbed when each query is made.
+        mPhoneAccountSnapshot = mockPhoneAccountSnapshot();
+        when(mFakePhoneAccountRegistrar.getSnapshot()).thenAnswer(i -> mPhoneAccountSnapshot);
     }
 
     @Override
@@ -576,6 +594,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         // Without across user permission
         doReturn(PackageManager.PERMISSION_DENIED).when(mContext).checkCallingOrSelfPermission(
                 eq(Manifest.permission.INTERACT_ACROSS_USERS));
+        mPermissionCache.invalidate();
 
         assertEquals(smallPHList,
                 mTSIBinder.getCallCapablePhoneAccounts(
@@ -587,6 +606,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         // With across user permission
         doReturn(PackageManager.PERMISSION_GRANTED).when(mContext).checkCallingOrSelfPermission(
                 eq(Manifest.permission.INTERACT_ACROSS_PROFILES));
+        mPermissionCache.invalidate();
 
         assertEquals(fullPHList,
                 mTSIBinder.getCallCapablePhoneAccounts(
@@ -598,6 +618,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         // Without across user permission
         doReturn(PackageManager.PERMISSION_DENIED).when(mContext).checkCallingOrSelfPermission(
                 eq(Manifest.permission.INTERACT_ACROSS_PROFILES));
+        mPermissionCache.invalidate();
 
         assertEquals(smallPHList,
                 mTSIBinder.getCallCapablePhoneAccounts(
@@ -1277,6 +1298,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         }
 
         doThrow(new SecurityException()).when(mAppOpsManager).checkPackage(anyInt(), anyString());
+        mPermissionCache.invalidate();
 
         try {
             mTSIBinder.addNewIncomingCall(TEL_PA_HANDLE_CURRENT, null, CALLING_PACKAGE);
@@ -1315,6 +1337,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         }
 
         doThrow(new SecurityException()).when(mAppOpsManager).checkPackage(anyInt(), anyString());
+        mPermissionCache.invalidate();
 
         try {
             mTSIBinder.addNewUnknownCall(TEL_PA_HANDLE_CURRENT, null);
@@ -2265,16 +2288,16 @@ public class TelecomServiceImplTest extends TelecomTestCase {
     @SmallTest
     @Test
     public void testIsInCall() throws Exception {
-        when(mFakeCallsManager.hasOngoingCalls(any(UserHandle.class), anyBoolean()))
-                .thenReturn(true);
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.ACTIVE, true /* isSelfManaged */));
         assertTrue(mTSIBinder.isInCall(DEFAULT_DIALER_PACKAGE, null));
     }
 
     @SmallTest
     @Test
     public void testNotIsInCall() throws Exception {
-        when(mFakeCallsManager.hasOngoingCalls(any(UserHandle.class), anyBoolean()))
-                .thenReturn(false);
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.DISCONNECTED, false));
         assertFalse(mTSIBinder.isInCall(DEFAULT_DIALER_PACKAGE, null));
     }
 
@@ -2289,22 +2312,160 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         } catch (SecurityException e) {
             // desired result
         }
-        verify(mFakeCallsManager, never()).hasOngoingCalls(any(UserHandle.class), anyBoolean());
+        verify(mFakeCallsManager, never()).getCallStateSummary();
+    }
+
+    /**
+     * Ensure the permission checks of a repeated call are cached, but the app op is still noted
+     * on every call.
+     */
+    @SmallTest
+    @Test
+    public void testPermissionCacheStillNotesAppOps() throws Exception {
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.ACTIVE, true /* isSelfManaged */));
+        doThrow(new SecurityException()).when(mContext)
+                .enforceCallingOrSelfPermission(eq(READ_PRIVILEGED_PHONE_STATE), anyString());
+        when(mAppOpsManager.noteOp(eq(AppOpsManager.OP_READ_PHONE_STATE), anyInt(), anyString(),
+                nullable(String.class), nullable(String.class)))
+                .thenReturn(AppOpsManager.MODE_ALLOWED);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mTSIBinder.isInCall(PACKAGE_NAME, null));
+        }
+        verify(mContext, times(1)).enforceCallingOrSelfPermission(eq(READ_PHONE_STATE),
+                anyString());
+        verify(mDefaultDialerCache, times(1)).isDefaultOrSystemDialer(eq(PACKAGE_NAME), anyInt());
+        verify(mAppOpsManager, times(3)).noteOp(eq(AppOpsManager.OP_READ_PHONE_STATE), anyInt(),
+                eq(PACKAGE_NAME), nullable(String.class), nullable(String.class));
+        assertEquals(2, mPermissionCache.getHits(TelecomPermissionCache.CHECK_READ_PHONE_STATE));
+
+        // A change of the default dialer drops the cached decisions.
+        mDefaultDialerObserver.accept(ActivityManager.getCurrentUser());
+        assertTrue(mTSIBinder.isInCall(PACKAGE_NAME, null));
+        verify(mDefaultDialerCache, times(2)).isDefaultOrSystemDialer(eq(PACKAGE_NAME), anyInt());
+        verify(mAppOpsManager, times(4)).noteOp(eq(AppOpsManager.OP_READ_PHONE_STATE), anyInt(),
+                eq(PACKAGE_NAME), nullable(String.class), nullable(String.class));
+    }
+
+    /**
+     * Ensure the calling package check is cached only while the registrar's snapshot is current.
+     */
+    @SmallTest
+    @Test
+    public void testCallingPackageDecisionExpiresWithSnapshot() throws Exception {
+        when(mFakePhoneAccountRegistrar.getSelfManagedPhoneAccountsForPackage(
+                eq(DEFAULT_DIALER_PACKAGE), nullable(UserHandle.class)))
+                .thenReturn(List.of(TEL_PA_HANDLE_16));
+        mTSIBinder.getOwnSelfManagedPhoneAccounts(DEFAULT_DIALER_PACKAGE, null);
+
+        // The package's uid changes without a package broadcast, so the decision made is used.
+        when(mPackageManager.getPackageUid(anyString(), eq(0))).thenReturn(-1);
+        mTSIBinder.getOwnSelfManagedPhoneAccounts(DEFAULT_DIALER_PACKAGE, null);
+        assertEquals(1, mPermissionCache.getHits(TelecomPermissionCache.CHECK_CALLING_PACKAGE));
+
+        // The registrar publishing a new snapshot expires it.
+        mPhoneAccountSnapshot = mockPhoneAccountSnapshot();
+        assertThrows(SecurityException.class,
+                () -> mTSIBinder.getOwnSelfManagedPhoneAccounts(DEFAULT_DIALER_PACKAGE, null));
+        assertEquals(2, mPermissionCache.getMisses(TelecomPermissionCache.CHECK_CALLING_PACKAGE));
+    }
+
+    /**
+     * Ensure the SIM call manager check is cached only while the registrar's snapshot is current.
+     */
+    @SmallTest
+    @Test
+    public void testSimCallManagerDecisionExpiresWithSnapshot() throws Exception {
+        when(mFakePhoneAccountRegistrar
+                .getOutgoingPhoneAccountForScheme(eq("tel"), any(UserHandle.class)))
+                .thenReturn(TEL_PA_HANDLE_16);
+        doReturn(TEL_PA_HANDLE_16).when(mFakePhoneAccountRegistrar).getSimCallManagerFromHandle(
+                eq(TEL_PA_HANDLE_16), nullable(UserHandle.class));
+        doNothing().when(mAppOpsManager).checkPackage(anyInt(), anyString());
+        doThrow(new SecurityException()).when(mContext)
+                .enforceCallingOrSelfPermission(eq(READ_PRIVILEGED_PHONE_STATE), anyString());
+        when(mAppOpsManager.noteOp(eq(AppOpsManager.OP_READ_PHONE_STATE), anyInt(), anyString(),
+                nullable(String.class), nullable(String.class)))
+                .thenReturn(AppOpsManager.MODE_IGNORED);
+        assertEquals(TEL_PA_HANDLE_16,
+                mTSIBinder.getDefaultOutgoingPhoneAccount("tel", "", null));
+
+        // Until the registrar publishes a new snapshot, the caller is still the SIM call manager.
+        doReturn(null).when(mFakePhoneAccountRegistrar).getSimCallManagerFromHandle(
+                eq(TEL_PA_HANDLE_16), nullable(UserHandle.class));
+        assertEquals(TEL_PA_HANDLE_16,
+                mTSIBinder.getDefaultOutgoingPhoneAccount("tel", "", null));
+        assertEquals(1, mPermissionCache.getHits(TelecomPermissionCache.CHECK_SIM_CALL_MANAGER));
+
+        mPhoneAccountSnapshot = mockPhoneAccountSnapshot();
+        assertNull(mTSIBinder.getDefaultOutgoingPhoneAccount("tel", "", null));
+        assertEquals(2, mPermissionCache.getMisses(TelecomPermissionCache.CHECK_SIM_CALL_MANAGER));
+    }
+
+    /**
+     * Ensure the check that an account is registered and enabled is cached only while the
+     * registrar's snapshot is current.
+     */
+    @SmallTest
+    @Test
+    public void testRegisteredEnabledDecisionExpiresWithSnapshot() throws Exception {
+        PhoneAccount phoneAccount = makePhoneAccount(TEL_PA_HANDLE_16).build();
+        phoneAccount.setIsEnabled(true);
+        doReturn(phoneAccount).when(mFakePhoneAccountRegistrar).getPhoneAccount(
+                eq(TEL_PA_HANDLE_16), any(UserHandle.class));
+        doNothing().when(mAppOpsManager).checkPackage(anyInt(), anyString());
+        mTSIBinder.addNewIncomingCall(TEL_PA_HANDLE_16, null, CALLING_PACKAGE);
+
+        // Until the registrar publishes a new snapshot, the account is still taken as enabled.
+        phoneAccount.setIsEnabled(false);
+        mTSIBinder.addNewIncomingCall(TEL_PA_HANDLE_16, null, CALLING_PACKAGE);
+        assertEquals(1,
+                mPermissionCache.getHits(TelecomPermissionCache.CHECK_REGISTERED_ENABLED));
+
+        mPhoneAccountSnapshot = mockPhoneAccountSnapshot();
+        assertThrows(SecurityException.class,
+                () -> mTSIBinder.addNewIncomingCall(TEL_PA_HANDLE_16, null, CALLING_PACKAGE));
+        verify(mCallIntentProcessorAdapter, times(2))
+                .processIncomingCallIntent(any(CallsManager.class), any(Intent.class));
+    }
+
+    /**
+     * Ensure the "telecom lock-stats" shell command's dump arguments control the profiler of
+     * the Telecom process.
+     */
+    @SmallTest
+    @Test
+    public void testLockStatsDumpArgsControlProfiler() throws Exception {
+        SyncRootProfiler profiler = SyncRootProfiler.getInstance();
+        File file = File.createTempFile("lock-stats", null);
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file,
+                ParcelFileDescriptor.MODE_WRITE_ONLY)) {
+            mTSIBinder.asBinder().dump(pfd.getFileDescriptor(),
+                    new String[] {"lock-stats", "enable"});
+            assertTrue(profiler.isEnabled());
+            mTSIBinder.asBinder().dump(pfd.getFileDescriptor(),
+                    new String[] {"lock-stats", "disable"});
+            assertFalse(profiler.isEnabled());
+        } finally {
+            profiler.setEnabled(false);
+            file.delete();
+        }
     }
 
     @SmallTest
     @Test
     public void testIsInManagedCall() throws Exception {
-        when(mFakeCallsManager.hasOngoingManagedCalls(any(UserHandle.class), anyBoolean()))
-                .thenReturn(true);
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.ACTIVE, false));
         assertTrue(mTSIBinder.isInManagedCall(DEFAULT_DIALER_PACKAGE, null));
     }
 
     @SmallTest
     @Test
     public void testNotIsInManagedCall() throws Exception {
-        when(mFakeCallsManager.hasOngoingManagedCalls(any(UserHandle.class), anyBoolean()))
-                .thenReturn(false);
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.ACTIVE, true /* isSelfManaged */));
         assertFalse(mTSIBinder.isInManagedCall(DEFAULT_DIALER_PACKAGE, null));
     }
 
@@ -2319,7 +2480,29 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         } catch (SecurityException e) {
             // desired result
         }
-        verify(mFakeCallsManager, never()).hasOngoingCalls(any(UserHandle.class), anyBoolean());
+        verify(mFakeCallsManager, never()).getCallStateSummary();
+    }
+
+    @SmallTest
+    @Test
+    public void testIsRinging() throws Exception {
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.SIMULATED_RINGING, false));
+        assertTrue(mTSIBinder.isRinging(DEFAULT_DIALER_PACKAGE));
+
+        when(mFakeCallsManager.getCallStateSummary())
+                .thenReturn(createCallStateSummary(CallState.ON_HOLD, false));
+        assertFalse(mTSIBinder.isRinging(DEFAULT_DIALER_PACKAGE));
+    }
+
+    private static CallStateIndex.Summary createCallStateSummary(int state,
+            boolean isSelfManaged) {
+        CallStateIndex index = new CallStateIndex(call -> UserHandle.ALL);
+        Call call = mock(Call.class);
+        when(call.getState()).thenReturn(state);
+        when(call.isSelfManaged()).thenReturn(isSelfManaged);
+        index.add(call);
+        return index.getSummary();
     }
 
     /**
@@ -2482,4 +2665,39 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         }
         return true;
     }
+
+    /**
+     * @return A {@link PhoneAccountSnapshot} which answers every query from
+     * {@link #mFakePhoneAccountRegistrar}, as it is stubbed when the query is made.
+     */
+    private PhoneAccountSnapshot mockPhoneAccountSnapshot() {
+        PhoneAccountSnapshot snapshot = mock(PhoneAccountSnapshot.class);
+        when(snapshot.getCallCapablePhoneAccounts(nullable(String.class), anyBoolean(),
+                nullable(UserHandle.class), anyBoolean())).thenAnswer(
+                        i -> mFakePhoneAccountRegistrar.getCallCapablePhoneAccounts(
+                                i.getArgument(0), i.getArgument(1), i.getArgument(2),
+                                i.getArgument(3)));
+        when(snapshot.getSelfManagedPhoneAccounts(nullable(UserHandle.class))).thenAnswer(
+                i -> mFakePhoneAccountRegistrar.getSelfManagedPhoneAccounts(i.getArgument(0)));
+        when(snapshot.getSelfManagedPhoneAccountsForPackage(nullable(String.class),
+                nullable(UserHandle.class))).thenAnswer(
+                        i -> mFakePhoneAccountRegistrar.getSelfManagedPhoneAccountsForPackage(
+                                i.getArgument(0), i.getArgument(1)));
+        when(snapshot.getAllPhoneAccountHandlesForPackage(nullable(UserHandle.class),
+                nullable(String.class))).thenAnswer(
+                        i -> mFakePhoneAccountRegistrar.getAllPhoneAccountHandlesForPackage(
+                                i.getArgument(0), i.getArgument(1)));
+        when(snapshot.getRegisteredPhoneAccounts(nullable(String.class),
+                nullable(UserHandle.class), anyBoolean())).thenAnswer(
+                        i -> mFakePhoneAccountRegistrar.getPhoneAccounts(0, 0, null,
+                                i.getArgument(0), true, i.getArgument(1), i.getArgument(2),
+                                false));
+        when(snapshot.getAllPhoneAccounts(nullable(UserHandle.class), anyBoolean())).thenAnswer(
+                i -> mFakePhoneAccountRegistrar.getAllPhoneAccounts(i.getArgument(0),
+                        i.getArgument(1)));
+        when(snapshot.getAllPhoneAccountHandles(nullable(UserHandle.class), anyBoolean()))
+                .thenAnswer(i -> mFakePhoneAccountRegistrar.getAllPhoneAccountHandles(
+                        i.getArgument(0), i.getArgument(1)));
+        return snapshot;
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.TimingWheel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class TimingWheelTest extends TelecomTestCase {
+    private static final String OWNER = "TimingWheelTest";
+    private static final long ONE_DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long STEP_MILLIS = 1000;
+
+    private long mNow;
+    private TimingWheel mWheel;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // Run the clock a day ahead, so that the wakeups posted to the handler never run and the
+        // test drives the wheel with advance() instead.
+        mNow = (SystemClock.uptimeMillis() + ONE_DAY_MILLIS) / TimingWheel.TICK_MILLIS
+                * TimingWheel.TICK_MILLIS;
+        mWheel = new TimingWheel(new Handler(Looper.getMainLooper()), () -> mNow);
+    }
+
+    @SmallTest
+    @Test
+    public void testTimerExpiresAfterDelay() {
+        AtomicInteger runs = new AtomicInteger();
+        mWheel.schedule(OWNER, runs::incrementAndGet, 100);
+
+        advanceBy(99);
+        assertEquals(0, runs.get());
+        assertEquals(1, mWheel.getPendingCount(OWNER));
+
+        advanceBy(1);
+        assertEquals(1, runs.get());
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testCancelledTimerDoesNotRun() {
+        AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timer timer = mWheel.schedule(OWNER, runs::incrementAndGet, 100);
+
+        assertTrue(timer.cancel());
+        assertFalse(timer.cancel());
+        assertEquals(0, mWheel.getPendingCount(OWNER));
+        advanceBy(200);
+        assertEquals(0, runs.get());
+    }
+
+    @SmallTest
+    @Test
+    public void testLongTimersCascadeToTheirDeadline() {
+        long[] delays = {700, 45000, TimeUnit.MINUTES.toMillis(5), TimeUnit.DAYS.toMillis(2)};
+        long start = mNow;
+        long[] expiredAt = new long[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            int index = i;
+            mWheel.schedule(OWNER, () -> expiredAt[index] = mNow, delays[i]);
+        }
+
+        while (mWheel.getPendingCount() > 0) {
+            advanceBy(STEP_MILLIS);
+        }
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(expiredAt[i] - start >= delays[i]);
+            assertTrue(expiredAt[i] - start < delays[i] + STEP_MILLIS);
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testLateWakeupExpiresEveryDueTimer() {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger laterRuns = new AtomicInteger();
+        mWheel.schedule(OWNER, runs::incrementAndGet, 10);
+        mWheel.schedule(OWNER, runs::incrementAndGet, 5000);
+        mWheel.schedule(OWNER, runs::incrementAndGet, 60000);
+        mWheel.schedule(OWNER, laterRuns::incrementAndGet, 60010);
+
+        advanceBy(60000);
+        assertEquals(3, runs.get());
+        assertEquals(0, laterRuns.get());
+        advanceBy(10);
+        assertEquals(1, laterRuns.get());
+    }
+
+    @SmallTest
+    @Test
+    public void testCompleteOnTimeout() {
+        CompletableFuture<Boolean> timedOut = mWheel.completeOnTimeout(OWNER,
+                new CompletableFuture<>(), false, 100, Runnable::run);
+        CompletableFuture<Boolean> completed = mWheel.completeOnTimeout(OWNER,
+                new CompletableFuture<>(), false, 100, Runnable::run);
+        assertEquals(2, mWheel.getPendingCount(OWNER));
+
+        // Completing the future cancels its timer.
+        completed.complete(true);
+        assertEquals(1, mWheel.getPendingCount(OWNER));
+        advanceBy(100);
+        assertFalse(timedOut.getNow(true));
+        assertTrue(completed.getNow(false));
+    }
+
+    private void advanceBy(long millis) {
+        mNow += millis;
+        mWheel.advance();
+    }
+}
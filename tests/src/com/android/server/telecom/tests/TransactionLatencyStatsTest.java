@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static com.android.server.telecom.callsequencing.TransactionLatencyStats.OUTCOME_FAILED;
+import static com.android.server.telecom.callsequencing.TransactionLatencyStats.OUTCOME_SUCCEEDED;
+import static com.android.server.telecom.callsequencing.TransactionLatencyStats.OUTCOME_TIMED_OUT;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.telecom.callsequencing.TransactionLatencyStats;
+import com.android.server.telecom.metrics.LogLinearHistogram;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TransactionLatencyStatsTest extends TelecomTestCase {
+    private static final String HOLD = "HoldCallTransaction";
+
+    @SmallTest
+    @Test
+    public void testBucketUpperBoundContainsValue() {
+        int previousBucket = 0;
+        for (long value = 0; value < 200000; value += value < 100 ? 1 : 97) {
+            int bucket = LogLinearHistogram.getBucket(value);
+            assertTrue(bucket >= previousBucket);
+            assertTrue(bucket < LogLinearHistogram.NUM_BUCKETS);
+            if (bucket < LogLinearHistogram.NUM_BUCKETS - 1) {
+                assertTrue(value <= LogLinearHistogram.getBucketUpperBound(bucket));
+                // Percentiles are at most 25% above the recorded value.
+                assertTrue(LogLinearHistogram.getBucketUpperBound(bucket)
+                        <= value + value / 4);
+            }
+            previousBucket = bucket;
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testPercentiles() {
+        TransactionLatencyStats stats = new TransactionLatencyStats();
+        for (int i = 1; i <= 100; i++) {
+            stats.record(HOLD, 0, i == 100 ? 5000 : 10, OUTCOME_SUCCEEDED);
+        }
+        LogLinearHistogram execution = stats.getStats(HOLD).getExecution();
+        assertEquals(100, execution.getCount());
+        assertEquals(11, execution.getPercentile(50));
+        assertEquals(11, execution.getPercentile(99));
+        assertEquals(5000, execution.getPercentile(100));
+        assertEquals(0, stats.getStats(HOLD).getQueueWait().getPercentile(99));
+    }
+
+    @SmallTest
+    @Test
+    public void testOutcomesCounted() {
+        TransactionLatencyStats stats = new TransactionLatencyStats();
+        stats.record(HOLD, 1, 1, OUTCOME_SUCCEEDED);
+        stats.record(HOLD, 1, 1, OUTCOME_FAILED);
+        stats.record(HOLD, 1, 5000, OUTCOME_TIMED_OUT);
+        assertEquals(3, stats.getStats(HOLD).getExecution().getCount());
+        assertEquals(1, stats.getStats(HOLD).getFailures());
+        assertEquals(1, stats.getStats(HOLD).getTimeouts());
+    }
+
+    @SmallTest
+    @Test
+    public void testTransactionTypesBounded() {
+        TransactionLatencyStats stats = new TransactionLatencyStats();
+        for (int i = 0; i < TransactionLatencyStats.MAX_TRANSACTION_TYPES * 2; i++) {
+            stats.record("Transaction" + i, 1, 1, OUTCOME_SUCCEEDED);
+        }
+        assertNotNull(stats.getStats("Transaction0"));
+        assertNull(stats.getStats(
+                "Transaction" + TransactionLatencyStats.MAX_TRANSACTION_TYPES));
+        assertEquals(TransactionLatencyStats.MAX_TRANSACTION_TYPES + 1, stats.getStats(
+                TransactionLatencyStats.OTHER_TRANSACTION_TYPE).getExecution().getCount());
+    }
+}
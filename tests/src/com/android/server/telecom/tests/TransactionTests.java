@@ -22,7 +22,9 @@ import static com.android.server.telecom.callsequencing.voip.VideoStateTranslati
         .VideoProfileStateToTransactionalVideoState;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
@@ -33,6 +35,7 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -45,8 +48,10 @@ import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.OutcomeReceiver;
+import android.os.ResultReceiver;
 import android.os.UserHandle;
 import android.telecom.CallAttributes;
+import android.telecom.CallException;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
@@ -60,11 +65,14 @@ import com.android.server.telecom.CallerInfoLookupHelper;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ClockProxy;
 import com.android.server.telecom.ConnectionServiceWrapper;
+import com.android.internal.telecom.ICallEventCallback;
 import com.android.server.telecom.PhoneNumberUtilsAdapter;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TransactionalServiceWrapper;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 import com.android.server.telecom.callsequencing.TransactionManager;
 import com.android.server.telecom.callsequencing.VerifyCallStateChangeTransaction;
+import com.android.server.telecom.callsequencing.voip.CallEventCallbackAckTransaction;
 import com.android.server.telecom.callsequencing.voip.EndCallTransaction;
 import com.android.server.telecom.callsequencing.voip.HoldCallTransaction;
 import com.android.server.telecom.callsequencing.voip.IncomingCallTransaction;
@@ -80,6 +88,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -423,6 +432,111 @@ public class TransactionTests extends TelecomTestCase {
         verify(mMockCall1, atLeastOnce()).removeCallStateListener(any());
     }
 
+    /**
+     * Verify that while a slow client has not yet acked a call event, the transaction does not
+     * hold its handler thread, and that it completes successfully once the client acks.
+     */
+    @SmallTest
+    @Test
+    public void testCallEventCallbackAckTransactionDoesNotBlockHandler() throws Exception {
+        ICallEventCallback slowCallback = createSlowCallEventCallback(1000L /* ackDelayMs */);
+        CallEventCallbackAckTransaction t = new CallEventCallbackAckTransaction(slowCallback,
+                TransactionalServiceWrapper.ON_SET_ACTIVE, CALL_ID_1, mLock);
+        TransactionManager.TransactionCompleteListener listener =
+                mock(TransactionManager.TransactionCompleteListener.class);
+        t.setCompleteListener(listener);
+
+        t.start();
+
+        // THEN the handler is free to run other work while the ack is pending
+        CountDownLatch handlerLatch = new CountDownLatch(1);
+        t.getHandler().post(handlerLatch::countDown);
+        assertTrue(handlerLatch.await(500, TimeUnit.MILLISECONDS));
+        verify(slowCallback).onSetActive(eq(CALL_ID_1), any(ResultReceiver.class));
+        verify(listener, never()).onTransactionCompleted(any(), anyString());
+
+        // AND the transaction succeeds once the client acks
+        verify(listener, timeout(3000)).onTransactionCompleted(
+                isA(CallTransactionResult.class), anyString());
+        verify(listener, never()).onTransactionTimeout(anyString());
+    }
+
+    /**
+     * Verify that a slow client does not delay the call events of another client.
+     */
+    @SmallTest
+    @Test
+    public void testCallEventCallbackAckTransactionsProceedConcurrently() throws Exception {
+        ICallEventCallback slowCallback = createSlowCallEventCallback(2000L /* ackDelayMs */);
+        ICallEventCallback fastCallback = createSlowCallEventCallback(0L /* ackDelayMs */);
+        CallEventCallbackAckTransaction slowTransaction = new CallEventCallbackAckTransaction(
+                slowCallback, TransactionalServiceWrapper.ON_ANSWER, CALL_ID_1,
+                CallAttributes.AUDIO_CALL, mLock);
+        CallEventCallbackAckTransaction fastTransaction = new CallEventCallbackAckTransaction(
+                fastCallback, TransactionalServiceWrapper.ON_ANSWER, "2",
+                CallAttributes.AUDIO_CALL, mLock);
+        TransactionManager.TransactionCompleteListener slowListener =
+                mock(TransactionManager.TransactionCompleteListener.class);
+        TransactionManager.TransactionCompleteListener fastListener =
+                mock(TransactionManager.TransactionCompleteListener.class);
+        slowTransaction.setCompleteListener(slowListener);
+        fastTransaction.setCompleteListener(fastListener);
+
+        slowTransaction.start();
+        fastTransaction.start();
+
+        verify(fastListener, timeout(1000)).onTransactionCompleted(
+                isA(CallTransactionResult.class), anyString());
+        verify(slowListener, never()).onTransactionCompleted(any(), anyString());
+        verify(slowListener, timeout(4000)).onTransactionCompleted(
+                isA(CallTransactionResult.class), anyString());
+    }
+
+    /**
+     * Verify that the transaction fails with a timeout when the client never acks.
+     */
+    @SmallTest
+    @Test
+    public void testCallEventCallbackAckTransactionTimesOutWithoutAck() throws Exception {
+        ICallEventCallback silentCallback = mock(ICallEventCallback.class);
+        CallEventCallbackAckTransaction t = new CallEventCallbackAckTransaction(silentCallback,
+                TransactionalServiceWrapper.ON_DISCONNECT, CALL_ID_1, new DisconnectCause(0),
+                mLock);
+
+        CallTransactionResult result = t.processTransaction(null).toCompletableFuture()
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(CallException.CODE_OPERATION_TIMED_OUT, result.getResult());
+        t.finish(null);
+    }
+
+    /**
+     * @return A fake client that acks onSetActive and onAnswer from another thread after a delay.
+     */
+    private ICallEventCallback createSlowCallEventCallback(long ackDelayMs) throws Exception {
+        ICallEventCallback callback = mock(ICallEventCallback.class);
+        doAnswer(invocation -> {
+            ackLater(invocation.getArgument(1), ackDelayMs);
+            return null;
+        }).when(callback).onSetActive(anyString(), any(ResultReceiver.class));
+        doAnswer(invocation -> {
+            ackLater(invocation.getArgument(2), ackDelayMs);
+            return null;
+        }).when(callback).onAnswer(anyString(), anyInt(), any(ResultReceiver.class));
+        return callback;
+    }
+
+    private static void ackLater(ResultReceiver receiver, long ackDelayMs) {
+        new Thread(() -> {
+            try {
+                Thread.sleep(ackDelayMs);
+            } catch (InterruptedException e) {
+                // ack early
+            }
+            receiver.send(TelecomManager.TELECOM_TRANSACTION_SUCCESS, null);
+        }).start();
+    }
+
     private Call createSpyCall(PhoneAccountHandle targetPhoneAccount, int initialState, String id) {
         when(mCallsManager.getCallerInfoLookupHelper()).thenReturn(mCallerInfoLookupHelper);
 
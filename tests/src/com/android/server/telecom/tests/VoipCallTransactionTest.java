@@ -17,17 +17,23 @@
 package com.android.server.telecom.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.OutcomeReceiver;
 import android.telecom.CallException;
 
 import androidx.test.filters.SmallTest;
 
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimingWheel;
 import com.android.server.telecom.callsequencing.voip.ParallelTransaction;
 import com.android.server.telecom.callsequencing.voip.SerialTransaction;
 import com.android.server.telecom.callsequencing.TransactionManager;
+import com.android.server.telecom.callsequencing.TransactionScheduler;
 import com.android.server.telecom.callsequencing.CallTransaction;
 import com.android.server.telecom.callsequencing.CallTransactionResult;
 
@@ -38,7 +44,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
@@ -49,6 +57,11 @@ import java.util.concurrent.TimeoutException;
 public class VoipCallTransactionTest extends TelecomTestCase {
     private StringBuilder mLog;
     private TransactionManager mTransactionManager;
+    private HandlerThread mTimingWheelThread;
+    private TimingWheel mTimingWheel;
+    // A scheduler of the test's own, so that its counters only reflect this test's transactions.
+    private TransactionScheduler mScheduler;
+    private TransactionScheduler mPreviousScheduler;
     private static final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
 
     private class TestVoipCallTransaction extends CallTransaction {
@@ -60,7 +73,10 @@ public class VoipCallTransactionTest extends TelecomTestCase {
         private long mSleepTime;
         private String mName;
         private int mType;
+        private Set<String> mResources;
         public boolean isFinished = false;
+        // The thread the transaction was processed on.
+        public volatile Thread mThread;
 
         public TestVoipCallTransaction(String name, long sleepTime, int type) {
             super(VoipCallTransactionTest.this.mLock);
@@ -69,14 +85,26 @@ public class VoipCallTransactionTest extends TelecomTestCase {
             mType = type;
         }
 
+        public TestVoipCallTransaction(String name, long sleepTime, int type,
+                Set<String> resources) {
+            this(name, sleepTime, type);
+            mResources = resources;
+        }
+
+        @Override
+        public Set<String> getResources() {
+            return mResources != null ? mResources : super.getResources();
+        }
+
         @Override
         public CompletionStage<CallTransactionResult> processTransaction(Void v) {
+            mThread = Thread.currentThread();
             if (mType == EXCEPTION) {
                 mLog.append(mName).append(" exception;\n");
                 throw new IllegalStateException("TEST EXCEPTION");
             }
             CompletableFuture<CallTransactionResult> resultFuture = new CompletableFuture<>();
-            mHandler.postDelayed(() -> {
+            getHandler().postDelayed(() -> {
                 if (mType == SUCCESS) {
                     mLog.append(mName).append(" success;\n");
                     resultFuture.complete(
@@ -107,6 +135,13 @@ public class VoipCallTransactionTest extends TelecomTestCase {
     @Before
     public void setUp() throws Exception {
         super.setUp();
+        mTimingWheelThread = new HandlerThread("TimingWheel");
+        mTimingWheelThread.start();
+        mTimingWheel = new TimingWheel(mTimingWheelThread.getLooper());
+        mScheduler = new TransactionScheduler(TransactionScheduler.MAX_WORKER_THREADS,
+                mTimingWheel);
+        mPreviousScheduler = TransactionManager.getScheduler();
+        TransactionManager.setScheduler(mScheduler);
         mTransactionManager = TransactionManager.getTestInstance();
         mLog = new StringBuilder();
     }
@@ -115,6 +150,9 @@ public class VoipCallTransactionTest extends TelecomTestCase {
     @After
     public void tearDown() throws Exception {
         mTransactionManager.clear();
+        TransactionManager.setScheduler(mPreviousScheduler);
+        mScheduler.quitSafely();
+        mTimingWheelThread.quitSafely();
         super.tearDown();
     }
 
@@ -382,6 +420,158 @@ public class VoipCallTransactionTest extends TelecomTestCase {
         verifyTransactionsFinished(t1, t2, t3);
     }
 
+    /**
+     * Verify that transactions which do not share a resource run concurrently, while
+     * transactions which do are still run in the order they were added.
+     */
+    @SmallTest
+    @Test
+    public void testNonConflictingTransactionsRunConcurrently()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        String call1 = CallTransaction.callResource("1");
+        TestVoipCallTransaction t1 = new TestVoipCallTransaction("t1", 1000L,
+                TestVoipCallTransaction.SUCCESS,
+                Set.of(CallTransaction.RESOURCE_ACTIVE_CALL, call1));
+        TestVoipCallTransaction t2 = new TestVoipCallTransaction("t2", 100L,
+                TestVoipCallTransaction.SUCCESS, Set.of(CallTransaction.RESOURCE_AUDIO));
+        TestVoipCallTransaction t3 = new TestVoipCallTransaction("t3", 100L,
+                TestVoipCallTransaction.SUCCESS, Set.of(call1));
+        CompletableFuture<CallTransactionResult> t1Future = new CompletableFuture<>();
+        CompletableFuture<CallTransactionResult> t2Future = new CompletableFuture<>();
+        CompletableFuture<CallTransactionResult> t3Future = new CompletableFuture<>();
+        mTransactionManager.addTransaction(t1, t1Future::complete);
+        mTransactionManager.addTransaction(t2, t2Future::complete);
+        mTransactionManager.addTransaction(t3, t3Future::complete);
+
+        assertEquals(CallTransactionResult.RESULT_SUCCEED,
+                t3Future.get(5000L, TimeUnit.MILLISECONDS).getResult());
+        assertTrue(t1Future.isDone());
+        assertTrue(t2Future.isDone());
+        // t2 is not held up by t1; t3 shares call1 with t1, so it waits for t1.
+        assertEquals("t2 success;\nt1 success;\nt3 success;\n", mLog.toString());
+        verifyTransactionsFinished(t1, t2, t3);
+    }
+
+    /**
+     * Verify that a transaction which does not declare its resources waits for every transaction
+     * added before it, and holds up every transaction added after it.
+     */
+    @SmallTest
+    @Test
+    public void testUndeclaredTransactionConflictsWithAll()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        TestVoipCallTransaction t1 = new TestVoipCallTransaction("t1", 500L,
+                TestVoipCallTransaction.SUCCESS, Set.of(CallTransaction.RESOURCE_AUDIO));
+        TestVoipCallTransaction t2 = new TestVoipCallTransaction("t2", 100L,
+                TestVoipCallTransaction.SUCCESS);
+        TestVoipCallTransaction t3 = new TestVoipCallTransaction("t3", 100L,
+                TestVoipCallTransaction.SUCCESS, Set.of(CallTransaction.callResource("1")));
+        CompletableFuture<CallTransactionResult> resultFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(t1, result -> { });
+        mTransactionManager.addTransaction(t2, result -> { });
+        mTransactionManager.addTransaction(t3, resultFuture::complete);
+
+        assertEquals(CallTransactionResult.RESULT_SUCCEED,
+                resultFuture.get(5000L, TimeUnit.MILLISECONDS).getResult());
+        assertEquals("t1 success;\nt2 success;\nt3 success;\n", mLog.toString());
+        verifyTransactionsFinished(t1, t2, t3);
+    }
+
+    /**
+     * Verify that a large parallel transaction tree shares the bounded transaction thread pool
+     * instead of starting one thread per transaction.
+     */
+    @SmallTest
+    @Test
+    public void testTransactionsShareBoundedThreadPool()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        List<CallTransaction> subTransactions = new ArrayList<>();
+        TestVoipCallTransaction[] transactions = new TestVoipCallTransaction[10];
+        for (int i = 0; i < transactions.length; i++) {
+            // Long enough that every sub-transaction has started before the first finishes.
+            transactions[i] = new TestVoipCallTransaction("t" + i, 500L,
+                    TestVoipCallTransaction.SUCCESS);
+            subTransactions.add(transactions[i]);
+        }
+        CompletableFuture<CallTransactionResult> resultFuture = new CompletableFuture<>();
+        OutcomeReceiver<CallTransactionResult, CallException> outcomeReceiver =
+                resultFuture::complete;
+        mTransactionManager.addTransaction(new ParallelTransaction(subTransactions, mLock),
+                outcomeReceiver);
+        assertEquals(CallTransactionResult.RESULT_SUCCEED,
+                resultFuture.get(5000L, TimeUnit.MILLISECONDS).getResult());
+        verifyTransactionsFinished(transactions);
+        // The parallel transaction and all of its sub-transactions were in flight at once, on
+        // every worker the pool allows and no more.
+        assertEquals(TransactionScheduler.MAX_WORKER_THREADS, mScheduler.getThreadsCreated());
+        assertEquals(transactions.length + 1, mScheduler.getPeakInFlight());
+    }
+
+    /**
+     * Verify that the scheduler starts a worker only when every worker has work in flight, and
+     * otherwise assigns a transaction to the least loaded worker, the first of several tied.
+     */
+    @SmallTest
+    @Test
+    public void testSchedulerAssignsLeastLoadedWorker() {
+        TransactionScheduler scheduler = new TransactionScheduler(2, mTimingWheel);
+        try {
+            Handler first = scheduler.obtainHandler();
+            assertEquals(1, scheduler.getThreadsCreated());
+            // The only worker is busy, so a second one is started.
+            Handler second = scheduler.obtainHandler();
+            assertNotSame(first, second);
+            assertEquals(2, scheduler.getThreadsCreated());
+            // At the limit, with both workers equally loaded; the first is picked.
+            assertSame(first, scheduler.obtainHandler());
+            assertEquals(2, scheduler.getThreadsCreated());
+            assertEquals(3, scheduler.getInFlight());
+
+            // The second worker is now idle, and so the least loaded.
+            scheduler.onTransactionFinished(second);
+            assertSame(second, scheduler.obtainHandler());
+            assertSame(second, scheduler.obtainHandler());
+            // Both workers have two in flight again.
+            assertSame(first, scheduler.obtainHandler());
+            assertEquals(2, scheduler.getThreadsCreated());
+            assertEquals(5, scheduler.getInFlight());
+            assertEquals(5, scheduler.getPeakInFlight());
+        } finally {
+            scheduler.quitSafely();
+        }
+    }
+
+    /**
+     * Verify that the transactions of a tree, which are all built before any of them starts, are
+     * spread across the workers when they run concurrently.
+     */
+    @SmallTest
+    @Test
+    public void testConcurrentTransactionsRunOnSeparateThreads()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        // The parallel transaction itself takes one worker.
+        List<CallTransaction> subTransactions = new ArrayList<>();
+        TestVoipCallTransaction[] transactions =
+                new TestVoipCallTransaction[TransactionScheduler.MAX_WORKER_THREADS - 1];
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] = new TestVoipCallTransaction("t" + i, 500L,
+                    TestVoipCallTransaction.SUCCESS);
+            subTransactions.add(transactions[i]);
+        }
+        CompletableFuture<CallTransactionResult> resultFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new ParallelTransaction(subTransactions, mLock),
+                resultFuture::complete);
+        assertEquals(CallTransactionResult.RESULT_SUCCEED,
+                resultFuture.get(5000L, TimeUnit.MILLISECONDS).getResult());
+
+        Set<Thread> threads = new HashSet<>();
+        for (TestVoipCallTransaction t : transactions) {
+            threads.add(t.mThread);
+        }
+        assertEquals(transactions.length, threads.size());
+        assertEquals(TransactionScheduler.MAX_WORKER_THREADS, mScheduler.getThreadsCreated());
+    }
+
     public void verifyTransactionsFinished(TestVoipCallTransaction... transactions) {
         for (TestVoipCallTransaction t : transactions) {
             assertTrue("TestVoipCallTransaction[" + t.mName + "] never called finishTransaction",